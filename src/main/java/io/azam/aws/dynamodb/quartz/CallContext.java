@@ -0,0 +1,114 @@
+package io.azam.aws.dynamodb.quartz;
+
+import com.amazonaws.handlers.HandlerContextKey;
+
+/**
+ * Per thread context of the store operation issuing DynamoDB requests, read
+ * by request handlers attached to the client.
+ */
+final class CallContext {
+	static final HandlerContextKey<CallContext> KEY = new HandlerContextKey<CallContext>(
+			CallContext.class.getName());
+
+	private static final CallContext DEFAULT = new CallContext(false, null,
+			null, null);
+	private static final ThreadLocal<CallContext> CURRENT = new ThreadLocal<CallContext>() {
+		@Override
+		protected CallContext initialValue() {
+			return DEFAULT;
+		}
+	};
+
+	/** True for trigger firing path work, which has priority */
+	final boolean firing;
+	/** Store operation, or null for background work */
+	final String operation;
+	/** Fencing token writes are conditional on, or null */
+	final Long fence;
+	/** Start time in nanoseconds */
+	final long start = System.nanoTime();
+	private final CallContext previous;
+
+	private CallContext(boolean firing, String operation, Long fence,
+			CallContext previous) {
+		this.firing = firing;
+		this.operation = operation;
+		this.fence = fence;
+		this.previous = previous;
+	}
+
+	static CallContext current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Enters a context, to be closed with {@link #exit()} in a finally block.
+	 *
+	 * @param firing
+	 *            True for trigger firing path work
+	 * @return Entered context
+	 */
+	static CallContext enter(boolean firing) {
+		return enter(firing, CURRENT.get().operation);
+	}
+
+	/**
+	 * Enters a context for a store operation, on the firing path if the
+	 * current context is.
+	 *
+	 * @param operation
+	 *            Store operation
+	 * @return Entered context
+	 */
+	static CallContext enter(String operation) {
+		return enter(CURRENT.get().firing, operation);
+	}
+
+	/**
+	 * @param firing
+	 *            True for trigger firing path work
+	 * @param operation
+	 *            Store operation
+	 * @return Entered context
+	 */
+	static CallContext enter(boolean firing, String operation) {
+		CallContext current = CURRENT.get();
+		CallContext c = new CallContext(firing, operation, current.fence,
+				current);
+		CURRENT.set(c);
+		return c;
+	}
+
+	/**
+	 * Enters a context whose writes, and those of nested contexts, are
+	 * conditional on a fencing token.
+	 *
+	 * @param fence
+	 *            Fencing token
+	 * @return Entered context
+	 */
+	static CallContext enterFenced(long fence) {
+		CallContext current = CURRENT.get();
+		CallContext c = new CallContext(current.firing, current.operation,
+				fence, current);
+		CURRENT.set(c);
+		return c;
+	}
+
+	/**
+	 * Enters a copy of this context on the current thread, to carry it to
+	 * tasks run on other threads.
+	 *
+	 * @return Entered context
+	 */
+	CallContext attach() {
+		CallContext c = new CallContext(this.firing, this.operation,
+				this.fence, CURRENT.get());
+		CURRENT.set(c);
+		return c;
+	}
+
+	void exit() {
+		CURRENT.set(this.previous != null ? this.previous : DEFAULT);
+	}
+}
@@ -0,0 +1,256 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import org.quartz.JobPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only local journal of job completion mutations that could not be
+ * written to DynamoDB, in a memory-mapped file. Records are replayed in
+ * order once DynamoDB recovers. While records are pending, new mutations
+ * are appended behind them, so they are never applied out of order.
+ * <p>
+ * The file starts with a header holding the offset of the first record not
+ * yet applied and the last sequence number, followed by records of length,
+ * CRC32 and payload. A record
+ * with zero length or a bad checksum ends the journal, so a torn append is
+ * dropped. Each record carries a sequence number, used with the journal
+ * name as its idempotency key. The header is updated after each applied
+ * record, so at most one record is applied twice after a crash.
+ */
+final class CompletionJournal {
+	/**
+	 * Applies a journaled mutation.
+	 */
+	interface Applier {
+		/**
+		 * @param id
+		 *            Idempotency key of the record
+		 * @param op
+		 *            Operation
+		 * @param args
+		 *            Operation arguments
+		 * @throws JobPersistenceException
+		 *             to stop replay and retry later
+		 */
+		void apply(String id, String op, String[] args)
+				throws JobPersistenceException;
+	}
+
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CompletionJournal.class);
+
+	private static final int MAGIC = 0x51444A31;
+	private static final int HEADER = 24;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Instance variables, guarded by this
+	private final Object replayLock = new Object();
+	private final String name;
+	private final MappedByteBuffer buffer;
+	private int applied;
+	private int end;
+	private long seq;
+
+	/**
+	 * Opens or creates a journal file.
+	 *
+	 * @param file
+	 *            Journal file
+	 * @param size
+	 *            Mapped size in bytes
+	 * @param name
+	 *            Journal name, prefix of idempotency keys
+	 * @throws IOException
+	 */
+	CompletionJournal(File file, int size, String name) throws IOException {
+		this.name = name;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			this.buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0,
+					Math.max(size, HEADER + 1024));
+		} finally {
+			raf.close();
+		}
+		if (this.buffer.getInt(0) != MAGIC) {
+			this.buffer.putInt(0, MAGIC);
+			this.buffer.putInt(HEADER, 0);
+			writeApplied(HEADER);
+		}
+		this.applied = (int) this.buffer.getLong(8);
+		this.seq = this.buffer.getLong(16);
+		this.end = this.applied;
+		// Find the end of valid records
+		while (true) {
+			byte[] payload = read(this.end);
+			if (payload == null) {
+				break;
+			}
+			this.seq = Math.max(this.seq, ByteBuffer.wrap(payload).getLong());
+			this.end += 8 + payload.length;
+		}
+		if (this.end > this.applied) {
+			LOG.warn("Journal " + file + " has " + (this.end - this.applied)
+					+ " bytes of pending completion mutations");
+		}
+	}
+
+	/**
+	 * @return true if no records are pending
+	 */
+	synchronized boolean isEmpty() {
+		return this.applied == this.end;
+	}
+
+	/**
+	 * Appends a mutation.
+	 *
+	 * @param op
+	 *            Operation
+	 * @param args
+	 *            Operation arguments
+	 * @throws IOException
+	 *             if the journal is full
+	 */
+	synchronized void append(String op, String... args) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeLong(++this.seq);
+		writeString(out, op);
+		out.writeInt(args.length);
+		for (String arg : args) {
+			writeString(out, arg);
+		}
+		out.flush();
+		byte[] payload = baos.toByteArray();
+		if (this.end + 8 + payload.length + 4 > this.buffer.capacity()) {
+			throw new IOException("Journal full, dropping " + op);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		// Terminate first, then write the record, then its length
+		this.buffer.putInt(this.end + 8 + payload.length, 0);
+		this.buffer.putInt(this.end + 4, (int) crc.getValue());
+		for (int i = 0; i < payload.length; i++) {
+			this.buffer.put(this.end + 8 + i, payload[i]);
+		}
+		this.buffer.putInt(this.end, payload.length);
+		this.buffer.putLong(16, this.seq);
+		this.buffer.force();
+		this.end += 8 + payload.length;
+	}
+
+	/**
+	 * Replays pending records in order, stopping at the first failure.
+	 * Records are applied without holding the journal lock, so appends are
+	 * not blocked by DynamoDB calls.
+	 *
+	 * @param applier
+	 *            Mutation applier
+	 * @return Number of records applied
+	 */
+	int replay(Applier applier) {
+		synchronized (this.replayLock) {
+			int n = 0;
+			while (true) {
+				byte[] payload;
+				synchronized (this) {
+					if (this.applied >= this.end) {
+						if (this.end > HEADER) {
+							// Drained, start over
+							this.buffer.putInt(HEADER, 0);
+							writeApplied(HEADER);
+							this.end = HEADER;
+						}
+						return n;
+					}
+					payload = read(this.applied);
+				}
+				if (payload == null) {
+					return n;
+				}
+				ByteBuffer b = ByteBuffer.wrap(payload);
+				long id = b.getLong();
+				String op = readString(b);
+				String[] args = new String[b.getInt()];
+				for (int i = 0; i < args.length; i++) {
+					args[i] = readString(b);
+				}
+				try {
+					applier.apply(this.name + ":" + id, op, args);
+				} catch (JobPersistenceException e) {
+					LOG.warn("Journal replay stopped at " + op + ": "
+							+ e.getMessage());
+					return n;
+				}
+				synchronized (this) {
+					writeApplied(this.applied + 8 + payload.length);
+				}
+				n++;
+			}
+		}
+	}
+
+	private void writeApplied(int offset) {
+		this.buffer.putLong(8, offset);
+		this.buffer.force();
+		this.applied = offset;
+	}
+
+	/**
+	 * @return Payload of the record at the offset, or null if none is valid
+	 */
+	private byte[] read(int offset) {
+		if (offset + 8 > this.buffer.capacity()) {
+			return null;
+		}
+		int length = this.buffer.getInt(offset);
+		if (length <= 0 || offset + 8 + length > this.buffer.capacity()) {
+			return null;
+		}
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = this.buffer.get(offset + 8 + i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != this.buffer.getInt(offset + 4)) {
+			return null;
+		}
+		return payload;
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] s = new byte[length];
+		b.get(s);
+		return new String(s, UTF8);
+	}
+}
@@ -2,25 +2,41 @@ package io.azam.aws.dynamodb.quartz;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.xml.bind.DatatypeConverter;
 
 import org.quartz.Calendar;
@@ -55,40 +71,54 @@ import org.slf4j.LoggerFactory;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProviderChain;
 import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.auth.SystemPropertiesCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.AttributeAction;
-import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
 import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.Delete;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
 import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
-import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
-import com.amazonaws.services.dynamodbv2.model.KeyType;
-import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.Put;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ReturnValue;
-import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
-import com.amazonaws.services.dynamodbv2.util.Tables;
 
 /**
  * {@link org.quartz.spi.JobStore} implementation for DynamoDB
@@ -101,9 +131,17 @@ public class DynamoDBJobStore implements JobStore {
 	public static final String DEFAULT_JOBS = "jobs";
 	public static final String DEFAULT_CALENDARS = "calendars";
 	public static final String DEFAULT_TRIGGERS = "triggers";
+	public static final String DEFAULT_FENCES = "fences";
+	public static final String DEFAULT_FIRED = "fired";
+	public static final String DEFAULT_PERMITS = "permits";
+	public static final String DEFAULT_TABLE = "quartz";
 	public static final int DEFAULT_POOLSIZE = 10;
 	public static final long DEFAULT_MISFIRETHRESHOLD = 60000L;
 	public static final long DEFAULT_TRIGGERESTIMATE = 200L;
+	public static final long DEFAULT_TRIGGERESTIMATEMIN = 1L;
+	public static final long DEFAULT_TRIGGERESTIMATEMAX = 1000L;
+	public static final int DEFAULT_MAXMISFIRESTOHANDLEATATIME = 20;
+	public static final long DEFAULT_COMPLETEDRETENTION = 86400000L;
 
 	// Keys
 	public static final String KEY_KEY = "key";
@@ -138,6 +176,32 @@ public class DynamoDBJobStore implements JobStore {
 	public static final String KEY_LOCKEDAT = "lockedAt";
 	public static final String KEY_BASE = "base";
 	public static final String KEY_BYTECODE = "byteCode";
+	public static final String KEY_EXPIRES = "expires";
+	public static final String KEY_PK = "pk";
+	public static final String KEY_SK = "sk";
+	public static final String KEY_TOKEN = "token";
+	public static final String KEY_JOURNAL = "journal";
+	public static final String KEY_VERSION = "version";
+	public static final String KEY_LEASE = "lease";
+	public static final String KEY_PERMIT = "permit";
+
+	// Single table partition key prefixes
+	public static final String PREFIX_JOB = "JOB#";
+	public static final String PREFIX_TRIGGER = "TRIG#";
+	public static final String PREFIX_CALENDAR = "CAL#";
+	public static final String PREFIX_JOBTRIGGER = "JOBTRIG#";
+	public static final String PREFIX_JOBGROUP = "JOBGROUP#";
+	public static final String PREFIX_TRIGGERGROUP = "TRIGGROUP#";
+	public static final String PREFIX_FIRED = "FIRED#";
+	public static final String PREFIX_PERMIT = "PERMIT#";
+
+	// Concurrency permit key prefixes
+	public static final String PERMIT_GROUP = "group:";
+	public static final String PERMIT_JOB = "job:";
+
+	// Indexes
+	public static final String INDEX_STATE_NEXT = "stateNext";
+	public static final String INDEX_CALENDAR = "calendar";
 
 	// Trigger types
 	public static final String TRIGGERTYPE_CRON = "cron";
@@ -147,6 +211,15 @@ public class DynamoDBJobStore implements JobStore {
 	// Job state
 	public static final String JOBSTATE_PAUSED = "paused";
 
+	// Journaled completion mutations
+	public static final String JOURNAL_DATA = "data";
+	public static final String JOURNAL_RELEASE = "release";
+	public static final String JOURNAL_REMOVE = "remove";
+	public static final String JOURNAL_STATE = "state";
+	public static final String JOURNAL_JOBSTATE = "jobState";
+	public static final String JOURNAL_EXPIRE = "expire";
+	public static final String JOURNAL_PERMIT = "permit";
+
 	// Scheduler states
 	public static final int SCHEDULERSTATE_INITIALIZED = 0;
 	public static final int SCHEDULERSTATE_RUNNING = 1;
@@ -159,34 +232,158 @@ public class DynamoDBJobStore implements JobStore {
 
 	// Limits
 	public static final int DYNAMODB_MAXBATCHWRITE = 25;
-	public static final int DYNAMODB_MAXBATCHGET = 200;
+	public static final int DYNAMODB_MAXBATCHGET = 100;
+	// Changed job data keys written as a delta, more rewrite the whole map
+	public static final int MAX_DATADELTA = 32;
+	// Fired job data kept for deltas, cleared when exceeded
+	public static final int MAX_FIREDDATA = 10000;
+	// Compare-and-set retries on version conflicts
+	public static final int MAX_CASRETRIES = 5;
+	// Weight of each new sample in latency moving averages
+	public static final double EWMA_WEIGHT = 0.2;
 
 	// Class logger
 	private static final Logger LOG = LoggerFactory
 			.getLogger(DynamoDBJobStore.class);
 
+	// Store operations on the trigger firing path
+	private static final Set<String> FIRING_OPERATIONS = new HashSet<String>(
+			Arrays.asList("acquireNextTriggers", "releaseAcquiredTrigger",
+					"triggersFired", "triggeredJobComplete",
+					"getEstimatedTimeToReleaseAndAcquireTrigger"));
+
 	// Instance variables
 	private final Object initLock = new Object();
 	private ClassLoadHelper loadHelper;
 	private SchedulerSignaler signaler;
 	private AmazonDynamoDB client;
+	private AmazonDynamoDBAsync asyncClient;
+	private FencedWrites fencedWrites;
 	private String tableNameJobs = DEFAULT_JOBS;
 	private String tableNameCalendars = DEFAULT_CALENDARS;
 	private String tableNameTriggers = DEFAULT_TRIGGERS;
+	private String tableNameFences = DEFAULT_FENCES;
+	private String tableNameFired = DEFAULT_FIRED;
+	private String tableNamePermits = DEFAULT_PERMITS;
+	private String tableName = DEFAULT_TABLE;
+	private boolean singleTable = false;
+	private final Set<String> knownGroups = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private String prefix = null;
 	private Region region = Region.getRegion(Regions.US_WEST_1);
 	private boolean useEndpoint = false;
 	private boolean clustered = false;
 	private String endpoint = DEFAULT_ENDPOINT;
 	private String instanceId;
-	@SuppressWarnings("unused")
 	private String instanceName;
 	@SuppressWarnings("unused")
 	private int schedulerState = SCHEDULERSTATE_STOPPED;
 	private long misfireThreshold = DEFAULT_MISFIRETHRESHOLD;
-	@SuppressWarnings("unused")
 	private int poolSize = DEFAULT_POOLSIZE;
 	private long triggerEstimate = DEFAULT_TRIGGERESTIMATE;
+	private boolean adaptiveTriggerEstimate = true;
+	private long triggerEstimateMin = DEFAULT_TRIGGERESTIMATEMIN;
+	private long triggerEstimateMax = DEFAULT_TRIGGERESTIMATEMAX;
+	// Moving averages in microseconds, negative until measured
+	private final AtomicLong acquireLatency = new AtomicLong(-1L);
+	private final AtomicLong releaseLatency = new AtomicLong(-1L);
+	private int maxMisfiresToHandleAtATime = DEFAULT_MAXMISFIRESTOHANDLEATATIME;
+	private boolean makeThreadsDaemons = false;
+	private boolean useStateNextIndex = false;
+	private long completedRetention = DEFAULT_COMPLETEDRETENTION;
+	private BillingMode billingMode = BillingMode.PROVISIONED;
+	private long readCapacity = DynamoDBTableProvisioner.DEFAULT_CAPACITY;
+	private long writeCapacity = DynamoDBTableProvisioner.DEFAULT_CAPACITY;
+	private long indexReadCapacity = DynamoDBTableProvisioner.DEFAULT_CAPACITY;
+	private long indexWriteCapacity = DynamoDBTableProvisioner.DEFAULT_CAPACITY;
+	private long jobsReadCapacity = 0;
+	private long jobsWriteCapacity = 0;
+	private long calendarsReadCapacity = 0;
+	private long calendarsWriteCapacity = 0;
+	private long triggersReadCapacity = 0;
+	private long triggersWriteCapacity = 0;
+	private long tableReadCapacity = 0;
+	private long tableWriteCapacity = 0;
+	private boolean rateLimit = false;
+	private double rateLimitReserve = DynamoDBRateLimiter.DEFAULT_RESERVE;
+	private DynamoDBRateLimiter rateLimiter;
+	private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+	private int connectionTimeout = ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT;
+	private int socketTimeout = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+	private int requestTimeout = ClientConfiguration.DEFAULT_REQUEST_TIMEOUT;
+	private long connectionTTL = ClientConfiguration.DEFAULT_CONNECTION_TTL;
+	private boolean tcpKeepAlive = ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE;
+	private boolean useGzip = ClientConfiguration.DEFAULT_USE_GZIP;
+	private boolean cacheResponseMetadata = false;
+	private int asyncThreads = 0;
+	private boolean virtualThreads = false;
+	private int fanOutThreads = 0;
+	private int maxInFlight = 0;
+	private FanOutExecutor fanOut;
+	private boolean retry = false;
+	private boolean consistentLockReads = true;
+	private boolean consistentItemReads = false;
+	private boolean consistentListReads = false;
+	private boolean hedgedReads = false;
+	private double hedgePercentile = 0.95;
+	private long hedgeMinDelay = 2L;
+	private double hedgeBudget = 0.05;
+	private HedgedReader hedgedReader;
+	private boolean metrics = false;
+	private boolean metricsJmx = true;
+	private String metricsSink;
+	private long metricsSinkInterval = 60000L;
+	private long metricsLogInterval = 300000L;
+	private DynamoDBMetrics metricsRegistry;
+	private DynamoDBMetricsSink metricsSinkInstance;
+	private ObjectName metricsName;
+	// Acquisition times in nanoseconds of acquired triggers, with metrics
+	private final Map<TriggerKey, Long> acquiredAt = new ConcurrentHashMap<TriggerKey, Long>();
+	private MetricsReporter metricsReporter;
+	private boolean lookAhead = false;
+	private long lookAheadWindow = 60000L;
+	private long lookAheadRefresh = 5000L;
+	private int lookAheadMaxSize = 1000;
+	private TriggerLookAhead lookAheadQueue;
+	private String journalFile;
+	private int journalSize = 16 * 1024 * 1024;
+	private long journalReplayInterval = 1000L;
+	private CompletionJournal journal;
+	private JournalReplayer journalReplayer;
+	private boolean fireDedup = false;
+	private long fireDedupRetention = 86400000L;
+	// Fire instance id counter, started from the clock so ids stay unique
+	// across restarts
+	private final AtomicLong fireInstanceCounter = new AtomicLong(
+			System.currentTimeMillis());
+	private boolean timingWheel = false;
+	private long timingWheelMaxInterval = 1000L;
+	private long timingWheelTick = 10L;
+	private long timingWheelCheckpoint = 5000L;
+	private long timingWheelLease = 30000L;
+	// Triggers fired from memory, guarded by wheelTriggers
+	private TimingWheel<TriggerKey> wheel;
+	private final Map<TriggerKey, WheelTrigger> wheelTriggers = new HashMap<TriggerKey, WheelTrigger>();
+	private volatile long lastStorePoll = 0L;
+	// Concurrency limits keyed by permit key
+	private final Map<String, Integer> permitLimits = new HashMap<String, Integer>();
+	// Permits held by running jobs, keyed by fire instance id
+	private final Map<String, List<String>> heldPermits = new ConcurrentHashMap<String, List<String>>();
+	private long permitLease = 60000L;
+	private PermitKeeper permitKeeper;
+	// Fire instance ids of fired triggers whose jobs have not completed
+	private final Set<String> inFlight = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Trigger versions committed when fired, keyed by fire instance id
+	private final Map<String, Long> firedVersions = new ConcurrentHashMap<String, Long>();
+	private WheelCheckpointer wheelCheckpointer;
+	// Job data as fired, keyed by fired job detail instance
+	private final Map<JobDetail, Map<String, AttributeValue>> firedData = Collections
+			.synchronizedMap(new IdentityHashMap<JobDetail, Map<String, AttributeValue>>());
+	private final DynamoDBRetryPolicy retryPolicy = new DynamoDBRetryPolicy();
+	private MisfireHandler misfireHandler;
+	private final Set<JobKey> orphanCandidates = Collections
+			.newSetFromMap(new ConcurrentHashMap<JobKey, Boolean>());
 
 	@Override
 	public void initialize(ClassLoadHelper loadHelper,
@@ -194,34 +391,129 @@ public class DynamoDBJobStore implements JobStore {
 		LOG.trace("initialize");
 		this.loadHelper = loadHelper;
 		this.signaler = signaler;
+		if (this.singleTable) {
+			LOG.info("Using single table: " + this.tableName);
+			this.tableNameJobs = this.tableName;
+			this.tableNameCalendars = this.tableName;
+			this.tableNameTriggers = this.tableName;
+			this.tableNameFired = this.tableName;
+			this.tableNamePermits = this.tableName;
+		}
 		synchronized (this.initLock) {
-			AWSCredentialsProviderChain auth = new AWSCredentialsProviderChain(
-					new EnvironmentVariableCredentialsProvider(),
-					new SystemPropertiesCredentialsProvider(),
-					new ProfileCredentialsProvider(),
-					new InstanceProfileCredentialsProvider());
-			this.client = new AmazonDynamoDBClient(auth);
+			final ExecutorService executor = asyncExecutor();
+			AmazonDynamoDBAsyncClientBuilder builder = AmazonDynamoDBAsyncClientBuilder
+					.standard()
+					.withCredentials(credentials())
+					.withClientConfiguration(clientConfiguration())
+					.withExecutorFactory(new ExecutorFactory() {
+						@Override
+						public ExecutorService newExecutor() {
+							return executor;
+						}
+					});
 			if (this.useEndpoint) {
 				LOG.info("Using endpoint: " + this.endpoint);
-				this.client.setEndpoint(this.endpoint);
+				builder.withEndpointConfiguration(new EndpointConfiguration(
+						this.endpoint, this.region.getName()));
 			} else {
 				LOG.info("Using region: " + this.region.getName());
-				this.client.setRegion(this.region);
+				builder.withRegion(this.region.getName());
+			}
+			List<RequestHandler2> handlers = new ArrayList<RequestHandler2>();
+			if (this.rateLimit) {
+				this.rateLimiter = new DynamoDBRateLimiter(
+						this.rateLimitReserve);
+				handlers.add(this.rateLimiter);
+			}
+			if (this.retry) {
+				handlers.add(this.retryPolicy);
+			}
+			if (this.metrics) {
+				initMetrics();
+				handlers.add(this.metricsRegistry);
 			}
+			builder.withRequestHandlers(handlers
+					.toArray(new RequestHandler2[handlers.size()]));
+			AmazonDynamoDBAsync client = buildClient(builder);
+			this.client = client;
+			this.asyncClient = client;
+			this.fencedWrites = new FencedWrites(client, this.tableNameFences,
+					fenceKey(), KEY_TOKEN);
+			if (this.hedgedReads) {
+				this.hedgedReader = new HedgedReader(client,
+						this.hedgePercentile, this.hedgeMinDelay,
+						this.hedgeBudget);
+			}
+			this.fanOut = new FanOutExecutor("DynamoDBJobStore-"
+					+ this.instanceId + "-FanOut-", this.virtualThreads,
+					this.fanOutThreads, this.maxInFlight > 0 ? this.maxInFlight
+							: this.maxConnections);
 			init();
+			if (this.journalFile != null && !this.journalFile.isEmpty()) {
+				try {
+					this.journal = new CompletionJournal(new File(
+							this.journalFile), this.journalSize,
+							this.instanceId);
+				} catch (IOException e) {
+					throw new SchedulerConfigException(
+							"Failed to open journal: " + this.journalFile, e);
+				}
+			}
+			if (this.lookAhead) {
+				this.lookAheadQueue = new TriggerLookAhead(
+						new TriggerLookAhead.Loader() {
+							@Override
+							public List<OperableTrigger> load(long notAfter,
+									int limit) throws JobPersistenceException {
+								return queryDueTriggers(getMisfireTime(),
+										notAfter, limit);
+							}
+						}, this.signaler, this.lookAheadWindow,
+						this.lookAheadRefresh, this.lookAheadMaxSize);
+			}
+			if (this.timingWheel && !isMirrored()) {
+				this.wheel = new TimingWheel<TriggerKey>(this.timingWheelTick,
+						System.currentTimeMillis());
+			}
 		}
 	}
 
 	@Override
-	public synchronized void schedulerStarted() throws SchedulerException {
+	public void schedulerStarted() throws SchedulerException {
 		LOG.trace("schedulerStarted");
 		synchronized (this.initLock) {
 			this.schedulerState = SCHEDULERSTATE_RUNNING;
+			if (this.misfireHandler == null && !isMirrored()) {
+				this.misfireHandler = new MisfireHandler();
+				this.misfireHandler.start();
+			}
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.start("DynamoDBJobStore-" + this.instanceId
+						+ "-LookAhead", this.makeThreadsDaemons);
+			}
+			if (this.journal != null && this.journalReplayer == null) {
+				this.journalReplayer = new JournalReplayer();
+				this.journalReplayer.start();
+			}
+			if (this.wheel != null && this.wheelCheckpointer == null) {
+				this.wheelCheckpointer = new WheelCheckpointer();
+				this.wheelCheckpointer.start();
+			}
+			if (!this.permitLimits.isEmpty() && this.permitKeeper == null) {
+				this.permitKeeper = new PermitKeeper();
+				this.permitKeeper.start();
+			}
+			if (this.metricsRegistry != null && this.metricsReporter == null
+					&& (this.metricsSinkInstance != null
+							|| this.metricsLogInterval > 0)) {
+				this.metricsReporter = new MetricsReporter();
+				this.metricsReporter.start();
+			}
 		}
 	}
 
 	@Override
-	public synchronized void schedulerPaused() {
+	public void schedulerPaused() {
 		LOG.trace("schedulerPaused");
 		synchronized (this.initLock) {
 			this.schedulerState = SCHEDULERSTATE_PAUSED;
@@ -229,7 +521,7 @@ public class DynamoDBJobStore implements JobStore {
 	}
 
 	@Override
-	public synchronized void schedulerResumed() {
+	public void schedulerResumed() {
 		LOG.trace("schedulerResumed");
 		synchronized (this.initLock) {
 			this.schedulerState = SCHEDULERSTATE_RUNNING;
@@ -237,10 +529,102 @@ public class DynamoDBJobStore implements JobStore {
 	}
 
 	@Override
-	public synchronized void shutdown() {
+	public void shutdown() {
 		LOG.trace("shutdown");
 		synchronized (this.initLock) {
 			this.schedulerState = SCHEDULERSTATE_STOPPED;
+			if (this.misfireHandler != null) {
+				this.misfireHandler.shutdown();
+				try {
+					this.misfireHandler.join();
+				} catch (InterruptedException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				this.misfireHandler = null;
+			}
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.shutdown();
+			}
+			if (this.journalReplayer != null) {
+				this.journalReplayer.shutdown();
+				try {
+					this.journalReplayer.join();
+				} catch (InterruptedException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				this.journalReplayer = null;
+			}
+			if (this.wheelCheckpointer != null) {
+				this.wheelCheckpointer.shutdown();
+				try {
+					this.wheelCheckpointer.join();
+				} catch (InterruptedException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				this.wheelCheckpointer = null;
+			}
+			if (this.permitKeeper != null) {
+				this.permitKeeper.shutdown();
+				try {
+					this.permitKeeper.join();
+				} catch (InterruptedException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				this.permitKeeper = null;
+			}
+			if (this.wheel != null) {
+				List<TriggerKey> keys;
+				synchronized (this.wheelTriggers) {
+					keys = new ArrayList<TriggerKey>(this.wheelTriggers.keySet());
+				}
+				for (TriggerKey key : keys) {
+					evictWheel(key, true);
+				}
+			}
+			if (this.journal != null && !this.journal.isEmpty()) {
+				LOG.warn("Completion mutations left in journal "
+						+ this.journalFile + ", replayed on next start");
+			}
+			if (this.retry) {
+				LOG.info("Retry metrics: " + this.retryPolicy.getMetrics());
+			}
+			if (this.hedgedReader != null) {
+				LOG.info("Hedged reads: " + this.hedgedReader.getHedges()
+						+ " of " + this.hedgedReader.getReads() + ", "
+						+ this.hedgedReader.getHedgeWins() + " faster");
+			}
+			if (this.metricsReporter != null) {
+				this.metricsReporter.shutdown();
+				try {
+					this.metricsReporter.join();
+				} catch (InterruptedException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				this.metricsReporter = null;
+			}
+			if (this.metricsSinkInstance != null) {
+				reportMetrics();
+			}
+			if (this.metricsRegistry != null && this.metricsLogInterval > 0) {
+				logCapacity();
+			}
+			if (this.metricsName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+							this.metricsName);
+				} catch (JMException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				this.metricsName = null;
+			}
+			if (this.fanOut != null) {
+				this.fanOut.shutdown();
+				this.fanOut = null;
+			}
+			if (this.asyncClient != null) {
+				this.asyncClient.shutdown();
+				this.asyncClient = null;
+			}
 		}
 	}
 
@@ -253,7 +637,41 @@ public class DynamoDBJobStore implements JobStore {
 	@Override
 	public long getEstimatedTimeToReleaseAndAcquireTrigger() {
 		LOG.trace("getEstimatedTimeToReleaseAndAcquireTrigger");
-		return this.triggerEstimate;
+		CallContext ctx = enter("getEstimatedTimeToReleaseAndAcquireTrigger");
+		try {
+			long acquire = this.acquireLatency.get();
+			if (!this.adaptiveTriggerEstimate || acquire < 0) {
+				return this.triggerEstimate;
+			}
+			long release = this.releaseLatency.get();
+			// Until a release is measured, assume it costs like an
+			// acquisition
+			long estimate = (acquire + (release < 0 ? acquire : release))
+					/ 1000L;
+			return Math.max(this.triggerEstimateMin,
+					Math.min(this.triggerEstimateMax, estimate));
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	/**
+	 * Adds a sample to an exponentially weighted moving average.
+	 *
+	 * @param average
+	 *            Average, negative if no samples yet
+	 * @param sample
+	 *            Sample
+	 */
+	private static void recordAverage(AtomicLong average, long sample) {
+		while (true) {
+			long old = average.get();
+			long updated = old < 0 ? sample : old
+					+ (long) ((sample - old) * EWMA_WEIGHT);
+			if (average.compareAndSet(old, updated)) {
+				return;
+			}
+		}
 	}
 
 	@Override
@@ -266,21 +684,34 @@ public class DynamoDBJobStore implements JobStore {
 	public void storeJobAndTrigger(JobDetail newJob, OperableTrigger newTrigger)
 			throws ObjectAlreadyExistsException, JobPersistenceException {
 		LOG.trace("storeJobAndTrigger");
+		CallContext ctx = enter("storeJobAndTrigger");
 		try {
-			storeJob(newJob, false);
-		} catch (ObjectAlreadyExistsException e) {
-			throw e;
-		} catch (JobPersistenceException e) {
-			throw e;
-		}
-		try {
-			storeTrigger(newTrigger, false);
-		} catch (ObjectAlreadyExistsException e) {
-			removeJob(newJob.getKey());
-			throw e;
-		} catch (JobPersistenceException e) {
-			removeJob(newJob.getKey());
-			throw e;
+			Map<String, AttributeValue> trigger = triggerToItem(newTrigger);
+			attr(trigger, KEY_STATE, TriggerState.NORMAL.name());
+			List<TransactWriteItem> items = new ArrayList<TransactWriteItem>();
+			items.add(new TransactWriteItem().withPut(newItemPut(
+					this.tableNameJobs, jobToItem(newJob))));
+			items.add(new TransactWriteItem().withPut(newItemPut(
+					this.tableNameTriggers, trigger)));
+			if (this.singleTable) {
+				items.add(new TransactWriteItem().withPut(new Put()
+						.withTableName(this.tableName).withItem(
+								adjacencyItem(newJob.getKey(),
+										newTrigger.getKey()))));
+			}
+			int failed = transactWrite(items);
+			if (failed == 0) {
+				throw new ObjectAlreadyExistsException(newJob);
+			} else if (failed == 1) {
+				throw new ObjectAlreadyExistsException(newTrigger);
+			}
+			registerGroup(PREFIX_JOBGROUP, newJob.getKey().getGroup());
+			registerGroup(PREFIX_TRIGGERGROUP, newTrigger.getKey().getGroup());
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.update(newTrigger, TriggerState.NORMAL);
+			}
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -288,7 +719,12 @@ public class DynamoDBJobStore implements JobStore {
 	public void storeJob(JobDetail newJob, boolean replaceExisting)
 			throws ObjectAlreadyExistsException, JobPersistenceException {
 		LOG.trace("storeJob");
-		storeJob(newJob, replaceExisting, null);
+		CallContext ctx = enter("storeJob");
+		try {
+			storeJob(newJob, replaceExisting, null);
+		} finally {
+			exit(ctx);
+		}
 	}
 
 	@Override
@@ -297,51 +733,64 @@ public class DynamoDBJobStore implements JobStore {
 			boolean replace) throws ObjectAlreadyExistsException,
 			JobPersistenceException {
 		LOG.trace("storeJobsAndTriggers");
-		Set<JobKey> jobKeys = new HashSet<JobKey>();
-		Set<TriggerKey> triggerKeys = new HashSet<TriggerKey>();
-		try {
-			for (Map.Entry<JobDetail, Set<? extends Trigger>> entry : triggersAndJobs
-					.entrySet()) {
-				storeJob(entry.getKey(), replace);
-				jobKeys.add(entry.getKey().getKey());
-				for (Trigger t : entry.getValue()) {
-					storeTrigger((OperableTrigger) t, replace);
-					triggerKeys.add(t.getKey());
-				}
-			}
-		} catch (ObjectAlreadyExistsException e) {
-			// for (TriggerKey k : triggerKeys) {
-			// removeTrigger(k);
-			// }
-			// for (JobKey k : jobKeys) {
-			// removeJob(k);
-			// }
-			throw e;
-		} catch (JobPersistenceException e) {
-			// for (TriggerKey k : triggerKeys) {
-			// removeTrigger(k);
-			// }
-			// for (JobKey k : jobKeys) {
-			// removeJob(k);
-			// }
-			throw e;
+		CallContext ctx = enter("storeJobsAndTriggers");
+		try {
+			Set<JobKey> jobKeys = new HashSet<JobKey>();
+			Set<TriggerKey> triggerKeys = new HashSet<TriggerKey>();
+			try {
+				for (Map.Entry<JobDetail, Set<? extends Trigger>> entry : triggersAndJobs
+						.entrySet()) {
+					storeJob(entry.getKey(), replace, null);
+					jobKeys.add(entry.getKey().getKey());
+					for (Trigger t : entry.getValue()) {
+						storeTrigger((OperableTrigger) t, replace,
+							TriggerState.NORMAL);
+					unexpireJob(t.getJobKey());
+						triggerKeys.add(t.getKey());
+					}
+				}
+			} catch (ObjectAlreadyExistsException e) {
+				// for (TriggerKey k : triggerKeys) {
+				// removeTrigger(k);
+				// }
+				// for (JobKey k : jobKeys) {
+				// removeJob(k);
+				// }
+				throw e;
+			} catch (JobPersistenceException e) {
+				// for (TriggerKey k : triggerKeys) {
+				// removeTrigger(k);
+				// }
+				// for (JobKey k : jobKeys) {
+				// removeJob(k);
+				// }
+				throw e;
+			}
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public boolean removeJob(JobKey jobKey) throws JobPersistenceException {
 		LOG.trace("removeJob: " + formatKey(jobKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(jobKey)));
+		CallContext ctx = enter("removeJob");
+		try {
+			return deleteJob(jobKey);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private boolean deleteJob(JobKey jobKey) throws JobPersistenceException {
+		Map<String, AttributeValue> km = itemKey(jobKey);
 		DeleteItemRequest req = new DeleteItemRequest();
 		req.withTableName(this.tableNameJobs);
 		req.withKey(km);
 		req.addExpectedEntry(KEY_KEY, new ExpectedAttributeValue(true)
 				.withValue(new AttributeValue(formatKey(jobKey))));
 		try {
-			synchronized (this.client) {
-				this.client.deleteItem(req);
-			}
+			deleteItem(req);
 			return true;
 		} catch (ConditionalCheckFailedException e) {
 			LOG.error(e.getMessage(), e);
@@ -359,24 +808,38 @@ public class DynamoDBJobStore implements JobStore {
 	public boolean removeJobs(List<JobKey> jobKeys)
 			throws JobPersistenceException {
 		LOG.trace("removeJobs");
-		// TODO: Use batch write
-		boolean removed = true;
-		for (JobKey k : jobKeys) {
-			removed = removeJob(k) ? removed : false;
+		CallContext ctx = enter("removeJobs");
+		try {
+			// TODO: Use batch write
+			boolean removed = true;
+			for (JobKey k : jobKeys) {
+				removed = deleteJob(k) ? removed : false;
+			}
+			return removed;
+		} finally {
+			exit(ctx);
 		}
-		return removed;
 	}
 
 	@Override
 	public JobDetail retrieveJob(JobKey jobKey) throws JobPersistenceException {
 		LOG.trace("retrieveJob: " + formatKey(jobKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(jobKey)));
+		CallContext ctx = enter("retrieveJob");
+		try {
+			return loadJob(jobKey);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private JobDetail loadJob(JobKey jobKey) throws JobPersistenceException {
+		Map<String, AttributeValue> km = itemKey(jobKey);
 		GetItemRequest req = new GetItemRequest();
+		req.withConsistentRead(consistentRead(ReadKind.ITEM));
 		req.withTableName(this.tableNameJobs);
 		req.withKey(km);
 		try {
-			GetItemResult res = this.client.getItem(req);
+			GetItemResult res = getItem(req);
 			Map<String, AttributeValue> item = res.getItem();
 			if (item != null && !item.isEmpty()) {
 				return itemToJob(item);
@@ -400,22 +863,73 @@ public class DynamoDBJobStore implements JobStore {
 	public void storeTrigger(OperableTrigger newTrigger, boolean replaceExisting)
 			throws ObjectAlreadyExistsException, JobPersistenceException {
 		LOG.trace("storeTrigger");
-		storeTrigger(newTrigger, replaceExisting, TriggerState.NORMAL);
+		CallContext ctx = enter("storeTrigger");
+		try {
+			storeTrigger(newTrigger, replaceExisting, TriggerState.NORMAL);
+			unexpireJob(newTrigger.getJobKey());
+		} finally {
+			exit(ctx);
+		}
 	}
 
 	@Override
 	public boolean removeTrigger(TriggerKey triggerKey)
 			throws JobPersistenceException {
+		CallContext ctx = enter("removeTrigger");
+		try {
+			return removeTrigger(triggerKey, null, null);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	/**
+	 * @param fireInstanceId
+	 *            Fire instance id the trigger was committed with, to remove
+	 *            the trigger only if it was not stored or fired again since,
+	 *            or null
+	 * @param committed
+	 *            Version committed when fired, to remove the trigger only if
+	 *            its version has not gone back since, or null
+	 */
+	private boolean removeTrigger(TriggerKey triggerKey,
+			String fireInstanceId, Long committed)
+			throws JobPersistenceException {
 		LOG.trace("removeTrigger: " + formatKey(triggerKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(triggerKey)));
+		if (this.lookAheadQueue != null) {
+			this.lookAheadQueue.remove(triggerKey);
+		}
+		evictWheel(triggerKey, false);
+		Map<String, AttributeValue> km = itemKey(triggerKey);
 		DeleteItemRequest req = new DeleteItemRequest();
 		req.withTableName(this.tableNameTriggers);
 		req.withKey(km);
 		req.addExpectedEntry(KEY_KEY, new ExpectedAttributeValue(true)
 				.withValue(new AttributeValue(formatKey(triggerKey))));
+		if (fireInstanceId != null) {
+			req.addExpectedEntry(KEY_INSTANCE, new ExpectedAttributeValue()
+					.withComparisonOperator(ComparisonOperator.EQ)
+					.withAttributeValueList(new AttributeValue(fireInstanceId)));
+		}
+		if (committed != null) {
+			req.addExpectedEntry(KEY_VERSION, new ExpectedAttributeValue()
+					.withComparisonOperator(ComparisonOperator.GE)
+					.withAttributeValueList(
+							new AttributeValue().withN(Long.toString(
+									committed, 10))));
+		}
+		req.withReturnValues(ReturnValue.ALL_OLD);
 		try {
-			this.client.deleteItem(req);
+			DeleteItemResult res = deleteItem(req);
+			if (this.singleTable && res.getAttributes() != null) {
+				deleteAdjacency(
+						parseJobKey(strValue(res.getAttributes(), KEY_JOB)),
+						triggerKey);
+			}
+			if (res.getAttributes() != null) {
+				deferExpiry(parseJobKey(strValue(res.getAttributes(),
+						KEY_JOB)));
+			}
 			return true;
 		} catch (ConditionalCheckFailedException e) {
 			LOG.error(e.getMessage(), e);
@@ -433,95 +947,194 @@ public class DynamoDBJobStore implements JobStore {
 	public boolean removeTriggers(List<TriggerKey> triggerKeys)
 			throws JobPersistenceException {
 		LOG.trace("removeTriggers");
-		// TODO: Use batch write
-		boolean removed = true;
-		for (TriggerKey k : triggerKeys) {
-			removed = removeTrigger(k) ? removed : false;
+		CallContext ctx = enter("removeTriggers");
+		try {
+			// TODO: Use batch write
+			boolean removed = true;
+			for (TriggerKey k : triggerKeys) {
+				removed = removeTrigger(k, null, null) ? removed : false;
+			}
+			return removed;
+		} finally {
+			exit(ctx);
 		}
-		return removed;
 	}
 
 	@Override
 	public boolean replaceTrigger(TriggerKey triggerKey,
 			OperableTrigger newTrigger) throws JobPersistenceException {
-		LOG.trace("replaceTrigger");
-		OperableTrigger t = retrieveTrigger(triggerKey);
-		if (t != null) {
-			newTrigger.setJobKey(t.getJobKey());
-			removeTrigger(triggerKey);
-			storeTrigger(newTrigger, true);
+		LOG.trace("replaceTrigger: " + formatKey(triggerKey));
+		CallContext ctx = enter("replaceTrigger");
+		try {
+			if (newTrigger.getJobKey() == null) {
+				OperableTrigger t = retrieveTrigger(triggerKey, false);
+				if (t == null) {
+					return false;
+				}
+				newTrigger.setJobKey(t.getJobKey());
+			}
+			JobKey jobKey = newTrigger.getJobKey();
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.remove(triggerKey);
+			}
+			evictWheel(triggerKey, false);
+			Map<String, AttributeValue> item = triggerToItem(newTrigger);
+			attr(item, KEY_STATE, TriggerState.NORMAL.name());
+			// The old trigger must exist and belong to the same job
+			Map<String, String> names = new HashMap<String, String>();
+			names.put("#j", KEY_JOB);
+			Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+			values.put(":j", new AttributeValue(formatKey(jobKey)));
+			if (triggerKey.equals(newTrigger.getKey())) {
+				if (!replaceVersioned(item, triggerKey, jobKey)) {
+					LOG.debug("Trigger not found for job: " + formatKey(triggerKey));
+					return false;
+				}
+				unexpireJob(jobKey);
+			} else {
+				List<TransactWriteItem> items = new ArrayList<TransactWriteItem>();
+				items.add(new TransactWriteItem().withDelete(new Delete()
+						.withTableName(this.tableNameTriggers)
+						.withKey(itemKey(triggerKey))
+						.withConditionExpression("#j = :j")
+						.withExpressionAttributeNames(names)
+						.withExpressionAttributeValues(values)));
+				items.add(new TransactWriteItem().withPut(newItemPut(
+						this.tableNameTriggers, item)));
+				if (this.singleTable) {
+					items.add(new TransactWriteItem().withDelete(new Delete()
+							.withTableName(this.tableName).withKey(
+									adjacencyItem(jobKey, triggerKey))));
+					items.add(new TransactWriteItem().withPut(new Put()
+							.withTableName(this.tableName).withItem(
+									adjacencyItem(jobKey,
+											newTrigger.getKey()))));
+				}
+				int failed = transactWrite(items);
+				if (failed == 0) {
+					LOG.debug("Trigger not found for job: " + formatKey(triggerKey));
+					return false;
+				} else if (failed == 1) {
+					throw new ObjectAlreadyExistsException(newTrigger);
+				}
+				unexpireJob(jobKey);
+			}
+			registerGroup(PREFIX_TRIGGERGROUP, newTrigger.getKey().getGroup());
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.update(newTrigger, TriggerState.NORMAL);
+			}
+			return true;
+		} finally {
+			exit(ctx);
 		}
-		return false;
 	}
 
 	@Override
 	public OperableTrigger retrieveTrigger(TriggerKey triggerKey)
 			throws JobPersistenceException {
 		LOG.trace("retrieveTrigger: " + formatKey(triggerKey));
-		return retrieveTrigger(triggerKey, false);
+		CallContext ctx = enter("retrieveTrigger");
+		try {
+			return retrieveTrigger(triggerKey, false);
+		} finally {
+			exit(ctx);
+		}
 	}
 
 	@Override
 	public boolean checkExists(JobKey jobKey) throws JobPersistenceException {
 		LOG.trace("checkExists");
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(jobKey)));
-		GetItemRequest req = new GetItemRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withKey(km);
-		req.withAttributesToGet(KEY_KEY);
+		CallContext ctx = enter("checkExists");
 		try {
-			GetItemResult res = this.client.getItem(req);
-			Map<String, AttributeValue> item = res.getItem();
-			if (item != null && !item.isEmpty()) {
-				return true;
+			Map<String, AttributeValue> km = itemKey(jobKey);
+			GetItemRequest req = new GetItemRequest();
+			req.withConsistentRead(consistentRead(ReadKind.ITEM));
+			req.withTableName(this.tableNameJobs);
+			req.withKey(km);
+			req.withAttributesToGet(KEY_KEY);
+			try {
+				GetItemResult res = this.client.getItem(req);
+				Map<String, AttributeValue> item = res.getItem();
+				if (item != null && !item.isEmpty()) {
+					return true;
+				}
+			} catch (ConditionalCheckFailedException e) {
+				LOG.error(e.getMessage(), e);
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+			return false;
+		} finally {
+			exit(ctx);
 		}
-		return false;
 	}
 
 	@Override
 	public boolean checkExists(TriggerKey triggerKey)
 			throws JobPersistenceException {
 		LOG.trace("checkExists");
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(triggerKey)));
-		GetItemRequest req = new GetItemRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withKey(km);
-		req.withAttributesToGet(KEY_KEY);
+		CallContext ctx = enter("checkExists");
 		try {
-			GetItemResult res = this.client.getItem(req);
-			Map<String, AttributeValue> item = res.getItem();
-			if (item != null && !item.isEmpty()) {
-				return true;
+			Map<String, AttributeValue> km = itemKey(triggerKey);
+			GetItemRequest req = new GetItemRequest();
+			req.withConsistentRead(consistentRead(ReadKind.ITEM));
+			req.withTableName(this.tableNameTriggers);
+			req.withKey(km);
+			req.withAttributesToGet(KEY_KEY);
+			try {
+				GetItemResult res = this.client.getItem(req);
+				Map<String, AttributeValue> item = res.getItem();
+				if (item != null && !item.isEmpty()) {
+					return true;
+				}
+			} catch (ConditionalCheckFailedException e) {
+				LOG.error(e.getMessage(), e);
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+			return false;
+		} finally {
+			exit(ctx);
 		}
-		return false;
 	}
 
 	@Override
 	public void clearAllSchedulingData() throws JobPersistenceException {
 		LOG.trace("clearAllSchedulingData");
-		clearTable(this.tableNameCalendars, KEY_NAME);
-		clearTable(this.tableNameTriggers, KEY_KEY);
-		clearTable(this.tableNameJobs, KEY_KEY);
+		CallContext ctx = enter("clearAllSchedulingData");
+		try {
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.clear();
+			}
+			if (this.wheel != null) {
+				synchronized (this.wheelTriggers) {
+					for (WheelTrigger w : this.wheelTriggers.values()) {
+						if (w.timeout != null) {
+							this.wheel.cancel(w.timeout);
+						}
+					}
+					this.wheelTriggers.clear();
+				}
+			}
+			if (this.singleTable) {
+				clearTable(this.tableName, KEY_PK, KEY_SK);
+				this.knownGroups.clear();
+				return;
+			}
+			clearTable(this.tableNameCalendars, KEY_NAME);
+			clearTable(this.tableNameTriggers, KEY_KEY);
+			clearTable(this.tableNameJobs, KEY_KEY);
+		} finally {
+			exit(ctx);
+		}
 	}
 
 	@Override
@@ -529,34 +1142,51 @@ public class DynamoDBJobStore implements JobStore {
 			boolean replaceExisting, boolean updateTriggers)
 			throws ObjectAlreadyExistsException, JobPersistenceException {
 		LOG.trace("storeCalendar");
-		Map<String, AttributeValue> item = calendarToItem(calendar);
-		item.put(KEY_NAME, new AttributeValue().withS(name));
-		LOG.trace("  item: " + item.toString());
-		PutItemRequest req = new PutItemRequest();
-		req.withTableName(this.tableNameCalendars);
-		req.withItem(item);
-		if (!replaceExisting) {
-			req.addExpectedEntry(KEY_NAME, new ExpectedAttributeValue(false));
-		}
+		CallContext ctx = enter("storeCalendar");
 		try {
-			LOG.trace("  putting key: " + item.get(KEY_NAME).getS());
-			this.client.putItem(req);
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-			throw new ObjectAlreadyExistsException(name);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		}
-		if (updateTriggers) {
-			List<OperableTrigger> tl = getTriggersForCalendar(name);
-			for (OperableTrigger t : tl) {
-				t.updateWithNewCalendar(calendar, this.misfireThreshold);
-				storeTrigger(t, true);
+			Map<String, AttributeValue> item = calendarToItem(calendar);
+			item.put(KEY_NAME, new AttributeValue().withS(name));
+			if (this.singleTable) {
+				item.putAll(calendarKey(name));
+			}
+			LOG.trace("  item: " + item.toString());
+			PutItemRequest req = new PutItemRequest();
+			req.withTableName(this.tableNameCalendars);
+			req.withItem(item);
+			if (!replaceExisting) {
+				req.addExpectedEntry(KEY_NAME,
+						new ExpectedAttributeValue(false));
+			}
+			try {
+				LOG.trace("  putting key: " + item.get(KEY_NAME).getS());
+				putItem(req);
+			} catch (ConditionalCheckFailedException e) {
+				LOG.error(e.getMessage(), e);
+				throw new ObjectAlreadyExistsException(name);
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
+			if (updateTriggers) {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (final OperableTrigger t : getTriggersForCalendar(name)) {
+					t.updateWithNewCalendar(calendar, this.misfireThreshold);
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws JobPersistenceException {
+							storeTrigger(t, true, TriggerState.NORMAL);
+							unexpireJob(t.getJobKey());
+							return null;
+						}
+					});
+				}
+				this.fanOut.invokeAll(tasks);
+			}
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -564,30 +1194,34 @@ public class DynamoDBJobStore implements JobStore {
 	public boolean removeCalendar(String calName)
 			throws JobPersistenceException {
 		LOG.trace("removeCalendar: " + calName);
-		List<OperableTrigger> tl = getTriggersForCalendar(calName);
-		if (tl.size() > 0) {
-			throw new JobPersistenceException("Triggers using calendar "
-					+ calName + " exists.");
-		}
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_NAME, new AttributeValue(calName));
-		DeleteItemRequest req = new DeleteItemRequest();
-		req.withTableName(this.tableNameCalendars);
-		req.withKey(km);
-		req.addExpectedEntry(KEY_NAME, new ExpectedAttributeValue(true)
-				.withValue(new AttributeValue(calName)));
+		CallContext ctx = enter("removeCalendar");
 		try {
-			this.client.deleteItem(req);
-			return true;
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-			return false;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+			List<OperableTrigger> tl = getTriggersForCalendar(calName);
+			if (tl.size() > 0) {
+				throw new JobPersistenceException("Triggers using calendar "
+						+ calName + " exists.");
+			}
+			Map<String, AttributeValue> km = calendarKey(calName);
+			DeleteItemRequest req = new DeleteItemRequest();
+			req.withTableName(this.tableNameCalendars);
+			req.withKey(km);
+			req.addExpectedEntry(KEY_NAME, new ExpectedAttributeValue(true)
+					.withValue(new AttributeValue(calName)));
+			try {
+				deleteItem(req);
+				return true;
+			} catch (ConditionalCheckFailedException e) {
+				LOG.error(e.getMessage(), e);
+				return false;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -595,13 +1229,23 @@ public class DynamoDBJobStore implements JobStore {
 	public Calendar retrieveCalendar(String calName)
 			throws JobPersistenceException {
 		LOG.trace("retrieveCalendar");
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_NAME, new AttributeValue(calName));
-		GetItemRequest req = new GetItemRequest();
+		CallContext ctx = enter("retrieveCalendar");
+		try {
+			return loadCalendar(calName);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private Calendar loadCalendar(String calName)
+			throws JobPersistenceException {
+		Map<String, AttributeValue> km = calendarKey(calName);
+		GetItemRequest req = new GetItemRequest();
+		req.withConsistentRead(consistentRead(ReadKind.ITEM));
 		req.withTableName(this.tableNameCalendars);
 		req.withKey(km);
 		try {
-			GetItemResult res = this.client.getItem(req);
+			GetItemResult res = getItem(req);
 			Map<String, AttributeValue> item = res.getItem();
 			if (item != null && !item.isEmpty()) {
 				return itemToCalendar(item);
@@ -624,90 +1268,106 @@ public class DynamoDBJobStore implements JobStore {
 	@Override
 	public int getNumberOfJobs() throws JobPersistenceException {
 		LOG.trace("getNumberOfJobs");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withAttributesToGet(KEY_KEY);
+		CallContext ctx = enter("getNumberOfJobs");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			int count = 0;
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				count += res.getCount();
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
+			ScanRequest req = scanRequest(this.tableNameJobs, PREFIX_JOB);
+			req.withAttributesToGet(KEY_KEY);
+			try {
+				boolean hasMore = true;
+				ScanResult res = null;
+				int count = 0;
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					count += res.getCount();
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
+				return count;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return count;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public int getNumberOfTriggers() throws JobPersistenceException {
 		LOG.trace("getNumberOfTriggers");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withAttributesToGet(KEY_KEY);
+		CallContext ctx = enter("getNumberOfTriggers");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			int count = 0;
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				count += res.getCount();
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
+			ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
+			req.withAttributesToGet(KEY_KEY);
+			try {
+				boolean hasMore = true;
+				ScanResult res = null;
+				int count = 0;
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					count += res.getCount();
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
+				return count;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return count;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public int getNumberOfCalendars() throws JobPersistenceException {
 		LOG.trace("getNumberOfCalendars");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameCalendars);
-		req.withAttributesToGet(KEY_NAME);
+		CallContext ctx = enter("getNumberOfCalendars");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			int count = 0;
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				count += res.getCount();
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
+			ScanRequest req = scanRequest(this.tableNameCalendars,
+					PREFIX_CALENDAR);
+			req.withAttributesToGet(KEY_NAME);
+			try {
+				boolean hasMore = true;
+				ScanResult res = null;
+				int count = 0;
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					count += res.getCount();
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
+				return count;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return count;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -715,10 +1375,36 @@ public class DynamoDBJobStore implements JobStore {
 	public Set<JobKey> getJobKeys(GroupMatcher<JobKey> matcher)
 			throws JobPersistenceException {
 		LOG.trace("getJobKeys: " + matcher.toString());
+		CallContext ctx = enter("getJobKeys");
+		try {
+			return jobKeys(matcher);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private Set<JobKey> jobKeys(GroupMatcher<JobKey> matcher)
+			throws JobPersistenceException {
 		StringOperatorName op = matcher.getCompareWithOperator();
 		String val = matcher.getCompareToValue();
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameJobs);
+		if (this.singleTable && op == StringOperatorName.EQUALS) {
+			try {
+				Set<JobKey> keys = new HashSet<JobKey>();
+				for (Map<String, AttributeValue> item : queryAll(queryRequest(
+						PREFIX_JOB + val)
+						.withAttributesToGet(KEY_KEY))) {
+					keys.add(parseJobKey(strValue(item, KEY_KEY)));
+				}
+				return keys;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		ScanRequest req = scanRequest(this.tableNameJobs, PREFIX_JOB);
 		req.withAttributesToGet(KEY_KEY, KEY_NAME, KEY_GROUP);
 		switch (op) {
 		case ANYTHING:
@@ -761,7 +1447,8 @@ public class DynamoDBJobStore implements JobStore {
 					}
 					keys.add(parseJobKey(strValue(item, KEY_KEY)));
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
+				Map<String, AttributeValue> lastKey = res
+						.getLastEvaluatedKey();
 				if (lastKey != null && !lastKey.isEmpty()) {
 					hasMore = true;
 					req.withExclusiveStartKey(lastKey);
@@ -781,10 +1468,36 @@ public class DynamoDBJobStore implements JobStore {
 	public Set<TriggerKey> getTriggerKeys(GroupMatcher<TriggerKey> matcher)
 			throws JobPersistenceException {
 		LOG.trace("getTriggerKeys: " + matcher.toString());
+		CallContext ctx = enter("getTriggerKeys");
+		try {
+			return triggerKeys(matcher);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private Set<TriggerKey> triggerKeys(GroupMatcher<TriggerKey> matcher)
+			throws JobPersistenceException {
 		StringOperatorName op = matcher.getCompareWithOperator();
 		String val = matcher.getCompareToValue();
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
+		if (this.singleTable && op == StringOperatorName.EQUALS) {
+			try {
+				Set<TriggerKey> keys = new HashSet<TriggerKey>();
+				for (Map<String, AttributeValue> item : queryAll(queryRequest(
+						PREFIX_TRIGGER + val).withAttributesToGet(
+						KEY_KEY))) {
+					keys.add(parseTriggerKey(strValue(item, KEY_KEY)));
+				}
+				return keys;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
 		req.withAttributesToGet(KEY_KEY, KEY_NAME, KEY_GROUP);
 		switch (op) {
 		case ANYTHING:
@@ -827,7 +1540,8 @@ public class DynamoDBJobStore implements JobStore {
 					}
 					keys.add(parseTriggerKey(strValue(item, KEY_KEY)));
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
+				Map<String, AttributeValue> lastKey = res
+						.getLastEvaluatedKey();
 				if (lastKey != null && !lastKey.isEmpty()) {
 					hasMore = true;
 					req.withExclusiveStartKey(lastKey);
@@ -846,111 +1560,141 @@ public class DynamoDBJobStore implements JobStore {
 	@Override
 	public List<String> getJobGroupNames() throws JobPersistenceException {
 		LOG.trace("getJobGroupNames");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withAttributesToGet(KEY_KEY, KEY_GROUP);
+		CallContext ctx = enter("getJobGroupNames");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			Set<String> groups = new HashSet<String>();
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				if (res != null) {
-					List<Map<String, AttributeValue>> l = res.getItems();
-					if (l != null) {
-						for (Map<String, AttributeValue> item : l) {
-							groups.add(strValue(item, KEY_GROUP));
+			ScanRequest req = scanRequest(this.tableNameJobs, PREFIX_JOB);
+			req.withAttributesToGet(KEY_KEY, KEY_GROUP);
+			try {
+				if (this.singleTable) {
+					return queryGroupNames(PREFIX_JOBGROUP, PREFIX_JOB);
+				}
+				boolean hasMore = true;
+				ScanResult res = null;
+				Set<String> groups = new HashSet<String>();
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					if (res != null) {
+						List<Map<String, AttributeValue>> l = res.getItems();
+						if (l != null) {
+							for (Map<String, AttributeValue> item : l) {
+								groups.add(strValue(item, KEY_GROUP));
+							}
 						}
 					}
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
-				}
+				return new ArrayList<String>(groups);
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return new ArrayList<String>(groups);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public List<String> getTriggerGroupNames() throws JobPersistenceException {
 		LOG.trace("getTriggerGroupNames");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withAttributesToGet(KEY_KEY, KEY_GROUP);
+		CallContext ctx = enter("getTriggerGroupNames");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			Set<String> groups = new HashSet<String>();
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				if (res != null) {
-					List<Map<String, AttributeValue>> l = res.getItems();
-					if (l != null) {
-						for (Map<String, AttributeValue> item : l) {
-							groups.add(strValue(item, KEY_GROUP));
+			ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
+			req.withAttributesToGet(KEY_KEY, KEY_GROUP);
+			try {
+				if (this.singleTable) {
+					return queryGroupNames(PREFIX_TRIGGERGROUP, PREFIX_TRIGGER);
+				}
+				boolean hasMore = true;
+				ScanResult res = null;
+				Set<String> groups = new HashSet<String>();
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					if (res != null) {
+						List<Map<String, AttributeValue>> l = res.getItems();
+						if (l != null) {
+							for (Map<String, AttributeValue> item : l) {
+								groups.add(strValue(item, KEY_GROUP));
+							}
 						}
 					}
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
-				}
+				return new ArrayList<String>(groups);
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return new ArrayList<String>(groups);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public List<String> getCalendarNames() throws JobPersistenceException {
 		LOG.trace("getCalendarNames");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameCalendars);
-		req.withAttributesToGet(KEY_NAME);
+		CallContext ctx = enter("getCalendarNames");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			Set<String> groups = new HashSet<String>();
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				if (res != null) {
-					List<Map<String, AttributeValue>> l = res.getItems();
-					if (l != null) {
-						for (Map<String, AttributeValue> item : l) {
-							groups.add(strValue(item, KEY_NAME));
-						}
+			ScanRequest req = scanRequest(this.tableNameCalendars,
+					PREFIX_CALENDAR);
+			req.withAttributesToGet(KEY_NAME);
+			try {
+				if (this.singleTable) {
+					List<String> names = new ArrayList<String>();
+					for (Map<String, AttributeValue> item : queryAll(queryRequest(
+							PREFIX_CALENDAR).withAttributesToGet(KEY_NAME))) {
+						names.add(strValue(item, KEY_NAME));
 					}
+					return names;
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
+				boolean hasMore = true;
+				ScanResult res = null;
+				Set<String> groups = new HashSet<String>();
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					if (res != null) {
+						List<Map<String, AttributeValue>> l = res.getItems();
+						if (l != null) {
+							for (Map<String, AttributeValue> item : l) {
+								groups.add(strValue(item, KEY_NAME));
+							}
+						}
+					}
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
+				return new ArrayList<String>(groups);
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return new ArrayList<String>(groups);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -958,45 +1702,53 @@ public class DynamoDBJobStore implements JobStore {
 	public List<OperableTrigger> getTriggersForJob(JobKey jobKey)
 			throws JobPersistenceException {
 		LOG.trace("getTriggersForJob: " + formatKey(jobKey));
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.addScanFilterEntry(
-				KEY_JOB,
-				new Condition().withComparisonOperator(ComparisonOperator.EQ)
-						.withAttributeValueList(
-								new AttributeValue(formatKey(jobKey))));
+		CallContext ctx = enter("getTriggersForJob");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				if (res != null) {
-					List<Map<String, AttributeValue>> l = res.getItems();
-					if (l != null) {
-						for (Map<String, AttributeValue> item : l) {
-							try {
-								triggers.add(itemToTrigger(item));
-							} catch (ClassNotFoundException e) {
-								LOG.error(e.getMessage(), e);
+			if (this.singleTable) {
+				return retrieveTriggers(getTriggerKeysForJob(jobKey));
+			}
+			ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
+			req.addScanFilterEntry(
+					KEY_JOB,
+					new Condition().withComparisonOperator(
+							ComparisonOperator.EQ).withAttributeValueList(
+							new AttributeValue(formatKey(jobKey))));
+			try {
+				boolean hasMore = true;
+				ScanResult res = null;
+				List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					if (res != null) {
+						List<Map<String, AttributeValue>> l = res.getItems();
+						if (l != null) {
+							for (Map<String, AttributeValue> item : l) {
+								try {
+									triggers.add(itemToTrigger(item));
+								} catch (ClassNotFoundException e) {
+									LOG.error(e.getMessage(), e);
+								}
 							}
 						}
 					}
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
-				}
+				return triggers;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return triggers;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -1004,38 +1756,56 @@ public class DynamoDBJobStore implements JobStore {
 	public TriggerState getTriggerState(TriggerKey triggerKey)
 			throws JobPersistenceException {
 		LOG.trace("getTriggerState: " + formatKey(triggerKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(triggerKey)));
-		GetItemRequest req = new GetItemRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withKey(km);
-		req.withAttributesToGet(KEY_KEY, KEY_STATE);
+		CallContext ctx = enter("getTriggerState");
 		try {
-			GetItemResult res = this.client.getItem(req);
-			Map<String, AttributeValue> item = res.getItem();
-			if (item != null && !item.isEmpty() && item.containsKey(KEY_STATE)) {
-				String state = strValue(item, KEY_STATE);
-				return TriggerState.valueOf(state);
+			Map<String, AttributeValue> km = itemKey(triggerKey);
+			GetItemRequest req = new GetItemRequest();
+			req.withConsistentRead(consistentRead(ReadKind.ITEM));
+			req.withTableName(this.tableNameTriggers);
+			req.withKey(km);
+			req.withAttributesToGet(KEY_KEY, KEY_STATE);
+			try {
+				GetItemResult res = this.client.getItem(req);
+				Map<String, AttributeValue> item = res.getItem();
+				if (item != null && !item.isEmpty() && item.containsKey(KEY_STATE)) {
+					String state = strValue(item, KEY_STATE);
+					return TriggerState.valueOf(state);
+				}
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+			return TriggerState.NONE;
+		} finally {
+			exit(ctx);
 		}
-		return TriggerState.NONE;
 	}
 
 	@Override
 	public void pauseTrigger(TriggerKey triggerKey)
 			throws JobPersistenceException {
 		LOG.trace("pauseTrigger: " + formatKey(triggerKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(triggerKey)));
+		CallContext ctx = enter("pauseTrigger");
+		try {
+			pause(triggerKey);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private void pause(TriggerKey triggerKey) throws JobPersistenceException {
+		if (this.lookAheadQueue != null) {
+			this.lookAheadQueue.remove(triggerKey);
+		}
+		evictWheel(triggerKey, true);
+		Map<String, AttributeValue> km = itemKey(triggerKey);
 		UpdateItemRequest req = new UpdateItemRequest();
 		req.withTableName(this.tableNameTriggers);
 		req.withKey(km);
+		bumpVersion(req);
 		req.withReturnValues(ReturnValue.UPDATED_OLD);
 		req.addAttributeUpdatesEntry(KEY_STATE, new AttributeValueUpdate(
 				new AttributeValue(TriggerState.PAUSED.name()),
@@ -1046,8 +1816,8 @@ public class DynamoDBJobStore implements JobStore {
 						ComparisonOperator.EQ).withAttributeValueList(
 						new AttributeValue(TriggerState.NORMAL.name())));
 		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
+			LOG.trace("  updating key: " + km);
+			updateItem(req);
 		} catch (ConditionalCheckFailedException e) {
 			LOG.error(e.getMessage(), e);
 		} catch (AmazonServiceException e) {
@@ -1063,23 +1833,37 @@ public class DynamoDBJobStore implements JobStore {
 	public Collection<String> pauseTriggers(GroupMatcher<TriggerKey> matcher)
 			throws JobPersistenceException {
 		LOG.trace("pauseTriggers: " + matcher.toString());
-		Collection<String> groups = new HashSet<String>();
-		Set<TriggerKey> keys = getTriggerKeys(matcher);
-		for (TriggerKey k : keys) {
-			pauseTrigger(k);
-			groups.add(k.getGroup());
+		CallContext ctx = enter("pauseTriggers");
+		try {
+			Collection<String> groups = new HashSet<String>();
+			Set<TriggerKey> keys = triggerKeys(matcher);
+			pauseTriggers(keys);
+			for (TriggerKey k : keys) {
+				groups.add(k.getGroup());
+			}
+			return groups;
+		} finally {
+			exit(ctx);
 		}
-		return groups;
 	}
 
 	@Override
 	public void pauseJob(JobKey jobKey) throws JobPersistenceException {
 		LOG.trace("pauseJob: " + formatKey(jobKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(jobKey)));
+		CallContext ctx = enter("pauseJob");
+		try {
+			pause(jobKey);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private void pause(JobKey jobKey) throws JobPersistenceException {
+		Map<String, AttributeValue> km = itemKey(jobKey);
 		UpdateItemRequest req = new UpdateItemRequest();
 		req.withTableName(this.tableNameJobs);
 		req.withKey(km);
+		bumpVersion(req);
 		req.withReturnValues(ReturnValue.UPDATED_OLD);
 		req.addAttributeUpdatesEntry(KEY_STATE, new AttributeValueUpdate(
 				new AttributeValue(TriggerState.PAUSED.name()),
@@ -1087,8 +1871,8 @@ public class DynamoDBJobStore implements JobStore {
 		req.addExpectedEntry(KEY_STATE, new ExpectedAttributeValue()
 				.withComparisonOperator(ComparisonOperator.NULL));
 		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
+			LOG.trace("  updating key: " + km);
+			updateItem(req);
 		} catch (ConditionalCheckFailedException e) {
 			LOG.error(e.getMessage(), e);
 		} catch (AmazonServiceException e) {
@@ -1098,34 +1882,53 @@ public class DynamoDBJobStore implements JobStore {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
 		}
-		List<TriggerKey> tkl = getTriggerKeysForJob(jobKey);
-		for (TriggerKey tk : tkl) {
-			pauseTrigger(tk);
-		}
+		pauseTriggers(getTriggerKeysForJob(jobKey));
 	}
 
 	@Override
 	public Collection<String> pauseJobs(GroupMatcher<JobKey> groupMatcher)
 			throws JobPersistenceException {
 		LOG.trace("pauseJobs: " + groupMatcher.toString());
-		Collection<String> groups = new HashSet<String>();
-		Set<JobKey> keys = getJobKeys(groupMatcher);
-		for (JobKey k : keys) {
-			pauseJob(k);
-			groups.add(k.getGroup());
+		CallContext ctx = enter("pauseJobs");
+		try {
+			Collection<String> groups = new HashSet<String>();
+			Set<JobKey> keys = jobKeys(groupMatcher);
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final JobKey k : keys) {
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws JobPersistenceException {
+						pause(k);
+						return null;
+					}
+				});
+				groups.add(k.getGroup());
+			}
+			this.fanOut.invokeAll(tasks);
+			return groups;
+		} finally {
+			exit(ctx);
 		}
-		return groups;
 	}
 
 	@Override
 	public void resumeTrigger(TriggerKey triggerKey)
 			throws JobPersistenceException {
 		LOG.trace("resumeTrigger: " + formatKey(triggerKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(triggerKey)));
+		CallContext ctx = enter("resumeTrigger");
+		try {
+			resume(triggerKey);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private void resume(TriggerKey triggerKey) throws JobPersistenceException {
+		Map<String, AttributeValue> km = itemKey(triggerKey);
 		UpdateItemRequest req = new UpdateItemRequest();
 		req.withTableName(this.tableNameTriggers);
 		req.withKey(km);
+		bumpVersion(req);
 		req.withReturnValues(ReturnValue.ALL_NEW);
 		req.addAttributeUpdatesEntry(KEY_STATE, new AttributeValueUpdate(
 				new AttributeValue(TriggerState.NORMAL.name()),
@@ -1136,14 +1939,21 @@ public class DynamoDBJobStore implements JobStore {
 						ComparisonOperator.EQ).withAttributeValueList(
 						new AttributeValue(TriggerState.PAUSED.name())));
 		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			UpdateItemResult res = this.client.updateItem(req);
+			LOG.trace("  updating key: " + km);
+			UpdateItemResult res = updateItem(req);
 			if (res != null) {
 				Map<String, AttributeValue> item = res.getAttributes();
 				try {
 					OperableTrigger t = itemToTrigger(item);
 					if (t != null) {
-						applyMisfire(t);
+						OperableTrigger resumed = (OperableTrigger) t.clone();
+						if (updateMisfiredTrigger(t,
+								new HashMap<String, Calendar>())) {
+							this.signaler.signalSchedulingChange(0L);
+						} else if (this.lookAheadQueue != null) {
+							this.lookAheadQueue.update(resumed,
+									TriggerState.NORMAL);
+						}
 					}
 				} catch (ClassNotFoundException e) {
 					LOG.error(e.getMessage(), e);
@@ -1164,77 +1974,97 @@ public class DynamoDBJobStore implements JobStore {
 	public Collection<String> resumeTriggers(GroupMatcher<TriggerKey> matcher)
 			throws JobPersistenceException {
 		LOG.trace("resumeTriggers: " + matcher.toString());
-		Collection<String> groups = new HashSet<String>();
-		Set<TriggerKey> keys = getTriggerKeys(matcher);
-		for (TriggerKey k : keys) {
-			resumeTrigger(k);
-			groups.add(k.getGroup());
+		CallContext ctx = enter("resumeTriggers");
+		try {
+			Collection<String> groups = new HashSet<String>();
+			Set<TriggerKey> keys = triggerKeys(matcher);
+			resumeTriggers(keys);
+			for (TriggerKey k : keys) {
+				groups.add(k.getGroup());
+			}
+			return groups;
+		} finally {
+			exit(ctx);
 		}
-		return groups;
 	}
 
 	@Override
 	public Set<String> getPausedTriggerGroups() throws JobPersistenceException {
 		LOG.trace("getPausedTriggerGroups");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withAttributesToGet(KEY_KEY, KEY_GROUP, KEY_STATE);
-		req.addScanFilterEntry(
-				KEY_STATE,
-				new Condition().withComparisonOperator(ComparisonOperator.EQ)
-						.withAttributeValueList(
-								new AttributeValue(TriggerState.PAUSED.name())));
-		// TODO: should we only return groups where all triggers are paused?
+		CallContext ctx = enter("getPausedTriggerGroups");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			Set<String> groups = new HashSet<String>();
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				if (res != null) {
-					List<Map<String, AttributeValue>> l = res.getItems();
-					if (l != null) {
-						for (Map<String, AttributeValue> item : l) {
-							groups.add(strValue(item, KEY_GROUP));
+			ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
+			req.withAttributesToGet(KEY_KEY, KEY_GROUP, KEY_STATE);
+			req.addScanFilterEntry(
+					KEY_STATE,
+					new Condition().withComparisonOperator(
+							ComparisonOperator.EQ).withAttributeValueList(
+							new AttributeValue(TriggerState.PAUSED.name())));
+			// TODO: should we only return groups where all triggers are paused?
+			try {
+				boolean hasMore = true;
+				ScanResult res = null;
+				Set<String> groups = new HashSet<String>();
+				while (hasMore) {
+					hasMore = false;
+					res = this.client.scan(req);
+					if (res != null) {
+						List<Map<String, AttributeValue>> l = res.getItems();
+						if (l != null) {
+							for (Map<String, AttributeValue> item : l) {
+								groups.add(strValue(item, KEY_GROUP));
+							}
 						}
 					}
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
 				}
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
-				}
+				return groups;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
 			}
-			return groups;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public void resumeJob(JobKey jobKey) throws JobPersistenceException {
 		LOG.trace("resumeJob: " + formatKey(jobKey));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(jobKey)));
+		CallContext ctx = enter("resumeJob");
+		try {
+			resume(jobKey);
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private void resume(JobKey jobKey) throws JobPersistenceException {
+		Map<String, AttributeValue> km = itemKey(jobKey);
 		UpdateItemRequest req = new UpdateItemRequest();
 		req.withTableName(this.tableNameJobs);
 		req.withKey(km);
+		bumpVersion(req);
 		req.withReturnValues(ReturnValue.UPDATED_OLD);
 		req.addAttributeUpdatesEntry(KEY_STATE,
-				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+				new AttributeValueUpdate()
+						.withAction(AttributeAction.DELETE));
 		req.addExpectedEntry(
 				KEY_STATE,
 				new ExpectedAttributeValue().withComparisonOperator(
 						ComparisonOperator.EQ).withAttributeValueList(
 						new AttributeValue(TriggerState.PAUSED.name())));
 		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
+			LOG.trace("  updating key: " + km);
+			updateItem(req);
 		} catch (ConditionalCheckFailedException e) {
 			LOG.error(e.getMessage(), e);
 		} catch (AmazonServiceException e) {
@@ -1244,41 +2074,85 @@ public class DynamoDBJobStore implements JobStore {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
 		}
-		List<TriggerKey> tkl = getTriggerKeysForJob(jobKey);
-		for (TriggerKey tk : tkl) {
-			resumeTrigger(tk);
-		}
+		resumeTriggers(getTriggerKeysForJob(jobKey));
 	}
 
 	@Override
 	public Collection<String> resumeJobs(GroupMatcher<JobKey> matcher)
 			throws JobPersistenceException {
 		LOG.trace("resumeJobs: " + matcher.toString());
-		Collection<String> groups = new HashSet<String>();
-		Set<JobKey> keys = getJobKeys(matcher);
-		for (JobKey k : keys) {
-			resumeJob(k);
-			groups.add(k.getGroup());
+		CallContext ctx = enter("resumeJobs");
+		try {
+			Collection<String> groups = new HashSet<String>();
+			Set<JobKey> keys = jobKeys(matcher);
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final JobKey k : keys) {
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws JobPersistenceException {
+						resume(k);
+						return null;
+					}
+				});
+				groups.add(k.getGroup());
+			}
+			this.fanOut.invokeAll(tasks);
+			return groups;
+		} finally {
+			exit(ctx);
 		}
-		return groups;
 	}
 
 	@Override
 	public void pauseAll() throws JobPersistenceException {
 		LOG.trace("pauseAll");
-		Set<TriggerKey> keys = getTriggerKeys(GroupMatcher.anyTriggerGroup());
-		for (TriggerKey k : keys) {
-			pauseTrigger(k);
+		CallContext ctx = enter("pauseAll");
+		try {
+			pauseTriggers(triggerKeys(GroupMatcher.anyTriggerGroup()));
+		} finally {
+			exit(ctx);
 		}
 	}
 
 	@Override
 	public void resumeAll() throws JobPersistenceException {
 		LOG.trace("resumeAll");
-		Set<TriggerKey> keys = getTriggerKeys(GroupMatcher.anyTriggerGroup());
-		for (TriggerKey k : keys) {
-			resumeTrigger(k);
+		CallContext ctx = enter("resumeAll");
+		try {
+			resumeTriggers(triggerKeys(GroupMatcher.anyTriggerGroup()));
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	private void pauseTriggers(Collection<TriggerKey> keys)
+			throws JobPersistenceException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final TriggerKey k : keys) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws JobPersistenceException {
+					pause(k);
+					return null;
+				}
+			});
+		}
+		this.fanOut.invokeAll(tasks);
+	}
+
+	private void resumeTriggers(Collection<TriggerKey> keys)
+			throws JobPersistenceException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final TriggerKey k : keys) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws JobPersistenceException {
+					resume(k);
+					return null;
+				}
+			});
 		}
+		this.fanOut.invokeAll(tasks);
 	}
 
 	@Override
@@ -1286,85 +2160,134 @@ public class DynamoDBJobStore implements JobStore {
 			int maxCount, long timeWindow) throws JobPersistenceException {
 		LOG.trace("acquireNextTriggers: noLaterThan: " + noLaterThan
 				+ " maxCount: " + maxCount + " timeWindow: " + timeWindow);
-		LOG.trace("\n" + printTable(this.tableNameTriggers));
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.addScanFilterEntry(
-				KEY_STATE,
-				new Condition().withComparisonOperator(ComparisonOperator.EQ)
-						.withAttributeValueList(
-								new AttributeValue(TriggerState.NORMAL.name())));
-		req.addScanFilterEntry(
-				KEY_NEXT,
-				new Condition().withComparisonOperator(ComparisonOperator.LE)
-						.withAttributeValueList(
-								new AttributeValue().withN(Long.toString(
-										noLaterThan + timeWindow, 10))));
-		req.addScanFilterEntry(KEY_LOCKED, new Condition()
-				.withComparisonOperator(ComparisonOperator.NE)
-				.withAttributeValueList(new AttributeValue().withBOOL(true)));
-		List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
+		CallContext ctx = enter("acquireNextTriggers");
 		try {
-			boolean hasMore = true;
-			ScanResult res = null;
-			while (hasMore) {
-				hasMore = false;
-				res = this.client.scan(req);
-				Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
-				if (lastKey != null && !lastKey.isEmpty()) {
-					hasMore = true;
-					req.withExclusiveStartKey(lastKey);
+			if (LOG.isTraceEnabled()) {
+				LOG.trace("\n" + printTable(this.tableNameTriggers));
+			}
+			// Lock no more triggers than there are free threads, so due
+			// triggers are left to other nodes while this one is busy
+			int limit = Math.min(maxCount,
+					this.poolSize - this.inFlight.size());
+			if (limit <= 0) {
+				LOG.debug("Saturated, not acquiring: in flight: "
+						+ this.inFlight.size() + " pool: " + this.poolSize);
+				return new ArrayList<OperableTrigger>();
+			}
+			List<OperableTrigger> wheeled = null;
+			if (this.wheel != null) {
+				wheeled = acquireWheel(noLaterThan, timeWindow);
+				while (wheeled.size() > limit) {
+					releaseWheel(wheeled.remove(wheeled.size() - 1).getKey());
 				}
-				List<Map<String, AttributeValue>> l = res.getItems();
-				if (l != null) {
-					for (Map<String, AttributeValue> item : l) {
-						try {
-							triggers.add(itemToTrigger(item));
-						} catch (ClassNotFoundException e) {
-							LOG.error(e.getMessage(), e);
-						}
+				if (!wheeled.isEmpty()) {
+					long sincePoll = System.currentTimeMillis()
+							- this.lastStorePoll;
+					if (sincePoll < this.timingWheelMaxInterval) {
+						// Store triggers are polled at most once per wheel
+						// interval
+						recordAcquired(wheeled);
+						return wheeled;
 					}
+					// Only store triggers due before the wheel triggers
+					noLaterThan = wheeled.get(0).getNextFireTime().getTime();
 				}
+				this.lastStorePoll = System.currentTimeMillis();
 			}
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		}
-		List<OperableTrigger> acquired = new ArrayList<OperableTrigger>();
-		for (OperableTrigger t : triggers) {
-			LOG.debug("  acquiring target: " + t.toString());
-			if (applyMisfire(t)) {
-				LOG.debug("    misfired");
-				if (t.getNextFireTime() == null) {
-					LOG.debug("      no next");
-					removeTrigger(t.getKey());
-				} else {
-					LOG.debug("      has next");
-					// acquire(t.getKey());
-					// acquired.add(t);
+			long start = System.nanoTime();
+			// A due poll keeps at least one slot for store triggers, even when
+			// wheel triggers fill the batch, so they are not starved
+			int storeLimit = wheeled != null ? Math.max(1,
+					limit - wheeled.size()) : limit;
+			// Misfired triggers are left to the misfire handler
+			List<OperableTrigger> triggers = null;
+			if (this.lookAheadQueue != null) {
+				triggers = this.lookAheadQueue.due(getMisfireTime(), noLaterThan
+						+ timeWindow);
+			}
+			if (triggers == null) {
+				// Triggers without free permits are dropped after querying
+				triggers = queryDueTriggers(getMisfireTime(), noLaterThan
+						+ timeWindow,
+						this.permitLimits.isEmpty() ? storeLimit : 0);
+			}
+			if (!this.permitLimits.isEmpty()) {
+				triggers = withPermits(triggers);
+			}
+			if (triggers.size() > storeLimit) {
+				triggers = new ArrayList<OperableTrigger>(triggers.subList(0,
+						storeLimit));
+			}
+			for (OperableTrigger t : triggers) {
+				LOG.debug("  acquiring target: " + t.toString());
+			}
+			List<OperableTrigger> acquired;
+			try {
+				acquired = acquireDue(triggers);
+			} catch (JobPersistenceException e) {
+				if (wheeled != null) {
+					for (OperableTrigger t : wheeled) {
+						releaseWheel(t.getKey());
+					}
 				}
-			} else {
-				LOG.debug("    not misfired");
-				acquire(t.getKey());
-				acquired.add(t);
+				throw e;
+			}
+			recordAverage(this.acquireLatency,
+					(System.nanoTime() - start) / 1000L);
+			if (LOG.isTraceEnabled()) {
+				LOG.trace("\n" + printTable(this.tableNameTriggers));
+			}
+			if (wheeled != null && !wheeled.isEmpty()) {
+				long until = Long.MAX_VALUE;
+				for (OperableTrigger t : acquired) {
+					until = Math.min(until, t.getNextFireTime().getTime()
+							+ timeWindow);
+				}
+				// Wheel triggers after the store triggers, or beyond the slots
+				// they left, are released
+				int free = limit - acquired.size();
+				for (OperableTrigger t : wheeled) {
+					if (t.getNextFireTime().getTime() > until || free <= 0) {
+						releaseWheel(t.getKey());
+					} else {
+						acquired.add(t);
+						free--;
+					}
+				}
+				Collections.sort(acquired, new Trigger.TriggerTimeComparator());
 			}
+			recordAcquired(acquired);
+			return acquired;
+		} finally {
+			exit(ctx);
 		}
-		LOG.trace("\n" + printTable(this.tableNameTriggers));
-		return acquired;
 	}
 
 	@Override
 	public void releaseAcquiredTrigger(OperableTrigger trigger) {
 		LOG.trace("releaseAcquiredTrigger: " + formatKey(trigger.getKey()));
+		CallContext ctx = enter("releaseAcquiredTrigger");
 		try {
-			release(trigger.getKey());
-		} catch (ObjectAlreadyExistsException e) {
-			LOG.error(e.getMessage(), e);
-		} catch (JobPersistenceException e) {
-			LOG.error(e.getMessage(), e);
+			this.acquiredAt.remove(trigger.getKey());
+			if (releaseWheel(trigger.getKey())) {
+				return;
+			}
+			try {
+				long start = System.nanoTime();
+				release(trigger.getKey());
+				recordAverage(this.releaseLatency,
+						(System.nanoTime() - start) / 1000L);
+				if (this.lookAheadQueue != null) {
+					// Removed from the queue when acquired, due again now
+					this.lookAheadQueue.update(trigger, TriggerState.NORMAL);
+				}
+			} catch (ObjectAlreadyExistsException e) {
+				LOG.error(e.getMessage(), e);
+			} catch (JobPersistenceException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		} finally {
+			exit(ctx);
 		}
 	}
 
@@ -1372,208 +2295,450 @@ public class DynamoDBJobStore implements JobStore {
 	public List<TriggerFiredResult> triggersFired(List<OperableTrigger> triggers)
 			throws JobPersistenceException {
 		LOG.trace("triggersFired");
+		CallContext ctx = enter("triggersFired");
 		List<TriggerFiredResult> fired = new ArrayList<TriggerFiredResult>();
-		for (OperableTrigger t : triggers) {
-			if (t == null) {
-				continue;
-			}
-			OperableTrigger t2 = retrieveTrigger(t.getKey(), true);
-			if (t2 == null) {
-				LOG.error("Trigger released or deleted during execution: "
-						+ formatKey(t.getKey()));
-				continue;
-			}
-			LOG.trace("  fired trigger: " + formatKey(t.getKey()));
-			Calendar cal = null;
-			if (t.getCalendarName() != null) {
-				LOG.trace("  calendar: " + t.getCalendarName());
-				cal = retrieveCalendar(t.getCalendarName());
-				if (cal == null) {
-					LOG.error("Calendar used for trigger is null: "
+		boolean done = false;
+		try {
+			for (OperableTrigger t : triggers) {
+				if (t == null) {
+					continue;
+				}
+				Date scheduled = t.getNextFireTime();
+				Long acquiredNanos = this.acquiredAt.remove(t.getKey());
+				TriggerFiredBundle wheelBundle = fireWheel(t);
+				if (wheelBundle != null) {
+					recordFired(t, scheduled, acquiredNanos);
+					this.inFlight.add(t.getFireInstanceId());
+					fired.add(new TriggerFiredResult(wheelBundle));
+					continue;
+				}
+				Map<String, AttributeValue> locked = retrieveTriggerItem(
+						t.getKey(), true);
+				if (locked == null) {
+					LOG.error("Trigger released or deleted during execution: "
 							+ formatKey(t.getKey()));
 					continue;
 				}
-			}
-			LOG.trace("before: " + t.toString());
-			Date prev = t.getPreviousFireTime();
-			t.triggered(cal);
-			LOG.trace("after: " + t.toString());
-			LOG.trace("  next: " + t.getNextFireTime());
-			JobDetail j2 = retrieveJob(t.getJobKey());
-			if (j2 == null) {
-				continue;
-			}
-			TriggerFiredBundle bundle = new TriggerFiredBundle(
-					retrieveJob(t.getJobKey()), t, cal, false, new Date(),
-					t.getPreviousFireTime(), prev, t.getNextFireTime());
-			JobDetail job = bundle.getJobDetail();
-			if (job != null) {
-				if (job.isConcurrentExectionDisallowed()) {
-					LOG.trace("Trigger job is not concurrent: "
-							+ formatKey(t.getJobKey()));
-					List<TriggerKey> l = getTriggerKeysForJob(job.getKey());
-					if (l != null) {
-						for (TriggerKey tk : l) {
-							acquire(tk);
+				LOG.trace("  fired trigger: " + formatKey(t.getKey()));
+				Calendar cal = null;
+				if (t.getCalendarName() != null) {
+					LOG.trace("  calendar: " + t.getCalendarName());
+					cal = loadCalendar(t.getCalendarName());
+					if (cal == null) {
+						LOG.error("Calendar used for trigger is null: "
+								+ formatKey(t.getKey()));
+						continue;
+					}
+				}
+				t.setFireInstanceId(newFireInstanceId());
+				if (!acquirePermits(t)) {
+					LOG.debug("No concurrency permit, not firing: "
+							+ formatKey(t.getKey()));
+					release(t.getKey());
+					continue;
+				}
+				// Permits are returned unless the job runs, also on failures
+				boolean running = false;
+				try {
+					if (this.fireDedup && !claimFire(t)) {
+						LOG.warn("Trigger occurrence already fired: "
+								+ formatKey(t.getKey()) + " at: "
+								+ t.getNextFireTime());
+						// Advanced without firing, in case the claiming
+						// instance died before storing the fired trigger
+						t.triggered(cal);
+						if (t.getNextFireTime() != null) {
+							commitFired(t, TriggerState.NORMAL, locked, false);
+						} else {
+							commitFired(t, TriggerState.COMPLETE, locked,
+									false);
+							deferExpiry(t.getJobKey());
+						}
+						continue;
+					}
+					LOG.trace("before: " + t.toString());
+					Date prev = t.getPreviousFireTime();
+					t.triggered(cal);
+					LOG.trace("after: " + t.toString());
+					LOG.trace("  next: " + t.getNextFireTime());
+					JobDetail j2 = loadJob(t.getJobKey());
+					if (j2 == null) {
+						continue;
+					}
+					if (j2.isPersistJobDataAfterExecution()) {
+						// Compared on completion to write only changed keys
+						j2.getJobDataMap().clearDirtyFlag();
+						if (this.firedData.size() >= MAX_FIREDDATA) {
+							this.firedData.clear();
 						}
+						this.firedData.put(j2,
+								mapToItem(j2.getJobDataMap().getWrappedMap()));
+					}
+					TriggerFiredBundle bundle = new TriggerFiredBundle(j2, t,
+							cal, false, new Date(), t.getPreviousFireTime(),
+							prev, t.getNextFireTime());
+					JobDetail job = bundle.getJobDetail();
+					if (job != null) {
+						if (job.isConcurrentExectionDisallowed()) {
+							LOG.trace("Trigger job is not concurrent: "
+									+ formatKey(t.getJobKey()));
+							List<TriggerKey> l = getTriggerKeysForJob(job
+									.getKey());
+							if (l != null) {
+								acquire(l);
+							}
+							acquire(job.getKey());
+						} else {
+							LOG.trace("Trigger job is concurrent: "
+									+ formatKey(t.getJobKey()));
+							// release(t.getKey());
+						}
+					}
+					if (t.getNextFireTime() != null) {
+						LOG.trace("Trigger has next: " + formatKey(t.getKey()));
+						boolean lease = isWheelCandidate(t, job);
+						TriggerState stored = commitFired(t,
+								TriggerState.NORMAL, locked, lease);
+						if (lease && stored == TriggerState.NORMAL) {
+							adoptWheel(t, job, cal);
+						}
+					} else {
+						LOG.trace("Trigger has no next: "
+								+ formatKey(t.getKey()));
+						commitFired(t, TriggerState.COMPLETE, locked, false);
+						deferExpiry(t.getJobKey());
+					}
+					recordFired(t, scheduled, acquiredNanos);
+					this.inFlight.add(t.getFireInstanceId());
+					fired.add(new TriggerFiredResult(bundle));
+					running = true;
+				} finally {
+					if (!running) {
+						this.firedVersions.remove(t.getFireInstanceId());
+						releasePermits(t);
 					}
-					acquire(job.getKey());
-				} else {
-					LOG.trace("Trigger job is concurrent: "
-							+ formatKey(t.getJobKey()));
-					// release(t.getKey());
 				}
 			}
-			if (t.getNextFireTime() != null) {
-				LOG.trace("Trigger has next: " + formatKey(t.getKey()));
-				storeTrigger(t, true);
-				changeState(t.getKey(), TriggerState.NORMAL);
-				release(t.getKey());
-			} else {
-				LOG.trace("Trigger has no next: " + formatKey(t.getKey()));
-				storeTrigger(t, true);
-				changeState(t.getKey(), TriggerState.COMPLETE);
-				release(t.getKey());
+			done = true;
+			return fired;
+		} finally {
+			if (!done) {
+				// The scheduler releases the whole batch and runs none of
+				// its jobs, so triggers fired before the failure are
+				// forgotten
+				for (TriggerFiredResult r : fired) {
+					OperableTrigger t = r.getTriggerFiredBundle()
+							.getTrigger();
+					this.inFlight.remove(t.getFireInstanceId());
+					this.firedVersions.remove(t.getFireInstanceId());
+					releasePermits(t);
+				}
 			}
-			fired.add(new TriggerFiredResult(bundle));
+			exit(ctx);
 		}
-		return fired;
 	}
 
 	@Override
 	public void triggeredJobComplete(OperableTrigger trigger,
 			JobDetail jobDetail, CompletedExecutionInstruction triggerInstCode) {
 		LOG.trace("triggeredJobComplete: triggerInstCode: " + triggerInstCode);
-
-		// check for job deleted during execution
-		JobDetail j = null;
+		CallContext ctx = enter("triggeredJobComplete");
 		try {
-			j = retrieveJob(trigger.getJobKey());
-		} catch (JobPersistenceException e) {
-		}
-		if (j == null) {
-			LOG.error("Job is deleted: " + formatKey(trigger.getJobKey()));
-		} else {
-			if (j.isPersistJobDataAfterExecution()) {
-				LOG.trace("  persist job data");
-				JobDataMap data = jobDetail.getJobDataMap();
-				if (data != null) {
-					data = (JobDataMap) data.clone();
-					data.clearDirtyFlag();
-				}
-				try {
-					updateData(trigger.getJobKey(), data);
-				} catch (JobPersistenceException e) {
-					LOG.error(e.getMessage(), e);
-				}
+			Long committed = null;
+			if (trigger.getFireInstanceId() != null) {
+				this.inFlight.remove(trigger.getFireInstanceId());
+				committed = this.firedVersions.remove(trigger
+						.getFireInstanceId());
 			}
-			if (j.isConcurrentExectionDisallowed()) {
-				LOG.trace("  job not concurrent");
-				try {
-					List<TriggerKey> l = getTriggerKeysForJob(trigger
-							.getJobKey());
-					if (l != null) {
-						for (TriggerKey tk : l) {
-							release(tk);
-						}
-					}
-					release(trigger.getJobKey());
-				} catch (JobPersistenceException e) {
-					LOG.error(e.getMessage(), e);
+			releasePermits(trigger);
+			if (isWheeled(trigger.getKey())) {
+				if (triggerInstCode == CompletedExecutionInstruction.NOOP) {
+					// Progress is checkpointed by the wheel
+					return;
 				}
-				this.signaler.signalSchedulingChange(0L);
+				evictWheel(trigger.getKey(), true);
 			}
-		}
 
-		// check for trigger deleted during execution
-		OperableTrigger t = null;
-		try {
-			t = retrieveTrigger(trigger.getKey());
-		} catch (JobPersistenceException e) {
-		}
-		if (t == null) {
-			LOG.error("Trigger is deleted: " + formatKey(trigger.getKey()));
-		} else {
-			switch (triggerInstCode) {
-			case NOOP:
-				break;
-			case DELETE_TRIGGER:
-				if (trigger.getNextFireTime() == null) {
-					LOG.trace("  trigger next is null");
+			// check for job deleted during execution
+			JobDetail j = null;
+			try {
+				j = loadJob(trigger.getJobKey());
+			} catch (JobPersistenceException e) {
+				// Completion may still be journaled, use the executed job
+				LOG.error(e.getMessage(), e);
+				j = jobDetail;
+			}
+			if (j == null) {
+				LOG.error("Job is deleted: " + formatKey(trigger.getJobKey()));
+			} else {
+				final Map<String, AttributeValue> before = this.firedData
+						.remove(jobDetail);
+				if (j.isPersistJobDataAfterExecution()) {
+					LOG.trace("  persist job data");
+					final JobKey jobKey = trigger.getJobKey();
+					JobDataMap d = jobDetail.getJobDataMap();
+					if (d != null) {
+						d = (JobDataMap) d.clone();
+						d.clearDirtyFlag();
+					}
+					final JobDataMap data = d;
 					try {
-						if (t.getNextFireTime() == null) {
-							LOG.trace("  t next is null");
-							removeTrigger(trigger.getKey());
-						} else {
-							LOG.trace("  t next is not null");
-						}
+						complete(new Completion(JOURNAL_DATA) {
+							@Override
+							String[] args() {
+								return new String[] { jobKey.getGroup(),
+										jobKey.getName(),
+										data != null ? serialize(data) : null };
+							}
+
+							@Override
+							void apply() throws JobPersistenceException {
+								updateData(jobKey, data, before, null);
+							}
+						});
 					} catch (JobPersistenceException e) {
 						LOG.error(e.getMessage(), e);
 					}
-				} else {
-					LOG.trace("  trigger has next");
+				}
+				if (j.isConcurrentExectionDisallowed()) {
+					LOG.trace("  job not concurrent");
 					try {
-						removeTrigger(trigger.getKey());
-						this.signaler.signalSchedulingChange(0L);
+						complete(new Completion(JOURNAL_RELEASE, trigger
+								.getJobKey().getGroup(), trigger.getJobKey()
+								.getName(), this.instanceId, Long.toString(
+								System.currentTimeMillis(), 10)));
 					} catch (JobPersistenceException e) {
 						LOG.error(e.getMessage(), e);
 					}
+					this.signaler.signalSchedulingChange(0L);
 				}
-				break;
-			case SET_TRIGGER_COMPLETE:
-				try {
-					changeState(trigger.getKey(), TriggerState.COMPLETE);
-				} catch (ObjectAlreadyExistsException e) {
-					LOG.error(e.getMessage(), e);
-				} catch (JobPersistenceException e) {
-					LOG.error(e.getMessage(), e);
-				}
-				this.signaler.signalSchedulingChange(0L);
-				break;
-			case SET_TRIGGER_ERROR:
-				LOG.error("Trigger " + trigger.getKey().toString()
-						+ " state turned to ERROR");
-				try {
-					changeState(trigger.getKey(), TriggerState.ERROR);
-				} catch (ObjectAlreadyExistsException e) {
-					LOG.error(e.getMessage(), e);
-				} catch (JobPersistenceException e) {
-					LOG.error(e.getMessage(), e);
-				}
-				this.signaler.signalSchedulingChange(0L);
-				break;
-			case SET_ALL_JOB_TRIGGERS_COMPLETE:
-				LOG.error("All triggers for " + trigger.getJobKey().toString()
-						+ " state turned to COMPLETE");
-				try {
-					List<TriggerKey> tkl = getTriggerKeysForJob(trigger
-							.getJobKey());
-					for (TriggerKey tk : tkl) {
-						changeState(tk, TriggerState.COMPLETE);
-					}
-				} catch (JobPersistenceException e) {
-					LOG.error(e.getMessage(), e);
-				}
-				this.signaler.signalSchedulingChange(0L);
-				break;
-			case SET_ALL_JOB_TRIGGERS_ERROR:
-				LOG.error("All triggers for " + trigger.getJobKey().toString()
-						+ " state turned to ERROR");
-				try {
-					List<TriggerKey> tkl = getTriggerKeysForJob(trigger
-							.getJobKey());
-					for (TriggerKey tk : tkl) {
-						changeState(tk, TriggerState.ERROR);
-					}
-				} catch (JobPersistenceException e) {
-					LOG.error(e.getMessage(), e);
-				}
-				this.signaler.signalSchedulingChange(0L);
-				break;
-			default:
-				break;
 			}
-		}
+
+			// check for trigger deleted during execution
+			OperableTrigger t = null;
+			try {
+				t = retrieveTrigger(trigger.getKey(), false);
+			} catch (JobPersistenceException e) {
+				LOG.error(e.getMessage(), e);
+				t = trigger;
+			}
+			if (t == null) {
+				LOG.error("Trigger is deleted: " + formatKey(trigger.getKey()));
+			} else {
+				String group = trigger.getKey().getGroup();
+				String name = trigger.getKey().getName();
+				String jobGroup = trigger.getJobKey().getGroup();
+				String jobName = trigger.getJobKey().getName();
+				// Replayed removes only remove the trigger as committed
+				Completion remove = committed != null ? new Completion(
+						JOURNAL_REMOVE, group, name,
+						trigger.getFireInstanceId(), Long.toString(committed,
+								10)) : new Completion(JOURNAL_REMOVE, group,
+						name);
+				switch (triggerInstCode) {
+				case NOOP:
+					break;
+				case DELETE_TRIGGER:
+					if (trigger.getNextFireTime() == null) {
+						LOG.trace("  trigger next is null");
+						try {
+							if (t.getNextFireTime() == null) {
+								LOG.trace("  t next is null");
+								complete(remove);
+							} else {
+								LOG.trace("  t next is not null");
+							}
+						} catch (JobPersistenceException e) {
+							LOG.error(e.getMessage(), e);
+						}
+					} else {
+						LOG.trace("  trigger has next");
+						try {
+							complete(remove);
+							this.signaler.signalSchedulingChange(0L);
+						} catch (JobPersistenceException e) {
+							LOG.error(e.getMessage(), e);
+						}
+					}
+					break;
+				case SET_TRIGGER_COMPLETE:
+					try {
+						complete(new Completion(JOURNAL_STATE, group, name,
+								TriggerState.COMPLETE.name()));
+						complete(new Completion(JOURNAL_EXPIRE, jobGroup,
+								jobName));
+					} catch (JobPersistenceException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					this.signaler.signalSchedulingChange(0L);
+					break;
+				case SET_TRIGGER_ERROR:
+					LOG.error("Trigger " + trigger.getKey().toString()
+							+ " state turned to ERROR");
+					try {
+						complete(new Completion(JOURNAL_STATE, group, name,
+								TriggerState.ERROR.name()));
+					} catch (JobPersistenceException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					this.signaler.signalSchedulingChange(0L);
+					break;
+				case SET_ALL_JOB_TRIGGERS_COMPLETE:
+					LOG.error("All triggers for "
+							+ trigger.getJobKey().toString()
+							+ " state turned to COMPLETE");
+					try {
+						complete(new Completion(JOURNAL_JOBSTATE, jobGroup,
+								jobName, TriggerState.COMPLETE.name()));
+						complete(new Completion(JOURNAL_EXPIRE, jobGroup,
+								jobName));
+					} catch (JobPersistenceException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					this.signaler.signalSchedulingChange(0L);
+					break;
+				case SET_ALL_JOB_TRIGGERS_ERROR:
+					LOG.error("All triggers for "
+							+ trigger.getJobKey().toString()
+							+ " state turned to ERROR");
+					try {
+						complete(new Completion(JOURNAL_JOBSTATE, jobGroup,
+								jobName, TriggerState.ERROR.name()));
+					} catch (JobPersistenceException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					this.signaler.signalSchedulingChange(0L);
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			exit(ctx);
+		}
+	}
+
+	/**
+	 * Job completion mutation, applied directly or journaled.
+	 */
+	private class Completion {
+		final String op;
+		private final String[] args;
+
+		Completion(String op, String... args) {
+			this.op = op;
+			this.args = args;
+		}
+
+		/**
+		 * @return Journal record arguments
+		 */
+		String[] args() {
+			return this.args;
+		}
+
+		void apply() throws JobPersistenceException {
+			applyCompletion(null, this.op, args());
+		}
+	}
+
+	/**
+	 * Applies a job completion mutation. With a journal, the mutation is
+	 * journaled instead if DynamoDB is degraded, or if earlier mutations are
+	 * still journaled so that mutations are applied in order.
+	 *
+	 * @param c
+	 *            Mutation
+	 * @throws JobPersistenceException
+	 *             if the mutation failed and was not journaled
+	 */
+	private void complete(Completion c) throws JobPersistenceException {
+		if (this.journal != null && !this.journal.isEmpty()) {
+			journal(c.op, c.args());
+			return;
+		}
+		try {
+			c.apply();
+		} catch (JobPersistenceException e) {
+			if (this.journal == null || !isDegraded(e)) {
+				throw e;
+			}
+			journal(c.op, c.args());
+		}
+	}
+
+	private void journal(String op, String... args)
+			throws JobPersistenceException {
+		try {
+			this.journal.append(op, args);
+			LOG.warn("Journaled completion mutation: " + op);
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param id
+	 *            Idempotency key when replayed from the journal, or null
+	 */
+	private void applyCompletion(String id, String op, String[] args)
+			throws JobPersistenceException {
+		LOG.trace("applyCompletion: " + op + " id: " + id);
+		if (JOURNAL_DATA.equals(op)) {
+			updateData(new JobKey(args[1], args[0]),
+					args[2] != null ? (JobDataMap) deserialize(args[2]) : null,
+					null, id);
+		} else if (JOURNAL_RELEASE.equals(op)) {
+			// Replayed releases only unlock locks taken before the record
+			String owner = id != null && args.length > 3 ? args[2] : null;
+			Long before = owner != null ? Long.valueOf(args[3]) : null;
+			JobKey key = new JobKey(args[1], args[0]);
+			List<TriggerKey> l = getTriggerKeysForJob(key);
+			if (l != null) {
+				release(l, owner, before);
+			}
+			release(key, owner, before);
+		} else if (JOURNAL_REMOVE.equals(op)) {
+			// Replayed removes skip triggers stored or fired again since
+			boolean bounded = id != null && args.length > 3;
+			removeTrigger(new TriggerKey(args[1], args[0]),
+					bounded ? args[2] : null,
+					bounded ? Long.valueOf(args[3]) : null);
+		} else if (JOURNAL_STATE.equals(op)) {
+			changeState(new TriggerKey(args[1], args[0]),
+					TriggerState.valueOf(args[2]));
+		} else if (JOURNAL_JOBSTATE.equals(op)) {
+			TriggerState state = TriggerState.valueOf(args[2]);
+			for (TriggerKey tk : getTriggerKeysForJob(new JobKey(args[1],
+					args[0]))) {
+				changeState(tk, state);
+			}
+		} else if (JOURNAL_EXPIRE.equals(op)) {
+			deferExpiry(new JobKey(args[1], args[0]));
+		} else if (JOURNAL_PERMIT.equals(op)) {
+			if (args.length > 1) {
+				releasePermit(args[0], args[1], null);
+			} else {
+				releaseCountedPermit(args[0], id);
+			}
+		} else {
+			LOG.error("Unknown journaled mutation: " + op);
+		}
+	}
+
+	/**
+	 * @return true if the failure is from DynamoDB throttling, server or
+	 *         network errors, or an open circuit
+	 */
+	boolean isDegraded(JobPersistenceException e) {
+		Throwable cause = e.getCause();
+		if (!(cause instanceof AmazonClientException)) {
+			return false;
+		}
+		return (this.retry && this.retryPolicy.isOpen())
+				|| DynamoDBRetryPolicy
+						.isDegraded((AmazonClientException) cause);
 	}
 
 	@Override
@@ -1602,9 +2767,27 @@ public class DynamoDBJobStore implements JobStore {
 					+ this.tableNameCalendars;
 			this.tableNameJobs = this.prefix + "_" + this.tableNameJobs;
 			this.tableNameTriggers = this.prefix + "_" + this.tableNameTriggers;
+			this.tableNameFences = this.prefix + "_" + this.tableNameFences;
+			this.tableNameFired = this.prefix + "_" + this.tableNameFired;
+			this.tableNamePermits = this.prefix + "_" + this.tableNamePermits;
+			this.tableName = this.prefix + "_" + this.tableName;
+		}
+	}
+
+	public void setTableName(String tableName) {
+		LOG.debug("setTableName: " + tableName);
+		if (this.prefix != null && !this.prefix.isEmpty()) {
+			this.tableName = this.prefix + "_" + tableName;
+		} else {
+			this.tableName = tableName;
 		}
 	}
 
+	public void setSingleTable(boolean singleTable) {
+		LOG.debug("setSingleTable: " + singleTable);
+		this.singleTable = singleTable;
+	}
+
 	public void setRegion(String region) {
 		LOG.debug("setRegion: " + region);
 		this.region = Region.getRegion(Regions.fromName(region));
@@ -1638,260 +2821,3381 @@ public class DynamoDBJobStore implements JobStore {
 		this.clustered = clustered;
 	}
 
-	private static String formatKey(Key<?> k) {
-		return k.getGroup() + ":" + k.getName();
+	public void setMaxMisfiresToHandleAtATime(int maxMisfiresToHandleAtATime) {
+		LOG.debug("setMaxMisfiresToHandleAtATime: "
+				+ maxMisfiresToHandleAtATime);
+		this.maxMisfiresToHandleAtATime = maxMisfiresToHandleAtATime;
 	}
 
-	private static JobKey parseJobKey(String k) {
-		if (k != null && !k.isEmpty()) {
-			String[] p = k.split(":");
-			if (p.length >= 2) {
-				return new JobKey(p[1], p[0]);
-			}
-		}
-		return null;
+	public void setCompletedRetention(long completedRetention) {
+		LOG.debug("setCompletedRetention: " + completedRetention);
+		this.completedRetention = completedRetention;
 	}
 
-	private static TriggerKey parseTriggerKey(String k) {
-		if (k != null && !k.isEmpty()) {
-			String[] p = k.split(":");
-			if (p.length >= 2) {
-				return new TriggerKey(p[1], p[0]);
-			}
-		}
-		return null;
+	public void setBillingMode(String billingMode) {
+		LOG.debug("setBillingMode: " + billingMode);
+		this.billingMode = BillingMode.fromValue(billingMode.trim()
+				.toUpperCase());
 	}
 
-	private void init() {
-		if (!Tables.doesTableExist(this.client, this.tableNameCalendars)) {
-			LOG.warn("Creating table: " + this.tableNameCalendars);
-			this.client
-					.createTable(Arrays.asList(new AttributeDefinition()
-							.withAttributeName(KEY_NAME).withAttributeType(
-									ScalarAttributeType.S)),
-							this.tableNameCalendars, Arrays
-									.asList(new KeySchemaElement()
-											.withAttributeName(KEY_NAME)
-											.withKeyType(KeyType.HASH)),
-							new ProvisionedThroughput(2L, 2L));
-		}
-		if (!Tables.doesTableExist(this.client, this.tableNameJobs)) {
-			LOG.warn("Creating table: " + this.tableNameJobs);
-			this.client.createTable(
-					Arrays.asList(new AttributeDefinition().withAttributeName(
-							KEY_KEY).withAttributeType(ScalarAttributeType.S)),
-					this.tableNameJobs,
-					Arrays.asList(new KeySchemaElement().withAttributeName(
-							KEY_KEY).withKeyType(KeyType.HASH)),
-					new ProvisionedThroughput(2L, 2L));
-		}
-		if (!Tables.doesTableExist(this.client, this.tableNameTriggers)) {
-			LOG.warn("Creating table: " + this.tableNameTriggers);
-			this.client.createTable(
-					Arrays.asList(new AttributeDefinition().withAttributeName(
-							KEY_KEY).withAttributeType(ScalarAttributeType.S)),
-					this.tableNameTriggers,
-					Arrays.asList(new KeySchemaElement().withAttributeName(
-							KEY_KEY).withKeyType(KeyType.HASH)),
-					new ProvisionedThroughput(2L, 2L));
-		}
-		try {
-			Tables.awaitTableToBecomeActive(this.client,
-					this.tableNameCalendars, 60000, 1000);
-			Tables.awaitTableToBecomeActive(this.client, this.tableNameJobs,
-					60000, 1000);
-			Tables.awaitTableToBecomeActive(this.client,
-					this.tableNameTriggers, 60000, 1000);
-		} catch (InterruptedException e) {
-			LOG.error(e.getMessage(), e);
-			this.shutdown();
-		}
+	public void setReadCapacity(long readCapacity) {
+		LOG.debug("setReadCapacity: " + readCapacity);
+		this.readCapacity = readCapacity;
 	}
 
-	/**
-	 * Based on {@link org.quartz.simpl.RAMJobStore#applyMisfire}
-	 *
-	 * @param t
-	 *            Trigger
-	 * @return Misfired status
-	 * @throws JobPersistenceException
-	 */
-	private boolean applyMisfire(OperableTrigger t)
-			throws JobPersistenceException {
-		long misfireTime = System.currentTimeMillis();
-		if (this.misfireThreshold > 0) {
-			misfireTime -= this.misfireThreshold;
-		}
-		Date next = t.getNextFireTime();
-		if (next == null
-				|| next.getTime() > misfireTime
-				|| t.getMisfireInstruction() == Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY) {
-			LOG.trace("Trigger not misfired");
-			return false;
-		}
-		Calendar cal = null;
-		if (t.getCalendarName() != null) {
-			cal = retrieveCalendar(t.getCalendarName());
-		}
-		this.signaler.notifyTriggerListenersMisfired((Trigger) t.clone());
-		t.updateAfterMisfire(cal);
-		if (next.equals(t.getNextFireTime())) {
-			LOG.trace("Trigger not misfired (after updateAfterMisfire)");
-			return false;
-		} else if (t.getNextFireTime() == null) {
-			LOG.trace("Trigger has no next (after updateAfterMisfire)");
-			// changeState(t.getKey(), TriggerState.COMPLETE);
-			// removeTrigger(t.getKey());
-			this.signaler.notifySchedulerListenersFinalized(t);
-		}
-		return true;
+	public void setWriteCapacity(long writeCapacity) {
+		LOG.debug("setWriteCapacity: " + writeCapacity);
+		this.writeCapacity = writeCapacity;
 	}
 
-	private boolean acquire(JobKey key) throws JobPersistenceException {
-		LOG.trace("acquire: job: " + formatKey(key));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(key)));
-		UpdateItemRequest req = new UpdateItemRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withKey(km);
-		req.addAttributeUpdatesEntry(KEY_LOCKED,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(new AttributeValue().withBOOL(true)));
-		req.addAttributeUpdatesEntry(
-				KEY_LOCKEDAT,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(
-								new AttributeValue().withN(Long.toString(System
-										.currentTimeMillis()))));
-		req.addAttributeUpdatesEntry(KEY_LOCKEDBY,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(new AttributeValue(this.instanceId)));
-		req.addExpectedEntry(
-				KEY_LOCKED,
-				new ExpectedAttributeValue().withComparisonOperator(
-						ComparisonOperator.NE).withValue(
-						new AttributeValue().withBOOL(true)));
-		req.withReturnValues(ReturnValue.UPDATED_OLD);
-		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
-			return true;
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error("Job already locked: " + formatKey(key));
-			return false;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		}
+	public void setIndexReadCapacity(long indexReadCapacity) {
+		LOG.debug("setIndexReadCapacity: " + indexReadCapacity);
+		this.indexReadCapacity = indexReadCapacity;
 	}
 
-	private boolean acquire(TriggerKey key) throws JobPersistenceException {
-		LOG.trace("acquire: trigger: " + formatKey(key));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(key)));
-		UpdateItemRequest req = new UpdateItemRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withKey(km);
-		req.addAttributeUpdatesEntry(KEY_LOCKED,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(new AttributeValue().withBOOL(true)));
-		req.addAttributeUpdatesEntry(
-				KEY_LOCKEDAT,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(
-								new AttributeValue().withN(Long.toString(System
-										.currentTimeMillis()))));
-		req.addAttributeUpdatesEntry(KEY_LOCKEDBY,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(new AttributeValue(this.instanceId)));
-		req.addExpectedEntry(
-				KEY_LOCKED,
-				new ExpectedAttributeValue().withComparisonOperator(
-						ComparisonOperator.NE).withValue(
-						new AttributeValue().withBOOL(true)));
-		req.withReturnValues(ReturnValue.UPDATED_OLD);
-		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
-			return true;
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error("Trigger already locked: " + formatKey(key));
-			return false;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		}
+	public void setIndexWriteCapacity(long indexWriteCapacity) {
+		LOG.debug("setIndexWriteCapacity: " + indexWriteCapacity);
+		this.indexWriteCapacity = indexWriteCapacity;
 	}
 
-	private boolean release(JobKey key) throws JobPersistenceException {
-		LOG.trace("release: job: " + formatKey(key));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(key)));
-		UpdateItemRequest req = new UpdateItemRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withKey(km);
-		req.addAttributeUpdatesEntry(KEY_LOCKED,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(new AttributeValue().withBOOL(false)));
-		req.addAttributeUpdatesEntry(KEY_LOCKEDBY,
-				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
-		req.addAttributeUpdatesEntry(KEY_LOCKEDAT,
-				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
-		req.addExpectedEntry(
-				KEY_LOCKED,
-				new ExpectedAttributeValue().withComparisonOperator(
-						ComparisonOperator.NE).withValue(
-						new AttributeValue().withBOOL(false)));
-		req.withReturnValues(ReturnValue.UPDATED_OLD);
-		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
-			return true;
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error("Job already unlocked: " + formatKey(key));
-			return true;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		}
+	public void setJobsReadCapacity(long jobsReadCapacity) {
+		LOG.debug("setJobsReadCapacity: " + jobsReadCapacity);
+		this.jobsReadCapacity = jobsReadCapacity;
 	}
 
-	private boolean release(TriggerKey key) throws JobPersistenceException {
-		LOG.trace("release: trigger: " + formatKey(key));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(key)));
-		UpdateItemRequest req = new UpdateItemRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withKey(km);
-		req.addAttributeUpdatesEntry(KEY_LOCKED,
-				new AttributeValueUpdate().withAction(AttributeAction.PUT)
-						.withValue(new AttributeValue().withBOOL(false)));
-		req.addAttributeUpdatesEntry(KEY_LOCKEDBY,
-				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
-		req.addAttributeUpdatesEntry(KEY_LOCKEDAT,
-				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+	public void setJobsWriteCapacity(long jobsWriteCapacity) {
+		LOG.debug("setJobsWriteCapacity: " + jobsWriteCapacity);
+		this.jobsWriteCapacity = jobsWriteCapacity;
+	}
+
+	public void setCalendarsReadCapacity(long calendarsReadCapacity) {
+		LOG.debug("setCalendarsReadCapacity: " + calendarsReadCapacity);
+		this.calendarsReadCapacity = calendarsReadCapacity;
+	}
+
+	public void setCalendarsWriteCapacity(long calendarsWriteCapacity) {
+		LOG.debug("setCalendarsWriteCapacity: " + calendarsWriteCapacity);
+		this.calendarsWriteCapacity = calendarsWriteCapacity;
+	}
+
+	public void setTriggersReadCapacity(long triggersReadCapacity) {
+		LOG.debug("setTriggersReadCapacity: " + triggersReadCapacity);
+		this.triggersReadCapacity = triggersReadCapacity;
+	}
+
+	public void setTriggersWriteCapacity(long triggersWriteCapacity) {
+		LOG.debug("setTriggersWriteCapacity: " + triggersWriteCapacity);
+		this.triggersWriteCapacity = triggersWriteCapacity;
+	}
+
+	public void setTableReadCapacity(long tableReadCapacity) {
+		LOG.debug("setTableReadCapacity: " + tableReadCapacity);
+		this.tableReadCapacity = tableReadCapacity;
+	}
+
+	public void setTableWriteCapacity(long tableWriteCapacity) {
+		LOG.debug("setTableWriteCapacity: " + tableWriteCapacity);
+		this.tableWriteCapacity = tableWriteCapacity;
+	}
+
+	public void setRateLimit(boolean rateLimit) {
+		LOG.debug("setRateLimit: " + rateLimit);
+		this.rateLimit = rateLimit;
+	}
+
+	public void setRateLimitReserve(double rateLimitReserve) {
+		LOG.debug("setRateLimitReserve: " + rateLimitReserve);
+		this.rateLimitReserve = rateLimitReserve;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		LOG.debug("setMaxConnections: " + maxConnections);
+		this.maxConnections = maxConnections;
+	}
+
+	public void setConnectionTimeout(int connectionTimeout) {
+		LOG.debug("setConnectionTimeout: " + connectionTimeout);
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	public void setSocketTimeout(int socketTimeout) {
+		LOG.debug("setSocketTimeout: " + socketTimeout);
+		this.socketTimeout = socketTimeout;
+	}
+
+	public void setRequestTimeout(int requestTimeout) {
+		LOG.debug("setRequestTimeout: " + requestTimeout);
+		this.requestTimeout = requestTimeout;
+	}
+
+	public void setConnectionTTL(long connectionTTL) {
+		LOG.debug("setConnectionTTL: " + connectionTTL);
+		this.connectionTTL = connectionTTL;
+	}
+
+	public void setTcpKeepAlive(boolean tcpKeepAlive) {
+		LOG.debug("setTcpKeepAlive: " + tcpKeepAlive);
+		this.tcpKeepAlive = tcpKeepAlive;
+	}
+
+	public void setUseGzip(boolean useGzip) {
+		LOG.debug("setUseGzip: " + useGzip);
+		this.useGzip = useGzip;
+	}
+
+	public void setCacheResponseMetadata(boolean cacheResponseMetadata) {
+		LOG.debug("setCacheResponseMetadata: " + cacheResponseMetadata);
+		this.cacheResponseMetadata = cacheResponseMetadata;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		LOG.debug("setAsyncThreads: " + asyncThreads);
+		this.asyncThreads = asyncThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		LOG.debug("setVirtualThreads: " + virtualThreads);
+		this.virtualThreads = virtualThreads;
+	}
+
+	public void setFanOutThreads(int fanOutThreads) {
+		LOG.debug("setFanOutThreads: " + fanOutThreads);
+		this.fanOutThreads = fanOutThreads;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		LOG.debug("setMaxInFlight: " + maxInFlight);
+		this.maxInFlight = maxInFlight;
+	}
+
+	public void setRetry(boolean retry) {
+		LOG.debug("setRetry: " + retry);
+		this.retry = retry;
+	}
+
+	public void setFiringMaxRetries(int firingMaxRetries) {
+		LOG.debug("setFiringMaxRetries: " + firingMaxRetries);
+		this.retryPolicy.setFiringMaxRetries(firingMaxRetries);
+	}
+
+	public void setFiringRetryBudget(long firingRetryBudget) {
+		LOG.debug("setFiringRetryBudget: " + firingRetryBudget);
+		this.retryPolicy.setFiringRetryBudget(firingRetryBudget);
+	}
+
+	public void setAdminMaxRetries(int adminMaxRetries) {
+		LOG.debug("setAdminMaxRetries: " + adminMaxRetries);
+		this.retryPolicy.setAdminMaxRetries(adminMaxRetries);
+	}
+
+	public void setAdminRetryBudget(long adminRetryBudget) {
+		LOG.debug("setAdminRetryBudget: " + adminRetryBudget);
+		this.retryPolicy.setAdminRetryBudget(adminRetryBudget);
+	}
+
+	public void setRetryBaseDelay(long retryBaseDelay) {
+		LOG.debug("setRetryBaseDelay: " + retryBaseDelay);
+		this.retryPolicy.setBaseDelay(retryBaseDelay);
+	}
+
+	public void setRetryMaxDelay(long retryMaxDelay) {
+		LOG.debug("setRetryMaxDelay: " + retryMaxDelay);
+		this.retryPolicy.setMaxDelay(retryMaxDelay);
+	}
+
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		LOG.debug("setCircuitBreakerThreshold: " + circuitBreakerThreshold);
+		this.retryPolicy.setCircuitBreakerThreshold(circuitBreakerThreshold);
+	}
+
+	public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+		LOG.debug("setCircuitBreakerOpenTime: " + circuitBreakerOpenTime);
+		this.retryPolicy.setCircuitBreakerOpenTime(circuitBreakerOpenTime);
+	}
+
+	public void setConsistentLockReads(boolean consistentLockReads) {
+		LOG.debug("setConsistentLockReads: " + consistentLockReads);
+		this.consistentLockReads = consistentLockReads;
+	}
+
+	public void setConsistentItemReads(boolean consistentItemReads) {
+		LOG.debug("setConsistentItemReads: " + consistentItemReads);
+		this.consistentItemReads = consistentItemReads;
+	}
+
+	public void setConsistentListReads(boolean consistentListReads) {
+		LOG.debug("setConsistentListReads: " + consistentListReads);
+		this.consistentListReads = consistentListReads;
+	}
+
+	/**
+	 * @param metrics
+	 *            Collect latency and DynamoDB request metrics per store
+	 *            operation and request type
+	 */
+	public void setMetrics(boolean metrics) {
+		LOG.debug("setMetrics: " + metrics);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param metricsJmx
+	 *            Register metrics as a platform MBean
+	 */
+	public void setMetricsJmx(boolean metricsJmx) {
+		LOG.debug("setMetricsJmx: " + metricsJmx);
+		this.metricsJmx = metricsJmx;
+	}
+
+	/**
+	 * @param metricsSink
+	 *            Class name of a {@link DynamoDBMetricsSink} receiving
+	 *            metrics periodically
+	 */
+	public void setMetricsSink(String metricsSink) {
+		LOG.debug("setMetricsSink: " + metricsSink);
+		this.metricsSink = metricsSink;
+	}
+
+	public void setMetricsSinkInterval(long metricsSinkInterval) {
+		LOG.debug("setMetricsSinkInterval: " + metricsSinkInterval);
+		this.metricsSinkInterval = metricsSinkInterval;
+	}
+
+	/**
+	 * @param metricsLogInterval
+	 *            Milliseconds between consumed capacity log summaries, 0 to
+	 *            disable
+	 */
+	public void setMetricsLogInterval(long metricsLogInterval) {
+		LOG.debug("setMetricsLogInterval: " + metricsLogInterval);
+		this.metricsLogInterval = metricsLogInterval;
+	}
+
+	/**
+	 * @return Metrics, or null if not enabled
+	 */
+	public DynamoDBMetrics getMetrics() {
+		return this.metricsRegistry;
+	}
+
+	public void setHedgedReads(boolean hedgedReads) {
+		LOG.debug("setHedgedReads: " + hedgedReads);
+		this.hedgedReads = hedgedReads;
+	}
+
+	public void setHedgePercentile(double hedgePercentile) {
+		LOG.debug("setHedgePercentile: " + hedgePercentile);
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	public void setHedgeMinDelay(long hedgeMinDelay) {
+		LOG.debug("setHedgeMinDelay: " + hedgeMinDelay);
+		this.hedgeMinDelay = hedgeMinDelay;
+	}
+
+	public void setHedgeBudget(double hedgeBudget) {
+		LOG.debug("setHedgeBudget: " + hedgeBudget);
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	public void setLookAhead(boolean lookAhead) {
+		LOG.debug("setLookAhead: " + lookAhead);
+		this.lookAhead = lookAhead;
+	}
+
+	public void setLookAheadWindow(long lookAheadWindow) {
+		LOG.debug("setLookAheadWindow: " + lookAheadWindow);
+		this.lookAheadWindow = lookAheadWindow;
+	}
+
+	public void setLookAheadRefresh(long lookAheadRefresh) {
+		LOG.debug("setLookAheadRefresh: " + lookAheadRefresh);
+		this.lookAheadRefresh = lookAheadRefresh;
+	}
+
+	public void setLookAheadMaxSize(int lookAheadMaxSize) {
+		LOG.debug("setLookAheadMaxSize: " + lookAheadMaxSize);
+		this.lookAheadMaxSize = lookAheadMaxSize;
+	}
+
+	public void setJournalFile(String journalFile) {
+		LOG.debug("setJournalFile: " + journalFile);
+		this.journalFile = journalFile;
+	}
+
+	public void setJournalSize(int journalSize) {
+		LOG.debug("setJournalSize: " + journalSize);
+		this.journalSize = journalSize;
+	}
+
+	public void setJournalReplayInterval(long journalReplayInterval) {
+		LOG.debug("setJournalReplayInterval: " + journalReplayInterval);
+		this.journalReplayInterval = journalReplayInterval;
+	}
+
+	public void setFireDedup(boolean fireDedup) {
+		LOG.debug("setFireDedup: " + fireDedup);
+		this.fireDedup = fireDedup;
+	}
+
+	public void setFireDedupRetention(long fireDedupRetention) {
+		LOG.debug("setFireDedupRetention: " + fireDedupRetention);
+		this.fireDedupRetention = fireDedupRetention;
+	}
+
+	public void setTimingWheel(boolean timingWheel) {
+		LOG.debug("setTimingWheel: " + timingWheel);
+		this.timingWheel = timingWheel;
+	}
+
+	public void setTimingWheelMaxInterval(long timingWheelMaxInterval) {
+		LOG.debug("setTimingWheelMaxInterval: " + timingWheelMaxInterval);
+		this.timingWheelMaxInterval = timingWheelMaxInterval;
+	}
+
+	public void setTimingWheelTick(long timingWheelTick) {
+		LOG.debug("setTimingWheelTick: " + timingWheelTick);
+		this.timingWheelTick = timingWheelTick;
+	}
+
+	public void setTimingWheelCheckpoint(long timingWheelCheckpoint) {
+		LOG.debug("setTimingWheelCheckpoint: " + timingWheelCheckpoint);
+		this.timingWheelCheckpoint = timingWheelCheckpoint;
+	}
+
+	public void setTimingWheelLease(long timingWheelLease) {
+		LOG.debug("setTimingWheelLease: " + timingWheelLease);
+		this.timingWheelLease = timingWheelLease;
+	}
+
+	/**
+	 * @param limits
+	 *            Comma separated job group concurrency limits, such as
+	 *            {@code reports=3,etl=2}
+	 */
+	public void setGroupConcurrencyLimits(String limits) {
+		LOG.debug("setGroupConcurrencyLimits: " + limits);
+		parseLimits(PERMIT_GROUP, limits);
+	}
+
+	/**
+	 * @param limits
+	 *            Comma separated job concurrency limits keyed by
+	 *            {@code group:name}, such as {@code etl:load=1}
+	 */
+	public void setJobConcurrencyLimits(String limits) {
+		LOG.debug("setJobConcurrencyLimits: " + limits);
+		parseLimits(PERMIT_JOB, limits);
+	}
+
+	/**
+	 * @param permitLease
+	 *            Milliseconds a concurrency permit lease lasts without
+	 *            renewal, after which another instance returns the permit
+	 */
+	public void setPermitLease(long permitLease) {
+		LOG.debug("setPermitLease: " + permitLease);
+		this.permitLease = permitLease;
+	}
+
+	private void parseLimits(String prefix, String limits) {
+		if (limits == null) {
+			return;
+		}
+		for (String limit : limits.split(",")) {
+			int i = limit.lastIndexOf('=');
+			if (i <= 0) {
+				if (!limit.trim().isEmpty()) {
+					LOG.error("Invalid concurrency limit: " + limit);
+				}
+				continue;
+			}
+			try {
+				this.permitLimits.put(prefix + limit.substring(0, i).trim(),
+						Integer.parseInt(limit.substring(i + 1).trim()));
+			} catch (NumberFormatException e) {
+				LOG.error("Invalid concurrency limit: " + limit);
+			}
+		}
+	}
+
+	/**
+	 * @param triggerEstimate
+	 *            Milliseconds estimated to release and acquire a trigger,
+	 *            used until latencies are measured or if not adaptive
+	 */
+	public void setTriggerEstimate(long triggerEstimate) {
+		LOG.debug("setTriggerEstimate: " + triggerEstimate);
+		this.triggerEstimate = triggerEstimate;
+	}
+
+	/**
+	 * @param adaptiveTriggerEstimate
+	 *            Estimate release and acquire time from measured latencies
+	 */
+	public void setAdaptiveTriggerEstimate(boolean adaptiveTriggerEstimate) {
+		LOG.debug("setAdaptiveTriggerEstimate: " + adaptiveTriggerEstimate);
+		this.adaptiveTriggerEstimate = adaptiveTriggerEstimate;
+	}
+
+	public void setTriggerEstimateMin(long triggerEstimateMin) {
+		LOG.debug("setTriggerEstimateMin: " + triggerEstimateMin);
+		this.triggerEstimateMin = triggerEstimateMin;
+	}
+
+	public void setTriggerEstimateMax(long triggerEstimateMax) {
+		LOG.debug("setTriggerEstimateMax: " + triggerEstimateMax);
+		this.triggerEstimateMax = triggerEstimateMax;
+	}
+
+	public void setMakeThreadsDaemons(boolean makeThreadsDaemons) {
+		LOG.debug("setMakeThreadsDaemons: " + makeThreadsDaemons);
+		this.makeThreadsDaemons = makeThreadsDaemons;
+	}
+
+	private static String formatKey(Key<?> k) {
+		return k.getGroup() + ":" + k.getName();
+	}
+
+	static AWSCredentialsProviderChain credentials() {
+		return new AWSCredentialsProviderChain(
+				new EnvironmentVariableCredentialsProvider(),
+				new SystemPropertiesCredentialsProvider(),
+				new ProfileCredentialsProvider(),
+				InstanceProfileCredentialsProvider.getInstance());
+	}
+
+	private ClientConfiguration clientConfiguration() {
+		ClientConfiguration c = new ClientConfiguration();
+		c.setMaxConnections(this.maxConnections);
+		c.setConnectionTimeout(this.connectionTimeout);
+		c.setSocketTimeout(this.socketTimeout);
+		c.setRequestTimeout(this.requestTimeout);
+		c.setConnectionTTL(this.connectionTTL);
+		c.setUseTcpKeepAlive(this.tcpKeepAlive);
+		c.setUseGzip(this.useGzip);
+		// The SDK response metadata cache is synchronized
+		c.setCacheResponseMetadata(this.cacheResponseMetadata);
+		if (this.retry) {
+			c.setRetryPolicy(this.retryPolicy.toRetryPolicy());
+		}
+		return c;
+	}
+
+	/**
+	 * @return Executor for async requests, sized to the connection pool
+	 *         unless asyncThreads is set
+	 */
+	private ExecutorService asyncExecutor() {
+		int threads = this.asyncThreads > 0 ? this.asyncThreads
+				: this.maxConnections;
+		final String name = "DynamoDBJobStore-" + this.instanceId + "-Async-";
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + this.count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	static String partitionKey(JobKey k) {
+		return PREFIX_JOB + k.getGroup();
+	}
+
+	static String partitionKey(TriggerKey k) {
+		return PREFIX_TRIGGER + k.getGroup();
+	}
+
+	static String adjacencyKey(JobKey k) {
+		return PREFIX_JOBTRIGGER + formatKey(k);
+	}
+
+	private Map<String, AttributeValue> itemKey(JobKey k) {
+		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
+		if (this.singleTable) {
+			km.put(KEY_PK, new AttributeValue(partitionKey(k)));
+			km.put(KEY_SK, new AttributeValue(k.getName()));
+		} else {
+			km.put(KEY_KEY, new AttributeValue(formatKey(k)));
+		}
+		return km;
+	}
+
+	private Map<String, AttributeValue> itemKey(TriggerKey k) {
+		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
+		if (this.singleTable) {
+			km.put(KEY_PK, new AttributeValue(partitionKey(k)));
+			km.put(KEY_SK, new AttributeValue(k.getName()));
+		} else {
+			km.put(KEY_KEY, new AttributeValue(formatKey(k)));
+		}
+		return km;
+	}
+
+	private Map<String, AttributeValue> calendarKey(String name) {
+		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
+		if (this.singleTable) {
+			km.put(KEY_PK, new AttributeValue(PREFIX_CALENDAR));
+			km.put(KEY_SK, new AttributeValue(name));
+		} else {
+			km.put(KEY_NAME, new AttributeValue(name));
+		}
+		return km;
+	}
+
+	/**
+	 * Creates a scan request on the given table. In single table mode, the
+	 * scan is restricted to items with the given partition key prefix.
+	 *
+	 * @param table
+	 *            Table name
+	 * @param prefix
+	 *            Partition key prefix of the scanned item kind
+	 * @return Scan request
+	 */
+	private ScanRequest scanRequest(String table, String prefix) {
+		ScanRequest req = new ScanRequest();
+		req.withTableName(table);
+		req.withConsistentRead(consistentRead(ReadKind.LIST));
+		if (this.singleTable) {
+			req.addScanFilterEntry(KEY_PK, new Condition()
+					.withComparisonOperator(ComparisonOperator.BEGINS_WITH)
+					.withAttributeValueList(new AttributeValue(prefix)));
+		}
+		return req;
+	}
+
+	/**
+	 * Creates a query request on a single table partition.
+	 *
+	 * @param pk
+	 *            Partition key value
+	 * @return Query request
+	 */
+	private QueryRequest queryRequest(String pk) {
+		QueryRequest req = new QueryRequest();
+		req.withTableName(this.tableName);
+		req.withConsistentRead(consistentRead(ReadKind.LIST));
+		req.addKeyConditionsEntry(KEY_PK, new Condition()
+				.withComparisonOperator(ComparisonOperator.EQ)
+				.withAttributeValueList(new AttributeValue(pk)));
+		return req;
+	}
+
+	/**
+	 * Read consistency of an operation class. Global secondary index queries
+	 * are always eventually consistent.
+	 *
+	 * @param kind
+	 *            Operation class
+	 * @return true for strongly consistent reads
+	 */
+	private boolean consistentRead(ReadKind kind) {
+		switch (kind) {
+		case LOCK:
+			return this.consistentLockReads;
+		case ITEM:
+			return CallContext.current().firing ? this.consistentLockReads
+					: this.consistentItemReads;
+		default:
+			return this.consistentListReads;
+		}
+	}
+
+	/**
+	 * Queries all items of a request, following pagination.
+	 *
+	 * @param req
+	 *            Query request
+	 * @return Items
+	 */
+	private List<Map<String, AttributeValue>> queryAll(QueryRequest req) {
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		boolean hasMore = true;
+		while (hasMore) {
+			hasMore = false;
+			QueryResult res = this.client.query(req);
+			items.addAll(res.getItems());
+			Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
+			if (lastKey != null && !lastKey.isEmpty()) {
+				hasMore = true;
+				req.withExclusiveStartKey(lastKey);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Registers a group item in single table mode, so group names can be
+	 * listed with a query. Groups already registered by this instance are
+	 * skipped.
+	 *
+	 * @param prefix
+	 *            {@link #PREFIX_JOBGROUP} or {@link #PREFIX_TRIGGERGROUP}
+	 * @param group
+	 *            Group name
+	 */
+	private void registerGroup(String prefix, String group) {
+		if (!this.singleTable || this.knownGroups.contains(prefix + group)) {
+			return;
+		}
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		attr(item, KEY_PK, prefix);
+		attr(item, KEY_SK, group);
+		attr(item, KEY_GROUP, group);
+		try {
+			putItem(new PutItemRequest().withTableName(
+					this.tableName).withItem(item));
+			this.knownGroups.add(prefix + group);
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Lists registered group names having at least one item in single table
+	 * mode.
+	 *
+	 * @param groupPrefix
+	 *            {@link #PREFIX_JOBGROUP} or {@link #PREFIX_TRIGGERGROUP}
+	 * @param itemPrefix
+	 *            {@link #PREFIX_JOB} or {@link #PREFIX_TRIGGER}
+	 * @return Group names
+	 */
+	private List<String> queryGroupNames(String groupPrefix, String itemPrefix) {
+		List<String> groups = new ArrayList<String>();
+		for (Map<String, AttributeValue> item : queryAll(queryRequest(
+				groupPrefix).withAttributesToGet(KEY_SK))) {
+			String group = strValue(item, KEY_SK);
+			QueryResult res = this.client.query(queryRequest(
+					itemPrefix + group).withAttributesToGet(KEY_SK)
+					.withLimit(1));
+			if (res.getCount() > 0) {
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+
+	static JobKey parseJobKey(String k) {
+		if (k != null && !k.isEmpty()) {
+			String[] p = k.split(":");
+			if (p.length >= 2) {
+				return new JobKey(p[1], p[0]);
+			}
+		}
+		return null;
+	}
+
+	static TriggerKey parseTriggerKey(String k) {
+		if (k != null && !k.isEmpty()) {
+			String[] p = k.split(":");
+			if (p.length >= 2) {
+				return new TriggerKey(p[1], p[0]);
+			}
+		}
+		return null;
+	}
+
+	private void init() {
+		DynamoDBTableProvisioner provisioner = new DynamoDBTableProvisioner(
+				this.client);
+		provisioner.setBillingMode(this.billingMode);
+		provisioner.setCapacity(this.readCapacity, this.writeCapacity);
+		provisioner.setIndexCapacity(this.indexReadCapacity,
+				this.indexWriteCapacity);
+		List<CreateTableRequest> tables = new ArrayList<CreateTableRequest>();
+		List<String> ttlTables = new ArrayList<String>();
+		if (this.singleTable) {
+			provisioner.setCapacity(this.tableName, this.tableReadCapacity,
+					this.tableWriteCapacity);
+			tables.add(provisioner.singleTable(this.tableName));
+			ttlTables.add(this.tableName);
+		} else {
+			provisioner.setCapacity(this.tableNameCalendars,
+					this.calendarsReadCapacity, this.calendarsWriteCapacity);
+			provisioner.setCapacity(this.tableNameJobs,
+					this.jobsReadCapacity, this.jobsWriteCapacity);
+			provisioner.setCapacity(this.tableNameTriggers,
+					this.triggersReadCapacity, this.triggersWriteCapacity);
+			tables.add(provisioner.calendarsTable(this.tableNameCalendars));
+			tables.add(provisioner.jobsTable(this.tableNameJobs));
+			tables.add(provisioner.triggersTable(this.tableNameTriggers));
+			ttlTables.add(this.tableNameJobs);
+			ttlTables.add(this.tableNameTriggers);
+			if (this.fireDedup) {
+				tables.add(provisioner.firedTable(this.tableNameFired));
+				ttlTables.add(this.tableNameFired);
+			}
+			if (!this.permitLimits.isEmpty()) {
+				tables.add(provisioner.permitsTable(this.tableNamePermits));
+			}
+		}
+		if (isMirrored()) {
+			// Separate table, so clearing scheduling data keeps the fence
+			tables.add(provisioner.fencesTable(this.tableNameFences));
+		}
+		try {
+			provisioner.createTables(tables);
+		} catch (InterruptedException e) {
+			LOG.error(e.getMessage(), e);
+			this.shutdown();
+		}
+		for (String table : ttlTables) {
+			provisioner.enableTimeToLive(table, KEY_EXPIRES);
+		}
+		if (this.rateLimiter != null) {
+			for (CreateTableRequest req : tables) {
+				try {
+					this.rateLimiter.configure(this.client.describeTable(
+							req.getTableName()).getTable());
+				} catch (AmazonClientException e) {
+					LOG.error(e.getMessage(), e);
+				}
+			}
+		}
+		this.useStateNextIndex = provisioner.hasIndex(this.tableNameTriggers,
+				INDEX_STATE_NEXT);
+		if (!this.useStateNextIndex) {
+			LOG.warn("Index " + INDEX_STATE_NEXT + " not found on table "
+					+ this.tableNameTriggers
+					+ ", falling back to scan for due triggers");
+		}
+		for (String drift : provisioner.checkDrift(tables, ttlTables,
+				KEY_EXPIRES)) {
+			LOG.warn("Table drift: " + drift);
+		}
+	}
+
+	/**
+	 * Based on {@link org.quartz.simpl.RAMJobStore#applyMisfire}
+	 *
+	 * @param t
+	 *            Trigger
+	 * @param calendars
+	 *            Calendars already retrieved by the caller, keyed by name
+	 * @return Misfired status
+	 * @throws JobPersistenceException
+	 */
+	private boolean applyMisfire(OperableTrigger t,
+			Map<String, Calendar> calendars) throws JobPersistenceException {
+		long misfireTime = getMisfireTime();
+		Date next = t.getNextFireTime();
+		if (next == null
+				|| next.getTime() > misfireTime
+				|| t.getMisfireInstruction() == Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY) {
+			LOG.trace("Trigger not misfired");
+			return false;
+		}
+		Calendar cal = null;
+		String calName = t.getCalendarName();
+		if (calName != null) {
+			if (calendars.containsKey(calName)) {
+				cal = calendars.get(calName);
+			} else {
+				cal = loadCalendar(calName);
+				calendars.put(calName, cal);
+			}
+		}
+		this.signaler.notifyTriggerListenersMisfired((Trigger) t.clone());
+		t.updateAfterMisfire(cal);
+		if (next.equals(t.getNextFireTime())) {
+			LOG.trace("Trigger not misfired (after updateAfterMisfire)");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies misfire instruction and stores the result. The write is
+	 * conditional on the next fire time that was read and on the trigger not
+	 * being locked, so a misfire is handled only once across the cluster.
+	 *
+	 * @param t
+	 *            Trigger
+	 * @param calendars
+	 *            Calendars already retrieved by the caller, keyed by name
+	 * @return true if misfire was applied and stored
+	 * @throws JobPersistenceException
+	 */
+	private boolean updateMisfiredTrigger(OperableTrigger t,
+			Map<String, Calendar> calendars) throws JobPersistenceException {
+		Date next = t.getNextFireTime();
+		if (!applyMisfire(t, calendars)) {
+			return false;
+		}
+		TriggerState state = TriggerState.NORMAL;
+		if (t.getNextFireTime() == null) {
+			LOG.trace("Trigger has no next (after updateAfterMisfire)");
+			state = TriggerState.COMPLETE;
+		}
+		Map<String, AttributeValue> item = triggerToItem(t);
+		attr(item, KEY_STATE, state.name());
+		if (state == TriggerState.COMPLETE) {
+			attr(item, KEY_EXPIRES, expiresAt());
+		}
+		Map<String, AttributeValue> current = readVersioned(
+				this.tableNameTriggers, itemKey(t.getKey()));
+		if (current == null) {
+			LOG.debug("Misfired trigger deleted: " + formatKey(t.getKey()));
+			return false;
+		}
+		nextVersion(item, current);
+		PutItemRequest req = new PutItemRequest();
+		req.withTableName(this.tableNameTriggers);
+		req.withItem(item);
+		req.addExpectedEntry(KEY_VERSION, expectedVersion(current));
+		req.addExpectedEntry(
+				KEY_NEXT,
+				new ExpectedAttributeValue().withComparisonOperator(
+						ComparisonOperator.EQ).withAttributeValueList(
+						new AttributeValue().withN(Long.toString(
+								next.getTime(), 10))));
+		req.addExpectedEntry(
+				KEY_LOCKED,
+				new ExpectedAttributeValue().withComparisonOperator(
+						ComparisonOperator.NE).withValue(
+						new AttributeValue().withBOOL(true)));
+		try {
+			LOG.trace("  putting key: " + item.get(KEY_KEY).getS());
+			putItem(req);
+		} catch (ConditionalCheckFailedException e) {
+			LOG.debug("Misfire already handled: " + formatKey(t.getKey()));
+			return false;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+		if (item.containsKey(KEY_EXPIRES)) {
+			expireAdjacency(item, t.getKey());
+		}
+		if (this.lookAheadQueue != null) {
+			this.lookAheadQueue.update(t, state);
+		}
+		if (state == TriggerState.COMPLETE) {
+			this.signaler.notifySchedulerListenersFinalized(t);
+		}
+		return true;
+	}
+
+	/**
+	 * Handles up to {@link #maxMisfiresToHandleAtATime} misfired triggers.
+	 * Based on {@link org.quartz.impl.jdbcjobstore.JobStoreSupport}
+	 *
+	 * @return Result of this batch
+	 * @throws JobPersistenceException
+	 */
+	private MisfireResult recoverMisfiredTriggers()
+			throws JobPersistenceException {
+		int max = this.maxMisfiresToHandleAtATime;
+		List<OperableTrigger> misfired = queryTriggers(null,
+				getMisfireTime() - 1L, Boolean.FALSE, max > 0 ? max + 1 : 0);
+		boolean hasMore = false;
+		if (max > 0 && misfired.size() > max) {
+			hasMore = true;
+			misfired = misfired.subList(0, max);
+		}
+		LOG.debug("Handling " + misfired.size() + " misfired triggers");
+		Map<String, Calendar> calendars = new HashMap<String, Calendar>();
+		long earliest = Long.MAX_VALUE;
+		int count = 0;
+		for (OperableTrigger t : misfired) {
+			if (updateMisfiredTrigger(t, calendars)) {
+				count++;
+				Date next = t.getNextFireTime();
+				if (next != null && next.getTime() < earliest) {
+					earliest = next.getTime();
+				}
+			}
+		}
+		return new MisfireResult(count, hasMore, earliest);
+	}
+
+	private long getMisfireTime() {
+		long misfireTime = System.currentTimeMillis();
+		if (this.misfireThreshold > 0) {
+			misfireTime -= this.misfireThreshold;
+		}
+		return misfireTime;
+	}
+
+	/**
+	 * Retrieves unlocked triggers in {@link TriggerState#NORMAL} state due no
+	 * later than the given time, ordered by next fire time. Like
+	 * {@link org.quartz.impl.jdbcjobstore.JobStoreSupport}, triggers with
+	 * {@link Trigger#MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY} are due
+	 * however late they are, others only from the misfire time on.
+	 *
+	 * @param misfireTime
+	 *            Lower bound of next fire time of triggers not ignoring
+	 *            misfires
+	 * @param notAfter
+	 *            Upper bound of next fire time
+	 * @param limit
+	 *            Maximum number of triggers, 0 for no limit
+	 * @return Triggers ordered by next fire time
+	 * @throws JobPersistenceException
+	 */
+	private List<OperableTrigger> queryDueTriggers(long misfireTime,
+			long notAfter, int limit) throws JobPersistenceException {
+		List<OperableTrigger> triggers = queryTriggers(misfireTime, notAfter,
+				null, limit);
+		triggers.addAll(queryTriggers(null, misfireTime - 1L, Boolean.TRUE,
+				limit));
+		Collections.sort(triggers, new Trigger.TriggerTimeComparator());
+		if (limit > 0 && triggers.size() > limit) {
+			return new ArrayList<OperableTrigger>(triggers.subList(0, limit));
+		}
+		return triggers;
+	}
+
+	/**
+	 * Retrieves unlocked triggers in {@link TriggerState#NORMAL} state with
+	 * next fire time in the given range, ordered by next fire time. Uses
+	 * {@link #INDEX_STATE_NEXT} if available, otherwise scans.
+	 *
+	 * @param notBefore
+	 *            Lower bound of next fire time, or null for no lower bound
+	 * @param notAfter
+	 *            Upper bound of next fire time
+	 * @param ignoreMisfire
+	 *            True for only triggers ignoring misfires, false for only
+	 *            other triggers, null for all
+	 * @param limit
+	 *            Maximum number of triggers, 0 for no limit
+	 * @return Triggers ordered by next fire time
+	 * @throws JobPersistenceException
+	 */
+	private List<OperableTrigger> queryTriggers(Long notBefore, long notAfter,
+			Boolean ignoreMisfire, int limit) throws JobPersistenceException {
+		Condition next = new Condition();
+		if (notBefore != null) {
+			next.withComparisonOperator(ComparisonOperator.BETWEEN)
+					.withAttributeValueList(
+							new AttributeValue().withN(Long.toString(
+									notBefore, 10)),
+							new AttributeValue().withN(Long.toString(
+									notAfter, 10)));
+		} else {
+			next.withComparisonOperator(ComparisonOperator.LE)
+					.withAttributeValueList(
+							new AttributeValue().withN(Long.toString(notAfter,
+									10)));
+		}
+		Condition state = new Condition().withComparisonOperator(
+				ComparisonOperator.EQ).withAttributeValueList(
+				new AttributeValue(TriggerState.NORMAL.name()));
+		Condition unlocked = new Condition().withComparisonOperator(
+				ComparisonOperator.NE).withAttributeValueList(
+				new AttributeValue().withBOOL(true));
+		Condition misfire = null;
+		if (ignoreMisfire != null) {
+			misfire = new Condition().withComparisonOperator(
+					ignoreMisfire ? ComparisonOperator.EQ
+							: ComparisonOperator.NE).withAttributeValueList(
+					new AttributeValue().withN(Integer.toString(
+							Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY,
+							10)));
+		}
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		try {
+			if (this.useStateNextIndex) {
+				QueryRequest req = new QueryRequest();
+				req.withTableName(this.tableNameTriggers);
+				req.withIndexName(INDEX_STATE_NEXT);
+				req.addKeyConditionsEntry(KEY_STATE, state);
+				req.addKeyConditionsEntry(KEY_NEXT, next);
+				req.addQueryFilterEntry(KEY_LOCKED, unlocked);
+				if (misfire != null) {
+					req.addQueryFilterEntry(KEY_MISFIRE, misfire);
+				}
+				boolean hasMore = true;
+				while (hasMore && (limit <= 0 || items.size() < limit)) {
+					hasMore = false;
+					QueryResult res = this.client.query(req);
+					items.addAll(res.getItems());
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
+				}
+			} else {
+				ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
+				req.addScanFilterEntry(KEY_STATE, state);
+				req.addScanFilterEntry(KEY_NEXT, next);
+				req.addScanFilterEntry(KEY_LOCKED, unlocked);
+				if (misfire != null) {
+					req.addScanFilterEntry(KEY_MISFIRE, misfire);
+				}
+				boolean hasMore = true;
+				while (hasMore) {
+					hasMore = false;
+					ScanResult res = this.client.scan(req);
+					items.addAll(res.getItems());
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
+				}
+			}
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+		List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
+		for (Map<String, AttributeValue> item : items) {
+			try {
+				triggers.add(itemToTrigger(item));
+			} catch (ClassNotFoundException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+		Collections.sort(triggers, new Trigger.TriggerTimeComparator());
+		if (limit > 0 && triggers.size() > limit) {
+			return new ArrayList<OperableTrigger>(triggers.subList(0, limit));
+		}
+		return triggers;
+	}
+
+	private boolean acquire(JobKey key) throws JobPersistenceException {
+		LOG.trace("acquire: job: " + formatKey(key));
+		UpdateItemRequest req = lockRequest(this.tableNameJobs, itemKey(key));
+		try {
+			LOG.trace("  updating key: " + req.getKey());
+			updateItem(req);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			LOG.error("Job already locked: " + formatKey(key));
+			return false;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	private boolean acquire(TriggerKey key) throws JobPersistenceException {
+		LOG.trace("acquire: trigger: " + formatKey(key));
+		UpdateItemRequest req = lockRequest(this.tableNameTriggers,
+				itemKey(key));
+		try {
+			LOG.trace("  updating key: " + req.getKey());
+			updateItem(req);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			LOG.error("Trigger already locked: " + formatKey(key));
+			return false;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Acquires trigger locks with pipelined requests, so that all locks take
+	 * about one round trip.
+	 *
+	 * @param keys
+	 *            Trigger keys
+	 * @return Acquired flag of each key, in order
+	 * @throws JobPersistenceException
+	 *             if any request failed, after all requests completed and
+	 *             the locks acquired were released
+	 */
+	private boolean[] acquire(List<TriggerKey> keys)
+			throws JobPersistenceException {
+		LOG.trace("acquire: triggers: " + keys.size());
+		List<Future<UpdateItemResult>> futures = new ArrayList<Future<UpdateItemResult>>();
+		for (TriggerKey key : keys) {
+			futures.add(updateItemAsync(lockRequest(this.tableNameTriggers,
+					itemKey(key))));
+		}
+		boolean[] acquired = new boolean[keys.size()];
+		JobPersistenceException error = null;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				await(futures.get(i));
+				acquired[i] = true;
+			} catch (ConditionalCheckFailedException e) {
+				LOG.error("Trigger already locked: "
+						+ formatKey(keys.get(i)));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				error = new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				error = new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		if (error != null) {
+			List<TriggerKey> locked = new ArrayList<TriggerKey>();
+			for (int i = 0; i < acquired.length; i++) {
+				if (acquired[i]) {
+					locked.add(keys.get(i));
+				}
+			}
+			if (!locked.isEmpty()) {
+				try {
+					release(locked);
+				} catch (JobPersistenceException e) {
+					LOG.error(e.getMessage(), e);
+				}
+			}
+			throw error;
+		}
+		return acquired;
+	}
+
+	/**
+	 * Acquires due trigger locks with pipelined requests, on condition that
+	 * each trigger is still in normal state with the same next fire time.
+	 *
+	 * @param triggers
+	 *            Due triggers, possibly from the look-ahead queue
+	 * @return Locked triggers as stored, in order, possibly fewer than
+	 *         locked if some requests failed
+	 * @throws JobPersistenceException
+	 *             if requests failed and no lock was acquired, after all
+	 *             requests completed
+	 */
+	private List<OperableTrigger> acquireDue(List<OperableTrigger> triggers)
+			throws JobPersistenceException {
+		LOG.trace("acquireDue: triggers: " + triggers.size());
+		List<Future<UpdateItemResult>> futures = new ArrayList<Future<UpdateItemResult>>();
+		for (OperableTrigger t : triggers) {
+			UpdateItemRequest req = lockRequest(this.tableNameTriggers,
+					itemKey(t.getKey()));
+			req.addExpectedEntry(
+					KEY_STATE,
+					new ExpectedAttributeValue().withComparisonOperator(
+							ComparisonOperator.EQ).withAttributeValueList(
+							new AttributeValue(TriggerState.NORMAL.name())));
+			req.addExpectedEntry(
+					KEY_NEXT,
+					new ExpectedAttributeValue().withComparisonOperator(
+							ComparisonOperator.EQ).withAttributeValueList(
+							new AttributeValue().withN(Long.toString(t
+									.getNextFireTime().getTime(), 10))));
+			req.withReturnValues(ReturnValue.ALL_NEW);
+			futures.add(updateItemAsync(req));
+		}
+		List<OperableTrigger> acquired = new ArrayList<OperableTrigger>();
+		JobPersistenceException error = null;
+		for (int i = 0; i < futures.size(); i++) {
+			TriggerKey key = triggers.get(i).getKey();
+			boolean unloadable = false;
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.remove(key);
+			}
+			try {
+				UpdateItemResult res = await(futures.get(i));
+				acquired.add(itemToTrigger(res.getAttributes()));
+			} catch (ConditionalCheckFailedException e) {
+				LOG.debug("Trigger locked or changed: " + formatKey(key));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				error = new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				error = new JobPersistenceException(e.getMessage(), e);
+			} catch (ClassNotFoundException e) {
+				LOG.error(e.getMessage(), e);
+				unloadable = true;
+			}
+			if (unloadable) {
+				try {
+					release(key);
+				} catch (JobPersistenceException e) {
+					// Left locked until recovered, other locks still returned
+					LOG.error(e.getMessage(), e);
+				}
+			}
+		}
+		if (error != null && acquired.isEmpty()) {
+			throw error;
+		} else if (error != null) {
+			LOG.warn("Returning " + acquired.size() + " of "
+					+ triggers.size() + " triggers after lock failures");
+		}
+		return acquired;
+	}
+
+	private boolean release(JobKey key) throws JobPersistenceException {
+		return release(key, null, null);
+	}
+
+	/**
+	 * @param owner
+	 *            Instance expected to hold the lock, or null
+	 * @param before
+	 *            Lock time bound, see {@link #expectLockedBefore}
+	 */
+	private boolean release(JobKey key, String owner, Long before)
+			throws JobPersistenceException {
+		LOG.trace("release: job: " + formatKey(key));
+		UpdateItemRequest req = unlockRequest(this.tableNameJobs,
+				itemKey(key));
+		if (owner != null && before != null) {
+			expectLockedBefore(req, owner, before);
+		}
+		try {
+			LOG.trace("  updating key: " + req.getKey());
+			updateItem(req);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			LOG.error("Job already unlocked: " + formatKey(key));
+			return true;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	private boolean release(TriggerKey key) throws JobPersistenceException {
+		LOG.trace("release: trigger: " + formatKey(key));
+		UpdateItemRequest req = unlockRequest(this.tableNameTriggers,
+				itemKey(key));
+		try {
+			LOG.trace("  updating key: " + req.getKey());
+			updateItem(req);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			LOG.error("Trigger already unlocked: " + formatKey(key));
+			return true;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Releases trigger locks with pipelined requests.
+	 *
+	 * @param keys
+	 *            Trigger keys
+	 * @throws JobPersistenceException
+	 *             if any request failed, after all requests completed
+	 */
+	private void release(List<TriggerKey> keys)
+			throws JobPersistenceException {
+		release(keys, null, null);
+	}
+
+	/**
+	 * @param owner
+	 *            Instance expected to hold the locks, or null
+	 * @param before
+	 *            Lock time bound, see {@link #expectLockedBefore}
+	 */
+	private void release(List<TriggerKey> keys, String owner, Long before)
+			throws JobPersistenceException {
+		LOG.trace("release: triggers: " + keys.size());
+		List<Future<UpdateItemResult>> futures = new ArrayList<Future<UpdateItemResult>>();
+		for (TriggerKey key : keys) {
+			UpdateItemRequest req = unlockRequest(this.tableNameTriggers,
+					itemKey(key));
+			if (owner != null && before != null) {
+				expectLockedBefore(req, owner, before);
+			}
+			futures.add(updateItemAsync(req));
+		}
+		JobPersistenceException error = null;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				await(futures.get(i));
+			} catch (ConditionalCheckFailedException e) {
+				LOG.error("Trigger already unlocked: "
+						+ formatKey(keys.get(i)));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				error = new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				error = new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Makes an unlock replayed from the journal conditional on the lock
+	 * still being held by the journaling instance, taken before the record
+	 * was journaled. A lock taken meanwhile by another instance, or again by
+	 * this one, is left alone. Items put again since have no lock.
+	 *
+	 * @param owner
+	 *            Instance that held the lock when journaled
+	 * @param before
+	 *            Time in milliseconds on the clock of the owner when
+	 *            journaled
+	 */
+	private static void expectLockedBefore(UpdateItemRequest req,
+			String owner, long before) {
+		req.addExpectedEntry(KEY_LOCKEDBY, new ExpectedAttributeValue()
+				.withComparisonOperator(ComparisonOperator.EQ)
+				.withAttributeValueList(new AttributeValue(owner)));
+		req.addExpectedEntry(
+				KEY_LOCKEDAT,
+				new ExpectedAttributeValue().withComparisonOperator(
+						ComparisonOperator.LE).withAttributeValueList(
+						new AttributeValue().withN(Long.toString(before, 10))));
+	}
+
+	private UpdateItemRequest lockRequest(String table,
+			Map<String, AttributeValue> km) {
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(table);
+		req.withKey(km);
+		req.addAttributeUpdatesEntry(KEY_LOCKED,
+				new AttributeValueUpdate().withAction(AttributeAction.PUT)
+						.withValue(new AttributeValue().withBOOL(true)));
+		req.addAttributeUpdatesEntry(
+				KEY_LOCKEDAT,
+				new AttributeValueUpdate().withAction(AttributeAction.PUT)
+						.withValue(
+								new AttributeValue().withN(Long.toString(System
+										.currentTimeMillis()))));
+		req.addAttributeUpdatesEntry(KEY_LOCKEDBY,
+				new AttributeValueUpdate().withAction(AttributeAction.PUT)
+						.withValue(new AttributeValue(this.instanceId)));
+		bumpVersion(req);
+		req.addExpectedEntry(
+				KEY_LOCKED,
+				new ExpectedAttributeValue().withComparisonOperator(
+						ComparisonOperator.NE).withValue(
+						new AttributeValue().withBOOL(true)));
+		req.withReturnValues(ReturnValue.UPDATED_OLD);
+		return req;
+	}
+
+	private static UpdateItemRequest unlockRequest(String table,
+			Map<String, AttributeValue> km) {
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(table);
+		req.withKey(km);
+		req.addAttributeUpdatesEntry(KEY_LOCKED,
+				new AttributeValueUpdate().withAction(AttributeAction.PUT)
+						.withValue(new AttributeValue().withBOOL(false)));
+		req.addAttributeUpdatesEntry(KEY_LOCKEDBY,
+				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+		req.addAttributeUpdatesEntry(KEY_LOCKEDAT,
+				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+		bumpVersion(req);
+		req.addExpectedEntry(
+				KEY_LOCKED,
+				new ExpectedAttributeValue().withComparisonOperator(
+						ComparisonOperator.NE).withValue(
+						new AttributeValue().withBOOL(false)));
+		req.withReturnValues(ReturnValue.UPDATED_OLD);
+		return req;
+	}
+
+	/**
+	 * Reads an item, hedging reads on the trigger firing path when enabled.
+	 */
+	private GetItemResult getItem(GetItemRequest req) {
+		if (this.hedgedReader != null && CallContext.current().firing) {
+			return this.hedgedReader.getItem(req);
+		}
+		return this.client.getItem(req);
+	}
+
+	/**
+	 * Issues an update on the async client, carrying the calling thread's
+	 * {@link CallContext} to request handlers. Fenced updates are issued
+	 * synchronously.
+	 */
+	private Future<UpdateItemResult> updateItemAsync(
+			final UpdateItemRequest req) {
+		if (CallContext.current().fence != null) {
+			FutureTask<UpdateItemResult> f = new FutureTask<UpdateItemResult>(
+					new Callable<UpdateItemResult>() {
+						@Override
+						public UpdateItemResult call() {
+							return updateItem(req);
+						}
+					});
+			f.run();
+			return f;
+		}
+		req.addHandlerContext(CallContext.KEY, CallContext.current());
+		return this.asyncClient.updateItemAsync(req);
+	}
+
+	/**
+	 * Puts an item, on condition that the fencing token of the current
+	 * {@link CallContext} is still current if it has one.
+	 */
+	private PutItemResult putItem(PutItemRequest req) {
+		Long fence = CallContext.current().fence;
+		if (fence != null) {
+			return this.fencedWrites.putItem(req, fence);
+		}
+		return this.client.putItem(req);
+	}
+
+	/**
+	 * Updates an item, on condition that the fencing token of the current
+	 * {@link CallContext} is still current if it has one.
+	 */
+	private UpdateItemResult updateItem(UpdateItemRequest req) {
+		Long fence = CallContext.current().fence;
+		if (fence != null) {
+			return this.fencedWrites.updateItem(req, fence);
+		}
+		return this.client.updateItem(req);
+	}
+
+	/**
+	 * Deletes an item, on condition that the fencing token of the current
+	 * {@link CallContext} is still current if it has one.
+	 */
+	private DeleteItemResult deleteItem(DeleteItemRequest req) {
+		Long fence = CallContext.current().fence;
+		if (fence != null) {
+			return this.fencedWrites.deleteItem(req, fence);
+		}
+		return this.client.deleteItem(req);
+	}
+
+	/**
+	 * Waits for an async request, rethrowing its failure as thrown by the
+	 * sync client.
+	 */
+	private static <T> T await(Future<T> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException(e.getMessage(), e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			}
+			throw new AmazonClientException(t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * @return true if reads and acquisition are served from an in-memory
+	 *         mirror, see {@link MirroredDynamoDBJobStore}
+	 */
+	boolean isMirrored() {
+		return false;
+	}
+
+	/**
+	 * @param builder
+	 *            Configured client builder
+	 * @return DynamoDB client, overridden by tests to use a local client
+	 */
+	AmazonDynamoDBAsync buildClient(AmazonDynamoDBAsyncClientBuilder builder) {
+		return builder.build();
+	}
+
+	/**
+	 * Loads all jobs with a parallel scan.
+	 *
+	 * @param segments
+	 *            Scan segments
+	 * @return Jobs
+	 * @throws JobPersistenceException
+	 */
+	List<JobDetail> scanJobs(int segments) throws JobPersistenceException {
+		LOG.trace("scanJobs: segments: " + segments);
+		List<JobDetail> jobs = new ArrayList<JobDetail>();
+		for (Map<String, AttributeValue> item : parallelScan(
+				this.tableNameJobs, PREFIX_JOB, segments)) {
+			try {
+				jobs.add(itemToJob(item));
+			} catch (ClassNotFoundException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Loads all triggers with a parallel scan.
+	 *
+	 * @param segments
+	 *            Scan segments
+	 * @param states
+	 *            Receives stored trigger states
+	 * @return Triggers
+	 * @throws JobPersistenceException
+	 */
+	List<OperableTrigger> scanTriggers(int segments,
+			Map<TriggerKey, TriggerState> states)
+			throws JobPersistenceException {
+		LOG.trace("scanTriggers: segments: " + segments);
+		List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
+		for (Map<String, AttributeValue> item : parallelScan(
+				this.tableNameTriggers, PREFIX_TRIGGER, segments)) {
+			try {
+				OperableTrigger t = itemToTrigger(item);
+				if (t == null) {
+					continue;
+				}
+				String state = strValue(item, KEY_STATE);
+				states.put(t.getKey(), state != null ? TriggerState
+						.valueOf(state) : TriggerState.NORMAL);
+				triggers.add(t);
+			} catch (ClassNotFoundException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+		return triggers;
+	}
+
+	/**
+	 * Loads all calendars with a parallel scan.
+	 *
+	 * @param segments
+	 *            Scan segments
+	 * @return Calendars, keyed by name
+	 * @throws JobPersistenceException
+	 */
+	Map<String, Calendar> scanCalendars(int segments)
+			throws JobPersistenceException {
+		LOG.trace("scanCalendars: segments: " + segments);
+		Map<String, Calendar> calendars = new HashMap<String, Calendar>();
+		for (Map<String, AttributeValue> item : parallelScan(
+				this.tableNameCalendars, PREFIX_CALENDAR, segments)) {
+			try {
+				calendars.put(strValue(item, KEY_NAME), itemToCalendar(item));
+			} catch (ClassNotFoundException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+		return calendars;
+	}
+
+	/**
+	 * Scans a table with segments scanned concurrently on the async client.
+	 * Pages of each segment are requested as soon as the previous page of
+	 * that segment arrives.
+	 */
+	private List<Map<String, AttributeValue>> parallelScan(String table,
+			String prefix, int segments) throws JobPersistenceException {
+		int n = Math.max(1, segments);
+		List<ScanRequest> reqs = new ArrayList<ScanRequest>();
+		List<Future<ScanResult>> futures = new ArrayList<Future<ScanResult>>();
+		for (int i = 0; i < n; i++) {
+			ScanRequest req = scanRequest(table, prefix);
+			if (n > 1) {
+				req.withSegment(i).withTotalSegments(n);
+			}
+			req.addHandlerContext(CallContext.KEY, CallContext.current());
+			reqs.add(req);
+			futures.add(this.asyncClient.scanAsync(req));
+		}
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		try {
+			boolean pending = true;
+			while (pending) {
+				pending = false;
+				for (int i = 0; i < n; i++) {
+					if (futures.get(i) == null) {
+						continue;
+					}
+					ScanResult res = await(futures.get(i));
+					if (res.getItems() != null) {
+						items.addAll(res.getItems());
+					}
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						ScanRequest req = reqs.get(i);
+						req.withExclusiveStartKey(lastKey);
+						futures.set(i, this.asyncClient.scanAsync(req));
+						pending = true;
+					} else {
+						futures.set(i, null);
+					}
+				}
+			}
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+		return items;
+	}
+
+	/**
+	 * Stores a trigger with the given state, replacing any existing trigger.
+	 */
+	void writeTrigger(OperableTrigger t, TriggerState state)
+			throws JobPersistenceException {
+		storeTrigger(t, true, state);
+	}
+
+	/**
+	 * Takes the fencing token of this scheduler, fencing out any instance
+	 * holding an earlier token.
+	 *
+	 * @return New fencing token
+	 * @throws JobPersistenceException
+	 */
+	long acquireFence() throws JobPersistenceException {
+		LOG.trace("acquireFence");
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNameFences);
+		req.withKey(fenceKey());
+		req.addAttributeUpdatesEntry(KEY_TOKEN, new AttributeValueUpdate()
+				.withAction(AttributeAction.ADD).withValue(
+						new AttributeValue().withN("1")));
+		req.addAttributeUpdatesEntry(KEY_LOCKEDBY, new AttributeValueUpdate()
+				.withValue(new AttributeValue(this.instanceId)));
+		req.addAttributeUpdatesEntry(
+				KEY_LOCKEDAT,
+				new AttributeValueUpdate().withValue(new AttributeValue()
+						.withN(Long.toString(System.currentTimeMillis(), 10))));
+		req.withReturnValues(ReturnValue.UPDATED_NEW);
+		try {
+			UpdateItemResult res = updateItem(req);
+			long token = longValue(res.getAttributes(), KEY_TOKEN);
+			LOG.info("Acquired fencing token " + token + " for "
+					+ this.instanceName);
+			return token;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks that the fencing token is still current, and records the check
+	 * time.
+	 *
+	 * @param token
+	 *            Token returned by {@link #acquireFence()}
+	 * @return false if another instance has taken over
+	 * @throws JobPersistenceException
+	 */
+	boolean checkFence(long token) throws JobPersistenceException {
+		LOG.trace("checkFence: " + token);
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNameFences);
+		req.withKey(fenceKey());
+		req.addAttributeUpdatesEntry(
+				KEY_LOCKEDAT,
+				new AttributeValueUpdate().withValue(new AttributeValue()
+						.withN(Long.toString(System.currentTimeMillis(), 10))));
+		req.addExpectedEntry(
+				KEY_TOKEN,
+				new ExpectedAttributeValue().withComparisonOperator(
+						ComparisonOperator.EQ).withAttributeValueList(
+						new AttributeValue().withN(Long.toString(token, 10))));
+		try {
+			updateItem(req);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			return false;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	private Map<String, AttributeValue> fenceKey() {
+		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
+		km.put(KEY_KEY, new AttributeValue(this.instanceName));
+		return km;
+	}
+
+	/**
+	 * @return TTL value in epoch seconds for completed items, or null if
+	 *         expiry is disabled
+	 */
+	private Long expiresAt() {
+		if (this.completedRetention <= 0) {
+			return null;
+		}
+		return (System.currentTimeMillis() + this.completedRetention) / 1000L;
+	}
+
+	/**
+	 * Queues a job to be checked for remaining triggers by the misfire
+	 * handler, keeping the check off the firing path. Checks the job at once
+	 * if the misfire handler is not running.
+	 *
+	 * @param jobKey
+	 *            Job key
+	 * @throws JobPersistenceException
+	 */
+	private void deferExpiry(JobKey jobKey) throws JobPersistenceException {
+		if (jobKey == null || expiresAt() == null) {
+			return;
+		}
+		if (this.misfireHandler == null) {
+			expireJobIfOrphaned(jobKey);
+			return;
+		}
+		this.orphanCandidates.add(jobKey);
+	}
+
+	/**
+	 * Checks jobs queued by {@link #deferExpiry(JobKey)}. Jobs that could not
+	 * be checked are queued again.
+	 */
+	private void expireOrphans() {
+		if (this.orphanCandidates.isEmpty()) {
+			return;
+		}
+		List<JobKey> keys = new ArrayList<JobKey>(this.orphanCandidates);
+		this.orphanCandidates.removeAll(keys);
+		for (int i = 0; i < keys.size(); i++) {
+			try {
+				expireJobIfOrphaned(keys.get(i));
+			} catch (JobPersistenceException e) {
+				LOG.error(e.getMessage(), e);
+				this.orphanCandidates.addAll(keys.subList(i, keys.size()));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets TTL on a non-durable job that has no remaining triggers, so it is
+	 * deleted by DynamoDB after the retention period. The job version is read
+	 * before the triggers, with consistent reads, and the TTL is set on
+	 * condition that the version is unchanged, so a trigger stored meanwhile
+	 * (which bumps the job version) keeps the job.
+	 *
+	 * @param jobKey
+	 *            Job key
+	 * @throws JobPersistenceException
+	 */
+	private void expireJobIfOrphaned(JobKey jobKey)
+			throws JobPersistenceException {
+		Long expires = expiresAt();
+		if (jobKey == null || expires == null) {
+			return;
+		}
+		Map<String, AttributeValue> job = readVersioned(this.tableNameJobs,
+				itemKey(jobKey), KEY_DURABLE, KEY_EXPIRES);
+		if (job == null || boolValue(job, KEY_DURABLE)
+				|| job.containsKey(KEY_EXPIRES)) {
+			return;
+		}
+		for (TriggerKey tk : getTriggerKeysForJob(jobKey, true)) {
+			Map<String, AttributeValue> t = readVersioned(
+					this.tableNameTriggers, itemKey(tk), KEY_STATE);
+			if (t != null
+					&& !TriggerState.COMPLETE.name().equals(
+							strValue(t, KEY_STATE))) {
+				return;
+			}
+		}
+		LOG.debug("Expiring orphaned job: " + formatKey(jobKey));
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNameJobs);
+		req.withKey(itemKey(jobKey));
+		bumpVersion(req);
+		req.addExpectedEntry(KEY_VERSION, expectedVersion(job));
+		req.addAttributeUpdatesEntry(KEY_EXPIRES,
+				new AttributeValueUpdate().withAction(AttributeAction.PUT)
+						.withValue(
+								new AttributeValue().withN(Long.toString(
+										expires, 10))));
+		req.addExpectedEntry(KEY_DURABLE, new ExpectedAttributeValue()
+				.withComparisonOperator(ComparisonOperator.EQ)
+				.withAttributeValueList(new AttributeValue().withBOOL(false)));
+		try {
+			updateItem(req);
+		} catch (ConditionalCheckFailedException e) {
+			LOG.debug("Job changed, durable or deleted: " + formatKey(jobKey));
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Clears TTL set by {@link #expireJobIfOrphaned(JobKey)} when a job gets a
+	 * new trigger, and bumps the job version even if no TTL is set, so an
+	 * expiry check running concurrently fails its version condition.
+	 *
+	 * @param jobKey
+	 *            Job key
+	 * @throws JobPersistenceException
+	 */
+	private void unexpireJob(JobKey jobKey) throws JobPersistenceException {
+		if (jobKey == null || this.completedRetention <= 0) {
+			return;
+		}
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNameJobs);
+		req.withKey(itemKey(jobKey));
+		bumpVersion(req);
+		req.addAttributeUpdatesEntry(KEY_EXPIRES,
+				new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+		req.addExpectedEntry(KEY_KEY, new ExpectedAttributeValue(true)
+				.withValue(new AttributeValue(formatKey(jobKey))));
+		try {
+			updateItem(req);
+		} catch (ConditionalCheckFailedException e) {
+			LOG.debug("Job not found: " + formatKey(jobKey));
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Changes a trigger state with a compare-and-set on the item version,
+	 * re-reading and retrying when another writer changed the trigger.
+	 *
+	 * @param key
+	 *            Trigger key
+	 * @param state
+	 *            New state, null to clear it unless the trigger is locked
+	 * @return Previous state, or null if the trigger does not exist
+	 * @throws JobPersistenceException
+	 *             if still conflicting after {@link #MAX_CASRETRIES} retries
+	 */
+	private TriggerState changeState(TriggerKey key, TriggerState state)
+			throws JobPersistenceException {
+		LOG.trace("changeState: trigger: " + formatKey(key) + " state: "
+				+ state);
+		if (this.lookAheadQueue != null && state != TriggerState.NORMAL) {
+			this.lookAheadQueue.remove(key);
+		}
+		if (state != TriggerState.NORMAL) {
+			evictWheel(key, true);
+		}
+		Map<String, AttributeValue> km = itemKey(key);
+		for (int i = 0; i <= MAX_CASRETRIES; i++) {
+			Map<String, AttributeValue> item = readVersioned(
+					this.tableNameTriggers, km, KEY_STATE, KEY_LOCKED, KEY_JOB);
+			if (item == null) {
+				LOG.debug("Trigger not found: " + formatKey(key));
+				return null;
+			}
+			String s = strValue(item, KEY_STATE);
+			TriggerState old = s != null ? TriggerState.valueOf(s) : null;
+			if (old == state) {
+				return old;
+			}
+			if (state == null && boolValue(item, KEY_LOCKED)) {
+				LOG.debug("Trigger locked, state kept: " + formatKey(key));
+				return old;
+			}
+			UpdateItemRequest req = new UpdateItemRequest();
+			req.withTableName(this.tableNameTriggers);
+			req.withKey(km);
+			if (state != null) {
+				req.addAttributeUpdatesEntry(KEY_STATE,
+						new AttributeValueUpdate().withAction(
+								AttributeAction.PUT).withValue(
+								new AttributeValue(state.name())));
+				Long expires = expiresAt();
+				if (state == TriggerState.COMPLETE && expires != null) {
+					req.addAttributeUpdatesEntry(KEY_EXPIRES,
+							new AttributeValueUpdate().withAction(
+									AttributeAction.PUT).withValue(
+									new AttributeValue().withN(Long.toString(
+											expires, 10))));
+				} else {
+					req.addAttributeUpdatesEntry(KEY_EXPIRES,
+							new AttributeValueUpdate()
+									.withAction(AttributeAction.DELETE));
+				}
+			} else {
+				req.addAttributeUpdatesEntry(KEY_STATE,
+						new AttributeValueUpdate()
+								.withAction(AttributeAction.DELETE));
+			}
+			bumpVersion(req);
+			req.addExpectedEntry(KEY_VERSION, expectedVersion(item));
+			try {
+				LOG.trace("  updating key: " + km);
+				updateItem(req);
+				Long expires = expiresAt();
+				if (state == TriggerState.COMPLETE && expires != null) {
+					attr(item, KEY_EXPIRES, expires);
+					expireAdjacency(item, key);
+				} else if (old == TriggerState.COMPLETE) {
+					expireAdjacency(item, key);
+				}
+				return old;
+			} catch (ConditionalCheckFailedException e) {
+				LOG.debug("Trigger changed concurrently, retrying: "
+						+ formatKey(key));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		throw new JobPersistenceException("Trigger changed concurrently: "
+				+ formatKey(key));
+	}
+
+	/**
+	 * Stores a fired trigger and releases its lock with one put, on
+	 * condition that the version is still the one read when the trigger was
+	 * fired. On conflict the trigger is re-read: a trigger rescheduled or
+	 * deleted meanwhile is left as is, otherwise the put is retried and a
+	 * paused state is kept.
+	 *
+	 * @param t
+	 *            Fired trigger
+	 * @param state
+	 *            State after firing
+	 * @param item
+	 *            Trigger item as read when fired
+	 * @param lease
+	 *            true to keep the trigger locked under a timing wheel lease
+	 *            if stored in normal state
+	 * @return State stored, or null if the trigger was left as is
+	 * @throws JobPersistenceException
+	 *             if still conflicting after {@link #MAX_CASRETRIES} retries
+	 */
+	private TriggerState commitFired(OperableTrigger t, TriggerState state,
+			Map<String, AttributeValue> item, boolean lease)
+			throws JobPersistenceException {
+		LOG.trace("commitFired: " + formatKey(t.getKey()) + " state: "
+				+ state);
+		Long next = longValue(item, KEY_NEXT);
+		Map<String, AttributeValue> current = item;
+		for (int i = 0; i <= MAX_CASRETRIES; i++) {
+			TriggerState s = state;
+			if (s == TriggerState.NORMAL
+					&& TriggerState.PAUSED.name().equals(
+							strValue(current, KEY_STATE))) {
+				s = TriggerState.PAUSED;
+			}
+			Map<String, AttributeValue> fired = triggerToItem(t);
+			attr(fired, KEY_STATE, s.name());
+			long version = nextVersion(fired, current);
+			Long expires = expiresAt();
+			if (s == TriggerState.COMPLETE && expires != null) {
+				attr(fired, KEY_EXPIRES, expires);
+			}
+			boolean leased = lease && s == TriggerState.NORMAL;
+			if (leased) {
+				long now = System.currentTimeMillis();
+				attr(fired, KEY_LOCKED, true);
+				attr(fired, KEY_LOCKEDBY, this.instanceId);
+				attr(fired, KEY_LOCKEDAT, now);
+				attr(fired, KEY_LEASE, now + this.timingWheelLease);
+			}
+			PutItemRequest req = new PutItemRequest();
+			req.withTableName(this.tableNameTriggers);
+			req.withItem(fired);
+			req.addExpectedEntry(KEY_VERSION, expectedVersion(current));
+			try {
+				LOG.trace("  putting key: " + formatKey(t.getKey()));
+				putItem(req);
+				if (t.getFireInstanceId() != null) {
+					this.firedVersions.put(t.getFireInstanceId(), version);
+				}
+				if (fired.containsKey(KEY_EXPIRES)) {
+					expireAdjacency(fired, t.getKey());
+				}
+				if (this.lookAheadQueue != null) {
+					this.lookAheadQueue.update(t, leased ? null : s);
+				}
+				return s;
+			} catch (ConditionalCheckFailedException e) {
+				LOG.debug("Trigger changed during firing, retrying: "
+						+ formatKey(t.getKey()));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+			current = readVersioned(this.tableNameTriggers,
+					itemKey(t.getKey()), KEY_STATE, KEY_NEXT);
+			if (current == null) {
+				LOG.error("Trigger deleted during firing: "
+						+ formatKey(t.getKey()));
+				return null;
+			}
+			Long n = longValue(current, KEY_NEXT);
+			if (next == null ? n != null : !next.equals(n)) {
+				LOG.warn("Trigger rescheduled during firing: "
+						+ formatKey(t.getKey()));
+				release(t.getKey());
+				return null;
+			}
+		}
+		throw new JobPersistenceException("Trigger changed concurrently: "
+				+ formatKey(t.getKey()));
+	}
+
+	/**
+	 * @return true if the trigger is an opt-in high frequency simple
+	 *         trigger of a job that can run from a cached job detail
+	 */
+	private boolean isWheelCandidate(OperableTrigger t, JobDetail job) {
+		if (this.wheel == null || !(t instanceof SimpleTrigger)
+				|| job == null) {
+			return false;
+		}
+		long interval = ((SimpleTrigger) t).getRepeatInterval();
+		return interval > 0 && interval <= this.timingWheelMaxInterval
+				&& !job.isConcurrentExectionDisallowed()
+				&& !job.isPersistJobDataAfterExecution()
+				&& permitKeys(job.getKey()).isEmpty();
+	}
+
+	private boolean isWheeled(TriggerKey key) {
+		if (this.wheel == null) {
+			return false;
+		}
+		synchronized (this.wheelTriggers) {
+			return this.wheelTriggers.containsKey(key);
+		}
+	}
+
+	/**
+	 * Starts firing a trigger from the timing wheel. The trigger was just
+	 * stored locked under this instance's lease.
+	 */
+	private void adoptWheel(OperableTrigger t, JobDetail job, Calendar cal) {
+		LOG.debug("Firing trigger from timing wheel: "
+				+ formatKey(t.getKey()));
+		WheelTrigger w = new WheelTrigger();
+		w.trigger = (OperableTrigger) t.clone();
+		w.job = (JobDetail) job.clone();
+		w.calendar = cal;
+		w.leaseUntil = System.currentTimeMillis() + this.timingWheelLease;
+		synchronized (this.wheelTriggers) {
+			WheelTrigger old = this.wheelTriggers.put(t.getKey(), w);
+			if (old != null && old.timeout != null) {
+				this.wheel.cancel(old.timeout);
+			}
+			w.timeout = this.wheel.schedule(t.getKey(), t.getNextFireTime()
+					.getTime());
+		}
+	}
+
+	/**
+	 * Acquires wheel triggers due within the batch window of the earliest
+	 * one, without DynamoDB requests. Triggers whose lease expired are
+	 * dropped, and misfired ones are updated in memory.
+	 *
+	 * @return Acquired triggers, in fire order
+	 */
+	private List<OperableTrigger> acquireWheel(long noLaterThan,
+			long timeWindow) {
+		List<OperableTrigger> acquired = new ArrayList<OperableTrigger>();
+		List<TriggerKey> expired = new ArrayList<TriggerKey>();
+		long now = System.currentTimeMillis();
+		synchronized (this.wheelTriggers) {
+			// Wheel triggers all fire within the maximum interval
+			long until = Math.min(noLaterThan, now
+					+ this.timingWheelMaxInterval)
+					+ timeWindow;
+			for (TriggerKey key : this.wheel.advance(until)) {
+				WheelTrigger w = this.wheelTriggers.get(key);
+				if (w == null) {
+					continue;
+				}
+				w.timeout = null;
+				if (w.leaseUntil < now) {
+					expired.add(key);
+					continue;
+				}
+				OperableTrigger t = w.trigger;
+				if (t.getNextFireTime().getTime() < getMisfireTime()
+						&& t.getMisfireInstruction() != Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY) {
+					this.signaler.notifyTriggerListenersMisfired(
+							(OperableTrigger) t.clone());
+					t.updateAfterMisfire(w.calendar);
+					if (t.getNextFireTime() == null) {
+						expired.add(key);
+						continue;
+					}
+				}
+				w.acquired = true;
+				acquired.add((OperableTrigger) t.clone());
+			}
+		}
+		for (TriggerKey key : expired) {
+			LOG.warn("Timing wheel lease expired: " + formatKey(key));
+			evictWheel(key, true);
+		}
+		Collections.sort(acquired, new Trigger.TriggerTimeComparator());
+		if (!acquired.isEmpty()) {
+			long until = acquired.get(0).getNextFireTime().getTime()
+					+ timeWindow;
+			for (int i = acquired.size() - 1; i > 0; i--) {
+				if (acquired.get(i).getNextFireTime().getTime() > until) {
+					releaseWheel(acquired.remove(i).getKey());
+				}
+			}
+		}
+		return acquired;
+	}
+
+	/**
+	 * Puts an acquired wheel trigger back on the wheel.
+	 *
+	 * @return false if the trigger is not acquired from the wheel
+	 */
+	private boolean releaseWheel(TriggerKey key) {
+		if (this.wheel == null) {
+			return false;
+		}
+		synchronized (this.wheelTriggers) {
+			WheelTrigger w = this.wheelTriggers.get(key);
+			if (w == null || !w.acquired) {
+				return false;
+			}
+			w.acquired = false;
+			w.timeout = this.wheel.schedule(key, w.trigger.getNextFireTime()
+					.getTime());
+			return true;
+		}
+	}
+
+	/**
+	 * Fires an acquired wheel trigger from memory. The last fire stores the
+	 * trigger as complete.
+	 *
+	 * @return Fired bundle, or null if the trigger is not acquired from the
+	 *         wheel
+	 * @throws JobPersistenceException
+	 */
+	private TriggerFiredBundle fireWheel(OperableTrigger t)
+			throws JobPersistenceException {
+		if (this.wheel == null) {
+			return null;
+		}
+		WheelTrigger w;
+		Date prev;
+		JobDetail job;
+		synchronized (this.wheelTriggers) {
+			w = this.wheelTriggers.get(t.getKey());
+			if (w == null || !w.acquired) {
+				return null;
+			}
+			w.acquired = false;
+			t.setFireInstanceId(newFireInstanceId());
+			prev = t.getPreviousFireTime();
+			t.triggered(w.calendar);
+			w.trigger = (OperableTrigger) t.clone();
+			job = (JobDetail) w.job.clone();
+			if (t.getNextFireTime() != null) {
+				w.timeout = this.wheel.schedule(t.getKey(), t
+						.getNextFireTime().getTime());
+			} else {
+				this.wheelTriggers.remove(t.getKey());
+			}
+		}
+		if (t.getNextFireTime() == null) {
+			LOG.trace("Wheel trigger has no next: " + formatKey(t.getKey()));
+			Map<String, AttributeValue> item = retrieveTriggerItem(t.getKey(),
+					true);
+			if (item != null) {
+				commitFired(t, TriggerState.COMPLETE, item, false);
+				deferExpiry(t.getJobKey());
+			}
+		}
+		return new TriggerFiredBundle(job, t, w.calendar, false, new Date(),
+				t.getPreviousFireTime(), prev, t.getNextFireTime());
+	}
+
+	/**
+	 * Stops firing a trigger from the timing wheel.
+	 *
+	 * @param key
+	 *            Trigger key
+	 * @param release
+	 *            true to write its progress and release its lease, false if
+	 *            the caller rewrites or removes the trigger
+	 */
+	private void evictWheel(TriggerKey key, boolean release) {
+		if (this.wheel == null) {
+			return;
+		}
+		WheelTrigger w;
+		synchronized (this.wheelTriggers) {
+			w = this.wheelTriggers.remove(key);
+			if (w == null) {
+				return;
+			}
+			if (w.timeout != null) {
+				this.wheel.cancel(w.timeout);
+			}
+		}
+		LOG.debug("Trigger removed from timing wheel: " + formatKey(key));
+		if (release) {
+			try {
+				updateItem(checkpointRequest(w.trigger, null));
+			} catch (ConditionalCheckFailedException e) {
+				LOG.debug("Timing wheel lease already lost: "
+						+ formatKey(key));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the progress of a wheel trigger, on condition that this
+	 * instance still holds its lease.
+	 *
+	 * @param t
+	 *            Trigger
+	 * @param leaseUntil
+	 *            Renewed lease expiry, or null to release the lease
+	 * @return Update request
+	 */
+	private UpdateItemRequest checkpointRequest(OperableTrigger t,
+			Long leaseUntil) {
+		Map<String, AttributeValue> progress = new HashMap<String, AttributeValue>();
+		attr(progress, KEY_NEXT, t.getNextFireTime());
+		attr(progress, KEY_PREV, t.getPreviousFireTime());
+		if (t instanceof SimpleTrigger) {
+			attr(progress, KEY_TIMES, ((SimpleTrigger) t).getTimesTriggered());
+		}
+		if (leaseUntil != null) {
+			attr(progress, KEY_LOCKEDAT, System.currentTimeMillis());
+			attr(progress, KEY_LEASE, leaseUntil);
+		} else {
+			attr(progress, KEY_LOCKED, false);
+		}
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNameTriggers);
+		req.withKey(itemKey(t.getKey()));
+		for (Map.Entry<String, AttributeValue> e : progress.entrySet()) {
+			req.addAttributeUpdatesEntry(e.getKey(), new AttributeValueUpdate()
+					.withAction(AttributeAction.PUT).withValue(e.getValue()));
+		}
+		if (leaseUntil == null) {
+			for (String k : new String[] { KEY_LOCKEDBY, KEY_LOCKEDAT,
+					KEY_LEASE }) {
+				req.addAttributeUpdatesEntry(k, new AttributeValueUpdate()
+						.withAction(AttributeAction.DELETE));
+			}
+		} else {
+			req.addExpectedEntry(
+					KEY_STATE,
+					new ExpectedAttributeValue().withComparisonOperator(
+							ComparisonOperator.EQ).withAttributeValueList(
+							new AttributeValue(TriggerState.NORMAL.name())));
+		}
+		bumpVersion(req);
 		req.addExpectedEntry(
-				KEY_LOCKED,
+				KEY_LOCKEDBY,
 				new ExpectedAttributeValue().withComparisonOperator(
-						ComparisonOperator.NE).withValue(
-						new AttributeValue().withBOOL(false)));
-		req.withReturnValues(ReturnValue.UPDATED_OLD);
+						ComparisonOperator.EQ).withAttributeValueList(
+						new AttributeValue(this.instanceId)));
+		return req;
+	}
+
+	/**
+	 * Writes the progress of wheel triggers and renews their leases with
+	 * pipelined requests. Triggers paused, removed or taken over elsewhere
+	 * are evicted, and cached jobs and calendars are refreshed.
+	 *
+	 * @throws JobPersistenceException
+	 */
+	private void checkpointWheel() throws JobPersistenceException {
+		List<WheelTrigger> l;
+		List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
+		synchronized (this.wheelTriggers) {
+			l = new ArrayList<WheelTrigger>(this.wheelTriggers.values());
+			for (WheelTrigger w : l) {
+				triggers.add((OperableTrigger) w.trigger.clone());
+			}
+		}
+		if (l.isEmpty()) {
+			return;
+		}
+		LOG.trace("checkpointWheel: triggers: " + l.size());
+		long leaseUntil = System.currentTimeMillis() + this.timingWheelLease;
+		List<Future<UpdateItemResult>> futures = new ArrayList<Future<UpdateItemResult>>();
+		for (OperableTrigger t : triggers) {
+			futures.add(updateItemAsync(checkpointRequest(t, leaseUntil)));
+		}
+		Map<JobKey, JobDetail> jobs = new HashMap<JobKey, JobDetail>();
+		for (int i = 0; i < futures.size(); i++) {
+			OperableTrigger t = triggers.get(i);
+			try {
+				await(futures.get(i));
+			} catch (ConditionalCheckFailedException e) {
+				LOG.warn("Trigger changed elsewhere, leaving timing wheel: "
+						+ formatKey(t.getKey()));
+				evictWheel(t.getKey(), true);
+				continue;
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				continue;
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				continue;
+			}
+			if (!jobs.containsKey(t.getJobKey())) {
+				jobs.put(t.getJobKey(), loadJob(t.getJobKey()));
+			}
+			JobDetail job = jobs.get(t.getJobKey());
+			if (!isWheelCandidate(t, job)) {
+				evictWheel(t.getKey(), true);
+				continue;
+			}
+			Calendar cal = t.getCalendarName() != null ? loadCalendar(t
+					.getCalendarName()) : null;
+			synchronized (this.wheelTriggers) {
+				WheelTrigger w = l.get(i);
+				w.leaseUntil = leaseUntil;
+				w.job = (JobDetail) job.clone();
+				w.calendar = cal;
+			}
+		}
+	}
+
+	/**
+	 * Releases triggers whose timing wheel lease expired because the
+	 * instance firing them stopped renewing it, so they are acquired again.
+	 *
+	 * @throws JobPersistenceException
+	 */
+	private void reclaimLeases() throws JobPersistenceException {
+		long now = System.currentTimeMillis();
+		Condition state = new Condition().withComparisonOperator(
+				ComparisonOperator.EQ).withAttributeValueList(
+				new AttributeValue(TriggerState.NORMAL.name()));
+		Condition next = new Condition().withComparisonOperator(
+				ComparisonOperator.LE).withAttributeValueList(
+				new AttributeValue().withN(Long.toString(now, 10)));
+		Condition locked = new Condition().withComparisonOperator(
+				ComparisonOperator.EQ).withAttributeValueList(
+				new AttributeValue().withBOOL(true));
+		Condition expired = new Condition().withComparisonOperator(
+				ComparisonOperator.LT).withAttributeValueList(
+				new AttributeValue().withN(Long.toString(now, 10)));
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		try {
+			if (this.useStateNextIndex) {
+				QueryRequest req = new QueryRequest();
+				req.withTableName(this.tableNameTriggers);
+				req.withIndexName(INDEX_STATE_NEXT);
+				req.addKeyConditionsEntry(KEY_STATE, state);
+				req.addKeyConditionsEntry(KEY_NEXT, next);
+				req.addQueryFilterEntry(KEY_LOCKED, locked);
+				req.addQueryFilterEntry(KEY_LEASE, expired);
+				items.addAll(queryAll(req));
+			} else {
+				ScanRequest req = scanRequest(this.tableNameTriggers,
+						PREFIX_TRIGGER);
+				req.addScanFilterEntry(KEY_LOCKED, locked);
+				req.addScanFilterEntry(KEY_LEASE, expired);
+				boolean hasMore = true;
+				while (hasMore) {
+					hasMore = false;
+					ScanResult res = this.client.scan(req);
+					items.addAll(res.getItems());
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
+				}
+			}
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+		for (Map<String, AttributeValue> item : items) {
+			TriggerKey key = parseTriggerKey(strValue(item, KEY_KEY));
+			UpdateItemRequest req = unlockRequest(this.tableNameTriggers,
+					itemKey(key));
+			req.addAttributeUpdatesEntry(KEY_LEASE, new AttributeValueUpdate()
+					.withAction(AttributeAction.DELETE));
+			req.addExpectedEntry(KEY_LEASE, new ExpectedAttributeValue()
+					.withComparisonOperator(ComparisonOperator.EQ)
+					.withAttributeValueList(item.get(KEY_LEASE)));
+			try {
+				updateItem(req);
+				LOG.warn("Reclaimed expired timing wheel lease of trigger "
+						+ formatKey(key) + " from "
+						+ strValue(item, KEY_LOCKEDBY));
+			} catch (ConditionalCheckFailedException e) {
+				// renewed meanwhile
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Creates the metrics registry to attach to the client, registers it with
+	 * JMX and loads the sink.
+	 *
+	 * @throws SchedulerConfigException
+	 */
+	private void initMetrics() throws SchedulerConfigException {
+		this.metricsRegistry = new DynamoDBMetrics();
+		if (this.metricsJmx) {
+			try {
+				ObjectName name = new ObjectName(
+						"io.azam.aws.dynamodb.quartz:type=DynamoDBJobStore,name="
+								+ ObjectName.quote(String
+										.valueOf(this.instanceName))
+								+ ",instance="
+								+ ObjectName.quote(this.instanceId));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						this.metricsRegistry, name);
+				this.metricsName = name;
+			} catch (JMException e) {
+				LOG.error("Failed to register metrics MBean: "
+						+ e.getMessage(), e);
+			}
+		}
+		if (this.metricsSink != null && !this.metricsSink.isEmpty()) {
+			try {
+				this.metricsSinkInstance = (DynamoDBMetricsSink) this.loadHelper
+						.loadClass(this.metricsSink).newInstance();
+			} catch (ClassNotFoundException e) {
+				throw new SchedulerConfigException("Metrics sink not found: "
+						+ this.metricsSink, e);
+			} catch (InstantiationException e) {
+				throw new SchedulerConfigException(
+						"Failed to create metrics sink: " + this.metricsSink, e);
+			} catch (IllegalAccessException e) {
+				throw new SchedulerConfigException(
+						"Failed to create metrics sink: " + this.metricsSink, e);
+			} catch (ClassCastException e) {
+				throw new SchedulerConfigException("Not a metrics sink: "
+						+ this.metricsSink, e);
+			}
+		}
+	}
+
+	private void reportMetrics() {
+		try {
+			this.metricsSinkInstance.report(this.metricsRegistry.getMetrics());
+		} catch (RuntimeException e) {
+			LOG.error(e.getMessage(), e);
+		}
+	}
+
+	private void logCapacity() {
+		String summary = this.metricsRegistry.summarizeCapacity();
+		if (summary != null) {
+			LOG.info("Consumed capacity: " + summary);
+		}
+	}
+
+	private void recordAcquired(List<OperableTrigger> acquired) {
+		if (this.metricsRegistry == null) {
+			return;
+		}
+		Long now = System.nanoTime();
+		for (OperableTrigger t : acquired) {
+			this.acquiredAt.put(t.getKey(), now);
+		}
+	}
+
+	/**
+	 * Records fire delay and acquisition lag of a fired trigger.
+	 *
+	 * @param scheduled
+	 *            Scheduled fire time
+	 * @param acquiredNanos
+	 *            Acquisition time, or null if unknown
+	 */
+	private void recordFired(OperableTrigger t, Date scheduled,
+			Long acquiredNanos) {
+		if (this.metricsRegistry == null || scheduled == null) {
+			return;
+		}
+		this.metricsRegistry.recordFired(t.getKey().getGroup(),
+				(System.currentTimeMillis() - scheduled.getTime()) * 1000L,
+				acquiredNanos != null ? (System.nanoTime() - acquiredNanos) / 1000L
+						: -1L);
+	}
+
+	/**
+	 * Enters the context of a store operation, to be closed with
+	 * {@link #exit(CallContext)} in a finally block. Operations called from
+	 * other operations keep the firing path of the caller.
+	 *
+	 * @param operation
+	 *            Store operation, the name of the {@link JobStore} method
+	 * @return Entered context
+	 */
+	private static CallContext enter(String operation) {
+		if (FIRING_OPERATIONS.contains(operation)) {
+			return CallContext.enter(true, operation);
+		}
+		return CallContext.enter(operation);
+	}
+
+	/**
+	 * Exits a store operation context, recording its latency.
+	 */
+	private void exit(CallContext ctx) {
+		ctx.exit();
+		if (this.metricsRegistry != null && ctx.operation != null) {
+			this.metricsRegistry.recordOperation(ctx.operation,
+					(System.nanoTime() - ctx.start) / 1000L);
+		}
+	}
+
+	/**
+	 * @return Permit keys limiting concurrent runs of the job
+	 */
+	private List<String> permitKeys(JobKey jobKey) {
+		List<String> keys = new ArrayList<String>(2);
+		if (this.permitLimits.isEmpty()) {
+			return keys;
+		}
+		if (this.permitLimits.containsKey(PERMIT_GROUP + jobKey.getGroup())) {
+			keys.add(PERMIT_GROUP + jobKey.getGroup());
+		}
+		if (this.permitLimits.containsKey(PERMIT_JOB + formatKey(jobKey))) {
+			keys.add(PERMIT_JOB + formatKey(jobKey));
+		}
+		return keys;
+	}
+
+	private Map<String, AttributeValue> permitKey(String key) {
+		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
+		if (this.singleTable) {
+			km.put(KEY_PK, new AttributeValue(PREFIX_PERMIT));
+			km.put(KEY_SK, new AttributeValue(key));
+		} else {
+			km.put(KEY_KEY, new AttributeValue(key));
+		}
+		return km;
+	}
+
+	/**
+	 * Drops due triggers whose permit pools are exhausted, so they are not
+	 * locked. Counts are read once per acquisition and triggers are counted
+	 * against them in fire order. Permits are only taken when firing.
+	 *
+	 * @param triggers
+	 *            Due triggers, in fire order
+	 * @return Triggers with free permits
+	 * @throws JobPersistenceException
+	 */
+	private List<OperableTrigger> withPermits(List<OperableTrigger> triggers)
+			throws JobPersistenceException {
+		Set<String> keys = new HashSet<String>();
+		for (OperableTrigger t : triggers) {
+			keys.addAll(permitKeys(t.getJobKey()));
+		}
+		if (keys.isEmpty()) {
+			return triggers;
+		}
+		Map<String, Long> used = readPermits(keys);
+		List<OperableTrigger> l = new ArrayList<OperableTrigger>();
+		for (OperableTrigger t : triggers) {
+			List<String> pk = permitKeys(t.getJobKey());
+			boolean free = true;
+			for (String k : pk) {
+				Long n = used.get(k);
+				if (n != null && n >= this.permitLimits.get(k)) {
+					free = false;
+				}
+			}
+			if (free) {
+				for (String k : pk) {
+					Long n = used.get(k);
+					used.put(k, n != null ? n + 1L : 1L);
+				}
+				l.add(t);
+			} else {
+				LOG.debug("  permits exhausted: " + formatKey(t.getKey()));
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Reads permit counts with batch get requests.
+	 *
+	 * @return Permits in use, keyed by permit key
+	 * @throws JobPersistenceException
+	 */
+	private Map<String, Long> readPermits(Set<String> keys)
+			throws JobPersistenceException {
+		Map<String, Long> used = new HashMap<String, Long>();
+		List<Map<String, AttributeValue>> l = new ArrayList<Map<String, AttributeValue>>();
+		for (String k : keys) {
+			l.add(permitKey(k));
+		}
+		Map<String, KeysAndAttributes> reqs = new HashMap<String, KeysAndAttributes>();
+		reqs.put(this.tableNamePermits, new KeysAndAttributes().withKeys(l)
+				.withConsistentRead(consistentRead(ReadKind.ITEM)));
+		try {
+			while (reqs != null && !reqs.isEmpty()) {
+				BatchGetItemResult res = this.client.batchGetItem(reqs);
+				List<Map<String, AttributeValue>> items = res.getResponses()
+						.get(this.tableNamePermits);
+				if (items != null) {
+					for (Map<String, AttributeValue> item : items) {
+						used.put(this.singleTable ? strValue(item, KEY_SK)
+								: strValue(item, KEY_KEY), longValue(item,
+								KEY_COUNT));
+					}
+				}
+				reqs = res.getUnprocessedKeys();
+			}
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+		return used;
+	}
+
+	/**
+	 * Takes one permit from each pool limiting the trigger's job, all or
+	 * none. Held permits are recorded under the fire instance id.
+	 *
+	 * @return false if a pool is exhausted
+	 * @throws JobPersistenceException
+	 */
+	private boolean acquirePermits(OperableTrigger t)
+			throws JobPersistenceException {
+		List<String> keys = permitKeys(t.getJobKey());
+		if (keys.isEmpty()) {
+			return true;
+		}
+		List<String> taken = new ArrayList<String>();
+		boolean acquired = false;
+		try {
+			for (String k : keys) {
+				if (!acquirePermit(k, t.getFireInstanceId())) {
+					return false;
+				}
+				taken.add(k);
+			}
+			acquired = true;
+		} finally {
+			if (!acquired) {
+				for (String x : taken) {
+					try {
+						releasePermit(x, t.getFireInstanceId(), null);
+					} catch (JobPersistenceException e) {
+						// Reclaimed once its lease expires
+						LOG.error(e.getMessage(), e);
+					}
+				}
+			}
+		}
+		this.heldPermits.put(t.getFireInstanceId(), taken);
+		return true;
+	}
+
+	/**
+	 * Returns permits held for a fire instance, journaled while DynamoDB is
+	 * degraded.
+	 */
+	private void releasePermits(OperableTrigger t) {
+		if (t.getFireInstanceId() == null) {
+			return;
+		}
+		List<String> keys = this.heldPermits.remove(t.getFireInstanceId());
+		if (keys == null) {
+			return;
+		}
+		for (String k : keys) {
+			try {
+				complete(new Completion(JOURNAL_PERMIT, k,
+						t.getFireInstanceId()));
+			} catch (JobPersistenceException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Key of the item recording a held permit, its owner and lease.
+	 */
+	private Map<String, AttributeValue> permitHolderKey(String key,
+			String fireInstanceId) {
+		return permitKey(key + "@" + fireInstanceId);
+	}
+
+	/**
+	 * Takes a permit, counting it and putting its holder item in one
+	 * transaction.
+	 *
+	 * @return false if the pool is exhausted
+	 * @throws JobPersistenceException
+	 */
+	private boolean acquirePermit(String key, String fireInstanceId)
+			throws JobPersistenceException {
+		LOG.trace("acquirePermit: " + key + " holder: " + fireInstanceId);
+		Map<String, String> names = new HashMap<String, String>();
+		names.put("#c", KEY_COUNT);
+		Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+		values.put(":one", new AttributeValue().withN("1"));
+		values.put(":k",
+				new AttributeValue().withN(this.permitLimits.get(key).toString()));
+		Map<String, AttributeValue> holder = permitHolderKey(key,
+				fireInstanceId);
+		attr(holder, KEY_PERMIT, key);
+		attr(holder, KEY_INSTANCE, fireInstanceId);
+		attr(holder, KEY_LOCKEDBY, this.instanceId);
+		attr(holder, KEY_LEASE, System.currentTimeMillis() + this.permitLease);
+		List<TransactWriteItem> items = new ArrayList<TransactWriteItem>();
+		items.add(new TransactWriteItem().withUpdate(new Update()
+				.withTableName(this.tableNamePermits)
+				.withKey(permitKey(key))
+				.withUpdateExpression("ADD #c :one")
+				.withConditionExpression("attribute_not_exists(#c) OR #c < :k")
+				.withExpressionAttributeNames(names)
+				.withExpressionAttributeValues(values)));
+		items.add(new TransactWriteItem().withPut(new Put()
+				.withTableName(this.tableNamePermits)
+				.withItem(holder)
+				.withConditionExpression("attribute_not_exists(#i)")
+				.withExpressionAttributeNames(
+						Collections.singletonMap("#i", KEY_INSTANCE))));
+		int failed = transactWrite(items);
+		if (failed == 1) {
+			throw new JobPersistenceException("Permit already held: " + key
+					+ " by " + fireInstanceId);
+		}
+		return failed < 0;
+	}
+
+	/**
+	 * Returns a permit, uncounting it and deleting its holder item in one
+	 * transaction, so a permit is returned at most once.
+	 *
+	 * @param lease
+	 *            Expired lease expected on the holder item when reclaimed,
+	 *            or null
+	 * @return false if the permit was already returned
+	 * @throws JobPersistenceException
+	 */
+	private boolean releasePermit(String key, String fireInstanceId,
+			AttributeValue lease) throws JobPersistenceException {
+		LOG.trace("releasePermit: " + key + " holder: " + fireInstanceId);
+		Map<String, String> names = new HashMap<String, String>();
+		names.put("#c", KEY_COUNT);
+		Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+		values.put(":minus", new AttributeValue().withN("-1"));
+		values.put(":zero", new AttributeValue().withN("0"));
+		Delete delete = new Delete().withTableName(this.tableNamePermits)
+				.withKey(permitHolderKey(key, fireInstanceId));
+		if (lease != null) {
+			delete.withConditionExpression("#l = :l")
+					.withExpressionAttributeNames(
+							Collections.singletonMap("#l", KEY_LEASE))
+					.withExpressionAttributeValues(
+							Collections.singletonMap(":l", lease));
+		} else {
+			delete.withConditionExpression("attribute_exists(#i)")
+					.withExpressionAttributeNames(
+							Collections.singletonMap("#i", KEY_INSTANCE));
+		}
+		List<TransactWriteItem> items = new ArrayList<TransactWriteItem>();
+		items.add(new TransactWriteItem().withUpdate(new Update()
+				.withTableName(this.tableNamePermits)
+				.withKey(permitKey(key)).withUpdateExpression("ADD #c :minus")
+				.withConditionExpression("#c > :zero")
+				.withExpressionAttributeNames(names)
+				.withExpressionAttributeValues(values)));
+		items.add(new TransactWriteItem().withDelete(delete));
+		int failed = transactWrite(items);
+		if (failed == 1) {
+			LOG.debug("Permit already returned: " + key + " holder: "
+					+ fireInstanceId);
+			return false;
+		}
+		if (failed == 0) {
+			// Counter reset while held, only the holder item is left
+			LOG.warn("Permit not counted: " + key + " holder: "
+					+ fireInstanceId);
+			try {
+				deleteItem(new DeleteItemRequest().withTableName(
+						this.tableNamePermits).withKey(
+						permitHolderKey(key, fireInstanceId)));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a permit journaled before permits had holder items.
+	 *
+	 * @param id
+	 *            Idempotency key when replayed from the journal, recorded on
+	 *            the permit item, or null
+	 */
+	private void releaseCountedPermit(String key, String id)
+			throws JobPersistenceException {
+		LOG.trace("releaseCountedPermit: " + key + " id: " + id);
+		Map<String, String> names = new HashMap<String, String>();
+		names.put("#c", KEY_COUNT);
+		Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+		values.put(":minus", new AttributeValue().withN("-1"));
+		values.put(":zero", new AttributeValue().withN("0"));
+		String update = "ADD #c :minus";
+		String condition = "#c > :zero";
+		if (id != null) {
+			names.put("#j", KEY_JOURNAL);
+			values.put(":j", new AttributeValue(id));
+			update += " SET #j = :j";
+			condition += " AND (attribute_not_exists(#j) OR #j <> :j)";
+		}
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNamePermits);
+		req.withKey(permitKey(key));
+		req.withUpdateExpression(update);
+		req.withConditionExpression(condition);
+		req.withExpressionAttributeNames(names);
+		req.withExpressionAttributeValues(values);
 		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			this.client.updateItem(req);
-			return true;
+			updateItem(req);
 		} catch (ConditionalCheckFailedException e) {
-			LOG.error("Trigger already unlocked: " + formatKey(key));
+			LOG.debug("Permit already returned: " + key);
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Renews the leases of permits held by running jobs with pipelined
+	 * requests. Permits whose lease was reclaimed meanwhile are forgotten.
+	 */
+	private void renewPermits() {
+		List<String> ids = new ArrayList<String>(this.heldPermits.keySet());
+		if (ids.isEmpty()) {
+			return;
+		}
+		LOG.trace("renewPermits: holders: " + ids.size());
+		long leaseUntil = System.currentTimeMillis() + this.permitLease;
+		List<String> holders = new ArrayList<String>();
+		List<String> keys = new ArrayList<String>();
+		List<Future<UpdateItemResult>> futures = new ArrayList<Future<UpdateItemResult>>();
+		for (String id : ids) {
+			List<String> held = this.heldPermits.get(id);
+			if (held == null) {
+				continue;
+			}
+			for (String k : held) {
+				UpdateItemRequest req = new UpdateItemRequest();
+				req.withTableName(this.tableNamePermits);
+				req.withKey(permitHolderKey(k, id));
+				req.addAttributeUpdatesEntry(KEY_LEASE,
+						new AttributeValueUpdate().withAction(
+								AttributeAction.PUT).withValue(
+								new AttributeValue().withN(Long.toString(
+										leaseUntil, 10))));
+				req.addExpectedEntry(KEY_INSTANCE, new ExpectedAttributeValue(
+						new AttributeValue(id)));
+				holders.add(id);
+				keys.add(k);
+				futures.add(updateItemAsync(req));
+			}
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				await(futures.get(i));
+			} catch (ConditionalCheckFailedException e) {
+				String id = holders.get(i);
+				List<String> held = this.heldPermits.get(id);
+				if (held != null && held.contains(keys.get(i))) {
+					LOG.warn("Permit lease lost: " + keys.get(i) + " holder: "
+							+ id);
+					List<String> l = new ArrayList<String>(held);
+					l.remove(keys.get(i));
+					this.heldPermits.replace(id, held, l);
+				}
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Returns permits whose lease expired because the instance running their
+	 * job stopped renewing it.
+	 *
+	 * @throws JobPersistenceException
+	 */
+	private void reclaimPermits() throws JobPersistenceException {
+		Condition expired = new Condition().withComparisonOperator(
+				ComparisonOperator.LT).withAttributeValueList(
+				new AttributeValue().withN(Long.toString(
+						System.currentTimeMillis(), 10)));
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		try {
+			if (this.singleTable) {
+				QueryRequest req = queryRequest(PREFIX_PERMIT);
+				req.addQueryFilterEntry(KEY_LEASE, expired);
+				items.addAll(queryAll(req));
+			} else {
+				ScanRequest req = new ScanRequest();
+				req.withTableName(this.tableNamePermits);
+				req.addScanFilterEntry(KEY_LEASE, expired);
+				boolean hasMore = true;
+				while (hasMore) {
+					hasMore = false;
+					ScanResult res = this.client.scan(req);
+					items.addAll(res.getItems());
+					Map<String, AttributeValue> lastKey = res
+							.getLastEvaluatedKey();
+					if (lastKey != null && !lastKey.isEmpty()) {
+						hasMore = true;
+						req.withExclusiveStartKey(lastKey);
+					}
+				}
+			}
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+		for (Map<String, AttributeValue> item : items) {
+			String key = strValue(item, KEY_PERMIT);
+			String id = strValue(item, KEY_INSTANCE);
+			try {
+				if (releasePermit(key, id, item.get(KEY_LEASE))) {
+					LOG.warn("Reclaimed expired permit lease of " + key
+							+ " from " + strValue(item, KEY_LOCKEDBY));
+				}
+			} catch (JobPersistenceException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return Fire instance id unique across nodes and restarts
+	 */
+	private String newFireInstanceId() {
+		return this.instanceId + "-"
+				+ this.fireInstanceCounter.incrementAndGet();
+	}
+
+	/**
+	 * Claims a trigger occurrence before firing it, with a put keyed by the
+	 * trigger and its scheduled fire time that fails if the occurrence was
+	 * already claimed. Claims expire after the dedup retention.
+	 *
+	 * @param t
+	 *            Trigger about to fire, with its fire instance id
+	 * @return false if the occurrence was already claimed
+	 * @throws JobPersistenceException
+	 */
+	private boolean claimFire(OperableTrigger t)
+			throws JobPersistenceException {
+		String scheduled = Long.toString(t.getNextFireTime().getTime(), 10);
+		LOG.trace("claimFire: " + formatKey(t.getKey()) + " at: "
+				+ scheduled);
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		if (this.singleTable) {
+			attr(item, KEY_PK, PREFIX_FIRED + formatKey(t.getKey()));
+			attr(item, KEY_SK, scheduled);
+		} else {
+			attr(item, KEY_KEY, formatKey(t.getKey()) + "@" + scheduled);
+		}
+		attr(item, KEY_INSTANCE, t.getFireInstanceId());
+		attr(item, KEY_LOCKEDBY, this.instanceId);
+		attr(item, KEY_EXPIRES,
+				(System.currentTimeMillis() + this.fireDedupRetention) / 1000L);
+		PutItemRequest req = new PutItemRequest();
+		req.withTableName(this.tableNameFired);
+		req.withItem(item);
+		req.withConditionExpression("attribute_not_exists(#i)");
+		req.withExpressionAttributeNames(Collections.singletonMap("#i",
+				KEY_INSTANCE));
+		try {
+			putItem(req);
 			return true;
+		} catch (ConditionalCheckFailedException e) {
+			return false;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads attributes of an item with its version, for a compare-and-set
+	 * update. The read is always consistent.
+	 *
+	 * @return Item, or null if it does not exist
+	 * @throws JobPersistenceException
+	 */
+	private Map<String, AttributeValue> readVersioned(String table,
+			Map<String, AttributeValue> km, String... attributes)
+			throws JobPersistenceException {
+		List<String> l = new ArrayList<String>(Arrays.asList(attributes));
+		l.add(KEY_VERSION);
+		GetItemRequest req = new GetItemRequest();
+		req.withTableName(table);
+		req.withKey(km);
+		req.withConsistentRead(true);
+		req.withAttributesToGet(l);
+		try {
+			Map<String, AttributeValue> item = this.client.getItem(req)
+					.getItem();
+			return item != null && !item.isEmpty() ? item : null;
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Sets the version of an item put over the current one, continuing its
+	 * count.
+	 *
+	 * @param current
+	 *            Item as read, or null if it does not exist
+	 * @return Version set
+	 */
+	private static long nextVersion(Map<String, AttributeValue> item,
+			Map<String, AttributeValue> current) {
+		Long version = current != null ? longValue(current, KEY_VERSION)
+				: null;
+		long next = version != null ? version + 1L : 1L;
+		attr(item, KEY_VERSION, next);
+		return next;
+	}
+
+	/**
+	 * Puts an item conditional on the version read, so its version counts
+	 * the writes of the item. On conflict the version is re-read and the put
+	 * retried, unless an existing item is not to be replaced.
+	 *
+	 * @param replace
+	 *            true to replace an existing item
+	 * @return false if the item exists and is not to be replaced
+	 * @throws JobPersistenceException
+	 *             if still conflicting after {@link #MAX_CASRETRIES} retries
+	 */
+	private boolean putVersioned(String table,
+			Map<String, AttributeValue> km, Map<String, AttributeValue> item,
+			boolean replace) throws JobPersistenceException {
+		Map<String, AttributeValue> current = replace ? readVersioned(table,
+				km) : null;
+		for (int i = 0; i <= MAX_CASRETRIES; i++) {
+			nextVersion(item, current);
+			PutItemRequest req = new PutItemRequest();
+			req.withTableName(table);
+			req.withItem(item);
+			if (current == null) {
+				req.addExpectedEntry(KEY_KEY, new ExpectedAttributeValue(false));
+			} else {
+				req.addExpectedEntry(KEY_VERSION, expectedVersion(current));
+			}
+			try {
+				LOG.trace("  putting key: " + item.get(KEY_KEY).getS());
+				putItem(req);
+				return true;
+			} catch (ConditionalCheckFailedException e) {
+				if (!replace) {
+					return false;
+				}
+				LOG.debug("Item changed concurrently, retrying: "
+						+ item.get(KEY_KEY).getS());
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+			current = readVersioned(table, km);
+		}
+		throw new JobPersistenceException("Item changed concurrently: "
+				+ item.get(KEY_KEY).getS());
+	}
+
+	private static void bumpVersion(UpdateItemRequest req) {
+		req.addAttributeUpdatesEntry(KEY_VERSION, new AttributeValueUpdate()
+				.withAction(AttributeAction.ADD).withValue(
+						new AttributeValue().withN("1")));
+	}
+
+	/**
+	 * @return Condition that the version is still the one read, or still
+	 *         missing on items written before versions
+	 */
+	private static ExpectedAttributeValue expectedVersion(
+			Map<String, AttributeValue> item) {
+		AttributeValue v = item.get(KEY_VERSION);
+		if (v == null) {
+			return new ExpectedAttributeValue()
+					.withComparisonOperator(ComparisonOperator.NULL);
+		}
+		return new ExpectedAttributeValue().withComparisonOperator(
+				ComparisonOperator.EQ).withAttributeValueList(v);
+	}
+
+	/**
+	 * Updates persisted job data. With the data as stored when the job was
+	 * fired, only changed and removed keys are written, falling back to
+	 * rewriting the whole map when many keys changed or the stored map is
+	 * missing.
+	 *
+	 * @param key
+	 *            Job key
+	 * @param data
+	 *            Job data, null to remove
+	 * @param before
+	 *            Job data as stored, converted by {@link #mapToItem(Map)}, or
+	 *            null if unknown
+	 * @param id
+	 *            Idempotency key of a journaled update, recorded on the job;
+	 *            the update is skipped if already recorded
+	 * @throws JobPersistenceException
+	 */
+	@SuppressWarnings("deprecation")
+	private void updateData(JobKey key, JobDataMap data,
+			Map<String, AttributeValue> before, String id)
+			throws JobPersistenceException {
+		LOG.trace("updateData: job: " + formatKey(key) + " id: " + id);
+		Map<String, AttributeValue> after = null;
+		if (data != null) {
+			data.clearDirtyFlag();
+			data.removeTransientData();
+			after = mapToItem(data.getWrappedMap());
+		}
+		Map<String, String> names = new HashMap<String, String>();
+		Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+		names.put("#d", KEY_DATA);
+		List<String> set = new ArrayList<String>();
+		List<String> remove = new ArrayList<String>();
+		boolean delta = false;
+		if (after != null && before != null && !before.isEmpty()
+				&& !after.isEmpty()) {
+			for (Map.Entry<String, AttributeValue> e : after.entrySet()) {
+				if (!e.getValue().equals(before.get(e.getKey()))) {
+					String n = "#k" + names.size();
+					String v = ":v" + values.size();
+					names.put(n, e.getKey());
+					values.put(v, e.getValue());
+					set.add("#d." + n + " = " + v);
+				}
+			}
+			for (String k : before.keySet()) {
+				if (!after.containsKey(k)) {
+					String n = "#k" + names.size();
+					names.put(n, k);
+					remove.add("#d." + n);
+				}
+			}
+			if (set.isEmpty() && remove.isEmpty() && id == null) {
+				LOG.trace("  job data not changed");
+				return;
+			}
+			delta = set.size() + remove.size() <= MAX_DATADELTA;
+		}
+		if (!delta) {
+			names.keySet().retainAll(Collections.singleton("#d"));
+			values.clear();
+			set.clear();
+			remove.clear();
+			if (after != null && !after.isEmpty()) {
+				values.put(":d", new AttributeValue().withM(after));
+				set.add("#d = :d");
+			} else {
+				remove.add("#d");
+			}
+		}
+		List<String> conditions = new ArrayList<String>();
+		if (delta) {
+			// Nested paths need the stored map
+			conditions.add("attribute_exists(#d)");
+		}
+		if (id != null) {
+			names.put("#j", KEY_JOURNAL);
+			values.put(":j", new AttributeValue(id));
+			set.add("#j = :j");
+			conditions.add("(attribute_not_exists(#j) OR #j <> :j)");
+		}
+		StringBuilder expr = new StringBuilder();
+		if (!set.isEmpty()) {
+			expr.append("SET ").append(join(set, ", "));
+		}
+		if (!remove.isEmpty()) {
+			expr.append(expr.length() > 0 ? " " : "").append("REMOVE ")
+					.append(join(remove, ", "));
+		}
+		names.put("#v", KEY_VERSION);
+		values.put(":one", new AttributeValue().withN("1"));
+		expr.append(" ADD #v :one");
+		Map<String, AttributeValue> km = itemKey(key);
+		UpdateItemRequest req = new UpdateItemRequest();
+		req.withTableName(this.tableNameJobs);
+		req.withKey(km);
+		req.withUpdateExpression(expr.toString());
+		req.withExpressionAttributeNames(names);
+		if (!values.isEmpty()) {
+			req.withExpressionAttributeValues(values);
+		}
+		if (!conditions.isEmpty()) {
+			req.withConditionExpression(join(conditions, " AND "));
+		}
+		LOG.trace("  expression: " + req.getUpdateExpression());
+		try {
+			LOG.trace("  updating key: " + km);
+			updateItem(req);
+		} catch (ConditionalCheckFailedException e) {
+			if (delta) {
+				// Stored map missing, or journaled update already applied
+				updateData(key, data, null, id);
+				return;
+			}
+			if (id != null) {
+				LOG.debug("Journaled update already applied: " + id);
+				return;
+			}
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return Transactional put of an item on condition that it does not
+	 *         exist yet
+	 */
+	private static Put newItemPut(String table,
+			Map<String, AttributeValue> item) {
+		return new Put().withTableName(table).withItem(item)
+				.withConditionExpression("attribute_not_exists(#k)")
+				.withExpressionAttributeNames(
+						Collections.singletonMap("#k", KEY_KEY));
+	}
+
+	/**
+	 * Writes items in one transaction.
+	 *
+	 * @param items
+	 *            Transaction items
+	 * @return Index of the first item whose condition failed, or -1 if
+	 *         written
+	 * @throws JobPersistenceException
+	 */
+	private int transactWrite(List<TransactWriteItem> items)
+			throws JobPersistenceException {
+		LOG.trace("transactWrite: items: " + items.size());
+		Long fence = CallContext.current().fence;
+		if (fence != null) {
+			items = new ArrayList<TransactWriteItem>(items);
+			items.add(this.fencedWrites.check(fence));
+		}
+		try {
+			this.client.transactWriteItems(new TransactWriteItemsRequest()
+					.withTransactItems(items));
+			return -1;
+		} catch (TransactionCanceledException e) {
+			List<CancellationReason> reasons = e.getCancellationReasons();
+			if (fence != null && reasons != null
+					&& reasons.size() == items.size()
+					&& FencedWrites.isConditionFailed(reasons.get(items
+							.size() - 1))) {
+				FencedWrites.FencedOutException x = new FencedWrites.FencedOutException(
+						fence);
+				LOG.error(x.getMessage(), x);
+				throw new JobPersistenceException(x.getMessage(), x);
+			}
+			if (reasons != null) {
+				for (int i = 0; i < reasons.size(); i++) {
+					if ("ConditionalCheckFailed".equals(reasons.get(i)
+							.getCode())) {
+						return i;
+					}
+				}
+			}
+			LOG.error(e.getMessage(), e);
+			throw new JobPersistenceException(e.getMessage(), e);
 		} catch (AmazonServiceException e) {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
@@ -1901,88 +6205,276 @@ public class DynamoDBJobStore implements JobStore {
 		}
 	}
 
-	private TriggerState changeState(TriggerKey key, TriggerState state)
-			throws JobPersistenceException {
-		LOG.trace("changeState: trigger: " + formatKey(key) + " state: "
-				+ state);
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(key)));
-		UpdateItemRequest req = new UpdateItemRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withKey(km);
-		if (state != null) {
-			req.addAttributeUpdatesEntry(KEY_STATE,
-					new AttributeValueUpdate().withAction(AttributeAction.PUT)
-							.withValue(new AttributeValue(state.name())));
-			req.addExpectedEntry(
-					KEY_LOCKED,
-					new ExpectedAttributeValue().withComparisonOperator(
-							ComparisonOperator.NE).withValue(
-							new AttributeValue(state.name())));
-		} else {
-			req.addAttributeUpdatesEntry(KEY_STATE, new AttributeValueUpdate()
-					.withAction(AttributeAction.DELETE));
-			req.addExpectedEntry(KEY_LOCKED, new ExpectedAttributeValue()
-					.withComparisonOperator(ComparisonOperator.NULL));
+	private static String join(List<String> l, String separator) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : l) {
+			if (sb.length() > 0) {
+				sb.append(separator);
+			}
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private void storeJob(JobDetail newJob, boolean replaceExisting,
+			TriggerState state) throws ObjectAlreadyExistsException,
+			JobPersistenceException {
+		LOG.trace("storeJob: " + formatKey(newJob.getKey()) + " replace: "
+				+ replaceExisting + " state: " + state);
+		Map<String, AttributeValue> item = jobToItem(newJob);
+		if (state != null) {
+			attr(item, KEY_STATE, state.name());
+		}
+		LOG.trace("  item: " + item.toString());
+		if (!putVersioned(this.tableNameJobs, itemKey(newJob.getKey()), item,
+				replaceExisting)) {
+			LOG.error("Job already exists: " + formatKey(newJob.getKey()));
+			throw new ObjectAlreadyExistsException(newJob);
+		}
+		registerGroup(PREFIX_JOBGROUP, newJob.getKey().getGroup());
+	}
+
+	private void storeTrigger(OperableTrigger newTrigger,
+			boolean replaceExisting, TriggerState state)
+			throws ObjectAlreadyExistsException, JobPersistenceException {
+		LOG.trace("storeTrigger: " + formatKey(newTrigger.getKey())
+				+ " replace: " + replaceExisting + " state: " + state);
+		if (replaceExisting) {
+			evictWheel(newTrigger.getKey(), false);
+		}
+		Map<String, AttributeValue> item = triggerToItem(newTrigger);
+		if (state != null) {
+			attr(item, KEY_STATE, state.name());
+		}
+		LOG.trace("  item: " + item.toString());
+		if (this.singleTable) {
+			storeTriggerWithAdjacency(newTrigger, replaceExisting, item);
+			registerGroup(PREFIX_TRIGGERGROUP, newTrigger.getKey().getGroup());
+			if (this.lookAheadQueue != null) {
+				this.lookAheadQueue.update(newTrigger, state);
+			}
+			return;
+		}
+		if (!putVersioned(this.tableNameTriggers,
+				itemKey(newTrigger.getKey()), item, replaceExisting)) {
+			LOG.error("Trigger already exists: "
+					+ formatKey(newTrigger.getKey()));
+			throw new ObjectAlreadyExistsException(newTrigger);
+		}
+		registerGroup(PREFIX_TRIGGERGROUP, newTrigger.getKey().getGroup());
+		if (this.lookAheadQueue != null) {
+			this.lookAheadQueue.update(newTrigger, state);
+		}
+	}
+
+	/**
+	 * Creates a job to trigger adjacency item in single table mode.
+	 *
+	 * @param jobKey
+	 *            Job key
+	 * @param triggerKey
+	 *            Trigger key
+	 * @return Adjacency item
+	 */
+	static Map<String, AttributeValue> adjacencyItem(JobKey jobKey,
+			TriggerKey triggerKey) {
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		attr(item, KEY_PK, adjacencyKey(jobKey));
+		attr(item, KEY_SK, formatKey(triggerKey));
+		return item;
+	}
+
+	/**
+	 * Stores a trigger and its job to trigger adjacency item in one
+	 * transaction, so the trigger is never stored without being listed for
+	 * its job. When replacing, the job of the existing trigger is read first
+	 * and the put is conditional on it, so the adjacency item of a previous
+	 * job is deleted in the same transaction.
+	 *
+	 * @param newTrigger
+	 *            Trigger
+	 * @param replaceExisting
+	 *            true to replace an existing trigger
+	 * @param item
+	 *            Trigger item
+	 * @throws ObjectAlreadyExistsException
+	 *             if the trigger exists and is not to be replaced
+	 * @throws JobPersistenceException
+	 *             if still conflicting after {@link #MAX_CASRETRIES} retries
+	 */
+	private void storeTriggerWithAdjacency(OperableTrigger newTrigger,
+			boolean replaceExisting, Map<String, AttributeValue> item)
+			throws ObjectAlreadyExistsException, JobPersistenceException {
+		TriggerKey triggerKey = newTrigger.getKey();
+		JobKey jobKey = newTrigger.getJobKey();
+		for (int i = 0; i <= MAX_CASRETRIES; i++) {
+			JobKey oldJobKey = null;
+			Map<String, AttributeValue> old = null;
+			if (replaceExisting) {
+				old = readVersioned(this.tableNameTriggers,
+						itemKey(triggerKey), KEY_JOB);
+				if (old != null) {
+					oldJobKey = parseJobKey(strValue(old, KEY_JOB));
+				}
+			}
+			nextVersion(item, old);
+			Put put;
+			if (oldJobKey == null) {
+				put = newItemPut(this.tableNameTriggers, item);
+			} else {
+				Map<String, String> names = new HashMap<String, String>();
+				Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+				put = new Put()
+						.withTableName(this.tableNameTriggers)
+						.withItem(item)
+						.withConditionExpression(
+								jobAndVersion(names, values, oldJobKey, old))
+						.withExpressionAttributeNames(names)
+						.withExpressionAttributeValues(values);
+			}
+			List<TransactWriteItem> items = new ArrayList<TransactWriteItem>();
+			items.add(new TransactWriteItem().withPut(put));
+			items.add(new TransactWriteItem().withPut(adjacencyPut(jobKey,
+					triggerKey, item)));
+			if (oldJobKey != null && !oldJobKey.equals(jobKey)) {
+				items.add(new TransactWriteItem().withDelete(new Delete()
+						.withTableName(this.tableName).withKey(
+								adjacencyItem(oldJobKey, triggerKey))));
+			}
+			LOG.trace("  putting key: " + formatKey(triggerKey));
+			if (transactWrite(items) != 0) {
+				return;
+			}
+			if (!replaceExisting) {
+				throw new ObjectAlreadyExistsException(newTrigger);
+			}
+			LOG.debug("Trigger changed concurrently, retrying: "
+					+ formatKey(triggerKey));
+		}
+		throw new JobPersistenceException("Trigger changed concurrently: "
+				+ formatKey(triggerKey));
+	}
+
+	/**
+	 * Puts a trigger over an existing one of the same job, continuing its
+	 * version.
+	 *
+	 * @return false if the trigger does not exist for the job
+	 * @throws JobPersistenceException
+	 *             if still conflicting after {@link #MAX_CASRETRIES} retries
+	 */
+	private boolean replaceVersioned(Map<String, AttributeValue> item,
+			TriggerKey triggerKey, JobKey jobKey)
+			throws JobPersistenceException {
+		for (int i = 0; i <= MAX_CASRETRIES; i++) {
+			Map<String, AttributeValue> old = readVersioned(
+					this.tableNameTriggers, itemKey(triggerKey), KEY_JOB);
+			if (old == null || !formatKey(jobKey).equals(strValue(old, KEY_JOB))) {
+				return false;
+			}
+			nextVersion(item, old);
+			Map<String, String> names = new HashMap<String, String>();
+			Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+			PutItemRequest req = new PutItemRequest();
+			req.withTableName(this.tableNameTriggers);
+			req.withItem(item);
+			req.withConditionExpression(jobAndVersion(names, values, jobKey,
+					old));
+			req.withExpressionAttributeNames(names);
+			req.withExpressionAttributeValues(values);
+			try {
+				LOG.trace("  putting key: " + formatKey(triggerKey));
+				putItem(req);
+				return true;
+			} catch (ConditionalCheckFailedException e) {
+				LOG.debug("Trigger changed concurrently, retrying: "
+						+ formatKey(triggerKey));
+			} catch (AmazonServiceException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			} catch (AmazonClientException e) {
+				LOG.error(e.getMessage(), e);
+				throw new JobPersistenceException(e.getMessage(), e);
+			}
+		}
+		throw new JobPersistenceException("Trigger changed concurrently: "
+				+ formatKey(triggerKey));
+	}
+
+	/**
+	 * @return Condition that the trigger is of the job and its version is
+	 *         still the one read, or still missing on items written before
+	 *         versions
+	 */
+	private static String jobAndVersion(Map<String, String> names,
+			Map<String, AttributeValue> values, JobKey jobKey,
+			Map<String, AttributeValue> item) {
+		names.put("#j", KEY_JOB);
+		names.put("#v", KEY_VERSION);
+		values.put(":j", new AttributeValue(formatKey(jobKey)));
+		AttributeValue v = item.get(KEY_VERSION);
+		if (v == null) {
+			return "#j = :j AND attribute_not_exists(#v)";
 		}
-		req.withReturnValues(ReturnValue.UPDATED_OLD);
-		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			UpdateItemResult res = this.client.updateItem(req);
-			if (res != null && res.getAttributes() != null
-					&& res.getAttributes().containsKey(KEY_STATE)) {
-				String s = strValue(res.getAttributes(), KEY_STATE);
-				return TriggerState.valueOf(s);
-			}
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error("Trigger state is the same: " + formatKey(key)
-					+ " state: " + state);
-			return state;
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+		values.put(":v", v);
+		return "#j = :j AND #v = :v";
+	}
+
+	/**
+	 * @return Transactional put of a job to trigger adjacency item, with the
+	 *         TTL of the trigger item if it has one
+	 */
+	private Put adjacencyPut(JobKey jobKey, TriggerKey triggerKey,
+			Map<String, AttributeValue> triggerItem) {
+		Map<String, AttributeValue> adjacency = adjacencyItem(jobKey,
+				triggerKey);
+		if (triggerItem.containsKey(KEY_EXPIRES)) {
+			adjacency.put(KEY_EXPIRES, triggerItem.get(KEY_EXPIRES));
 		}
-		return null;
+		return new Put().withTableName(this.tableName).withItem(adjacency);
 	}
 
-	@SuppressWarnings("deprecation")
-	private JobDataMap updateData(JobKey key, JobDataMap data)
-			throws JobPersistenceException {
-		LOG.trace("updateData: job: " + formatKey(key));
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(key)));
+	/**
+	 * Sets or clears the TTL of a job to trigger adjacency item in single
+	 * table mode, following the TTL of its trigger, so the item does not
+	 * outlive a trigger deleted by DynamoDB.
+	 *
+	 * @param triggerItem
+	 *            Trigger item as written, with its job
+	 * @param triggerKey
+	 *            Trigger key
+	 * @throws JobPersistenceException
+	 */
+	private void expireAdjacency(Map<String, AttributeValue> triggerItem,
+			TriggerKey triggerKey) throws JobPersistenceException {
+		if (!this.singleTable) {
+			return;
+		}
+		JobKey jobKey = parseJobKey(strValue(triggerItem, KEY_JOB));
+		if (jobKey == null) {
+			return;
+		}
+		Long expires = longValue(triggerItem, KEY_EXPIRES);
 		UpdateItemRequest req = new UpdateItemRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withKey(km);
-		if (data != null) {
-			data.clearDirtyFlag();
-			data.removeTransientData();
-			req.addAttributeUpdatesEntry(
-					KEY_DATA,
+		req.withTableName(this.tableName);
+		req.withKey(adjacencyItem(jobKey, triggerKey));
+		if (expires != null) {
+			req.addAttributeUpdatesEntry(KEY_EXPIRES,
 					new AttributeValueUpdate().withAction(AttributeAction.PUT)
 							.withValue(
-									new AttributeValue().withM(mapToItem(data
-											.getWrappedMap()))));
+									new AttributeValue().withN(Long.toString(
+											expires, 10))));
 		} else {
-			req.addAttributeUpdatesEntry(KEY_DATA, new AttributeValueUpdate()
-					.withAction(AttributeAction.DELETE));
+			req.addAttributeUpdatesEntry(KEY_EXPIRES,
+					new AttributeValueUpdate()
+							.withAction(AttributeAction.DELETE));
 		}
-		LOG.trace("  entry: " + req.getAttributeUpdates());
-		req.withReturnValues(ReturnValue.UPDATED_OLD);
+		req.addExpectedEntry(KEY_SK, new ExpectedAttributeValue(true)
+				.withValue(new AttributeValue(formatKey(triggerKey))));
 		try {
-			LOG.trace("  updating key: " + km.get(KEY_KEY).getS());
-			UpdateItemResult res = this.client.updateItem(req);
-			if (res != null && res.getAttributes() != null
-					&& res.getAttributes().containsKey(KEY_DATA)) {
-				Map<String, Object> m = mapValue(res.getAttributes(), KEY_DATA);
-				return new JobDataMap(m);
-			}
+			updateItem(req);
 		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
+			LOG.debug("Adjacency item not found: " + formatKey(triggerKey));
 		} catch (AmazonServiceException e) {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
@@ -1990,31 +6482,59 @@ public class DynamoDBJobStore implements JobStore {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
 		}
-		return null;
 	}
 
-	private void storeJob(JobDetail newJob, boolean replaceExisting,
-			TriggerState state) throws ObjectAlreadyExistsException,
-			JobPersistenceException {
-		LOG.trace("storeJob: " + formatKey(newJob.getKey()) + " replace: "
-				+ replaceExisting + " state: " + state);
-		Map<String, AttributeValue> item = jobToItem(newJob);
-		if (state != null) {
-			attr(item, KEY_STATE, state.name());
+	private void deleteAdjacency(JobKey jobKey, TriggerKey triggerKey) {
+		if (jobKey == null) {
+			return;
 		}
-		LOG.trace("  item: " + item.toString());
-		PutItemRequest req = new PutItemRequest();
-		req.withTableName(this.tableNameJobs);
-		req.withItem(item);
-		if (!replaceExisting) {
-			req.addExpectedEntry(KEY_KEY, new ExpectedAttributeValue(false));
+		deleteItem(new DeleteItemRequest().withTableName(
+				this.tableName).withKey(adjacencyItem(jobKey, triggerKey)));
+	}
+
+	/**
+	 * Retrieves triggers with batch get requests.
+	 *
+	 * @param keys
+	 *            Trigger keys
+	 * @return Triggers found
+	 * @throws JobPersistenceException
+	 */
+	private List<OperableTrigger> retrieveTriggers(List<TriggerKey> keys)
+			throws JobPersistenceException {
+		List<OperableTrigger> triggers = new ArrayList<OperableTrigger>();
+		Queue<Map<String, AttributeValue>> queue = new LinkedList<Map<String, AttributeValue>>();
+		for (TriggerKey k : keys) {
+			queue.add(itemKey(k));
 		}
 		try {
-			LOG.trace("  putting key: " + item.get(KEY_KEY).getS());
-			this.client.putItem(req);
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-			throw new ObjectAlreadyExistsException(newJob);
+			while (!queue.isEmpty()) {
+				List<Map<String, AttributeValue>> l = new ArrayList<Map<String, AttributeValue>>(
+						DYNAMODB_MAXBATCHGET);
+				for (int i = 0; !queue.isEmpty() && i < DYNAMODB_MAXBATCHGET; i++) {
+					l.add(queue.poll());
+				}
+				Map<String, KeysAndAttributes> reqs = new HashMap<String, KeysAndAttributes>();
+				reqs.put(this.tableNameTriggers,
+						new KeysAndAttributes().withKeys(l).withConsistentRead(
+								consistentRead(ReadKind.ITEM)));
+				BatchGetItemResult res = this.client.batchGetItem(reqs);
+				List<Map<String, AttributeValue>> items = res.getResponses()
+						.get(this.tableNameTriggers);
+				if (items != null) {
+					for (Map<String, AttributeValue> item : items) {
+						try {
+							triggers.add(itemToTrigger(item));
+						} catch (ClassNotFoundException e) {
+							LOG.error(e.getMessage(), e);
+						}
+					}
+				}
+				Map<String, KeysAndAttributes> u = res.getUnprocessedKeys();
+				if (u != null && u.containsKey(this.tableNameTriggers)) {
+					queue.addAll(u.get(this.tableNameTriggers).getKeys());
+				}
+			}
 		} catch (AmazonServiceException e) {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
@@ -2022,62 +6542,49 @@ public class DynamoDBJobStore implements JobStore {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
 		}
+		return triggers;
 	}
 
-	private void storeTrigger(OperableTrigger newTrigger,
-			boolean replaceExisting, TriggerState state)
-			throws ObjectAlreadyExistsException, JobPersistenceException {
-		LOG.trace("storeTrigger: " + formatKey(newTrigger.getKey())
-				+ " replace: " + replaceExisting + " state: " + state);
-		Map<String, AttributeValue> item = triggerToItem(newTrigger);
-		if (state != null) {
-			attr(item, KEY_STATE, state.name());
-		}
-		LOG.trace("  item: " + item.toString());
-		PutItemRequest req = new PutItemRequest();
-		req.withTableName(this.tableNameTriggers);
-		req.withItem(item);
-		if (!replaceExisting) {
-			req.addExpectedEntry(KEY_KEY, new ExpectedAttributeValue(false));
+	private OperableTrigger retrieveTrigger(TriggerKey triggerKey,
+			boolean onlyMine) throws JobPersistenceException {
+		Map<String, AttributeValue> item = retrieveTriggerItem(triggerKey,
+				onlyMine);
+		if (item == null) {
+			return null;
 		}
 		try {
-			LOG.trace("  putting key: " + item.get(KEY_KEY).getS());
-			this.client.putItem(req);
-		} catch (ConditionalCheckFailedException e) {
-			LOG.error(e.getMessage(), e);
-			throw new ObjectAlreadyExistsException(newTrigger);
-		} catch (AmazonServiceException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (AmazonClientException e) {
+			return itemToTrigger(item);
+		} catch (ClassNotFoundException e) {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
 		}
 	}
 
-	private OperableTrigger retrieveTrigger(TriggerKey triggerKey,
-			boolean onlyMine) throws JobPersistenceException {
+	private Map<String, AttributeValue> retrieveTriggerItem(
+			TriggerKey triggerKey, boolean onlyMine)
+			throws JobPersistenceException {
 		LOG.trace("retrieveTrigger: " + formatKey(triggerKey) + " onlyMine: "
 				+ onlyMine);
-		Map<String, AttributeValue> km = new HashMap<String, AttributeValue>();
-		km.put(KEY_KEY, new AttributeValue(formatKey(triggerKey)));
+		Map<String, AttributeValue> km = itemKey(triggerKey);
 		GetItemRequest req = new GetItemRequest();
+		req.withConsistentRead(consistentRead(onlyMine ? ReadKind.LOCK
+				: ReadKind.ITEM));
 		req.withTableName(this.tableNameTriggers);
 		req.withKey(km);
 		try {
-			GetItemResult res = this.client.getItem(req);
+			GetItemResult res = getItem(req);
 			Map<String, AttributeValue> item = res.getItem();
 			if (item != null && !item.isEmpty()) {
 				if (onlyMine) {
 					if (boolValue(item, KEY_LOCKED)
 							&& this.instanceId.equals(strValue(item,
 									KEY_LOCKEDBY))) {
-						return itemToTrigger(item);
+						return item;
 					} else {
 						return null;
 					}
 				} else {
-					return itemToTrigger(item);
+					return item;
 				}
 			}
 		} catch (AmazonServiceException e) {
@@ -2086,18 +6593,24 @@ public class DynamoDBJobStore implements JobStore {
 		} catch (AmazonClientException e) {
 			LOG.error(e.getMessage(), e);
 			throw new JobPersistenceException(e.getMessage(), e);
-		} catch (ClassNotFoundException e) {
-			LOG.error(e.getMessage(), e);
-			throw new JobPersistenceException(e.getMessage(), e);
 		}
 		return null;
 	}
 
 	private List<TriggerKey> getTriggerKeysForJob(JobKey jobKey)
 			throws JobPersistenceException {
+		return getTriggerKeysForJob(jobKey, consistentRead(ReadKind.LIST));
+	}
+
+	/**
+	 * @param consistent
+	 *            true for strongly consistent reads
+	 */
+	private List<TriggerKey> getTriggerKeysForJob(JobKey jobKey,
+			boolean consistent) throws JobPersistenceException {
 		LOG.trace("getTriggersForJob");
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
+		ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
+		req.withConsistentRead(consistent);
 		req.withAttributesToGet(KEY_KEY, KEY_JOB);
 		req.addScanFilterEntry(
 				KEY_JOB,
@@ -2105,6 +6618,15 @@ public class DynamoDBJobStore implements JobStore {
 						.withAttributeValueList(
 								new AttributeValue(formatKey(jobKey))));
 		try {
+			if (this.singleTable) {
+				List<TriggerKey> triggers = new ArrayList<TriggerKey>();
+				for (Map<String, AttributeValue> item : queryAll(queryRequest(
+						adjacencyKey(jobKey)).withAttributesToGet(KEY_SK)
+						.withConsistentRead(consistent))) {
+					triggers.add(parseTriggerKey(strValue(item, KEY_SK)));
+				}
+				return triggers;
+			}
 			boolean hasMore = true;
 			ScanResult res = null;
 			List<TriggerKey> triggers = new ArrayList<TriggerKey>();
@@ -2133,12 +6655,28 @@ public class DynamoDBJobStore implements JobStore {
 	private List<OperableTrigger> getTriggersForCalendar(String name)
 			throws JobPersistenceException {
 		LOG.trace("getTriggersForCalendar: " + name);
-		ScanRequest req = new ScanRequest();
-		req.withTableName(this.tableNameTriggers);
+		ScanRequest req = scanRequest(this.tableNameTriggers, PREFIX_TRIGGER);
 		req.addScanFilterEntry(KEY_CALENDAR, new Condition()
 				.withComparisonOperator(ComparisonOperator.EQ)
 				.withAttributeValueList(new AttributeValue(name)));
 		try {
+			if (this.singleTable) {
+				List<OperableTrigger> tl = new ArrayList<OperableTrigger>();
+				QueryRequest q = new QueryRequest();
+				q.withTableName(this.tableName);
+				q.withIndexName(INDEX_CALENDAR);
+				q.addKeyConditionsEntry(KEY_CALENDAR, new Condition()
+						.withComparisonOperator(ComparisonOperator.EQ)
+						.withAttributeValueList(new AttributeValue(name)));
+				for (Map<String, AttributeValue> item : queryAll(q)) {
+					try {
+						tl.add(itemToTrigger(item));
+					} catch (ClassNotFoundException e) {
+						LOG.error(e.getMessage(), e);
+					}
+				}
+				return tl;
+			}
 			boolean hasMore = true;
 			ScanResult res = null;
 			List<OperableTrigger> tl = new ArrayList<OperableTrigger>();
@@ -2175,6 +6713,9 @@ public class DynamoDBJobStore implements JobStore {
 	private Map<String, AttributeValue> jobToItem(JobDetail j) {
 		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
 		attr(item, KEY_KEY, formatKey(j.getKey()));
+		if (this.singleTable) {
+			item.putAll(itemKey(j.getKey()));
+		}
 		attr(item, KEY_GROUP, j.getKey().getGroup());
 		attr(item, KEY_NAME, j.getKey().getName());
 		attr(item, KEY_CLASS, j.getJobClass().getName());
@@ -2182,6 +6723,8 @@ public class DynamoDBJobStore implements JobStore {
 		attr(item, KEY_DURABLE, j.isDurable());
 		attr(item, KEY_CONCURRENT, !j.isConcurrentExectionDisallowed());
 		attr(item, KEY_PERSIST, j.isPersistJobDataAfterExecution());
+		// First version, puts over a stored item continue its version
+		attr(item, KEY_VERSION, 1L);
 		if (j.getJobDataMap() != null) {
 			j.getJobDataMap().clearDirtyFlag();
 			j.getJobDataMap().removeTransientData();
@@ -2193,6 +6736,9 @@ public class DynamoDBJobStore implements JobStore {
 	private Map<String, AttributeValue> triggerToItem(Trigger t) {
 		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
 		attr(item, KEY_KEY, formatKey(t.getKey()));
+		if (this.singleTable) {
+			item.putAll(itemKey(t.getKey()));
+		}
 		attr(item, KEY_GROUP, t.getKey().getGroup());
 		attr(item, KEY_NAME, t.getKey().getName());
 		attr(item, KEY_JOB, formatKey(t.getJobKey()));
@@ -2207,6 +6753,12 @@ public class DynamoDBJobStore implements JobStore {
 		attr(item, KEY_END, t.getEndTime());
 		attr(item, KEY_FINAL, t.getFinalFireTime());
 		attr(item, KEY_DATA, t.getJobDataMap());
+		if (t instanceof OperableTrigger) {
+			attr(item, KEY_INSTANCE,
+					((OperableTrigger) t).getFireInstanceId());
+		}
+		// First version, puts over a stored item continue its version
+		attr(item, KEY_VERSION, 1L);
 		// Trigger specific
 		if (t instanceof SimpleTrigger) {
 			attr(item, KEY_TYPE, TRIGGERTYPE_SIMPLE);
@@ -2235,7 +6787,7 @@ public class DynamoDBJobStore implements JobStore {
 		return item;
 	}
 
-	private synchronized void clearTable(String name, String... keys) {
+	private void clearTable(String name, String... keys) {
 		LOG.trace("clearTable: " + name);
 		List<Map<String, AttributeValue>> allKeys = new ArrayList<Map<String, AttributeValue>>();
 		ScanRequest req = new ScanRequest();
@@ -2262,7 +6814,7 @@ public class DynamoDBJobStore implements JobStore {
 		deleteItems(name, allKeys);
 	}
 
-	private synchronized void deleteItems(String name,
+	private void deleteItems(String name,
 			List<Map<String, AttributeValue>> keys) {
 		Queue<Map<String, AttributeValue>> queue = new LinkedList<Map<String, AttributeValue>>(
 				keys);
@@ -2273,7 +6825,7 @@ public class DynamoDBJobStore implements JobStore {
 			req.withTableName(name);
 			req.withKey(k);
 			try {
-				this.client.deleteItem(req);
+				deleteItem(req);
 			} catch (AmazonServiceException e) {
 				LOG.error(e.getMessage(), e);
 			} catch (AmazonClientException e) {
@@ -2283,7 +6835,7 @@ public class DynamoDBJobStore implements JobStore {
 	}
 
 	@SuppressWarnings("unused")
-	private synchronized void batchDeleteItems(String name,
+	private void batchDeleteItems(String name,
 			List<Map<String, AttributeValue>> keys) {
 		Queue<Map<String, AttributeValue>> queue = new LinkedList<Map<String, AttributeValue>>(
 				keys);
@@ -2387,7 +6939,7 @@ public class DynamoDBJobStore implements JobStore {
 				}
 				Long i = longValue(item, KEY_INTERVAL);
 				if (i != null) {
-					((SimpleTriggerImpl) t).setRepeatInterval(c);
+					((SimpleTriggerImpl) t).setRepeatInterval(i);
 				}
 				Integer x = intValue(item, KEY_TIMES);
 				if (x != null) {
@@ -2646,4 +7198,273 @@ public class DynamoDBJobStore implements JobStore {
 		}
 		return sb.toString();
 	}
+
+	/**
+	 * Operation classes with configurable read consistency.
+	 */
+	private enum ReadKind {
+		/** Lock and ownership checks */
+		LOCK,
+		/** Point reads, treated as LOCK on the trigger firing path */
+		ITEM,
+		/** Listings, counts and group scans */
+		LIST
+	}
+
+	private static final class MisfireResult {
+		private final int processed;
+		private final boolean hasMore;
+		private final long earliestNewTime;
+
+		private MisfireResult(int processed, boolean hasMore,
+				long earliestNewTime) {
+			this.processed = processed;
+			this.hasMore = hasMore;
+			this.earliestNewTime = earliestNewTime;
+		}
+	}
+
+	/**
+	 * Replays journaled completion mutations, until the journal is drained
+	 * or DynamoDB is still degraded, every replay interval.
+	 */
+	private class JournalReplayer extends Thread {
+		private volatile boolean shutdown = false;
+
+		JournalReplayer() {
+			setName("DynamoDBJobStore-" + instanceId + "-JournalReplayer");
+			setDaemon(makeThreadsDaemons);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			CompletionJournal.Applier applier = new CompletionJournal.Applier() {
+				@Override
+				public void apply(String id, String op, String[] args)
+						throws JobPersistenceException {
+					try {
+						applyCompletion(id, op, args);
+					} catch (JobPersistenceException e) {
+						if (isDegraded(e)) {
+							throw e;
+						}
+						LOG.error("Dropping journaled " + op + ": "
+								+ e.getMessage(), e);
+					}
+				}
+			};
+			while (!this.shutdown) {
+				if (!journal.isEmpty()) {
+					CallContext ctx = CallContext.enter(true);
+					try {
+						int n = journal.replay(applier);
+						if (n > 0) {
+							LOG.info("Replayed " + n
+									+ " journaled completion mutations");
+							signaler.signalSchedulingChange(0L);
+						}
+					} finally {
+						ctx.exit();
+					}
+				}
+				try {
+					Thread.sleep(journalReplayInterval);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Trigger fired from the timing wheel while this instance holds its
+	 * lease, guarded by wheelTriggers.
+	 */
+	private static final class WheelTrigger {
+		private OperableTrigger trigger;
+		private JobDetail job;
+		private Calendar calendar;
+		private TimingWheel.Timeout<TriggerKey> timeout;
+		private boolean acquired = false;
+		private long leaseUntil;
+	}
+
+	/**
+	 * Checkpoints timing wheel triggers and reclaims expired leases, every
+	 * checkpoint interval.
+	 */
+	private class WheelCheckpointer extends Thread {
+		private volatile boolean shutdown = false;
+
+		WheelCheckpointer() {
+			setName("DynamoDBJobStore-" + instanceId + "-WheelCheckpointer");
+			setDaemon(makeThreadsDaemons);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (!this.shutdown) {
+				try {
+					Thread.sleep(timingWheelCheckpoint);
+				} catch (InterruptedException e) {
+				}
+				if (this.shutdown) {
+					break;
+				}
+				try {
+					checkpointWheel();
+					reclaimLeases();
+				} catch (JobPersistenceException e) {
+					LOG.error(e.getMessage(), e);
+				} catch (RuntimeException e) {
+					LOG.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renews leases of held concurrency permits and returns expired ones,
+	 * three times per lease.
+	 */
+	private class PermitKeeper extends Thread {
+		private volatile boolean shutdown = false;
+
+		PermitKeeper() {
+			setName("DynamoDBJobStore-" + instanceId + "-PermitKeeper");
+			setDaemon(makeThreadsDaemons);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (!this.shutdown) {
+				try {
+					Thread.sleep(Math.max(1L, permitLease / 3L));
+				} catch (InterruptedException e) {
+				}
+				if (this.shutdown) {
+					break;
+				}
+				try {
+					renewPermits();
+					reclaimPermits();
+				} catch (JobPersistenceException e) {
+					LOG.error(e.getMessage(), e);
+				} catch (RuntimeException e) {
+					LOG.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Background thread reporting metrics to the sink and logging consumed
+	 * capacity summaries.
+	 */
+	private class MetricsReporter extends Thread {
+		private volatile boolean shutdown = false;
+
+		MetricsReporter() {
+			setName("DynamoDBJobStore-" + instanceId + "-MetricsReporter");
+			setDaemon(makeThreadsDaemons);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			long nextReport = System.currentTimeMillis() + metricsSinkInterval;
+			long nextLog = System.currentTimeMillis() + metricsLogInterval;
+			while (!this.shutdown) {
+				long now = System.currentTimeMillis();
+				long wait = Long.MAX_VALUE;
+				if (metricsSinkInstance != null) {
+					wait = Math.min(wait, nextReport - now);
+				}
+				if (metricsLogInterval > 0) {
+					wait = Math.min(wait, nextLog - now);
+				}
+				try {
+					Thread.sleep(Math.max(1L, wait));
+				} catch (InterruptedException e) {
+				}
+				if (this.shutdown) {
+					break;
+				}
+				now = System.currentTimeMillis();
+				if (metricsSinkInstance != null && now >= nextReport) {
+					reportMetrics();
+					nextReport = now + metricsSinkInterval;
+				}
+				if (metricsLogInterval > 0 && now >= nextLog) {
+					logCapacity();
+					nextLog = now + metricsLogInterval;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Background thread handling misfired triggers in batches, based on
+	 * {@link org.quartz.impl.jdbcjobstore.JobStoreSupport}
+	 */
+	private class MisfireHandler extends Thread {
+		private volatile boolean shutdown = false;
+
+		MisfireHandler() {
+			setName("DynamoDBJobStore-" + instanceId + "-MisfireHandler");
+			setDaemon(makeThreadsDaemons);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (!this.shutdown) {
+				long start = System.currentTimeMillis();
+				expireOrphans();
+				MisfireResult res = null;
+				try {
+					res = recoverMisfiredTriggers();
+				} catch (JobPersistenceException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				if (res != null && res.processed > 0) {
+					signaler.signalSchedulingChange(res.earliestNewTime);
+				}
+				if (res != null && res.hasMore && res.processed > 0) {
+					continue;
+				}
+				long wait = misfireThreshold
+						- (System.currentTimeMillis() - start);
+				if (wait < 50L) {
+					wait = 50L;
+				}
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
 }
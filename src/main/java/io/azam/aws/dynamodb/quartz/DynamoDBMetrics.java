@@ -0,0 +1,615 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.Capacity;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+
+/**
+ * Metrics of {@link DynamoDBJobStore} operations and of the DynamoDB
+ * requests they issue, collected by a request handler attached to the
+ * client.
+ * <p>
+ * Each store operation and each DynamoDB request type has a latency
+ * histogram in microseconds and counters of requests, errors, retries,
+ * throttled attempts, conditional check failures, items scanned and
+ * returned, and bytes read and written. Requests are counted both under
+ * their type and under the store operation that issued them (see
+ * {@link CallContext}), so the DynamoDB cost of each Quartz operation can be
+ * compared. Requests issued outside store operations, such as by the misfire
+ * handler, are counted under {@link #OPERATION_BACKGROUND}.
+ * <p>
+ * Fired triggers are also recorded per trigger group: the fire delay, from
+ * scheduled fire time to firing, and the acquisition lag, from acquisition
+ * to firing. Both are in microseconds, halved every
+ * {@link #DECAY_SAMPLES} samples so recent values dominate.
+ * <p>
+ * Requests ask for {@code ReturnConsumedCapacity=INDEXES}, and consumed
+ * read and write capacity units are summed by store operation, table and
+ * index, keyed {@code <operation>/<table>} for the table itself and
+ * {@code <operation>/<table>/<index>} for its indexes.
+ */
+public class DynamoDBMetrics extends RequestHandler2 implements
+		DynamoDBMetricsMXBean {
+	public static final String OPERATION_BACKGROUND = "background";
+	public static final long DECAY_SAMPLES = 10000L;
+
+	private static final HandlerContextKey<Call> CALL = new HandlerContextKey<Call>(
+			DynamoDBMetrics.class.getName());
+
+	// Instance variables
+	private final ConcurrentMap<String, Stats> operations = new ConcurrentHashMap<String, Stats>();
+	private final ConcurrentMap<String, Stats> requests = new ConcurrentHashMap<String, Stats>();
+	private final ConcurrentMap<String, Histogram> fireDelays = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Histogram> acquisitionLags = new ConcurrentHashMap<String, Histogram>();
+	// Consumed capacity in thousandths of a unit
+	private final ConcurrentMap<String, AtomicLong> readCapacity = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> writeCapacity = new ConcurrentHashMap<String, AtomicLong>();
+	// Capacity totals per operation at the last summary, guarded by this
+	private Map<String, Long> summarized = new HashMap<String, Long>();
+
+	/**
+	 * Records a completed store operation.
+	 *
+	 * @param operation
+	 *            Store operation
+	 * @param micros
+	 *            Latency in microseconds
+	 */
+	void recordOperation(String operation, long micros) {
+		Stats s = stats(this.operations, operation);
+		s.count.incrementAndGet();
+		s.latency.record(micros);
+	}
+
+	/**
+	 * Records a fired trigger.
+	 *
+	 * @param group
+	 *            Trigger group
+	 * @param delay
+	 *            Microseconds from scheduled fire time to firing
+	 * @param lag
+	 *            Microseconds from acquisition to firing, negative if unknown
+	 */
+	void recordFired(String group, long delay, long lag) {
+		record(histogram(this.fireDelays, group), delay);
+		if (lag >= 0) {
+			record(histogram(this.acquisitionLags, group), lag);
+		}
+	}
+
+	/**
+	 * @return Fire delay histograms in microseconds, keyed by trigger group
+	 */
+	public Map<String, Histogram> getFireDelays() {
+		return Collections
+				.unmodifiableMap(new TreeMap<String, Histogram>(this.fireDelays));
+	}
+
+	/**
+	 * @return Acquisition lag histograms in microseconds, keyed by trigger
+	 *         group
+	 */
+	public Map<String, Histogram> getAcquisitionLags() {
+		return Collections.unmodifiableMap(new TreeMap<String, Histogram>(
+				this.acquisitionLags));
+	}
+
+	@Override
+	public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest req) {
+		if (req.getHandlerContext(CallContext.KEY) == null) {
+			req.addHandlerContext(CallContext.KEY, CallContext.current());
+		}
+		CallContext c = req.getHandlerContext(CallContext.KEY);
+		String type = req.getClass().getSimpleName();
+		if (type.endsWith("Request")) {
+			type = type.substring(0, type.length() - "Request".length());
+		}
+		req.addHandlerContext(CALL, new Call(type,
+				c != null && c.operation != null ? c.operation
+						: OPERATION_BACKGROUND));
+		returnIndexCapacity(req);
+		return req;
+	}
+
+	@Override
+	public void beforeAttempt(HandlerBeforeAttemptContext ctx) {
+		Call call = ctx.getRequest().getOriginalRequest()
+				.getHandlerContext(CALL);
+		if (call != null) {
+			call.attempts.incrementAndGet();
+			Long length = header(ctx.getRequest().getHeaders(),
+					"Content-Length");
+			if (length != null) {
+				call.bytesWritten.addAndGet(length);
+			}
+		}
+	}
+
+	@Override
+	public void afterAttempt(HandlerAfterAttemptContext ctx) {
+		Call call = ctx.getRequest().getOriginalRequest()
+				.getHandlerContext(CALL);
+		if (call != null && isThrottle(ctx.getException())) {
+			call.throttles.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void afterResponse(Request<?> request, Response<?> response) {
+		Call call = request.getOriginalRequest().getHandlerContext(CALL);
+		if (call == null) {
+			return;
+		}
+		long scanned = 0L;
+		long returned = 0L;
+		Object result = response != null ? response.getAwsResponse() : null;
+		if (result instanceof QueryResult) {
+			QueryResult r = (QueryResult) result;
+			scanned = value(r.getScannedCount());
+			returned = value(r.getCount());
+		} else if (result instanceof ScanResult) {
+			ScanResult r = (ScanResult) result;
+			scanned = value(r.getScannedCount());
+			returned = value(r.getCount());
+		} else if (result instanceof GetItemResult) {
+			returned = ((GetItemResult) result).getItem() != null ? 1L : 0L;
+			scanned = returned;
+		} else if (result instanceof BatchGetItemResult) {
+			for (List<Map<String, AttributeValue>> l : ((BatchGetItemResult) result)
+					.getResponses().values()) {
+				returned += l.size();
+			}
+			scanned = returned;
+		}
+		if (result != null) {
+			boolean write = DynamoDBRateLimiter.isWrite(request
+					.getOriginalRequest());
+			for (ConsumedCapacity cc : DynamoDBRateLimiter.consumed(result)) {
+				recordCapacity(call.operation, cc, write);
+			}
+		}
+		List<String> lengths = response != null
+				&& response.getHttpResponse() != null ? response
+				.getHttpResponse().getHeaderValues("Content-Length") : null;
+		Long bytesRead = lengths != null && !lengths.isEmpty() ? length(lengths
+				.get(0)) : null;
+		finish(call, false, false, scanned, returned,
+				bytesRead != null ? bytesRead : 0L);
+	}
+
+	@Override
+	public void afterError(Request<?> request, Response<?> response,
+			Exception e) {
+		Call call = request.getOriginalRequest().getHandlerContext(CALL);
+		if (call == null) {
+			return;
+		}
+		finish(call, true, isConditionalFailure(e), 0L, 0L, 0L);
+	}
+
+	private void finish(Call call, boolean error, boolean conditional,
+			long scanned, long returned, long bytesRead) {
+		long micros = (System.nanoTime() - call.start) / 1000L;
+		Stats r = stats(this.requests, call.type);
+		r.count.incrementAndGet();
+		r.latency.record(micros);
+		Stats[] all = { r, stats(this.operations, call.operation) };
+		for (Stats s : all) {
+			s.requests.incrementAndGet();
+			if (error) {
+				s.errors.incrementAndGet();
+			}
+			if (conditional) {
+				s.conditionalFailures.incrementAndGet();
+			}
+			s.retries.addAndGet(Math.max(0, call.attempts.get() - 1));
+			s.throttles.addAndGet(call.throttles.get());
+			s.scanned.addAndGet(scanned);
+			s.returned.addAndGet(returned);
+			s.bytesRead.addAndGet(bytesRead);
+			s.bytesWritten.addAndGet(call.bytesWritten.get());
+		}
+	}
+
+	/**
+	 * @return Metrics named {@code operation.<operation>.<metric>},
+	 *         {@code request.<type>.<metric>},
+	 *         {@code fireDelay.<group>.<metric>} and
+	 *         {@code acquisitionLag.<group>.<metric>}, with latencies in
+	 *         microseconds
+	 */
+	@Override
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Map.Entry<String, Stats> e : this.operations.entrySet()) {
+			e.getValue().report("operation." + e.getKey() + ".", m);
+		}
+		for (Map.Entry<String, Stats> e : this.requests.entrySet()) {
+			e.getValue().report("request." + e.getKey() + ".", m);
+		}
+		for (Map.Entry<String, Histogram> e : this.fireDelays.entrySet()) {
+			report(e.getValue(), "fireDelay." + e.getKey() + ".", m);
+		}
+		for (Map.Entry<String, Histogram> e : this.acquisitionLags.entrySet()) {
+			report(e.getValue(), "acquisitionLag." + e.getKey() + ".", m);
+		}
+		return m;
+	}
+
+	/**
+	 * @return Consumed read capacity units keyed by
+	 *         {@code <operation>/<table>[/<index>]}
+	 */
+	@Override
+	public Map<String, Double> getConsumedReadCapacity() {
+		return units(this.readCapacity);
+	}
+
+	/**
+	 * @return Consumed write capacity units keyed by
+	 *         {@code <operation>/<table>[/<index>]}
+	 */
+	@Override
+	public Map<String, Double> getConsumedWriteCapacity() {
+		return units(this.writeCapacity);
+	}
+
+	/**
+	 * Summarizes capacity consumed per store operation since the previous
+	 * summary, most expensive first.
+	 *
+	 * @return Summary, or null if no capacity was consumed
+	 */
+	synchronized String summarizeCapacity() {
+		Map<String, Long> totals = new HashMap<String, Long>();
+		final Map<String, Long> delta = new HashMap<String, Long>();
+		Map<String, Long> reads = new HashMap<String, Long>();
+		Map<String, Long> writes = new HashMap<String, Long>();
+		sumByOperation(this.readCapacity, reads);
+		sumByOperation(this.writeCapacity, writes);
+		for (String op : union(reads, writes)) {
+			long r = value(reads.get(op));
+			long w = value(writes.get(op));
+			totals.put(op + "/read", r);
+			totals.put(op + "/write", w);
+			long d = r + w - value(this.summarized.get(op + "/read"))
+					- value(this.summarized.get(op + "/write"));
+			if (d > 0) {
+				delta.put(op, d);
+			}
+		}
+		if (delta.isEmpty()) {
+			this.summarized = totals;
+			return null;
+		}
+		List<String> ops = new ArrayList<String>(delta.keySet());
+		Collections.sort(ops, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return delta.get(b).compareTo(delta.get(a));
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		for (String op : ops) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(op)
+					.append(": ")
+					.append(format(value(totals.get(op + "/read"))
+							- value(this.summarized.get(op + "/read"))))
+					.append(" RCU ")
+					.append(format(value(totals.get(op + "/write"))
+							- value(this.summarized.get(op + "/write"))))
+					.append(" WCU");
+		}
+		this.summarized = totals;
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		this.operations.clear();
+		this.requests.clear();
+		this.fireDelays.clear();
+		this.acquisitionLags.clear();
+		this.readCapacity.clear();
+		this.writeCapacity.clear();
+		synchronized (this) {
+			this.summarized = new HashMap<String, Long>();
+		}
+	}
+
+	private void recordCapacity(String operation, ConsumedCapacity cc,
+			boolean write) {
+		if (cc == null || cc.getTableName() == null) {
+			return;
+		}
+		String table = operation + "/" + cc.getTableName();
+		ConcurrentMap<String, AtomicLong> m = write ? this.writeCapacity
+				: this.readCapacity;
+		if (cc.getTable() != null) {
+			add(m, table, cc.getTable());
+		} else if (cc.getCapacityUnits() != null) {
+			counter(m, table).addAndGet(
+					(long) (cc.getCapacityUnits() * 1000.0));
+		}
+		if (cc.getGlobalSecondaryIndexes() != null) {
+			for (Map.Entry<String, Capacity> e : cc
+					.getGlobalSecondaryIndexes().entrySet()) {
+				add(m, table + "/" + e.getKey(), e.getValue());
+			}
+		}
+		if (cc.getLocalSecondaryIndexes() != null) {
+			for (Map.Entry<String, Capacity> e : cc.getLocalSecondaryIndexes()
+					.entrySet()) {
+				add(m, table + "/" + e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private static void add(ConcurrentMap<String, AtomicLong> m, String key,
+			Capacity c) {
+		if (c != null && c.getCapacityUnits() != null) {
+			counter(m, key).addAndGet((long) (c.getCapacityUnits() * 1000.0));
+		}
+	}
+
+	private static AtomicLong counter(ConcurrentMap<String, AtomicLong> m,
+			String key) {
+		AtomicLong a = m.get(key);
+		if (a == null) {
+			a = new AtomicLong();
+			AtomicLong old = m.putIfAbsent(key, a);
+			if (old != null) {
+				a = old;
+			}
+		}
+		return a;
+	}
+
+	private static Map<String, Double> units(
+			ConcurrentMap<String, AtomicLong> m) {
+		Map<String, Double> units = new TreeMap<String, Double>();
+		for (Map.Entry<String, AtomicLong> e : m.entrySet()) {
+			units.put(e.getKey(), e.getValue().get() / 1000.0);
+		}
+		return units;
+	}
+
+	private static void sumByOperation(ConcurrentMap<String, AtomicLong> m,
+			Map<String, Long> sums) {
+		for (Map.Entry<String, AtomicLong> e : m.entrySet()) {
+			String op = e.getKey().substring(0, e.getKey().indexOf('/'));
+			sums.put(op, value(sums.get(op)) + e.getValue().get());
+		}
+	}
+
+	private static List<String> union(Map<String, Long> a, Map<String, Long> b) {
+		List<String> l = new ArrayList<String>(a.keySet());
+		for (String k : b.keySet()) {
+			if (!a.containsKey(k)) {
+				l.add(k);
+			}
+		}
+		return l;
+	}
+
+	private static long value(Long l) {
+		return l != null ? l : 0L;
+	}
+
+	private static String format(long milliUnits) {
+		return String.format("%.1f", milliUnits / 1000.0);
+	}
+
+	/**
+	 * Asks for consumed capacity including indexes.
+	 */
+	private static void returnIndexCapacity(AmazonWebServiceRequest req) {
+		String c = ReturnConsumedCapacity.INDEXES.toString();
+		if (req instanceof GetItemRequest) {
+			((GetItemRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof PutItemRequest) {
+			((PutItemRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof UpdateItemRequest) {
+			((UpdateItemRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof DeleteItemRequest) {
+			((DeleteItemRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof QueryRequest) {
+			((QueryRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof ScanRequest) {
+			((ScanRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof BatchGetItemRequest) {
+			((BatchGetItemRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof BatchWriteItemRequest) {
+			((BatchWriteItemRequest) req).setReturnConsumedCapacity(c);
+		} else if (req instanceof TransactWriteItemsRequest) {
+			((TransactWriteItemsRequest) req).setReturnConsumedCapacity(c);
+		}
+	}
+
+	private static Histogram histogram(ConcurrentMap<String, Histogram> map,
+			String name) {
+		Histogram h = map.get(name);
+		if (h == null) {
+			h = new Histogram();
+			Histogram old = map.putIfAbsent(name, h);
+			if (old != null) {
+				h = old;
+			}
+		}
+		return h;
+	}
+
+	private static void record(Histogram h, long value) {
+		if (h.count() >= DECAY_SAMPLES) {
+			h.decay();
+		}
+		h.record(value);
+	}
+
+	private static void report(Histogram h, String prefix, Map<String, Long> m) {
+		m.put(prefix + "count", h.count());
+		m.put(prefix + "mean", h.mean());
+		m.put(prefix + "p50", h.percentile(0.5));
+		m.put(prefix + "p99", h.percentile(0.99));
+		m.put(prefix + "max", h.max());
+	}
+
+	private static Stats stats(ConcurrentMap<String, Stats> map, String name) {
+		Stats s = map.get(name);
+		if (s == null) {
+			s = new Stats();
+			Stats old = map.putIfAbsent(name, s);
+			if (old != null) {
+				s = old;
+			}
+		}
+		return s;
+	}
+
+	private static long value(Integer i) {
+		return i != null ? i.longValue() : 0L;
+	}
+
+	private static Long header(Map<String, String> headers, String name) {
+		if (headers == null) {
+			return null;
+		}
+		for (Map.Entry<String, String> e : headers.entrySet()) {
+			if (name.equalsIgnoreCase(e.getKey())) {
+				return length(e.getValue());
+			}
+		}
+		return null;
+	}
+
+	private static Long length(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean isThrottle(Exception e) {
+		if (!(e instanceof AmazonServiceException)) {
+			return false;
+		}
+		String code = ((AmazonServiceException) e).getErrorCode();
+		return "ProvisionedThroughputExceededException".equals(code)
+				|| "ThrottlingException".equals(code)
+				|| "RequestLimitExceeded".equals(code);
+	}
+
+	private static boolean isConditionalFailure(Exception e) {
+		if (e instanceof ConditionalCheckFailedException) {
+			return true;
+		}
+		if (e instanceof TransactionCanceledException) {
+			List<CancellationReason> reasons = ((TransactionCanceledException) e)
+					.getCancellationReasons();
+			if (reasons != null) {
+				for (CancellationReason r : reasons) {
+					if ("ConditionalCheckFailed".equals(r.getCode())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Metrics of a store operation or DynamoDB request type.
+	 */
+	private static final class Stats {
+		final Histogram latency = new Histogram();
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong throttles = new AtomicLong();
+		final AtomicLong conditionalFailures = new AtomicLong();
+		final AtomicLong scanned = new AtomicLong();
+		final AtomicLong returned = new AtomicLong();
+		final AtomicLong bytesRead = new AtomicLong();
+		final AtomicLong bytesWritten = new AtomicLong();
+
+		void report(String prefix, Map<String, Long> m) {
+			m.put(prefix + "count", this.count.get());
+			m.put(prefix + "latencyMean", this.latency.mean());
+			m.put(prefix + "latencyP50", this.latency.percentile(0.5));
+			m.put(prefix + "latencyP99", this.latency.percentile(0.99));
+			m.put(prefix + "latencyMax", this.latency.max());
+			m.put(prefix + "requests", this.requests.get());
+			m.put(prefix + "errors", this.errors.get());
+			m.put(prefix + "retries", this.retries.get());
+			m.put(prefix + "throttles", this.throttles.get());
+			m.put(prefix + "conditionalFailures",
+					this.conditionalFailures.get());
+			m.put(prefix + "scanned", this.scanned.get());
+			m.put(prefix + "returned", this.returned.get());
+			m.put(prefix + "bytesRead", this.bytesRead.get());
+			m.put(prefix + "bytesWritten", this.bytesWritten.get());
+		}
+	}
+
+	/**
+	 * State of a DynamoDB request across attempts.
+	 */
+	private static final class Call {
+		final String type;
+		final String operation;
+		final long start = System.nanoTime();
+		final AtomicLong attempts = new AtomicLong();
+		final AtomicLong throttles = new AtomicLong();
+		final AtomicLong bytesWritten = new AtomicLong();
+
+		Call(String type, String operation) {
+			this.type = type;
+			this.operation = operation;
+		}
+	}
+}
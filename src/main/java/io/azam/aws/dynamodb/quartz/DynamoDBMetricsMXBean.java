@@ -0,0 +1,30 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DynamoDBMetrics}.
+ */
+public interface DynamoDBMetricsMXBean {
+	/**
+	 * @return Metric values keyed by name
+	 */
+	Map<String, Long> getMetrics();
+
+	/**
+	 * @return Consumed read capacity units keyed by operation, table and
+	 *         index
+	 */
+	Map<String, Double> getConsumedReadCapacity();
+
+	/**
+	 * @return Consumed write capacity units keyed by operation, table and
+	 *         index
+	 */
+	Map<String, Double> getConsumedWriteCapacity();
+
+	/**
+	 * Clears all metrics.
+	 */
+	void reset();
+}
@@ -0,0 +1,17 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.Map;
+
+/**
+ * Receives {@link DynamoDBMetrics} snapshots periodically, to forward them
+ * to a monitoring system. Implementations need a public no argument
+ * constructor.
+ */
+public interface DynamoDBMetricsSink {
+	/**
+	 * @param metrics
+	 *            Metric values keyed by name, as returned by
+	 *            {@link DynamoDBMetrics#getMetrics()}
+	 */
+	void report(Map<String, Long> metrics);
+}
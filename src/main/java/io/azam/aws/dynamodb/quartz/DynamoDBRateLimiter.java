@@ -0,0 +1,468 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Client side rate limiter for {@link DynamoDBJobStore}, registered as a
+ * request handler on the DynamoDB client.
+ * <p>
+ * Each table and index has a read and a write token bucket refilled at its
+ * provisioned capacity. Requests ask for {@code ReturnConsumedCapacity} and
+ * buckets are charged with the capacity actually consumed. Throttled attempts
+ * halve the bucket rate, which then recovers gradually to the provisioned
+ * capacity. Requests outside the trigger firing path (see
+ * {@link CallContext}) only proceed while the bucket holds more than the
+ * reserved fraction, so they give way to firing work under load.
+ */
+public class DynamoDBRateLimiter extends RequestHandler2 {
+	// Defaults
+	public static final double DEFAULT_RESERVE = 0.5;
+
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DynamoDBRateLimiter.class);
+
+	// Rate adaptation
+	private static final double MIN_RATE_FRACTION = 0.1;
+	private static final double RECOVERY_PER_SECOND = 0.05;
+
+	private static final HandlerContextKey<Map<Bucket, Double>> CHARGED = new HandlerContextKey<Map<Bucket, Double>>(
+			DynamoDBRateLimiter.class.getName());
+
+	// Instance variables
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+	private final double reserve;
+
+	public DynamoDBRateLimiter(double reserve) {
+		this.reserve = Math.max(0.0, Math.min(1.0, reserve));
+	}
+
+	/**
+	 * Sets bucket rates from the provisioned throughput of a table and its
+	 * global secondary indexes. On demand tables are not limited.
+	 *
+	 * @param desc
+	 *            Table description
+	 */
+	public void configure(TableDescription desc) {
+		if (desc.getBillingModeSummary() != null
+				&& BillingMode.PAY_PER_REQUEST.toString().equals(
+						desc.getBillingModeSummary().getBillingMode())) {
+			LOG.info("Not limiting on demand table: " + desc.getTableName());
+			return;
+		}
+		configure(desc.getTableName(), desc.getProvisionedThroughput());
+		if (desc.getGlobalSecondaryIndexes() != null) {
+			for (GlobalSecondaryIndexDescription i : desc
+					.getGlobalSecondaryIndexes()) {
+				configure(desc.getTableName() + "." + i.getIndexName(),
+						i.getProvisionedThroughput());
+			}
+		}
+	}
+
+	private void configure(String name, ProvisionedThroughputDescription t) {
+		if (t == null || t.getReadCapacityUnits() == null
+				|| t.getReadCapacityUnits() <= 0) {
+			return;
+		}
+		LOG.info("Limiting " + name + " to " + t.getReadCapacityUnits() + "/"
+				+ t.getWriteCapacityUnits() + " capacity units per second");
+		this.buckets.put(bucketName(name, false),
+				new Bucket(bucketName(name, false), t.getReadCapacityUnits()));
+		this.buckets.put(bucketName(name, true),
+				new Bucket(bucketName(name, true), t.getWriteCapacityUnits()));
+	}
+
+	@Override
+	public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest req) {
+		if (req.getHandlerContext(CallContext.KEY) == null) {
+			req.addHandlerContext(CallContext.KEY, CallContext.current());
+		}
+		if (req instanceof GetItemRequest) {
+			GetItemRequest r = (GetItemRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof PutItemRequest) {
+			PutItemRequest r = (PutItemRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof UpdateItemRequest) {
+			UpdateItemRequest r = (UpdateItemRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof DeleteItemRequest) {
+			DeleteItemRequest r = (DeleteItemRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof QueryRequest) {
+			QueryRequest r = (QueryRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof ScanRequest) {
+			ScanRequest r = (ScanRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof BatchGetItemRequest) {
+			BatchGetItemRequest r = (BatchGetItemRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof BatchWriteItemRequest) {
+			BatchWriteItemRequest r = (BatchWriteItemRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		} else if (req instanceof TransactWriteItemsRequest) {
+			TransactWriteItemsRequest r = (TransactWriteItemsRequest) req;
+			if (r.getReturnConsumedCapacity() == null) {
+				r.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+			}
+		}
+		return req;
+	}
+
+	@Override
+	public void beforeAttempt(HandlerBeforeAttemptContext ctx) {
+		Request<?> request = ctx.getRequest();
+		AmazonWebServiceRequest req = request.getOriginalRequest();
+		Map<Bucket, Double> charged = new HashMap<Bucket, Double>();
+		for (Map.Entry<String, Double> e : estimate(req).entrySet()) {
+			Bucket b = this.buckets.get(e.getKey());
+			if (b != null) {
+				charged.put(b, e.getValue());
+			}
+		}
+		if (charged.isEmpty()) {
+			return;
+		}
+		CallContext c = req.getHandlerContext(CallContext.KEY);
+		boolean firing = c != null && c.firing;
+		try {
+			for (Map.Entry<Bucket, Double> e : charged.entrySet()) {
+				e.getKey().acquire(e.getValue(), firing);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		request.addHandlerContext(CHARGED, charged);
+	}
+
+	@Override
+	public void afterAttempt(HandlerAfterAttemptContext ctx) {
+		Exception e = ctx.getException();
+		if (e == null) {
+			return;
+		}
+		Map<Bucket, Double> charged = ctx.getRequest().getHandlerContext(
+				CHARGED);
+		if (charged == null) {
+			return;
+		}
+		// Failed attempts consume no capacity
+		for (Map.Entry<Bucket, Double> c : charged.entrySet()) {
+			c.getKey().charge(-c.getValue());
+		}
+		ctx.getRequest().addHandlerContext(CHARGED, null);
+		if (isThrottle(e)) {
+			for (Bucket b : charged.keySet()) {
+				b.throttled();
+			}
+		}
+	}
+
+	@Override
+	public void afterResponse(Request<?> request, Response<?> response) {
+		Map<Bucket, Double> charged = request.getHandlerContext(CHARGED);
+		if (charged == null) {
+			return;
+		}
+		boolean write = isWrite(request.getOriginalRequest());
+		String index = indexName(request.getOriginalRequest());
+		for (ConsumedCapacity cc : consumed(response.getAwsResponse())) {
+			if (cc == null || cc.getCapacityUnits() == null) {
+				continue;
+			}
+			String name = cc.getTableName();
+			if (index != null) {
+				name = name + "." + index;
+			}
+			Bucket b = this.buckets.get(bucketName(name, write));
+			if (b != null) {
+				Double estimate = charged.get(b);
+				b.charge(cc.getCapacityUnits()
+						- (estimate != null ? estimate : 0.0));
+			}
+		}
+	}
+
+	/**
+	 * @return Current rate of each bucket, in capacity units per second
+	 */
+	public Map<String, Double> getRates() {
+		Map<String, Double> m = new HashMap<String, Double>();
+		for (Bucket b : this.buckets.values()) {
+			m.put(b.name, b.rate());
+		}
+		return Collections.unmodifiableMap(m);
+	}
+
+	private Map<String, Double> estimate(AmazonWebServiceRequest req) {
+		Map<String, Double> m = new HashMap<String, Double>();
+		if (req instanceof GetItemRequest) {
+			m.put(bucketName(((GetItemRequest) req).getTableName(), false),
+					1.0);
+		} else if (req instanceof PutItemRequest) {
+			m.put(bucketName(((PutItemRequest) req).getTableName(), true), 1.0);
+		} else if (req instanceof UpdateItemRequest) {
+			m.put(bucketName(((UpdateItemRequest) req).getTableName(), true),
+					1.0);
+		} else if (req instanceof DeleteItemRequest) {
+			m.put(bucketName(((DeleteItemRequest) req).getTableName(), true),
+					1.0);
+		} else if (req instanceof QueryRequest) {
+			QueryRequest r = (QueryRequest) req;
+			m.put(bucketName(indexed(r.getTableName(), r.getIndexName()),
+					false), 1.0);
+		} else if (req instanceof ScanRequest) {
+			ScanRequest r = (ScanRequest) req;
+			m.put(bucketName(indexed(r.getTableName(), r.getIndexName()),
+					false), 1.0);
+		} else if (req instanceof BatchGetItemRequest) {
+			for (Map.Entry<String, KeysAndAttributes> e : ((BatchGetItemRequest) req)
+					.getRequestItems().entrySet()) {
+				m.put(bucketName(e.getKey(), false), (double) e.getValue()
+						.getKeys().size());
+			}
+		} else if (req instanceof BatchWriteItemRequest) {
+			for (Map.Entry<String, List<WriteRequest>> e : ((BatchWriteItemRequest) req)
+					.getRequestItems().entrySet()) {
+				m.put(bucketName(e.getKey(), true), (double) e.getValue()
+						.size());
+			}
+		} else if (req instanceof TransactWriteItemsRequest) {
+			// Transactional writes cost two units per item
+			for (TransactWriteItem i : ((TransactWriteItemsRequest) req)
+					.getTransactItems()) {
+				String name = bucketName(transactTable(i), true);
+				Double units = m.get(name);
+				m.put(name, (units != null ? units : 0.0) + 2.0);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * @return Consumed capacity of a result, empty if none
+	 */
+	static List<ConsumedCapacity> consumed(Object res) {
+		List<ConsumedCapacity> l = new ArrayList<ConsumedCapacity>();
+		if (res instanceof GetItemResult) {
+			l.add(((GetItemResult) res).getConsumedCapacity());
+		} else if (res instanceof PutItemResult) {
+			l.add(((PutItemResult) res).getConsumedCapacity());
+		} else if (res instanceof UpdateItemResult) {
+			l.add(((UpdateItemResult) res).getConsumedCapacity());
+		} else if (res instanceof DeleteItemResult) {
+			l.add(((DeleteItemResult) res).getConsumedCapacity());
+		} else if (res instanceof QueryResult) {
+			l.add(((QueryResult) res).getConsumedCapacity());
+		} else if (res instanceof ScanResult) {
+			l.add(((ScanResult) res).getConsumedCapacity());
+		} else if (res instanceof BatchGetItemResult) {
+			if (((BatchGetItemResult) res).getConsumedCapacity() != null) {
+				l.addAll(((BatchGetItemResult) res).getConsumedCapacity());
+			}
+		} else if (res instanceof BatchWriteItemResult) {
+			if (((BatchWriteItemResult) res).getConsumedCapacity() != null) {
+				l.addAll(((BatchWriteItemResult) res).getConsumedCapacity());
+			}
+		} else if (res instanceof TransactWriteItemsResult) {
+			if (((TransactWriteItemsResult) res).getConsumedCapacity() != null) {
+				l.addAll(((TransactWriteItemsResult) res).getConsumedCapacity());
+			}
+		}
+		return l;
+	}
+
+	private static String transactTable(TransactWriteItem i) {
+		if (i.getPut() != null) {
+			return i.getPut().getTableName();
+		} else if (i.getUpdate() != null) {
+			return i.getUpdate().getTableName();
+		} else if (i.getDelete() != null) {
+			return i.getDelete().getTableName();
+		}
+		return i.getConditionCheck().getTableName();
+	}
+
+	static boolean isWrite(AmazonWebServiceRequest req) {
+		return req instanceof PutItemRequest
+				|| req instanceof UpdateItemRequest
+				|| req instanceof DeleteItemRequest
+				|| req instanceof BatchWriteItemRequest
+				|| req instanceof TransactWriteItemsRequest;
+	}
+
+	private static String indexName(AmazonWebServiceRequest req) {
+		if (req instanceof QueryRequest) {
+			return ((QueryRequest) req).getIndexName();
+		} else if (req instanceof ScanRequest) {
+			return ((ScanRequest) req).getIndexName();
+		}
+		return null;
+	}
+
+	private static boolean isThrottle(Exception e) {
+		if (e instanceof AmazonServiceException) {
+			String code = ((AmazonServiceException) e).getErrorCode();
+			return "ProvisionedThroughputExceededException".equals(code)
+					|| "ThrottlingException".equals(code)
+					|| "RequestLimitExceeded".equals(code);
+		}
+		return false;
+	}
+
+	private static String indexed(String table, String index) {
+		return index != null ? table + "." + index : table;
+	}
+
+	private static String bucketName(String name, boolean write) {
+		return name + (write ? ":write" : ":read");
+	}
+
+	/**
+	 * Token bucket holding one second of capacity. The balance may become
+	 * negative when requests consume more than estimated, delaying later
+	 * requests until it is paid back.
+	 */
+	private class Bucket {
+		private final String name;
+		private final double maxRate;
+		private double rate;
+		private double tokens;
+		private long last;
+		private int firingWaiters = 0;
+
+		Bucket(String name, double rate) {
+			this.name = name;
+			this.maxRate = rate;
+			this.rate = rate;
+			this.tokens = rate;
+			this.last = System.nanoTime();
+		}
+
+		synchronized double rate() {
+			return this.rate;
+		}
+
+		synchronized void acquire(double units, boolean firing)
+				throws InterruptedException {
+			if (firing) {
+				this.firingWaiters++;
+			}
+			try {
+				while (true) {
+					refill();
+					double threshold = firing ? 0.0 : this.rate * reserve;
+					if (this.tokens > threshold
+							&& (firing || this.firingWaiters == 0)) {
+						this.tokens -= units;
+						return;
+					}
+					long wait = (long) Math.ceil((threshold - this.tokens + 1.0)
+							* 1000.0 / this.rate);
+					if (LOG.isTraceEnabled()) {
+						LOG.trace("Waiting " + wait + "ms for " + this.name
+								+ (firing ? "" : " (deferred)"));
+					}
+					wait(Math.max(1L, Math.min(wait, 1000L)));
+				}
+			} finally {
+				if (firing) {
+					this.firingWaiters--;
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized void charge(double units) {
+			this.tokens -= units;
+			if (units < 0) {
+				notifyAll();
+			}
+		}
+
+		synchronized void throttled() {
+			refill();
+			this.rate = Math.max(this.maxRate * MIN_RATE_FRACTION,
+					this.rate / 2.0);
+			this.tokens = Math.min(this.tokens, 0.0);
+			LOG.warn("Throttled on " + this.name + ", limiting to "
+					+ this.rate + " capacity units per second");
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			double seconds = (now - this.last) / 1e9;
+			this.last = now;
+			if (this.rate < this.maxRate) {
+				this.rate = Math.min(this.maxRate, this.rate + this.maxRate
+						* RECOVERY_PER_SECOND * seconds);
+			}
+			this.tokens = Math.min(this.rate, this.tokens + this.rate
+					* seconds);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryPolicy.BackoffStrategy;
+import com.amazonaws.retry.RetryPolicy.RetryCondition;
+
+/**
+ * Retry policy and circuit breaker for {@link DynamoDBJobStore}.
+ * <p>
+ * Throttling, 5xx and network errors are retried with decorrelated jitter
+ * backoff. Trigger firing path requests (see {@link CallContext}) and other
+ * requests have separate retry counts and time budgets. After a run of
+ * consecutive failed requests the circuit opens and requests fail fast,
+ * until a trial request succeeds after the open period.
+ */
+public class DynamoDBRetryPolicy extends RequestHandler2 implements
+		RetryCondition, BackoffStrategy {
+	// Defaults
+	public static final int DEFAULT_FIRINGMAXRETRIES = 5;
+	public static final long DEFAULT_FIRINGRETRYBUDGET = 1000L;
+	public static final int DEFAULT_ADMINMAXRETRIES = 3;
+	public static final long DEFAULT_ADMINRETRYBUDGET = 10000L;
+	public static final long DEFAULT_RETRYBASEDELAY = 10L;
+	public static final long DEFAULT_RETRYMAXDELAY = 1000L;
+	public static final int DEFAULT_CIRCUITBREAKERTHRESHOLD = 20;
+	public static final long DEFAULT_CIRCUITBREAKEROPENTIME = 5000L;
+
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DynamoDBRetryPolicy.class);
+
+	private static final HandlerContextKey<RetryState> STATE = new HandlerContextKey<RetryState>(
+			DynamoDBRetryPolicy.class.getName());
+
+	// Instance variables
+	private final Random random = new Random();
+	private int firingMaxRetries = DEFAULT_FIRINGMAXRETRIES;
+	private long firingRetryBudget = DEFAULT_FIRINGRETRYBUDGET;
+	private int adminMaxRetries = DEFAULT_ADMINMAXRETRIES;
+	private long adminRetryBudget = DEFAULT_ADMINRETRYBUDGET;
+	private long baseDelay = DEFAULT_RETRYBASEDELAY;
+	private long maxDelay = DEFAULT_RETRYMAXDELAY;
+	private int circuitBreakerThreshold = DEFAULT_CIRCUITBREAKERTHRESHOLD;
+	private long circuitBreakerOpenTime = DEFAULT_CIRCUITBREAKEROPENTIME;
+
+	// Circuit breaker, guarded by this
+	private int failures = 0;
+	private long openUntil = 0L;
+	private boolean trial = false;
+
+	// Metrics
+	private final AtomicLong firingRetries = new AtomicLong();
+	private final AtomicLong adminRetries = new AtomicLong();
+	private final AtomicLong firingExhausted = new AtomicLong();
+	private final AtomicLong adminExhausted = new AtomicLong();
+	private final AtomicLong circuitOpened = new AtomicLong();
+	private final AtomicLong circuitRejected = new AtomicLong();
+
+	public void setFiringMaxRetries(int firingMaxRetries) {
+		this.firingMaxRetries = firingMaxRetries;
+	}
+
+	public void setFiringRetryBudget(long firingRetryBudget) {
+		this.firingRetryBudget = firingRetryBudget;
+	}
+
+	public void setAdminMaxRetries(int adminMaxRetries) {
+		this.adminMaxRetries = adminMaxRetries;
+	}
+
+	public void setAdminRetryBudget(long adminRetryBudget) {
+		this.adminRetryBudget = adminRetryBudget;
+	}
+
+	public void setBaseDelay(long baseDelay) {
+		this.baseDelay = Math.max(1L, baseDelay);
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	/**
+	 * @return SDK retry policy using this policy's condition and backoff
+	 */
+	public RetryPolicy toRetryPolicy() {
+		return new RetryPolicy(this, this, Math.max(this.firingMaxRetries,
+				this.adminMaxRetries), false);
+	}
+
+	@Override
+	public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest req) {
+		if (req.getHandlerContext(CallContext.KEY) == null) {
+			req.addHandlerContext(CallContext.KEY, CallContext.current());
+		}
+		CallContext c = req.getHandlerContext(CallContext.KEY);
+		req.addHandlerContext(STATE, new RetryState(c != null && c.firing,
+				this.baseDelay));
+		allow(req);
+		return req;
+	}
+
+	@Override
+	public void afterResponse(Request<?> request, Response<?> response) {
+		synchronized (this) {
+			this.failures = 0;
+			if (this.trial) {
+				LOG.warn("Circuit closed");
+				this.trial = false;
+				this.openUntil = 0L;
+			}
+		}
+	}
+
+	@Override
+	public void afterError(Request<?> request, Response<?> response,
+			Exception e) {
+		if (!(e instanceof AmazonClientException)
+				|| !isDegraded((AmazonClientException) e)) {
+			afterResponse(request, response);
+			return;
+		}
+		synchronized (this) {
+			this.failures++;
+			if (this.trial
+					|| (this.circuitBreakerThreshold > 0 && this.failures >= this.circuitBreakerThreshold)) {
+				if (this.openUntil == 0L || this.trial) {
+					this.circuitOpened.incrementAndGet();
+					LOG.error("Circuit opened for "
+							+ this.circuitBreakerOpenTime + "ms after "
+							+ this.failures + " failures: " + e.getMessage());
+				}
+				this.trial = false;
+				this.openUntil = System.currentTimeMillis()
+						+ this.circuitBreakerOpenTime;
+			}
+		}
+	}
+
+	@Override
+	public boolean shouldRetry(AmazonWebServiceRequest req,
+			AmazonClientException e, int retriesAttempted) {
+		if (!isDegraded(e)) {
+			return false;
+		}
+		RetryState s = req.getHandlerContext(STATE);
+		boolean firing = s != null && s.firing;
+		int max = firing ? this.firingMaxRetries : this.adminMaxRetries;
+		long budget = firing ? this.firingRetryBudget : this.adminRetryBudget;
+		long elapsed = s != null ? System.currentTimeMillis() - s.start : 0L;
+		if (retriesAttempted >= max || elapsed >= budget || isOpen()) {
+			(firing ? this.firingExhausted : this.adminExhausted)
+					.incrementAndGet();
+			return false;
+		}
+		(firing ? this.firingRetries : this.adminRetries).incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public long delayBeforeNextRetry(AmazonWebServiceRequest req,
+			AmazonClientException e, int retriesAttempted) {
+		RetryState s = req.getHandlerContext(STATE);
+		long prev = s != null ? s.delay : this.baseDelay;
+		// Decorrelated jitter: random between base and three times the
+		// previous delay, capped
+		long upper = Math.max(this.baseDelay + 1, prev * 3);
+		long delay = Math.min(this.maxDelay, this.baseDelay
+				+ (long) (nextDouble() * (upper - this.baseDelay)));
+		if (s != null) {
+			long remaining = s.start
+					+ (s.firing ? this.firingRetryBudget
+							: this.adminRetryBudget)
+					- System.currentTimeMillis();
+			delay = Math.max(0L, Math.min(delay, remaining));
+			s.delay = Math.max(this.baseDelay, delay);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Retry " + (retriesAttempted + 1) + " in " + delay
+					+ "ms: " + e.getMessage());
+		}
+		return delay;
+	}
+
+	/**
+	 * @return Retry and circuit breaker counters
+	 */
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> m = new HashMap<String, Long>();
+		m.put("firingRetries", this.firingRetries.get());
+		m.put("adminRetries", this.adminRetries.get());
+		m.put("firingRetriesExhausted", this.firingExhausted.get());
+		m.put("adminRetriesExhausted", this.adminExhausted.get());
+		m.put("circuitOpened", this.circuitOpened.get());
+		m.put("circuitRejected", this.circuitRejected.get());
+		m.put("circuitOpen", isOpen() ? 1L : 0L);
+		return m;
+	}
+
+	public synchronized boolean isOpen() {
+		return this.openUntil > System.currentTimeMillis();
+	}
+
+	private void allow(AmazonWebServiceRequest req) {
+		synchronized (this) {
+			if (this.openUntil == 0L) {
+				return;
+			}
+			if (this.openUntil <= System.currentTimeMillis() && !this.trial) {
+				// Half open, let one trial request through
+				this.trial = true;
+				return;
+			}
+		}
+		this.circuitRejected.incrementAndGet();
+		throw new AmazonClientException("Circuit open, DynamoDB degraded: "
+				+ req.getClass().getSimpleName());
+	}
+
+	private synchronized double nextDouble() {
+		return this.random.nextDouble();
+	}
+
+	/**
+	 * @return true for throttling, server and network errors
+	 */
+	static boolean isDegraded(AmazonClientException e) {
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException se = (AmazonServiceException) e;
+			if (se.getStatusCode() >= 500) {
+				return true;
+			}
+			String code = se.getErrorCode();
+			return "ProvisionedThroughputExceededException".equals(code)
+					|| "ThrottlingException".equals(code)
+					|| "RequestLimitExceeded".equals(code);
+		}
+		return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(
+				null, e, 0);
+	}
+
+	private static class RetryState {
+		final boolean firing;
+		final long start = System.currentTimeMillis();
+		volatile long delay;
+
+		RetryState(boolean firing, long delay) {
+			this.firing = firing;
+			this.delay = delay;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.quartz.JobKey;
+import org.quartz.TriggerKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Offline migration from the three table layout (jobs, calendars, triggers)
+ * to the single table layout of {@link DynamoDBJobStore}. Source tables are
+ * left untouched. Schedulers using the source tables must be stopped while
+ * migrating.
+ *
+ * <pre>
+ * java io.azam.aws.dynamodb.quartz.DynamoDBSchemaMigrator &lt;endpoint|region&gt; [prefix] [table]
+ * </pre>
+ */
+public class DynamoDBSchemaMigrator {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DynamoDBSchemaMigrator.class);
+
+	private final AmazonDynamoDB client;
+	private final String tableNameJobs;
+	private final String tableNameCalendars;
+	private final String tableNameTriggers;
+	private final String tableName;
+	private final DynamoDBTableProvisioner provisioner;
+
+	public DynamoDBSchemaMigrator(AmazonDynamoDB client, String prefix,
+			String tableName) {
+		this.client = client;
+		this.provisioner = new DynamoDBTableProvisioner(client);
+		this.tableNameJobs = prefixed(prefix, DynamoDBJobStore.DEFAULT_JOBS);
+		this.tableNameCalendars = prefixed(prefix,
+				DynamoDBJobStore.DEFAULT_CALENDARS);
+		this.tableNameTriggers = prefixed(prefix,
+				DynamoDBJobStore.DEFAULT_TRIGGERS);
+		this.tableName = prefixed(prefix, tableName);
+	}
+
+	/**
+	 * @return Provisioner used to create the single table, for billing mode
+	 *         and capacity settings
+	 */
+	public DynamoDBTableProvisioner getProvisioner() {
+		return this.provisioner;
+	}
+
+	/**
+	 * Copies all jobs, triggers and calendars into the single table, creating
+	 * it if needed, and writes job to trigger adjacency and group items.
+	 *
+	 * @return Number of items written
+	 * @throws InterruptedException
+	 */
+	public int migrate() throws InterruptedException {
+		this.provisioner.createTables(Collections
+				.singletonList(this.provisioner.singleTable(this.tableName)));
+		Map<String, Map<String, AttributeValue>> items = new HashMap<String, Map<String, AttributeValue>>();
+		for (Map<String, AttributeValue> item : scan(this.tableNameJobs)) {
+			JobKey k = DynamoDBJobStore.parseJobKey(item.get(
+					DynamoDBJobStore.KEY_KEY).getS());
+			put(items, item, DynamoDBJobStore.partitionKey(k), k.getName());
+			put(items, group(k.getGroup()), DynamoDBJobStore.PREFIX_JOBGROUP,
+					k.getGroup());
+		}
+		for (Map<String, AttributeValue> item : scan(this.tableNameTriggers)) {
+			TriggerKey k = DynamoDBJobStore.parseTriggerKey(item.get(
+					DynamoDBJobStore.KEY_KEY).getS());
+			put(items, item, DynamoDBJobStore.partitionKey(k), k.getName());
+			put(items, group(k.getGroup()),
+					DynamoDBJobStore.PREFIX_TRIGGERGROUP, k.getGroup());
+			AttributeValue job = item.get(DynamoDBJobStore.KEY_JOB);
+			if (job != null) {
+				Map<String, AttributeValue> adj = DynamoDBJobStore
+						.adjacencyItem(DynamoDBJobStore.parseJobKey(job.getS()),
+								k);
+				items.put(key(adj), adj);
+			}
+		}
+		for (Map<String, AttributeValue> item : scan(this.tableNameCalendars)) {
+			put(items, item, DynamoDBJobStore.PREFIX_CALENDAR,
+					item.get(DynamoDBJobStore.KEY_NAME).getS());
+		}
+		write(new ArrayList<Map<String, AttributeValue>>(items.values()));
+		LOG.info("Migrated " + items.size() + " items to " + this.tableName);
+		return items.size();
+	}
+
+	private List<Map<String, AttributeValue>> scan(String table) {
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		try {
+			this.client.describeTable(table);
+		} catch (ResourceNotFoundException e) {
+			LOG.warn("Table not found: " + table);
+			return items;
+		}
+		ScanRequest req = new ScanRequest().withTableName(table);
+		boolean hasMore = true;
+		while (hasMore) {
+			hasMore = false;
+			ScanResult res = this.client.scan(req);
+			items.addAll(res.getItems());
+			Map<String, AttributeValue> lastKey = res.getLastEvaluatedKey();
+			if (lastKey != null && !lastKey.isEmpty()) {
+				hasMore = true;
+				req.withExclusiveStartKey(lastKey);
+			}
+		}
+		LOG.info("Scanned " + items.size() + " items from " + table);
+		return items;
+	}
+
+	private void write(List<Map<String, AttributeValue>> items)
+			throws InterruptedException {
+		Queue<WriteRequest> queue = new LinkedList<WriteRequest>();
+		for (Map<String, AttributeValue> item : items) {
+			queue.add(new WriteRequest().withPutRequest(new PutRequest()
+					.withItem(item)));
+		}
+		int retries = 0;
+		while (!queue.isEmpty()) {
+			List<WriteRequest> l = new ArrayList<WriteRequest>(
+					DynamoDBJobStore.DYNAMODB_MAXBATCHWRITE);
+			for (int i = 0; !queue.isEmpty()
+					&& i < DynamoDBJobStore.DYNAMODB_MAXBATCHWRITE; i++) {
+				l.add(queue.poll());
+			}
+			Map<String, List<WriteRequest>> reqs = new HashMap<String, List<WriteRequest>>();
+			reqs.put(this.tableName, l);
+			BatchWriteItemResult res = this.client.batchWriteItem(reqs);
+			Map<String, List<WriteRequest>> u = res.getUnprocessedItems();
+			if (u != null && u.containsKey(this.tableName)) {
+				queue.addAll(u.get(this.tableName));
+				Thread.sleep(Math.min(1000L, 50L << Math.min(retries++, 5)));
+			} else {
+				retries = 0;
+			}
+		}
+	}
+
+	private static void put(Map<String, Map<String, AttributeValue>> items,
+			Map<String, AttributeValue> item, String pk, String sk) {
+		Map<String, AttributeValue> copy = new HashMap<String, AttributeValue>(
+				item);
+		copy.put(DynamoDBJobStore.KEY_PK, new AttributeValue(pk));
+		copy.put(DynamoDBJobStore.KEY_SK, new AttributeValue(sk));
+		items.put(key(copy), copy);
+	}
+
+	private static Map<String, AttributeValue> group(String group) {
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		item.put(DynamoDBJobStore.KEY_GROUP, new AttributeValue(group));
+		return item;
+	}
+
+	private static String key(Map<String, AttributeValue> item) {
+		return item.get(DynamoDBJobStore.KEY_PK).getS() + "\n"
+				+ item.get(DynamoDBJobStore.KEY_SK).getS();
+	}
+
+	private static String prefixed(String prefix, String name) {
+		if (prefix != null && !prefix.isEmpty()) {
+			return prefix + "_" + name;
+		}
+		return name;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: DynamoDBSchemaMigrator"
+					+ " <endpoint|region> [prefix] [table]");
+			System.exit(1);
+		}
+		AmazonDynamoDBClientBuilder builder = AmazonDynamoDBClientBuilder
+				.standard().withCredentials(DynamoDBJobStore.credentials());
+		if (args[0].startsWith("http://") || args[0].startsWith("https://")) {
+			builder.withEndpointConfiguration(new EndpointConfiguration(
+					args[0], Regions.DEFAULT_REGION.getName()));
+		} else {
+			builder.withRegion(Regions.fromName(args[0]));
+		}
+		AmazonDynamoDB client = builder.build();
+		String prefix = args.length > 1 ? args[1] : null;
+		String table = args.length > 2 ? args[2]
+				: DynamoDBJobStore.DEFAULT_TABLE;
+		new DynamoDBSchemaMigrator(client, prefix, table).migrate();
+	}
+}
@@ -0,0 +1,392 @@
+package io.azam.aws.dynamodb.quartz;
+
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.INDEX_CALENDAR;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.INDEX_STATE_NEXT;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_CALENDAR;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_KEY;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_NAME;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_NEXT;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_PK;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_SK;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStore.KEY_STATE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTimeToLiveRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveDescription;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveSpecification;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveStatus;
+import com.amazonaws.services.dynamodbv2.model.UpdateTimeToLiveRequest;
+import com.amazonaws.services.dynamodbv2.util.TableUtils;
+
+/**
+ * Creates and checks the tables used by {@link DynamoDBJobStore}, with
+ * configurable billing mode and per table and index throughput.
+ */
+public class DynamoDBTableProvisioner {
+	// Defaults
+	public static final long DEFAULT_CAPACITY = 2L;
+	public static final int DEFAULT_TIMEOUT = 60000;
+	public static final int DEFAULT_INTERVAL = 1000;
+
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DynamoDBTableProvisioner.class);
+
+	// Instance variables
+	private final AmazonDynamoDB client;
+	private BillingMode billingMode = BillingMode.PROVISIONED;
+	private long readCapacity = DEFAULT_CAPACITY;
+	private long writeCapacity = DEFAULT_CAPACITY;
+	private long indexReadCapacity = DEFAULT_CAPACITY;
+	private long indexWriteCapacity = DEFAULT_CAPACITY;
+	private final Map<String, ProvisionedThroughput> capacities = new HashMap<String, ProvisionedThroughput>();
+
+	public DynamoDBTableProvisioner(AmazonDynamoDB client) {
+		this.client = client;
+	}
+
+	public void setBillingMode(BillingMode billingMode) {
+		this.billingMode = billingMode;
+	}
+
+	public void setCapacity(long readCapacity, long writeCapacity) {
+		this.readCapacity = readCapacity;
+		this.writeCapacity = writeCapacity;
+	}
+
+	public void setIndexCapacity(long readCapacity, long writeCapacity) {
+		this.indexReadCapacity = readCapacity;
+		this.indexWriteCapacity = writeCapacity;
+	}
+
+	/**
+	 * Overrides the default capacity of a table. Non-positive values keep the
+	 * default.
+	 *
+	 * @param table
+	 *            Table name
+	 * @param readCapacity
+	 *            Read capacity units
+	 * @param writeCapacity
+	 *            Write capacity units
+	 */
+	public void setCapacity(String table, long readCapacity, long writeCapacity) {
+		this.capacities.put(table, new ProvisionedThroughput(
+				readCapacity > 0 ? readCapacity : this.readCapacity,
+				writeCapacity > 0 ? writeCapacity : this.writeCapacity));
+	}
+
+	public CreateTableRequest calendarsTable(String name) {
+		return table(name,
+				new AttributeDefinition[] { attribute(KEY_NAME,
+						ScalarAttributeType.S) },
+				new KeySchemaElement[] { key(KEY_NAME, KeyType.HASH) });
+	}
+
+	public CreateTableRequest jobsTable(String name) {
+		return table(name,
+				new AttributeDefinition[] { attribute(KEY_KEY,
+						ScalarAttributeType.S) },
+				new KeySchemaElement[] { key(KEY_KEY, KeyType.HASH) });
+	}
+
+	public CreateTableRequest fencesTable(String name) {
+		return table(name,
+				new AttributeDefinition[] { attribute(KEY_KEY,
+						ScalarAttributeType.S) },
+				new KeySchemaElement[] { key(KEY_KEY, KeyType.HASH) });
+	}
+
+	public CreateTableRequest firedTable(String name) {
+		return table(name,
+				new AttributeDefinition[] { attribute(KEY_KEY,
+						ScalarAttributeType.S) },
+				new KeySchemaElement[] { key(KEY_KEY, KeyType.HASH) });
+	}
+
+	public CreateTableRequest permitsTable(String name) {
+		return table(name,
+				new AttributeDefinition[] { attribute(KEY_KEY,
+						ScalarAttributeType.S) },
+				new KeySchemaElement[] { key(KEY_KEY, KeyType.HASH) });
+	}
+
+	public CreateTableRequest triggersTable(String name) {
+		return table(
+				name,
+				new AttributeDefinition[] {
+						attribute(KEY_KEY, ScalarAttributeType.S),
+						attribute(KEY_STATE, ScalarAttributeType.S),
+						attribute(KEY_NEXT, ScalarAttributeType.N) },
+				new KeySchemaElement[] { key(KEY_KEY, KeyType.HASH) },
+				index(INDEX_STATE_NEXT, key(KEY_STATE, KeyType.HASH),
+						key(KEY_NEXT, KeyType.RANGE)));
+	}
+
+	public CreateTableRequest singleTable(String name) {
+		return table(
+				name,
+				new AttributeDefinition[] {
+						attribute(KEY_PK, ScalarAttributeType.S),
+						attribute(KEY_SK, ScalarAttributeType.S),
+						attribute(KEY_STATE, ScalarAttributeType.S),
+						attribute(KEY_NEXT, ScalarAttributeType.N),
+						attribute(KEY_CALENDAR, ScalarAttributeType.S) },
+				new KeySchemaElement[] { key(KEY_PK, KeyType.HASH),
+						key(KEY_SK, KeyType.RANGE) },
+				index(INDEX_STATE_NEXT, key(KEY_STATE, KeyType.HASH),
+						key(KEY_NEXT, KeyType.RANGE)),
+				index(INDEX_CALENDAR, key(KEY_CALENDAR, KeyType.HASH)));
+	}
+
+	/**
+	 * Creates missing tables and waits for all of them to become active.
+	 * Create requests are all issued before waiting, so tables are created in
+	 * parallel.
+	 *
+	 * @param tables
+	 *            Table definitions
+	 * @throws InterruptedException
+	 */
+	public void createTables(List<CreateTableRequest> tables)
+			throws InterruptedException {
+		for (CreateTableRequest req : tables) {
+			if (TableUtils.createTableIfNotExists(this.client, req)) {
+				LOG.warn("Created table: " + req.getTableName() + " ("
+						+ this.billingMode + ")");
+			}
+		}
+		for (CreateTableRequest req : tables) {
+			TableUtils.waitUntilActive(this.client, req.getTableName(),
+					DEFAULT_TIMEOUT, DEFAULT_INTERVAL);
+		}
+	}
+
+	/**
+	 * Enables TTL on a table if it is not enabled.
+	 *
+	 * @param table
+	 *            Table name
+	 * @param attribute
+	 *            TTL attribute name
+	 */
+	public void enableTimeToLive(String table, String attribute) {
+		try {
+			TimeToLiveDescription ttl = describeTimeToLive(table);
+			String status = ttl != null ? ttl.getTimeToLiveStatus() : null;
+			if (TimeToLiveStatus.ENABLED.toString().equals(status)
+					|| TimeToLiveStatus.ENABLING.toString().equals(status)) {
+				return;
+			}
+			LOG.warn("Enabling TTL on table: " + table);
+			this.client.updateTimeToLive(new UpdateTimeToLiveRequest()
+					.withTableName(table).withTimeToLiveSpecification(
+							new TimeToLiveSpecification().withAttributeName(
+									attribute).withEnabled(true)));
+		} catch (AmazonServiceException e) {
+			LOG.warn("Unable to enable TTL on table " + table + ": "
+					+ e.getMessage());
+		} catch (AmazonClientException e) {
+			LOG.warn("Unable to enable TTL on table " + table + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @param table
+	 *            Table name
+	 * @param index
+	 *            Global secondary index name
+	 * @return true if the table has the index
+	 */
+	public boolean hasIndex(String table, String index) {
+		try {
+			TableDescription desc = this.client.describeTable(table)
+					.getTable();
+			List<GlobalSecondaryIndexDescription> l = desc
+					.getGlobalSecondaryIndexes();
+			if (l != null) {
+				for (GlobalSecondaryIndexDescription i : l) {
+					if (index.equals(i.getIndexName())) {
+						return true;
+					}
+				}
+			}
+		} catch (AmazonServiceException e) {
+			LOG.error(e.getMessage(), e);
+		} catch (AmazonClientException e) {
+			LOG.error(e.getMessage(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * Compares existing tables with their definitions.
+	 *
+	 * @param tables
+	 *            Table definitions
+	 * @param ttlTables
+	 *            Names of tables expected to have TTL enabled
+	 * @param ttlAttribute
+	 *            Expected TTL attribute name
+	 * @return Differences found, empty if tables match their definitions
+	 */
+	public List<String> checkDrift(List<CreateTableRequest> tables,
+			List<String> ttlTables, String ttlAttribute) {
+		List<String> drift = new ArrayList<String>();
+		for (CreateTableRequest req : tables) {
+			String name = req.getTableName();
+			TableDescription desc;
+			try {
+				desc = this.client.describeTable(name).getTable();
+			} catch (ResourceNotFoundException e) {
+				drift.add(name + ": table does not exist");
+				continue;
+			} catch (AmazonClientException e) {
+				drift.add(name + ": unable to describe table: "
+						+ e.getMessage());
+				continue;
+			}
+			String mode = desc.getBillingModeSummary() != null ? desc
+					.getBillingModeSummary().getBillingMode()
+					: BillingMode.PROVISIONED.toString();
+			if (!this.billingMode.toString().equals(mode)) {
+				drift.add(name + ": billing mode is " + mode + ", expected "
+						+ this.billingMode);
+			} else if (this.billingMode == BillingMode.PROVISIONED) {
+				checkThroughput(drift, name, req.getProvisionedThroughput(),
+						desc.getProvisionedThroughput());
+			}
+			Map<String, GlobalSecondaryIndexDescription> indexes = new HashMap<String, GlobalSecondaryIndexDescription>();
+			if (desc.getGlobalSecondaryIndexes() != null) {
+				for (GlobalSecondaryIndexDescription i : desc
+						.getGlobalSecondaryIndexes()) {
+					indexes.put(i.getIndexName(), i);
+				}
+			}
+			if (req.getGlobalSecondaryIndexes() != null) {
+				for (GlobalSecondaryIndex i : req.getGlobalSecondaryIndexes()) {
+					GlobalSecondaryIndexDescription d = indexes.get(i
+							.getIndexName());
+					if (d == null) {
+						drift.add(name + ": index " + i.getIndexName()
+								+ " does not exist");
+					} else if (this.billingMode == BillingMode.PROVISIONED) {
+						checkThroughput(drift,
+								name + "." + i.getIndexName(),
+								i.getProvisionedThroughput(),
+								d.getProvisionedThroughput());
+					}
+				}
+			}
+			if (ttlTables.contains(name)) {
+				try {
+					TimeToLiveDescription ttl = describeTimeToLive(name);
+					if (ttl == null
+							|| !TimeToLiveStatus.ENABLED.toString().equals(
+									ttl.getTimeToLiveStatus())) {
+						drift.add(name + ": TTL is not enabled");
+					} else if (!ttlAttribute.equals(ttl.getAttributeName())) {
+						drift.add(name + ": TTL attribute is "
+								+ ttl.getAttributeName() + ", expected "
+								+ ttlAttribute);
+					}
+				} catch (AmazonClientException e) {
+					drift.add(name + ": unable to describe TTL: "
+							+ e.getMessage());
+				}
+			}
+		}
+		return drift;
+	}
+
+	private TimeToLiveDescription describeTimeToLive(String table) {
+		return this.client.describeTimeToLive(
+				new DescribeTimeToLiveRequest().withTableName(table))
+				.getTimeToLiveDescription();
+	}
+
+	private static void checkThroughput(List<String> drift, String name,
+			ProvisionedThroughput expected,
+			ProvisionedThroughputDescription actual) {
+		if (expected == null || actual == null) {
+			return;
+		}
+		if (!expected.getReadCapacityUnits().equals(
+				actual.getReadCapacityUnits())
+				|| !expected.getWriteCapacityUnits().equals(
+						actual.getWriteCapacityUnits())) {
+			drift.add(name + ": throughput is "
+					+ actual.getReadCapacityUnits() + "/"
+					+ actual.getWriteCapacityUnits() + ", expected "
+					+ expected.getReadCapacityUnits() + "/"
+					+ expected.getWriteCapacityUnits());
+		}
+	}
+
+	private CreateTableRequest table(String name,
+			AttributeDefinition[] attributes, KeySchemaElement[] keys,
+			GlobalSecondaryIndex... indexes) {
+		CreateTableRequest req = new CreateTableRequest().withTableName(name)
+				.withAttributeDefinitions(attributes).withKeySchema(keys)
+				.withBillingMode(this.billingMode);
+		if (this.billingMode == BillingMode.PROVISIONED) {
+			ProvisionedThroughput throughput = this.capacities.get(name);
+			if (throughput == null) {
+				throughput = new ProvisionedThroughput(this.readCapacity,
+						this.writeCapacity);
+			}
+			req.withProvisionedThroughput(throughput);
+		}
+		if (indexes.length > 0) {
+			req.withGlobalSecondaryIndexes(indexes);
+		}
+		return req;
+	}
+
+	private GlobalSecondaryIndex index(String name, KeySchemaElement... keys) {
+		GlobalSecondaryIndex index = new GlobalSecondaryIndex()
+				.withIndexName(name).withKeySchema(keys)
+				.withProjection(
+						new Projection().withProjectionType(ProjectionType.ALL));
+		if (this.billingMode == BillingMode.PROVISIONED) {
+			index.withProvisionedThroughput(new ProvisionedThroughput(
+					this.indexReadCapacity, this.indexWriteCapacity));
+		}
+		return index;
+	}
+
+	private static AttributeDefinition attribute(String name,
+			ScalarAttributeType type) {
+		return new AttributeDefinition().withAttributeName(name)
+				.withAttributeType(type);
+	}
+
+	private static KeySchemaElement key(String name, KeyType type) {
+		return new KeySchemaElement().withAttributeName(name).withKeyType(type);
+	}
+}
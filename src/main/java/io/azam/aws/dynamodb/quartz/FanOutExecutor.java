@@ -0,0 +1,172 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.quartz.JobPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs independent store operations, such as pausing every trigger of a
+ * group, concurrently. Tasks run on virtual threads when enabled and
+ * supported by the JVM, otherwise on a fixed pool of platform threads. A
+ * semaphore caps the number of tasks in flight. Without threads, or when
+ * called from a task, tasks run on the calling thread.
+ */
+final class FanOutExecutor {
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(FanOutExecutor.class);
+
+	private static final ThreadLocal<Boolean> IN_TASK = new ThreadLocal<Boolean>();
+
+	// Instance variables
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+
+	/**
+	 * @param name
+	 *            Thread name prefix
+	 * @param virtualThreads
+	 *            Use virtual threads if supported
+	 * @param threads
+	 *            Platform threads, 0 to run tasks on the calling thread
+	 * @param maxInFlight
+	 *            Maximum tasks in flight
+	 */
+	FanOutExecutor(final String name, boolean virtualThreads, int threads,
+			int maxInFlight) {
+		ExecutorService e = virtualThreads ? virtualThreadExecutor() : null;
+		if (e != null) {
+			LOG.info("Using virtual threads for fan-out");
+		} else if (threads > 0) {
+			if (virtualThreads) {
+				LOG.warn("Virtual threads not supported, using " + threads
+						+ " threads for fan-out");
+			}
+			e = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name
+							+ this.count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		this.executor = e;
+		this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+	}
+
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method m = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs tasks and waits for all of them.
+	 *
+	 * @param tasks
+	 *            Tasks
+	 * @return Task results, in order
+	 * @throws JobPersistenceException
+	 *             First task failure, after all tasks completed
+	 */
+	<T> List<T> invokeAll(List<Callable<T>> tasks)
+			throws JobPersistenceException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (this.executor == null || tasks.size() < 2
+				|| IN_TASK.get() != null) {
+			for (Callable<T> task : tasks) {
+				results.add(call(task));
+			}
+			return results;
+		}
+		final CallContext ctx = CallContext.current();
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		JobPersistenceException error = null;
+		for (final Callable<T> task : tasks) {
+			try {
+				this.inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = new JobPersistenceException(e.getMessage(), e);
+				break;
+			}
+			futures.add(this.executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					CallContext c = ctx.attach();
+					IN_TASK.set(Boolean.TRUE);
+					try {
+						return task.call();
+					} finally {
+						IN_TASK.remove();
+						c.exit();
+						inFlight.release();
+					}
+				}
+			}));
+		}
+		for (Future<T> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = new JobPersistenceException(e.getMessage(), e);
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof JobPersistenceException) {
+					if (error == null) {
+						error = (JobPersistenceException) t;
+					}
+				} else if (t instanceof RuntimeException) {
+					throw (RuntimeException) t;
+				} else if (t instanceof Error) {
+					throw (Error) t;
+				} else if (error == null) {
+					error = new JobPersistenceException(t.getMessage(), t);
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return results;
+	}
+
+	private static <T> T call(Callable<T> task) throws JobPersistenceException {
+		try {
+			return task.call();
+		} catch (JobPersistenceException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JobPersistenceException(e.getMessage(), e);
+		}
+	}
+
+	void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+		}
+	}
+}
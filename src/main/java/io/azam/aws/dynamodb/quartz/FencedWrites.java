@@ -0,0 +1,379 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.ConditionCheck;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConditionalOperator;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+
+/**
+ * Single item writes made conditional on a fencing token. Each write runs in
+ * a transaction with a condition check on the fence item, so a writer whose
+ * token was taken by another instance cannot write any more. Legacy
+ * conditions and attribute updates are rewritten as expressions, since
+ * transactions only take expressions.
+ */
+final class FencedWrites {
+	/**
+	 * Thrown when the fencing token was taken by another instance.
+	 */
+	static final class FencedOutException extends AmazonClientException {
+		private static final long serialVersionUID = 1L;
+
+		FencedOutException(long token) {
+			super("Fencing token " + token + " taken by another instance");
+		}
+	}
+
+	// Instance variables
+	private final AmazonDynamoDB client;
+	private final String table;
+	private final Map<String, AttributeValue> key;
+	private final String tokenAttribute;
+
+	/**
+	 * @param client
+	 *            Client
+	 * @param table
+	 *            Fence table
+	 * @param key
+	 *            Fence item key
+	 * @param tokenAttribute
+	 *            Fence item attribute holding the current token
+	 */
+	FencedWrites(AmazonDynamoDB client, String table,
+			Map<String, AttributeValue> key, String tokenAttribute) {
+		this.client = client;
+		this.table = table;
+		this.key = key;
+		this.tokenAttribute = tokenAttribute;
+	}
+
+	/**
+	 * Puts an item. Return values are not supported.
+	 */
+	PutItemResult putItem(PutItemRequest req, long token) {
+		Expression e = new Expression(req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues());
+		String condition = req.getConditionExpression() != null ? req
+				.getConditionExpression() : e.condition(req.getExpected(),
+				req.getConditionalOperator());
+		Put put = new Put().withTableName(req.getTableName())
+				.withItem(req.getItem()).withConditionExpression(condition);
+		e.apply(put);
+		write(new TransactWriteItem().withPut(put), token);
+		return new PutItemResult();
+	}
+
+	/**
+	 * Updates an item, reading the item before or after the update when
+	 * return values are requested.
+	 */
+	UpdateItemResult updateItem(UpdateItemRequest req, long token) {
+		Expression e = new Expression(req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues());
+		String condition = req.getConditionExpression() != null ? req
+				.getConditionExpression() : e.condition(req.getExpected(),
+				req.getConditionalOperator());
+		String update = req.getUpdateExpression() != null ? req
+				.getUpdateExpression() : e.update(req.getAttributeUpdates());
+		Update u = new Update().withTableName(req.getTableName())
+				.withKey(req.getKey()).withUpdateExpression(update)
+				.withConditionExpression(condition);
+		e.apply(u);
+		String rv = req.getReturnValues();
+		boolean before = ReturnValue.ALL_OLD.toString().equals(rv)
+				|| ReturnValue.UPDATED_OLD.toString().equals(rv);
+		boolean after = ReturnValue.ALL_NEW.toString().equals(rv)
+				|| ReturnValue.UPDATED_NEW.toString().equals(rv);
+		UpdateItemResult res = new UpdateItemResult();
+		if (before) {
+			res.withAttributes(read(req.getTableName(), req.getKey()));
+		}
+		write(new TransactWriteItem().withUpdate(u), token);
+		if (after) {
+			res.withAttributes(read(req.getTableName(), req.getKey()));
+		}
+		return res;
+	}
+
+	/**
+	 * Deletes an item, reading it first when old values are requested.
+	 */
+	DeleteItemResult deleteItem(DeleteItemRequest req, long token) {
+		Expression e = new Expression(req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues());
+		String condition = req.getConditionExpression() != null ? req
+				.getConditionExpression() : e.condition(req.getExpected(),
+				req.getConditionalOperator());
+		Delete d = new Delete().withTableName(req.getTableName())
+				.withKey(req.getKey()).withConditionExpression(condition);
+		e.apply(d);
+		DeleteItemResult res = new DeleteItemResult();
+		if (ReturnValue.ALL_OLD.toString().equals(req.getReturnValues())) {
+			res.withAttributes(read(req.getTableName(), req.getKey()));
+		}
+		write(new TransactWriteItem().withDelete(d), token);
+		return res;
+	}
+
+	/**
+	 * @return Condition check on the fence item, to add to a transaction
+	 */
+	TransactWriteItem check(long token) {
+		return new TransactWriteItem().withConditionCheck(new ConditionCheck()
+				.withTableName(this.table)
+				.withKey(this.key)
+				.withConditionExpression("#t = :t")
+				.withExpressionAttributeNames(
+						Collections.singletonMap("#t", this.tokenAttribute))
+				.withExpressionAttributeValues(
+						Collections.singletonMap(":t", new AttributeValue()
+								.withN(Long.toString(token, 10)))));
+	}
+
+	private void write(TransactWriteItem item, long token) {
+		List<TransactWriteItem> items = new ArrayList<TransactWriteItem>(2);
+		items.add(item);
+		items.add(check(token));
+		try {
+			this.client.transactWriteItems(new TransactWriteItemsRequest()
+					.withTransactItems(items));
+		} catch (TransactionCanceledException e) {
+			List<CancellationReason> reasons = e.getCancellationReasons();
+			if (reasons != null && reasons.size() == 2) {
+				if (isConditionFailed(reasons.get(1))) {
+					throw new FencedOutException(token);
+				} else if (isConditionFailed(reasons.get(0))) {
+					throw new ConditionalCheckFailedException(e.getMessage());
+				}
+			}
+			throw e;
+		}
+	}
+
+	private Map<String, AttributeValue> read(String table,
+			Map<String, AttributeValue> key) {
+		Map<String, AttributeValue> item = this.client.getItem(
+				new GetItemRequest().withTableName(table).withKey(key)
+						.withConsistentRead(true)).getItem();
+		return item != null && !item.isEmpty() ? item : null;
+	}
+
+	static boolean isConditionFailed(CancellationReason reason) {
+		return reason != null
+				&& "ConditionalCheckFailed".equals(reason.getCode());
+	}
+
+	/**
+	 * Builds condition and update expressions from legacy parameters, with
+	 * placeholders added to those of the request.
+	 */
+	static final class Expression {
+		private final Map<String, String> names = new HashMap<String, String>();
+		private final Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+		private int next = 0;
+
+		Expression(Map<String, String> names, Map<String, AttributeValue> values) {
+			if (names != null) {
+				this.names.putAll(names);
+			}
+			if (values != null) {
+				this.values.putAll(values);
+			}
+		}
+
+		Map<String, String> names() {
+			return this.names;
+		}
+
+		Map<String, AttributeValue> values() {
+			return this.values;
+		}
+
+		/**
+		 * @return Condition expression, or null if there is no condition
+		 */
+		String condition(Map<String, ExpectedAttributeValue> expected,
+				String conditionalOperator) {
+			if (expected == null || expected.isEmpty()) {
+				return null;
+			}
+			String separator = ConditionalOperator.OR.toString().equals(
+					conditionalOperator) ? " OR " : " AND ";
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, ExpectedAttributeValue> e : expected
+					.entrySet()) {
+				if (sb.length() > 0) {
+					sb.append(separator);
+				}
+				sb.append('(').append(condition(e.getKey(), e.getValue()))
+						.append(')');
+			}
+			return sb.toString();
+		}
+
+		private String condition(String attribute, ExpectedAttributeValue e) {
+			String n = name(attribute);
+			if (Boolean.FALSE.equals(e.getExists())) {
+				return "attribute_not_exists(" + n + ")";
+			}
+			if (e.getComparisonOperator() == null) {
+				if (e.getValue() == null) {
+					return "attribute_exists(" + n + ")";
+				}
+				return n + " = " + value(e.getValue());
+			}
+			List<AttributeValue> l = e.getAttributeValueList();
+			if ((l == null || l.isEmpty()) && e.getValue() != null) {
+				l = Collections.singletonList(e.getValue());
+			}
+			switch (ComparisonOperator.fromValue(e.getComparisonOperator())) {
+			case EQ:
+				return n + " = " + value(l.get(0));
+			case NE:
+				return "attribute_not_exists(" + n + ") OR " + n + " <> "
+						+ value(l.get(0));
+			case LE:
+				return n + " <= " + value(l.get(0));
+			case LT:
+				return n + " < " + value(l.get(0));
+			case GE:
+				return n + " >= " + value(l.get(0));
+			case GT:
+				return n + " > " + value(l.get(0));
+			case NULL:
+				return "attribute_not_exists(" + n + ")";
+			case NOT_NULL:
+				return "attribute_exists(" + n + ")";
+			case BEGINS_WITH:
+				return "begins_with(" + n + ", " + value(l.get(0)) + ")";
+			case CONTAINS:
+				return "contains(" + n + ", " + value(l.get(0)) + ")";
+			case NOT_CONTAINS:
+				return "NOT contains(" + n + ", " + value(l.get(0)) + ")";
+			case BETWEEN:
+				return n + " BETWEEN " + value(l.get(0)) + " AND "
+						+ value(l.get(1));
+			case IN:
+				StringBuilder sb = new StringBuilder();
+				for (AttributeValue v : l) {
+					sb.append(sb.length() > 0 ? ", " : "").append(value(v));
+				}
+				return n + " IN (" + sb + ")";
+			default:
+				throw new IllegalArgumentException("Unsupported operator: "
+						+ e.getComparisonOperator());
+			}
+		}
+
+		/**
+		 * @return Update expression
+		 */
+		String update(Map<String, AttributeValueUpdate> updates) {
+			List<String> set = new ArrayList<String>();
+			List<String> remove = new ArrayList<String>();
+			List<String> add = new ArrayList<String>();
+			List<String> delete = new ArrayList<String>();
+			if (updates != null) {
+				for (Map.Entry<String, AttributeValueUpdate> e : updates
+						.entrySet()) {
+					String n = name(e.getKey());
+					AttributeValueUpdate u = e.getValue();
+					String action = u.getAction() != null ? u.getAction()
+							: AttributeAction.PUT.toString();
+					if (AttributeAction.ADD.toString().equals(action)) {
+						add.add(n + " " + value(u.getValue()));
+					} else if (AttributeAction.DELETE.toString().equals(action)) {
+						if (u.getValue() == null) {
+							remove.add(n);
+						} else {
+							delete.add(n + " " + value(u.getValue()));
+						}
+					} else {
+						set.add(n + " = " + value(u.getValue()));
+					}
+				}
+			}
+			StringBuilder sb = new StringBuilder();
+			clause(sb, "SET", set);
+			clause(sb, "REMOVE", remove);
+			clause(sb, "ADD", add);
+			clause(sb, "DELETE", delete);
+			return sb.toString();
+		}
+
+		private static void clause(StringBuilder sb, String keyword,
+				List<String> l) {
+			if (l.isEmpty()) {
+				return;
+			}
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(keyword).append(' ');
+			for (int i = 0; i < l.size(); i++) {
+				sb.append(i > 0 ? ", " : "").append(l.get(i));
+			}
+		}
+
+		private String name(String attribute) {
+			String n = "#f" + (this.next++);
+			this.names.put(n, attribute);
+			return n;
+		}
+
+		private String value(AttributeValue v) {
+			String n = ":f" + (this.next++);
+			this.values.put(n, v);
+			return n;
+		}
+
+		void apply(Put p) {
+			p.withExpressionAttributeNames(this.names.isEmpty() ? null
+					: this.names);
+			p.withExpressionAttributeValues(this.values.isEmpty() ? null
+					: this.values);
+		}
+
+		void apply(Update u) {
+			u.withExpressionAttributeNames(this.names.isEmpty() ? null
+					: this.names);
+			u.withExpressionAttributeValues(this.values.isEmpty() ? null
+					: this.values);
+		}
+
+		void apply(Delete d) {
+			d.withExpressionAttributeNames(this.names.isEmpty() ? null
+					: this.names);
+			d.withExpressionAttributeValues(this.values.isEmpty() ? null
+					: this.values);
+		}
+	}
+}
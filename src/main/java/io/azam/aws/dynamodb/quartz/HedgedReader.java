@@ -0,0 +1,167 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+
+/**
+ * Hedged {@code GetItem} reads. When a read has not completed after the
+ * configured percentile of recent read latencies, a duplicate read is issued
+ * and the first successful response is used. Duplicates are capped to a
+ * fraction of all reads.
+ */
+final class HedgedReader {
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(HedgedReader.class);
+
+	// Reads recorded before hedging starts, and between histogram decays
+	private static final long MIN_SAMPLES = 100L;
+	private static final long DECAY_SAMPLES = 10000L;
+
+	// Instance variables
+	private final AmazonDynamoDBAsync client;
+	private final double percentile;
+	private final long minDelay;
+	private final double budget;
+	private final Histogram latency = new Histogram();
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * @param client
+	 *            Async client
+	 * @param percentile
+	 *            Latency percentile after which to hedge, between 0 and 1
+	 * @param minDelay
+	 *            Minimum milliseconds before hedging
+	 * @param budget
+	 *            Maximum fraction of reads that may be duplicated
+	 */
+	HedgedReader(AmazonDynamoDBAsync client, double percentile,
+			long minDelay, double budget) {
+		this.client = client;
+		this.percentile = percentile;
+		this.minDelay = minDelay;
+		this.budget = budget;
+	}
+
+	/**
+	 * Reads an item, rethrowing failures as thrown by the sync client.
+	 *
+	 * @param req
+	 *            Get item request
+	 * @return First successful result
+	 */
+	GetItemResult getItem(GetItemRequest req) {
+		long n = this.reads.incrementAndGet();
+		if (n % DECAY_SAMPLES == 0) {
+			this.latency.decay();
+		}
+		req.addHandlerContext(CallContext.KEY, CallContext.current());
+		BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		submit(req, results, false);
+		int pending = 1;
+		try {
+			Object first = null;
+			if (this.latency.count() >= MIN_SAMPLES) {
+				long delay = Math.max(this.minDelay * 1000L,
+						this.latency.percentile(this.percentile));
+				first = results.poll(delay, TimeUnit.MICROSECONDS);
+				if (first == null
+						&& this.hedges.get() < this.budget * this.reads.get()) {
+					this.hedges.incrementAndGet();
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Hedging read after " + delay + "us: "
+								+ req.getKey());
+					}
+					GetItemRequest hedge = req.clone();
+					hedge.addHandlerContext(CallContext.KEY,
+							req.getHandlerContext(CallContext.KEY));
+					submit(hedge, results, true);
+					pending++;
+				}
+			}
+			AmazonClientException error = null;
+			while (pending > 0) {
+				Object r = first != null ? first : results.take();
+				first = null;
+				pending--;
+				if (r instanceof Outcome) {
+					Outcome o = (Outcome) r;
+					if (o.hedge) {
+						this.hedgeWins.incrementAndGet();
+					}
+					return o.result;
+				}
+				if (error == null) {
+					error = (AmazonClientException) r;
+				}
+			}
+			throw error;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException(e.getMessage(), e);
+		}
+	}
+
+	private void submit(GetItemRequest req, final BlockingQueue<Object> results,
+			final boolean hedge) {
+		final long start = System.nanoTime();
+		this.client.getItemAsync(req,
+				new AsyncHandler<GetItemRequest, GetItemResult>() {
+					@Override
+					public void onSuccess(GetItemRequest request,
+							GetItemResult result) {
+						latency.record((System.nanoTime() - start) / 1000L);
+						results.add(new Outcome(result, hedge));
+					}
+
+					@Override
+					public void onError(Exception e) {
+						results.add(e instanceof AmazonClientException ? e
+								: new AmazonClientException(e.getMessage(), e));
+					}
+				});
+	}
+
+	/**
+	 * @return Read latency histogram, in microseconds
+	 */
+	Histogram getLatency() {
+		return this.latency;
+	}
+
+	long getReads() {
+		return this.reads.get();
+	}
+
+	long getHedges() {
+		return this.hedges.get();
+	}
+
+	long getHedgeWins() {
+		return this.hedgeWins.get();
+	}
+
+	private static final class Outcome {
+		private final GetItemResult result;
+		private final boolean hedge;
+
+		Outcome(GetItemResult result, boolean hedge) {
+			this.result = result;
+			this.hedge = hedge;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative values, such as latencies in
+ * microseconds. Buckets are logarithmic with four sub-buckets per power of
+ * two, giving percentiles within about 20%. {@link #decay()} halves all
+ * counts so that recent values dominate.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		this.counts.incrementAndGet(bucket(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		long m = this.max.get();
+		while (value > m && !this.max.compareAndSet(m, value)) {
+			m = this.max.get();
+		}
+	}
+
+	/**
+	 * @return Number of recorded values, reduced by decay
+	 */
+	public long count() {
+		return this.count.get();
+	}
+
+	/**
+	 * @return Mean of recorded values, 0 if empty
+	 */
+	public long mean() {
+		long c = this.count.get();
+		return c > 0 ? this.sum.get() / c : 0L;
+	}
+
+	public long max() {
+		return this.max.get();
+	}
+
+	/**
+	 * @param p
+	 *            Percentile, between 0 and 1
+	 * @return Upper bound of the bucket holding the percentile, 0 if empty
+	 */
+	public long percentile(double p) {
+		long total = 0;
+		long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = this.counts.get(i);
+			total += c[i];
+		}
+		if (total == 0) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(Math.max(0.0, Math.min(1.0, p)) * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += c[i];
+			if (seen >= rank && c[i] > 0) {
+				return Math.min(upper(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Halves all counts.
+	 */
+	public void decay() {
+		for (int i = 0; i < BUCKETS; i++) {
+			long v;
+			do {
+				v = this.counts.get(i);
+			} while (!this.counts.compareAndSet(i, v, v / 2));
+		}
+		long c;
+		do {
+			c = this.count.get();
+		} while (!this.count.compareAndSet(c, c / 2));
+		long s;
+		do {
+			s = this.sum.get();
+		} while (!this.sum.compareAndSet(s, s / 2));
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) ((value >>> (exp - 2)) & (SUB_BUCKETS - 1));
+		return Math.min(BUCKETS - 1, (exp - 1) * SUB_BUCKETS + sub);
+	}
+
+	private static long upper(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exp = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exp - 2)) - 1;
+	}
+}
@@ -0,0 +1,1253 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.quartz.Calendar;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.SchedulerConfigException;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.simpl.RAMJobStore;
+import org.quartz.spi.ClassLoadHelper;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+import org.quartz.spi.TriggerFiredResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * {@link DynamoDBJobStore} serving reads and trigger acquisition from an
+ * in-memory {@link RAMJobStore} mirror, for single node or active/passive
+ * deployments.
+ * <p>
+ * On {@link #schedulerStarted()} the store takes a fencing token and loads
+ * the whole schedule with parallel scans. From then on every operation is
+ * applied to the mirror, and writes are replayed to DynamoDB in order by a
+ * single writer thread. The writer checks the fencing token before each
+ * batch of writes; once another instance has taken the token, this store
+ * stops writing and acquires no more triggers. Until the scheduler starts,
+ * operations go to DynamoDB directly.
+ * <p>
+ * Writes acknowledged by the mirror but not yet replayed are lost if the
+ * process dies. Misfires are handled by the mirror; misfired triggers not
+ * fired before a restart are handled again after reload.
+ *
+ * @author Azamshul Azizy
+ */
+public class MirroredDynamoDBJobStore extends DynamoDBJobStore {
+	// Defaults
+	public static final int DEFAULT_RELOADSEGMENTS = 4;
+
+	// Delays between retries of failed writes, and retries left on shutdown
+	private static final long RETRY_MIN = 100L;
+	private static final long RETRY_MAX = 10000L;
+	private static final int SHUTDOWN_RETRIES = 3;
+
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MirroredDynamoDBJobStore.class);
+
+	// Instance variables
+	private final RAMJobStore ram = new RAMJobStore();
+	private final ReadWriteLock modeLock = new ReentrantReadWriteLock();
+	private volatile boolean active = false;
+	private volatile boolean fenced = false;
+	private long fence;
+	private int reloadSegments = DEFAULT_RELOADSEGMENTS;
+	private String instanceId;
+	private boolean makeThreadsDaemons = false;
+	private Writer writer;
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong failedWrites = new AtomicLong();
+
+	/**
+	 * Operation applied to the mirror, then replayed on DynamoDB.
+	 */
+	private abstract class Op<T> {
+		/** Applies the operation to the mirror */
+		abstract T mirror() throws JobPersistenceException;
+
+		/** Applies the operation to DynamoDB */
+		abstract T dynamo() throws JobPersistenceException;
+	}
+
+	@Override
+	boolean isMirrored() {
+		return true;
+	}
+
+	@Override
+	public void initialize(ClassLoadHelper loadHelper,
+			SchedulerSignaler signaler) throws SchedulerConfigException {
+		super.initialize(loadHelper, signaler);
+		this.ram.initialize(loadHelper, signaler);
+	}
+
+	@Override
+	public void schedulerStarted() throws SchedulerException {
+		LOG.trace("schedulerStarted");
+		this.modeLock.writeLock().lock();
+		try {
+			if (!this.active) {
+				this.fence = acquireFence();
+				load();
+				this.writer = new Writer();
+				this.writer.start();
+				this.active = true;
+			}
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+		this.ram.schedulerStarted();
+		super.schedulerStarted();
+	}
+
+	@Override
+	public void schedulerPaused() {
+		this.ram.schedulerPaused();
+		super.schedulerPaused();
+	}
+
+	@Override
+	public void schedulerResumed() {
+		this.ram.schedulerResumed();
+		super.schedulerResumed();
+	}
+
+	@Override
+	public void shutdown() {
+		LOG.trace("shutdown");
+		this.modeLock.writeLock().lock();
+		try {
+			this.active = false;
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+		if (this.writer != null) {
+			// Pending writes are flushed before the writer exits
+			this.writer.shutdown();
+			try {
+				this.writer.join();
+			} catch (InterruptedException e) {
+				LOG.error(e.getMessage(), e);
+			}
+			this.writer = null;
+			LOG.info("Mirrored writes: " + this.writes.get() + ", failed: "
+					+ this.failedWrites.get());
+		}
+		this.ram.shutdown();
+		super.shutdown();
+	}
+
+	@Override
+	public boolean isClustered() {
+		return false;
+	}
+
+	@Override
+	public long getEstimatedTimeToReleaseAndAcquireTrigger() {
+		if (this.active) {
+			return this.ram.getEstimatedTimeToReleaseAndAcquireTrigger();
+		}
+		return super.getEstimatedTimeToReleaseAndAcquireTrigger();
+	}
+
+	/**
+	 * Loads the schedule from DynamoDB into the mirror.
+	 */
+	private void load() throws JobPersistenceException {
+		LOG.trace("load");
+		long start = System.currentTimeMillis();
+		Map<String, Calendar> calendars = scanCalendars(this.reloadSegments);
+		for (Map.Entry<String, Calendar> e : calendars.entrySet()) {
+			this.ram.storeCalendar(e.getKey(), e.getValue(), true, false);
+		}
+		List<JobDetail> jobs = scanJobs(this.reloadSegments);
+		for (JobDetail j : jobs) {
+			this.ram.storeJob(j, true);
+		}
+		Map<TriggerKey, TriggerState> states = new HashMap<TriggerKey, TriggerState>();
+		List<OperableTrigger> triggers = scanTriggers(this.reloadSegments,
+				states);
+		int loaded = 0;
+		for (OperableTrigger t : triggers) {
+			TriggerState state = states.get(t.getKey());
+			if (state == TriggerState.COMPLETE || state == TriggerState.ERROR) {
+				// Retained only until expiry
+				continue;
+			}
+			if (!this.ram.checkExists(t.getJobKey())) {
+				LOG.warn("Skipping trigger without job: " + t.getKey());
+				continue;
+			}
+			this.ram.storeTrigger(t, true);
+			if (state == TriggerState.PAUSED) {
+				this.ram.pauseTrigger(t.getKey());
+			}
+			loaded++;
+		}
+		for (String group : super.getPausedTriggerGroups()) {
+			this.ram.pauseTriggers(GroupMatcher.triggerGroupEquals(group));
+		}
+		LOG.info("Loaded " + calendars.size() + " calendars, " + jobs.size()
+				+ " jobs and " + loaded + " triggers in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Runs a read on the mirror once started, or on DynamoDB before.
+	 */
+	private <T> T read(Op<T> op) throws JobPersistenceException {
+		this.modeLock.readLock().lock();
+		try {
+			return this.active ? op.mirror() : op.dynamo();
+		} finally {
+			this.modeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Runs a write on the mirror and queues it for DynamoDB once started, or
+	 * runs it on DynamoDB before.
+	 */
+	private <T> T write(Op<T> op) throws JobPersistenceException {
+		this.modeLock.readLock().lock();
+		try {
+			if (!this.active) {
+				return op.dynamo();
+			}
+			if (this.fenced) {
+				throw new JobPersistenceException(
+						"Fenced out by another scheduler instance");
+			}
+			// Queued under the mirror's lock order, so replay order matches
+			synchronized (this.ram) {
+				T r = op.mirror();
+				this.writer.queue.add(op);
+				return r;
+			}
+		} finally {
+			this.modeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues a DynamoDB write without a mirror operation.
+	 */
+	private void replay(final Op<?> op) {
+		this.writer.queue.add(op);
+	}
+
+	@Override
+	public void storeJobAndTrigger(final JobDetail newJob,
+			final OperableTrigger newTrigger)
+			throws ObjectAlreadyExistsException, JobPersistenceException {
+		final JobDetail j = (JobDetail) newJob.clone();
+		final OperableTrigger t = (OperableTrigger) newTrigger.clone();
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.storeJobAndTrigger(newJob, newTrigger);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.storeJobAndTrigger(j, t);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void storeJob(final JobDetail newJob, final boolean replaceExisting)
+			throws ObjectAlreadyExistsException, JobPersistenceException {
+		final JobDetail j = (JobDetail) newJob.clone();
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.storeJob(newJob, replaceExisting);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.storeJob(j, replaceExisting);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void storeJobsAndTriggers(
+			final Map<JobDetail, Set<? extends Trigger>> triggersAndJobs,
+			final boolean replace) throws ObjectAlreadyExistsException,
+			JobPersistenceException {
+		final Map<JobDetail, Set<? extends Trigger>> copy = new HashMap<JobDetail, Set<? extends Trigger>>();
+		for (Map.Entry<JobDetail, Set<? extends Trigger>> e : triggersAndJobs
+				.entrySet()) {
+			Set<Trigger> triggers = new HashSet<Trigger>();
+			for (Trigger t : e.getValue()) {
+				triggers.add(t instanceof OperableTrigger ? (Trigger) ((OperableTrigger) t)
+						.clone() : t);
+			}
+			copy.put((JobDetail) e.getKey().clone(), triggers);
+		}
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.storeJobsAndTriggers(triggersAndJobs, replace);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.storeJobsAndTriggers(copy,
+						replace);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public boolean removeJob(final JobKey jobKey)
+			throws JobPersistenceException {
+		return write(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.removeJob(jobKey);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.removeJob(jobKey);
+			}
+		});
+	}
+
+	@Override
+	public boolean removeJobs(final List<JobKey> jobKeys)
+			throws JobPersistenceException {
+		final List<JobKey> keys = new ArrayList<JobKey>(jobKeys);
+		return write(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.removeJobs(keys);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.removeJobs(keys);
+			}
+		});
+	}
+
+	@Override
+	public JobDetail retrieveJob(final JobKey jobKey)
+			throws JobPersistenceException {
+		return read(new Op<JobDetail>() {
+			@Override
+			JobDetail mirror() throws JobPersistenceException {
+				return ram.retrieveJob(jobKey);
+			}
+
+			@Override
+			JobDetail dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.retrieveJob(jobKey);
+			}
+		});
+	}
+
+	@Override
+	public void storeTrigger(final OperableTrigger newTrigger,
+			final boolean replaceExisting) throws ObjectAlreadyExistsException,
+			JobPersistenceException {
+		final OperableTrigger t = (OperableTrigger) newTrigger.clone();
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.storeTrigger(newTrigger, replaceExisting);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super
+						.storeTrigger(t, replaceExisting);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public boolean removeTrigger(final TriggerKey triggerKey)
+			throws JobPersistenceException {
+		return write(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.removeTrigger(triggerKey);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.removeTrigger(triggerKey);
+			}
+		});
+	}
+
+	@Override
+	public boolean removeTriggers(final List<TriggerKey> triggerKeys)
+			throws JobPersistenceException {
+		final List<TriggerKey> keys = new ArrayList<TriggerKey>(triggerKeys);
+		return write(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.removeTriggers(keys);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.removeTriggers(keys);
+			}
+		});
+	}
+
+	@Override
+	public boolean replaceTrigger(final TriggerKey triggerKey,
+			final OperableTrigger newTrigger) throws JobPersistenceException {
+		final OperableTrigger t = (OperableTrigger) newTrigger.clone();
+		return write(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.replaceTrigger(triggerKey, newTrigger);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.replaceTrigger(
+						triggerKey, t);
+			}
+		});
+	}
+
+	@Override
+	public OperableTrigger retrieveTrigger(final TriggerKey triggerKey)
+			throws JobPersistenceException {
+		return read(new Op<OperableTrigger>() {
+			@Override
+			OperableTrigger mirror() throws JobPersistenceException {
+				return ram.retrieveTrigger(triggerKey);
+			}
+
+			@Override
+			OperableTrigger dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super
+						.retrieveTrigger(triggerKey);
+			}
+		});
+	}
+
+	@Override
+	public boolean checkExists(final JobKey jobKey)
+			throws JobPersistenceException {
+		return read(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.checkExists(jobKey);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.checkExists(jobKey);
+			}
+		});
+	}
+
+	@Override
+	public boolean checkExists(final TriggerKey triggerKey)
+			throws JobPersistenceException {
+		return read(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.checkExists(triggerKey);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.checkExists(triggerKey);
+			}
+		});
+	}
+
+	@Override
+	public void clearAllSchedulingData() throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.clearAllSchedulingData();
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.clearAllSchedulingData();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void storeCalendar(final String name, final Calendar calendar,
+			final boolean replaceExisting, final boolean updateTriggers)
+			throws ObjectAlreadyExistsException, JobPersistenceException {
+		final Calendar c = (Calendar) calendar.clone();
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.storeCalendar(name, calendar, replaceExisting,
+						updateTriggers);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.storeCalendar(name, c,
+						replaceExisting, updateTriggers);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public boolean removeCalendar(final String calName)
+			throws JobPersistenceException {
+		return write(new Op<Boolean>() {
+			@Override
+			Boolean mirror() throws JobPersistenceException {
+				return ram.removeCalendar(calName);
+			}
+
+			@Override
+			Boolean dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.removeCalendar(calName);
+			}
+		});
+	}
+
+	@Override
+	public Calendar retrieveCalendar(final String calName)
+			throws JobPersistenceException {
+		return read(new Op<Calendar>() {
+			@Override
+			Calendar mirror() throws JobPersistenceException {
+				return ram.retrieveCalendar(calName);
+			}
+
+			@Override
+			Calendar dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.retrieveCalendar(calName);
+			}
+		});
+	}
+
+	@Override
+	public int getNumberOfJobs() throws JobPersistenceException {
+		return read(new Op<Integer>() {
+			@Override
+			Integer mirror() throws JobPersistenceException {
+				return ram.getNumberOfJobs();
+			}
+
+			@Override
+			Integer dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getNumberOfJobs();
+			}
+		});
+	}
+
+	@Override
+	public int getNumberOfTriggers() throws JobPersistenceException {
+		return read(new Op<Integer>() {
+			@Override
+			Integer mirror() throws JobPersistenceException {
+				return ram.getNumberOfTriggers();
+			}
+
+			@Override
+			Integer dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getNumberOfTriggers();
+			}
+		});
+	}
+
+	@Override
+	public int getNumberOfCalendars() throws JobPersistenceException {
+		return read(new Op<Integer>() {
+			@Override
+			Integer mirror() throws JobPersistenceException {
+				return ram.getNumberOfCalendars();
+			}
+
+			@Override
+			Integer dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getNumberOfCalendars();
+			}
+		});
+	}
+
+	@Override
+	public Set<JobKey> getJobKeys(final GroupMatcher<JobKey> matcher)
+			throws JobPersistenceException {
+		return read(new Op<Set<JobKey>>() {
+			@Override
+			Set<JobKey> mirror() throws JobPersistenceException {
+				return ram.getJobKeys(matcher);
+			}
+
+			@Override
+			Set<JobKey> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getJobKeys(matcher);
+			}
+		});
+	}
+
+	@Override
+	public Set<TriggerKey> getTriggerKeys(final GroupMatcher<TriggerKey> matcher)
+			throws JobPersistenceException {
+		return read(new Op<Set<TriggerKey>>() {
+			@Override
+			Set<TriggerKey> mirror() throws JobPersistenceException {
+				return ram.getTriggerKeys(matcher);
+			}
+
+			@Override
+			Set<TriggerKey> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getTriggerKeys(matcher);
+			}
+		});
+	}
+
+	@Override
+	public List<String> getJobGroupNames() throws JobPersistenceException {
+		return read(new Op<List<String>>() {
+			@Override
+			List<String> mirror() throws JobPersistenceException {
+				return ram.getJobGroupNames();
+			}
+
+			@Override
+			List<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getJobGroupNames();
+			}
+		});
+	}
+
+	@Override
+	public List<String> getTriggerGroupNames() throws JobPersistenceException {
+		return read(new Op<List<String>>() {
+			@Override
+			List<String> mirror() throws JobPersistenceException {
+				return ram.getTriggerGroupNames();
+			}
+
+			@Override
+			List<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getTriggerGroupNames();
+			}
+		});
+	}
+
+	@Override
+	public List<String> getCalendarNames() throws JobPersistenceException {
+		return read(new Op<List<String>>() {
+			@Override
+			List<String> mirror() throws JobPersistenceException {
+				return ram.getCalendarNames();
+			}
+
+			@Override
+			List<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getCalendarNames();
+			}
+		});
+	}
+
+	@Override
+	public List<OperableTrigger> getTriggersForJob(final JobKey jobKey)
+			throws JobPersistenceException {
+		return read(new Op<List<OperableTrigger>>() {
+			@Override
+			List<OperableTrigger> mirror() throws JobPersistenceException {
+				return ram.getTriggersForJob(jobKey);
+			}
+
+			@Override
+			List<OperableTrigger> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getTriggersForJob(jobKey);
+			}
+		});
+	}
+
+	@Override
+	public TriggerState getTriggerState(final TriggerKey triggerKey)
+			throws JobPersistenceException {
+		return read(new Op<TriggerState>() {
+			@Override
+			TriggerState mirror() throws JobPersistenceException {
+				return ram.getTriggerState(triggerKey);
+			}
+
+			@Override
+			TriggerState dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super
+						.getTriggerState(triggerKey);
+			}
+		});
+	}
+
+	@Override
+	public void pauseTrigger(final TriggerKey triggerKey)
+			throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.pauseTrigger(triggerKey);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.pauseTrigger(triggerKey);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Collection<String> pauseTriggers(
+			final GroupMatcher<TriggerKey> matcher)
+			throws JobPersistenceException {
+		return write(new Op<Collection<String>>() {
+			@Override
+			Collection<String> mirror() throws JobPersistenceException {
+				return ram.pauseTriggers(matcher);
+			}
+
+			@Override
+			Collection<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.pauseTriggers(matcher);
+			}
+		});
+	}
+
+	@Override
+	public void pauseJob(final JobKey jobKey) throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.pauseJob(jobKey);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.pauseJob(jobKey);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Collection<String> pauseJobs(final GroupMatcher<JobKey> groupMatcher)
+			throws JobPersistenceException {
+		return write(new Op<Collection<String>>() {
+			@Override
+			Collection<String> mirror() throws JobPersistenceException {
+				return ram.pauseJobs(groupMatcher);
+			}
+
+			@Override
+			Collection<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.pauseJobs(groupMatcher);
+			}
+		});
+	}
+
+	@Override
+	public void resumeTrigger(final TriggerKey triggerKey)
+			throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.resumeTrigger(triggerKey);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.resumeTrigger(triggerKey);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Collection<String> resumeTriggers(
+			final GroupMatcher<TriggerKey> matcher)
+			throws JobPersistenceException {
+		return write(new Op<Collection<String>>() {
+			@Override
+			Collection<String> mirror() throws JobPersistenceException {
+				return ram.resumeTriggers(matcher);
+			}
+
+			@Override
+			Collection<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.resumeTriggers(matcher);
+			}
+		});
+	}
+
+	@Override
+	public Set<String> getPausedTriggerGroups() throws JobPersistenceException {
+		return read(new Op<Set<String>>() {
+			@Override
+			Set<String> mirror() throws JobPersistenceException {
+				return ram.getPausedTriggerGroups();
+			}
+
+			@Override
+			Set<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.getPausedTriggerGroups();
+			}
+		});
+	}
+
+	@Override
+	public void resumeJob(final JobKey jobKey) throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.resumeJob(jobKey);
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.resumeJob(jobKey);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Collection<String> resumeJobs(final GroupMatcher<JobKey> matcher)
+			throws JobPersistenceException {
+		return write(new Op<Collection<String>>() {
+			@Override
+			Collection<String> mirror() throws JobPersistenceException {
+				return ram.resumeJobs(matcher);
+			}
+
+			@Override
+			Collection<String> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.resumeJobs(matcher);
+			}
+		});
+	}
+
+	@Override
+	public void pauseAll() throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.pauseAll();
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.pauseAll();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void resumeAll() throws JobPersistenceException {
+		write(new Op<Void>() {
+			@Override
+			Void mirror() throws JobPersistenceException {
+				ram.resumeAll();
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				MirroredDynamoDBJobStore.super.resumeAll();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public List<OperableTrigger> acquireNextTriggers(final long noLaterThan,
+			final int maxCount, final long timeWindow)
+			throws JobPersistenceException {
+		if (this.fenced) {
+			return Collections.emptyList();
+		}
+		// Acquisition locks are not persisted, there is a single writer
+		return read(new Op<List<OperableTrigger>>() {
+			@Override
+			List<OperableTrigger> mirror() throws JobPersistenceException {
+				return ram.acquireNextTriggers(noLaterThan, maxCount,
+						timeWindow);
+			}
+
+			@Override
+			List<OperableTrigger> dynamo() throws JobPersistenceException {
+				return MirroredDynamoDBJobStore.super.acquireNextTriggers(
+						noLaterThan, maxCount, timeWindow);
+			}
+		});
+	}
+
+	@Override
+	public void releaseAcquiredTrigger(final OperableTrigger trigger) {
+		try {
+			read(new Op<Void>() {
+				@Override
+				Void mirror() throws JobPersistenceException {
+					ram.releaseAcquiredTrigger(trigger);
+					return null;
+				}
+
+				@Override
+				Void dynamo() throws JobPersistenceException {
+					MirroredDynamoDBJobStore.super
+							.releaseAcquiredTrigger(trigger);
+					return null;
+				}
+			});
+		} catch (JobPersistenceException e) {
+			LOG.error(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public List<TriggerFiredResult> triggersFired(
+			final List<OperableTrigger> triggers)
+			throws JobPersistenceException {
+		this.modeLock.readLock().lock();
+		try {
+			if (!this.active) {
+				return super.triggersFired(triggers);
+			}
+			synchronized (this.ram) {
+				List<TriggerFiredResult> results = this.ram
+						.triggersFired(triggers);
+				// Persist the fired triggers' next fire times
+				for (TriggerFiredResult r : results) {
+					if (r.getTriggerFiredBundle() != null) {
+						replayTrigger(r.getTriggerFiredBundle().getTrigger()
+								.getKey());
+					}
+				}
+				return results;
+			}
+		} finally {
+			this.modeLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void triggeredJobComplete(OperableTrigger trigger,
+			JobDetail jobDetail, CompletedExecutionInstruction triggerInstCode) {
+		this.modeLock.readLock().lock();
+		try {
+			if (!this.active) {
+				super.triggeredJobComplete(trigger, jobDetail, triggerInstCode);
+				return;
+			}
+			synchronized (this.ram) {
+				this.ram.triggeredJobComplete(trigger, jobDetail,
+						triggerInstCode);
+				final JobKey jobKey = jobDetail.getKey();
+				if (triggerInstCode == CompletedExecutionInstruction.SET_ALL_JOB_TRIGGERS_COMPLETE
+						|| triggerInstCode == CompletedExecutionInstruction.SET_ALL_JOB_TRIGGERS_ERROR) {
+					for (OperableTrigger t : this.ram.getTriggersForJob(jobKey)) {
+						replayTrigger(t.getKey());
+					}
+				}
+				replayTrigger(trigger.getKey());
+				final JobDetail j = this.ram.retrieveJob(jobKey);
+				if (j == null) {
+					replay(new Op<Boolean>() {
+						@Override
+						Boolean mirror() {
+							return null;
+						}
+
+						@Override
+						Boolean dynamo() throws JobPersistenceException {
+							return MirroredDynamoDBJobStore.super
+									.removeJob(jobKey);
+						}
+					});
+				} else if (jobDetail.isPersistJobDataAfterExecution()) {
+					replay(new Op<Void>() {
+						@Override
+						Void mirror() {
+							return null;
+						}
+
+						@Override
+						Void dynamo() throws JobPersistenceException {
+							MirroredDynamoDBJobStore.super.storeJob(j, true);
+							return null;
+						}
+					});
+				}
+			}
+		} catch (JobPersistenceException e) {
+			LOG.error(e.getMessage(), e);
+		} finally {
+			this.modeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues a write of the mirrored trigger and its state, or its removal if
+	 * no longer mirrored.
+	 */
+	private void replayTrigger(final TriggerKey key)
+			throws JobPersistenceException {
+		final OperableTrigger t = this.ram.retrieveTrigger(key);
+		TriggerState s = this.ram.getTriggerState(key);
+		if (s == TriggerState.BLOCKED || s == TriggerState.NONE) {
+			s = TriggerState.NORMAL;
+		}
+		final TriggerState state = s;
+		replay(new Op<Void>() {
+			@Override
+			Void mirror() {
+				return null;
+			}
+
+			@Override
+			Void dynamo() throws JobPersistenceException {
+				if (t == null) {
+					MirroredDynamoDBJobStore.super.removeTrigger(key);
+				} else {
+					writeTrigger(t, state);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void setInstanceId(String instanceId) {
+		super.setInstanceId(instanceId);
+		this.instanceId = instanceId;
+		this.ram.setInstanceId(instanceId);
+	}
+
+	@Override
+	public void setInstanceName(String instanceName) {
+		super.setInstanceName(instanceName);
+		this.ram.setInstanceName(instanceName);
+	}
+
+	@Override
+	public void setThreadPoolSize(int poolSize) {
+		super.setThreadPoolSize(poolSize);
+		this.ram.setThreadPoolSize(poolSize);
+	}
+
+	@Override
+	public void setMisfireThreshold(long misfireThreshold) {
+		super.setMisfireThreshold(misfireThreshold);
+		this.ram.setMisfireThreshold(misfireThreshold);
+	}
+
+	@Override
+	public void setMakeThreadsDaemons(boolean makeThreadsDaemons) {
+		super.setMakeThreadsDaemons(makeThreadsDaemons);
+		this.makeThreadsDaemons = makeThreadsDaemons;
+	}
+
+	@Override
+	public void setLookAhead(boolean lookAhead) {
+		if (lookAhead) {
+			LOG.warn("Look-ahead queue not used in mirrored mode");
+		}
+	}
+
+	public void setReloadSegments(int reloadSegments) {
+		LOG.debug("setReloadSegments: " + reloadSegments);
+		this.reloadSegments = reloadSegments;
+	}
+
+	/**
+	 * @return Writes queued for DynamoDB and not yet applied
+	 */
+	public int getPendingWrites() {
+		Writer w = this.writer;
+		return w != null ? w.queue.size() : 0;
+	}
+
+	/**
+	 * @return true if another scheduler instance has taken the fencing token
+	 */
+	public boolean isFenced() {
+		return this.fenced;
+	}
+
+	/**
+	 * Applies queued writes to DynamoDB in order, each conditional on the
+	 * fencing token. Writes failing while DynamoDB is degraded, and batches
+	 * whose token could not be checked, are retried in order with backoff.
+	 */
+	private class Writer extends Thread {
+		private final BlockingQueue<Op<?>> queue = new LinkedBlockingQueue<Op<?>>();
+		private volatile boolean shutdown = false;
+
+		Writer() {
+			this.setName("DynamoDBJobStore-" + instanceId + "-Writer");
+			this.setDaemon(makeThreadsDaemons);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			List<Op<?>> batch = new ArrayList<Op<?>>();
+			long delay = RETRY_MIN;
+			int retries = 0;
+			while (true) {
+				if (batch.isEmpty() && !this.shutdown) {
+					try {
+						batch.add(this.queue.take());
+					} catch (InterruptedException e) {
+						// Flush and exit when shut down
+					}
+				}
+				this.queue.drainTo(batch);
+				if (batch.isEmpty()) {
+					if (this.shutdown) {
+						return;
+					}
+					continue;
+				}
+				if (!fenced && apply(batch)) {
+					delay = RETRY_MIN;
+					retries = 0;
+					continue;
+				}
+				if (fenced) {
+					LOG.error("Fencing token " + fence
+							+ " taken by another instance, dropping "
+							+ batch.size() + " writes");
+					failedWrites.addAndGet(batch.size());
+					batch.clear();
+					continue;
+				}
+				if (this.shutdown && ++retries > SHUTDOWN_RETRIES) {
+					LOG.error("Dropping " + batch.size()
+							+ " writes on shutdown");
+					failedWrites.addAndGet(batch.size());
+					batch.clear();
+					continue;
+				}
+				LOG.warn("Retrying " + batch.size() + " writes in " + delay
+						+ "ms");
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					// Retried at once when shut down
+				}
+				delay = Math.min(delay * 2L, RETRY_MAX);
+			}
+		}
+
+		/**
+		 * Applies writes in order, removing each applied or permanently
+		 * failed write from the batch.
+		 *
+		 * @return false if writes are left to retry or the writer was fenced
+		 *         out
+		 */
+		private boolean apply(List<Op<?>> batch) {
+			try {
+				if (!checkFence(fence)) {
+					fenced = true;
+					return false;
+				}
+			} catch (JobPersistenceException e) {
+				LOG.error("Fencing token not checked: " + e.getMessage(), e);
+				return false;
+			}
+			while (!batch.isEmpty()) {
+				Op<?> op = batch.get(0);
+				CallContext ctx = CallContext.enterFenced(fence);
+				try {
+					op.dynamo();
+					writes.incrementAndGet();
+				} catch (JobPersistenceException e) {
+					if (e.getCause() instanceof FencedWrites.FencedOutException) {
+						fenced = true;
+						return false;
+					} else if (isDegraded(e)) {
+						LOG.error(e.getMessage(), e);
+						return false;
+					}
+					failedWrites.incrementAndGet();
+					LOG.error(e.getMessage(), e);
+				} catch (FencedWrites.FencedOutException e) {
+					fenced = true;
+					return false;
+				} catch (AmazonClientException e) {
+					if (DynamoDBRetryPolicy.isDegraded(e)) {
+						LOG.error(e.getMessage(), e);
+						return false;
+					}
+					failedWrites.incrementAndGet();
+					LOG.error(e.getMessage(), e);
+				} catch (RuntimeException e) {
+					failedWrites.incrementAndGet();
+					LOG.error(e.getMessage(), e);
+				} finally {
+					ctx.exit();
+				}
+				batch.remove(0);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Level 0 has one slot per tick, each higher
+ * level has slots {@link #SIZE} times wider, and entries cascade down as
+ * their slot comes up, so scheduling and expiring are constant time per
+ * entry. Not thread safe.
+ *
+ * @param <T>
+ *            Entry type
+ */
+final class TimingWheel<T> {
+	/**
+	 * Scheduled entry.
+	 */
+	static final class Timeout<T> {
+		private final T item;
+		private final long deadline;
+		private boolean cancelled = false;
+
+		private Timeout(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+
+		T item() {
+			return this.item;
+		}
+
+		long deadline() {
+			return this.deadline;
+		}
+	}
+
+	private static final int BITS = 6;
+	private static final int SIZE = 1 << BITS;
+	private static final int MASK = SIZE - 1;
+	private static final int LEVELS = 4;
+
+	private final long tick;
+	private final List<List<Timeout<T>>> slots = new ArrayList<List<Timeout<T>>>();
+	private final List<Timeout<T>> ready = new ArrayList<Timeout<T>>();
+	// Last expired tick
+	private long ticks;
+	private int size = 0;
+
+	/**
+	 * @param tick
+	 *            Milliseconds per level 0 slot
+	 * @param start
+	 *            Start time in milliseconds
+	 */
+	TimingWheel(long tick, long start) {
+		this.tick = Math.max(1L, tick);
+		this.ticks = start / this.tick;
+		for (int i = 0; i < LEVELS * SIZE; i++) {
+			this.slots.add(new ArrayList<Timeout<T>>());
+		}
+	}
+
+	/**
+	 * @return Number of scheduled entries, including cancelled ones not yet
+	 *         expired
+	 */
+	int size() {
+		return this.size;
+	}
+
+	Timeout<T> schedule(T item, long deadline) {
+		Timeout<T> t = new Timeout<T>(item, deadline);
+		place(t);
+		this.size++;
+		return t;
+	}
+
+	void cancel(Timeout<T> t) {
+		t.cancelled = true;
+	}
+
+	/**
+	 * Advances the wheel.
+	 *
+	 * @param now
+	 *            Current time in milliseconds
+	 * @return Entries due no later than the tick holding the time, in
+	 *         deadline order within a tick
+	 */
+	List<T> advance(long now) {
+		List<T> due = new ArrayList<T>();
+		long target = now / this.tick;
+		if (this.size == 0) {
+			this.ticks = Math.max(this.ticks, target);
+			return due;
+		}
+		expire(this.ready, due);
+		while (this.ticks < target && this.size > 0) {
+			this.ticks++;
+			// Cascade higher levels whose slot came up
+			for (int level = 1; level < LEVELS; level++) {
+				if ((this.ticks & ((1L << (BITS * level)) - 1)) != 0) {
+					break;
+				}
+				List<Timeout<T>> slot = slot(level,
+						(int) ((this.ticks >>> (BITS * level)) & MASK));
+				List<Timeout<T>> cascaded = new ArrayList<Timeout<T>>(slot);
+				slot.clear();
+				for (Timeout<T> t : cascaded) {
+					place(t);
+				}
+			}
+			expire(slot(0, (int) (this.ticks & MASK)), due);
+			expire(this.ready, due);
+		}
+		this.ticks = Math.max(this.ticks, target);
+		return due;
+	}
+
+	private void expire(List<Timeout<T>> slot, List<T> due) {
+		if (slot.isEmpty()) {
+			return;
+		}
+		List<Timeout<T>> l = new ArrayList<Timeout<T>>(slot);
+		slot.clear();
+		Collections.sort(l, new Comparator<Timeout<T>>() {
+			@Override
+			public int compare(Timeout<T> a, Timeout<T> b) {
+				return a.deadline < b.deadline ? -1
+						: (a.deadline > b.deadline ? 1 : 0);
+			}
+		});
+		for (Timeout<T> t : l) {
+			this.size--;
+			if (!t.cancelled) {
+				due.add(t.item);
+			}
+		}
+	}
+
+	private void place(Timeout<T> t) {
+		long at = t.deadline / this.tick;
+		long delta = at - this.ticks;
+		if (delta <= 0) {
+			this.ready.add(t);
+			return;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		if (delta >= 1L << (BITS * LEVELS)) {
+			// Beyond the top level, placed in its last slot and re-placed
+			// when cascaded
+			at = this.ticks + (1L << (BITS * LEVELS)) - 1L;
+		}
+		slot(level, (int) ((at >>> (BITS * level)) & MASK)).add(t);
+	}
+
+	private List<Timeout<T>> slot(int level, int index) {
+		return this.slots.get(level * SIZE + index);
+	}
+}
@@ -0,0 +1,244 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.quartz.JobPersistenceException;
+import org.quartz.Trigger;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerKey;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local queue of triggers due within a look-ahead window, ordered like
+ * {@link Trigger.TriggerTimeComparator}. A background fetcher reloads the
+ * queue periodically, and store writes update it, so acquisition can skip
+ * querying DynamoDB. DynamoDB stays the source of truth: acquisition locks
+ * queued triggers conditionally on their queued next fire time.
+ */
+final class TriggerLookAhead {
+	/**
+	 * Loads unlocked triggers in normal state due no later than a time.
+	 */
+	interface Loader {
+		List<OperableTrigger> load(long notAfter, int limit)
+				throws JobPersistenceException;
+	}
+
+	// Class logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TriggerLookAhead.class);
+
+	// Instance variables, guarded by this
+	private final TreeSet<OperableTrigger> queue = new TreeSet<OperableTrigger>(
+			new Trigger.TriggerTimeComparator());
+	private final Map<TriggerKey, OperableTrigger> byKey = new HashMap<TriggerKey, OperableTrigger>();
+	private final Set<TriggerKey> dirty = new HashSet<TriggerKey>();
+	private boolean loading = false;
+	private long loadedUntil = 0L;
+
+	private final Loader loader;
+	private final SchedulerSignaler signaler;
+	private final long window;
+	private final long refresh;
+	private final int maxSize;
+	private Fetcher fetcher;
+
+	/**
+	 * @param loader
+	 *            Trigger loader
+	 * @param signaler
+	 *            Signaler notified when a reload finds earlier triggers
+	 * @param window
+	 *            Milliseconds ahead to load
+	 * @param refresh
+	 *            Milliseconds between reloads
+	 * @param maxSize
+	 *            Maximum queued triggers
+	 */
+	TriggerLookAhead(Loader loader, SchedulerSignaler signaler, long window,
+			long refresh, int maxSize) {
+		this.loader = loader;
+		this.signaler = signaler;
+		this.window = window;
+		this.refresh = refresh;
+		this.maxSize = maxSize;
+	}
+
+	void start(String name, boolean daemon) {
+		this.fetcher = new Fetcher(name, daemon);
+		this.fetcher.start();
+	}
+
+	void shutdown() {
+		if (this.fetcher != null) {
+			this.fetcher.shutdown();
+			try {
+				this.fetcher.join();
+			} catch (InterruptedException e) {
+				LOG.error(e.getMessage(), e);
+			}
+			this.fetcher = null;
+		}
+	}
+
+	/**
+	 * @param notBefore
+	 *            Lower bound of next fire time, except for triggers ignoring
+	 *            misfires
+	 * @param notAfter
+	 *            Upper bound of next fire time
+	 * @return Queued triggers in range, in order, or null if the queue does
+	 *         not cover the range and DynamoDB must be queried
+	 */
+	synchronized List<OperableTrigger> due(long notBefore, long notAfter) {
+		if (notAfter > this.loadedUntil) {
+			return null;
+		}
+		List<OperableTrigger> l = new ArrayList<OperableTrigger>();
+		for (OperableTrigger t : this.queue) {
+			long next = t.getNextFireTime().getTime();
+			if (next > notAfter) {
+				break;
+			}
+			if (next >= notBefore
+					|| t.getMisfireInstruction() == Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY) {
+				l.add((OperableTrigger) t.clone());
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Updates the queued copy of a stored trigger.
+	 *
+	 * @param t
+	 *            Trigger
+	 * @param state
+	 *            Stored state
+	 */
+	synchronized void update(OperableTrigger t, TriggerState state) {
+		remove(t.getKey());
+		if (state == TriggerState.NORMAL && t.getNextFireTime() != null
+				&& t.getNextFireTime().getTime() <= this.loadedUntil) {
+			OperableTrigger c = (OperableTrigger) t.clone();
+			this.queue.add(c);
+			this.byKey.put(c.getKey(), c);
+		}
+	}
+
+	synchronized void remove(TriggerKey key) {
+		if (this.loading) {
+			this.dirty.add(key);
+		}
+		OperableTrigger t = this.byKey.remove(key);
+		if (t != null) {
+			this.queue.remove(t);
+		}
+	}
+
+	synchronized void clear() {
+		this.queue.clear();
+		this.byKey.clear();
+		this.loadedUntil = 0L;
+	}
+
+	/**
+	 * Reloads the queue.
+	 *
+	 * @return Earliest queued next fire time, or Long.MAX_VALUE if empty
+	 * @throws JobPersistenceException
+	 */
+	long reload() throws JobPersistenceException {
+		synchronized (this) {
+			this.loading = true;
+			this.dirty.clear();
+		}
+		long until = System.currentTimeMillis() + this.window;
+		List<OperableTrigger> loaded;
+		try {
+			loaded = this.loader.load(until, this.maxSize);
+		} finally {
+			synchronized (this) {
+				this.loading = false;
+			}
+		}
+		synchronized (this) {
+			if (this.maxSize > 0 && loaded.size() >= this.maxSize) {
+				// Only covered up to the last loaded trigger
+				until = loaded.get(loaded.size() - 1).getNextFireTime()
+						.getTime() - 1L;
+			}
+			// Keep entries written while loading, they are newer
+			Map<TriggerKey, OperableTrigger> written = new HashMap<TriggerKey, OperableTrigger>();
+			for (TriggerKey k : this.dirty) {
+				OperableTrigger t = this.byKey.get(k);
+				if (t != null) {
+					written.put(k, t);
+				}
+			}
+			this.queue.clear();
+			this.byKey.clear();
+			for (OperableTrigger t : loaded) {
+				if (!this.dirty.contains(t.getKey())
+						&& t.getNextFireTime() != null
+						&& t.getNextFireTime().getTime() <= until) {
+					this.queue.add(t);
+					this.byKey.put(t.getKey(), t);
+				}
+			}
+			for (OperableTrigger t : written.values()) {
+				this.queue.add(t);
+				this.byKey.put(t.getKey(), t);
+			}
+			this.dirty.clear();
+			this.loadedUntil = until;
+			return this.queue.isEmpty() ? Long.MAX_VALUE : this.queue.first()
+					.getNextFireTime().getTime();
+		}
+	}
+
+	private class Fetcher extends Thread {
+		private volatile boolean shutdown = false;
+
+		Fetcher(String name, boolean daemon) {
+			setName(name);
+			setDaemon(daemon);
+		}
+
+		void shutdown() {
+			this.shutdown = true;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			long earliest = Long.MAX_VALUE;
+			while (!this.shutdown) {
+				try {
+					long e = reload();
+					if (e < earliest) {
+						signaler.signalSchedulingChange(e);
+					}
+					earliest = e;
+				} catch (JobPersistenceException e) {
+					LOG.error(e.getMessage(), e);
+				} catch (RuntimeException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				try {
+					Thread.sleep(refresh);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.quartz.JobPersistenceException;
+
+public class CompletionJournalTest extends TestCase {
+	private static final int SIZE = 4096;
+	private static final int HEADER = 24;
+
+	/**
+	 * Collects applied records, failing at a given record.
+	 */
+	private static class Recorder implements CompletionJournal.Applier {
+		final List<String> ids = new ArrayList<String>();
+		final List<String> ops = new ArrayList<String>();
+		final List<String[]> args = new ArrayList<String[]>();
+		String failOn;
+
+		@Override
+		public void apply(String id, String op, String[] args)
+				throws JobPersistenceException {
+			if (op.equals(this.failOn)) {
+				throw new JobPersistenceException("failing " + op);
+			}
+			this.ids.add(id);
+			this.ops.add(op);
+			this.args.add(args);
+		}
+	}
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.file = File.createTempFile("journal", ".dat");
+		this.file.deleteOnExit();
+		// Start from an empty file
+		new RandomAccessFile(this.file, "rw").setLength(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.file.delete();
+	}
+
+	public void testReplaysInOrder() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		assertTrue(j.isEmpty());
+		j.append("a", "1", null);
+		j.append("b");
+		j.append("c", "x", "y", "z");
+		assertFalse(j.isEmpty());
+
+		Recorder r = new Recorder();
+		assertEquals(3, j.replay(r));
+		assertEquals(Arrays.asList("node:1", "node:2", "node:3"), r.ids);
+		assertEquals(Arrays.asList("a", "b", "c"), r.ops);
+		assertTrue(Arrays.equals(new String[] { "1", null }, r.args.get(0)));
+		assertEquals(0, r.args.get(1).length);
+		assertTrue(Arrays.equals(new String[] { "x", "y", "z" },
+				r.args.get(2)));
+		assertTrue(j.isEmpty());
+		assertEquals(0, j.replay(r));
+	}
+
+	public void testReplayStopsAtFailureAndResumes() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		j.append("a");
+		j.append("b");
+		j.append("c");
+
+		Recorder r = new Recorder();
+		r.failOn = "b";
+		assertEquals(1, j.replay(r));
+		assertEquals(Arrays.asList("a"), r.ops);
+		assertFalse(j.isEmpty());
+
+		r.failOn = null;
+		assertEquals(2, j.replay(r));
+		assertEquals(Arrays.asList("a", "b", "c"), r.ops);
+		assertEquals(Arrays.asList("node:1", "node:2", "node:3"), r.ids);
+		assertTrue(j.isEmpty());
+	}
+
+	public void testRecoversPendingRecordsOnReopen() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		j.append("a");
+		j.append("b");
+		Recorder r = new Recorder();
+		r.failOn = "b";
+		assertEquals(1, j.replay(r));
+
+		// Reopen as after a restart, only the unapplied record is replayed
+		j = new CompletionJournal(this.file, SIZE, "node");
+		assertFalse(j.isEmpty());
+		j.append("c");
+		r = new Recorder();
+		assertEquals(2, j.replay(r));
+		assertEquals(Arrays.asList("b", "c"), r.ops);
+		assertEquals(Arrays.asList("node:2", "node:3"), r.ids);
+	}
+
+	public void testSequenceSurvivesDrainAndReopen() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		j.append("a");
+		j.append("b");
+		assertEquals(2, j.replay(new Recorder()));
+
+		j = new CompletionJournal(this.file, SIZE, "node");
+		assertTrue(j.isEmpty());
+		j.append("c");
+		Recorder r = new Recorder();
+		assertEquals(1, j.replay(r));
+		assertEquals(Arrays.asList("node:3"), r.ids);
+	}
+
+	public void testDropsTornAppend() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		j.append("a");
+		j.append("b");
+
+		// Corrupt the payload of the second record, as if its write was torn
+		RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try {
+			raf.seek(HEADER);
+			int first = raf.readInt();
+			long second = HEADER + 8 + first;
+			raf.seek(second + 8 + 4);
+			int b = raf.read();
+			raf.seek(second + 8 + 4);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+
+		j = new CompletionJournal(this.file, SIZE, "node");
+		Recorder r = new Recorder();
+		assertEquals(1, j.replay(r));
+		assertEquals(Arrays.asList("a"), r.ops);
+		assertTrue(j.isEmpty());
+
+		// Appends overwrite the torn record
+		j.append("c");
+		r = new Recorder();
+		assertEquals(1, j.replay(r));
+		assertEquals(Arrays.asList("c"), r.ops);
+		assertEquals(Arrays.asList("node:3"), r.ids);
+	}
+
+	public void testDropsRecordWithoutLength() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		j.append("a");
+
+		// A crash before the length is written leaves a zero length
+		RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try {
+			raf.seek(HEADER);
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+
+		j = new CompletionJournal(this.file, SIZE, "node");
+		assertTrue(j.isEmpty());
+		assertEquals(0, j.replay(new Recorder()));
+	}
+
+	public void testFull() throws IOException {
+		CompletionJournal j = new CompletionJournal(this.file, SIZE, "node");
+		char[] c = new char[500];
+		Arrays.fill(c, 'x');
+		String arg = new String(c);
+		int appended = 0;
+		try {
+			while (appended < SIZE) {
+				j.append("a", arg);
+				appended++;
+			}
+			fail("Journal did not fill up");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertTrue(appended > 0);
+
+		// Records appended before it filled up are intact
+		Recorder r = new Recorder();
+		assertEquals(appended, j.replay(r));
+		j.append("b");
+		assertEquals(1, j.replay(r));
+	}
+}
@@ -0,0 +1,416 @@
+package io.azam.aws.dynamodb.quartz;
+
+import static org.quartz.JobBuilder.newJob;
+import static org.quartz.SimpleScheduleBuilder.repeatSecondlyForever;
+import static org.quartz.TriggerBuilder.newTrigger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import junit.framework.TestCase;
+
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.simpl.CascadingClassLoadHelper;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+import org.quartz.spi.TriggerFiredResult;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+
+public class DynamoDBJobStoreTest extends TestCase {
+	static final long TIMEOUT = 5000L;
+	private static final int JOURNAL_SIZE = 4096;
+
+	public static class NoOpJob implements Job {
+		@Override
+		public void execute(JobExecutionContext context) {
+			// Never run
+		}
+	}
+
+	private InMemoryDynamoDB db;
+	private DynamoDBJobStore store;
+	private File journal;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.db = new InMemoryDynamoDB();
+		this.store = store(this.db);
+		this.journal = File.createTempFile("journal", ".dat");
+		this.journal.delete();
+		this.journal.deleteOnExit();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.store.shutdown();
+		this.journal.delete();
+	}
+
+	public void testReplaysJournaledDataOnce() throws Exception {
+		// Journaled while DynamoDB was degraded, the first update was
+		// applied before a restart and the second was not
+		CompletionJournal j = new CompletionJournal(this.journal,
+				JOURNAL_SIZE, "test");
+		j.append(DynamoDBJobStore.JOURNAL_DATA, "g", "applied",
+				serialize(data("replayed")));
+		j.append(DynamoDBJobStore.JOURNAL_DATA, "g", "pending",
+				serialize(data("replayed")));
+		this.store.setJournalFile(this.journal.getPath());
+		this.store.setJournalSize(JOURNAL_SIZE);
+		this.store.setJournalReplayInterval(10L);
+		init(this.store);
+		this.store.storeJob(durableJob("applied", "stored"), false);
+		this.store.storeJob(durableJob("pending", "stored"), false);
+		Map<String, AttributeValue> item = job("applied");
+		item.put(DynamoDBJobStore.KEY_JOURNAL, new AttributeValue("test:1"));
+		this.db.put(DynamoDBJobStore.DEFAULT_JOBS, item);
+
+		this.store.schedulerStarted();
+		// Records replay in order, so the first was handled by then
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!"replayed".equals(value("pending"))) {
+			assertTrue("Journaled data not replayed",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+		assertEquals("stored", value("applied"));
+		assertEquals("test:2", job("pending").get(DynamoDBJobStore.KEY_JOURNAL)
+				.getS());
+	}
+
+	public void testCountsItemVersions() throws Exception {
+		init(this.store);
+		JobDetail job = durableJob("j", "stored");
+		this.store.storeJob(job, false);
+		assertEquals("1", job("j").get(DynamoDBJobStore.KEY_VERSION).getN());
+		this.store.storeJob(job, true);
+		assertEquals("2", job("j").get(DynamoDBJobStore.KEY_VERSION).getN());
+
+		OperableTrigger trigger = trigger("t", job);
+		this.store.storeTrigger(trigger, false);
+		assertEquals("1", trigger("t").get(DynamoDBJobStore.KEY_VERSION)
+				.getN());
+		this.store.storeTrigger(trigger, true);
+		assertEquals("2", trigger("t").get(DynamoDBJobStore.KEY_VERSION)
+				.getN());
+		this.store.pauseTrigger(trigger.getKey());
+		assertEquals("3", trigger("t").get(DynamoDBJobStore.KEY_VERSION)
+				.getN());
+		assertTrue(this.store.replaceTrigger(trigger.getKey(), trigger));
+		assertEquals("4", trigger("t").get(DynamoDBJobStore.KEY_VERSION)
+				.getN());
+	}
+
+	public void testReplaysJournaledRemoveOfCommittedTrigger()
+			throws Exception {
+		// Journaled on completion of firings committed at version 1
+		CompletionJournal j = new CompletionJournal(this.journal,
+				JOURNAL_SIZE, "test");
+		j.append(DynamoDBJobStore.JOURNAL_REMOVE, "g", "restored", "f1", "1");
+		j.append(DynamoDBJobStore.JOURNAL_REMOVE, "g", "fired", "f2", "1");
+		this.store.setJournalFile(this.journal.getPath());
+		this.store.setJournalSize(JOURNAL_SIZE);
+		this.store.setJournalReplayInterval(10L);
+		init(this.store);
+		JobDetail job = durableJob("j", "stored");
+		this.store.storeJob(job, false);
+		this.store.storeTrigger(trigger("fired", job), false);
+		Map<String, AttributeValue> item = trigger("fired");
+		item.put(DynamoDBJobStore.KEY_INSTANCE, new AttributeValue("f2"));
+		this.db.put(DynamoDBJobStore.DEFAULT_TRIGGERS, item);
+		// Stored again after it was fired, so no longer as committed
+		this.store.storeTrigger(trigger("restored", job), false);
+		this.store.storeTrigger(trigger("restored", job), true);
+
+		this.store.schedulerStarted();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (trigger("fired") != null) {
+			assertTrue("Journaled remove not replayed",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+		assertNotNull(trigger("restored"));
+	}
+
+	public void testLimitsConcurrentRunsWithPermits() throws Exception {
+		this.store.setJobConcurrencyLimits("g:j=1");
+		init(this.store);
+		long now = System.currentTimeMillis();
+		// Without data, loaded when fired
+		JobDetail job = newJob(NoOpJob.class).withIdentity("j", "g")
+				.storeDurably().build();
+		this.store.storeJob(job, false);
+		this.store.storeTrigger(dueTrigger("a", job, now), false);
+		this.store.storeTrigger(dueTrigger("b", job, now), false);
+
+		// Only one of the due triggers fits the pool
+		List<OperableTrigger> acquired = this.store.acquireNextTriggers(
+				now + 1000L, 2, 0L);
+		assertEquals(1, acquired.size());
+		List<TriggerFiredResult> fired = this.store.triggersFired(acquired);
+		assertEquals(1, fired.size());
+		assertEquals("1", permits());
+		assertTrue(this.store.acquireNextTriggers(now + 5000L, 2, 0L)
+				.isEmpty());
+
+		// Returned on completion, with its holder item
+		this.store.triggeredJobComplete(fired.get(0).getTriggerFiredBundle()
+				.getTrigger(), job, CompletedExecutionInstruction.NOOP);
+		assertEquals("0", permits());
+		assertEquals(1, this.db.items(DynamoDBJobStore.DEFAULT_PERMITS)
+				.size());
+		assertEquals(1, this.store.acquireNextTriggers(now + 5000L, 2, 0L)
+				.size());
+	}
+
+	public void testReturnsPermitsOfTriggersNotRun() throws Exception {
+		this.store.setJobConcurrencyLimits("g:j=1");
+		init(this.store);
+		long now = System.currentTimeMillis();
+		// Without data, loaded when fired
+		JobDetail job = newJob(NoOpJob.class).withIdentity("j", "g")
+				.storeDurably().build();
+		this.store.storeJob(job, false);
+		this.store.storeTrigger(dueTrigger("a", job, now), false);
+		List<OperableTrigger> acquired = this.store.acquireNextTriggers(
+				now + 1000L, 1, 0L);
+		assertEquals(1, acquired.size());
+
+		// Job gone after the permit was taken, so the trigger is not run
+		this.db.deleteItem(new DeleteItemRequest().withTableName(
+				DynamoDBJobStore.DEFAULT_JOBS).withKey(
+				Collections.singletonMap(DynamoDBJobStore.KEY_KEY,
+						new AttributeValue("g:j"))));
+		assertTrue(this.store.triggersFired(acquired).isEmpty());
+		assertEquals("0", permits());
+		assertEquals(1, this.db.items(DynamoDBJobStore.DEFAULT_PERMITS)
+				.size());
+	}
+
+	public void testSkipsOccurrenceAlreadyFired() throws Exception {
+		this.store.setFireDedup(true);
+		init(this.store);
+		long now = System.currentTimeMillis();
+		// Without data, loaded when fired
+		JobDetail job = newJob(NoOpJob.class).withIdentity("j", "g")
+				.storeDurably().build();
+		OperableTrigger trigger = dueTrigger("t", job, now);
+		long scheduled = trigger.getNextFireTime().getTime();
+		this.store.storeJob(job, false);
+		this.store.storeTrigger(trigger, false);
+		Map<String, AttributeValue> stored = trigger("t");
+
+		List<OperableTrigger> acquired = this.store.acquireNextTriggers(
+				now + 1000L, 1, 0L);
+		assertEquals(1, this.store.triggersFired(acquired).size());
+		assertEquals(1, this.db.items(DynamoDBJobStore.DEFAULT_FIRED).size());
+
+		// As if the fired trigger was never stored and its lock recovered
+		this.db.put(DynamoDBJobStore.DEFAULT_TRIGGERS, stored);
+		acquired = this.store.acquireNextTriggers(now + 1000L, 1, 0L);
+		assertEquals(1, acquired.size());
+		assertTrue(this.store.triggersFired(acquired).isEmpty());
+		// Advanced past the occurrence and unlocked, without a second claim
+		assertEquals(Long.toString(scheduled + 1000L, 10), trigger("t")
+				.get(DynamoDBJobStore.KEY_NEXT).getN());
+		assertFalse(trigger("t").containsKey(DynamoDBJobStore.KEY_LOCKED));
+		assertEquals(1, this.db.items(DynamoDBJobStore.DEFAULT_FIRED).size());
+	}
+
+	public void testRequeuesReleasedAndResumedTriggers() throws Exception {
+		this.store.setLookAhead(true);
+		// Only the initial load, later queue entries come from store writes
+		this.store.setLookAheadRefresh(60000L);
+		Signaler signaler = new Signaler();
+		init(this.store, signaler);
+		long now = System.currentTimeMillis();
+		JobDetail job = durableJob("j", "stored");
+		OperableTrigger trigger = (OperableTrigger) newTrigger()
+				.withIdentity("t", "g").forJob(job)
+				.withSchedule(repeatSecondlyForever())
+				.startAt(new Date(now + 1000L)).build();
+		trigger.computeFirstFireTime(null);
+		this.store.storeJob(job, false);
+		this.store.storeTrigger(trigger, false);
+		this.store.schedulerStarted();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!signaler.changes.contains(trigger.getNextFireTime().getTime())) {
+			assertTrue("Look-ahead queue not loaded",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+
+		// Acquired from the queue, which then covers the window without it
+		List<OperableTrigger> acquired = this.store.acquireNextTriggers(
+				now + 5000L, 1, 0L);
+		assertEquals(1, acquired.size());
+		this.store.releaseAcquiredTrigger(acquired.get(0));
+		acquired = this.store.acquireNextTriggers(now + 5000L, 1, 0L);
+		assertEquals(1, acquired.size());
+		this.store.releaseAcquiredTrigger(acquired.get(0));
+
+		this.store.pauseTrigger(trigger.getKey());
+		assertTrue(this.store.acquireNextTriggers(now + 5000L, 1, 0L)
+				.isEmpty());
+		this.store.resumeTrigger(trigger.getKey());
+		acquired = this.store.acquireNextTriggers(now + 5000L, 1, 0L);
+		assertEquals(1, acquired.size());
+		assertEquals(trigger.getKey(), acquired.get(0).getKey());
+	}
+
+	/**
+	 * @return Stored item of a job in group g
+	 */
+	private Map<String, AttributeValue> job(String name) {
+		return this.db.item(DynamoDBJobStore.DEFAULT_JOBS, Collections
+				.singletonMap(DynamoDBJobStore.KEY_KEY, new AttributeValue(
+						"g:" + name)));
+	}
+
+	/**
+	 * @return Stored item of a trigger in group g, or null
+	 */
+	private Map<String, AttributeValue> trigger(String name) {
+		return this.db.item(DynamoDBJobStore.DEFAULT_TRIGGERS, Collections
+				.singletonMap(DynamoDBJobStore.KEY_KEY, new AttributeValue(
+						"g:" + name)));
+	}
+
+	/**
+	 * @return Stored count of permits taken for job g:j
+	 */
+	private String permits() {
+		return this.db
+				.item(DynamoDBJobStore.DEFAULT_PERMITS,
+						Collections.singletonMap(DynamoDBJobStore.KEY_KEY,
+								new AttributeValue(DynamoDBJobStore.PERMIT_JOB
+										+ "g:j")))
+				.get(DynamoDBJobStore.KEY_COUNT).getN();
+	}
+
+	/**
+	 * @return Stored job data value of a job in group g
+	 */
+	private String value(String name) {
+		return job(name).get(DynamoDBJobStore.KEY_DATA).getM().get("v")
+				.getS();
+	}
+
+	private static JobDetail durableJob(String name, String value) {
+		return newJob(NoOpJob.class).withIdentity(name, "g").storeDurably()
+				.usingJobData(data(value)).build();
+	}
+
+	private static OperableTrigger trigger(String name, JobDetail job) {
+		OperableTrigger t = (OperableTrigger) newTrigger()
+				.withIdentity(name, "g").forJob(job)
+				.withSchedule(repeatSecondlyForever())
+				.startAt(new Date(System.currentTimeMillis() + 3600000L))
+				.build();
+		t.computeFirstFireTime(null);
+		return t;
+	}
+
+	private static OperableTrigger dueTrigger(String name, JobDetail job,
+			long now) {
+		OperableTrigger t = (OperableTrigger) newTrigger()
+				.withIdentity(name, "g").forJob(job)
+				.withSchedule(repeatSecondlyForever()).startAt(new Date(now))
+				.build();
+		t.computeFirstFireTime(null);
+		return t;
+	}
+
+	private static JobDataMap data(String value) {
+		JobDataMap m = new JobDataMap();
+		m.put("v", value);
+		return m;
+	}
+
+	private static String serialize(Object o) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(o);
+		oos.close();
+		return DatatypeConverter.printBase64Binary(baos.toByteArray());
+	}
+
+	/**
+	 * @return Store using the given client, not yet initialized
+	 */
+	static DynamoDBJobStore store(final InMemoryDynamoDB db) {
+		return new DynamoDBJobStore() {
+			@Override
+			AmazonDynamoDBAsync buildClient(
+					AmazonDynamoDBAsyncClientBuilder builder) {
+				return db;
+			}
+		};
+	}
+
+	static void init(DynamoDBJobStore store) throws Exception {
+		init(store, new Signaler());
+	}
+
+	static void init(DynamoDBJobStore store, Signaler signaler)
+			throws Exception {
+		store.setInstanceId("test");
+		store.setInstanceName("test");
+		CascadingClassLoadHelper loadHelper = new CascadingClassLoadHelper();
+		loadHelper.initialize();
+		store.initialize(loadHelper, signaler);
+	}
+
+	/**
+	 * Records scheduling changes and ignores other signals.
+	 */
+	static class Signaler implements SchedulerSignaler {
+		final List<Long> changes = Collections
+				.synchronizedList(new ArrayList<Long>());
+
+		@Override
+		public void notifyTriggerListenersMisfired(Trigger trigger) {
+			// Ignored
+		}
+
+		@Override
+		public void notifySchedulerListenersFinalized(Trigger trigger) {
+			// Ignored
+		}
+
+		@Override
+		public void notifySchedulerListenersJobDeleted(JobKey jobKey) {
+			// Ignored
+		}
+
+		@Override
+		public void signalSchedulingChange(long candidateNewNextFireTime) {
+			this.changes.add(candidateNewNextFireTime);
+		}
+
+		@Override
+		public void notifySchedulerListenersError(String string,
+				SchedulerException jpe) {
+			// Ignored
+		}
+	}
+}
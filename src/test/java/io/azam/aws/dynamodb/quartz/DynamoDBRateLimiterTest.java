@@ -0,0 +1,191 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.BillingModeSummary;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.Update;
+
+public class DynamoDBRateLimiterTest extends TestCase {
+	private static final double DELTA = 0.1;
+
+	public void testConfiguresProvisionedTableAndIndexes() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 10, 5).withGlobalSecondaryIndexes(
+				new GlobalSecondaryIndexDescription().withIndexName("i")
+						.withProvisionedThroughput(throughput(4, 2))));
+		Map<String, Double> rates = l.getRates();
+		assertEquals(4, rates.size());
+		assertEquals(10.0, rates.get("t:read"), DELTA);
+		assertEquals(5.0, rates.get("t:write"), DELTA);
+		assertEquals(4.0, rates.get("t.i:read"), DELTA);
+		assertEquals(2.0, rates.get("t.i:write"), DELTA);
+	}
+
+	public void testSkipsOnDemandTable() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 10, 5).withBillingModeSummary(
+				new BillingModeSummary()
+						.withBillingMode(BillingMode.PAY_PER_REQUEST)));
+		assertTrue(l.getRates().isEmpty());
+	}
+
+	public void testThrottleHalvesRateDownToFloor() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 100, 100));
+		attempt(l, true, throttle());
+		assertEquals(50.0, l.getRates().get("t:read"), 1.0);
+		assertEquals(100.0, l.getRates().get("t:write"), DELTA);
+		for (int i = 0; i < 10; i++) {
+			attempt(l, true, throttle());
+		}
+		assertEquals(10.0, l.getRates().get("t:read"), 1.0);
+	}
+
+	public void testOtherFailuresKeepRate() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 100, 100));
+		AmazonServiceException e = new AmazonServiceException("missing");
+		e.setErrorCode("ResourceNotFoundException");
+		attempt(l, true, e);
+		assertEquals(100.0, l.getRates().get("t:read"), DELTA);
+	}
+
+	public void testBackgroundRequestsKeepReserve() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 10, 10));
+		// Drain the bucket on the firing path, which never waits for the
+		// reserve
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			attempt(l, true, null);
+		}
+		assertTrue(System.nanoTime() - start < 500000000L);
+		// Background work waits until half of the bucket has refilled
+		start = System.nanoTime();
+		attempt(l, false, null);
+		assertTrue(System.nanoTime() - start >= 300000000L);
+	}
+
+	public void testRefundsFailedAttempts() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 10, 10));
+		AmazonServiceException e = new AmazonServiceException("failed");
+		e.setErrorCode("InternalServerError");
+		for (int i = 0; i < 10; i++) {
+			attempt(l, true, e);
+		}
+		// Nothing was consumed, so background work proceeds at once
+		long start = System.nanoTime();
+		attempt(l, false, null);
+		assertTrue(System.nanoTime() - start < 300000000L);
+	}
+
+	public void testChargesTransactionsPerTable() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 10, 10));
+		l.configure(provisioned("u", 10, 10));
+		// Five items on t cost all of its ten units, one on u costs two
+		attempt(l, true, transaction(5, 1), null);
+		long start = System.nanoTime();
+		attempt(l, false, new PutItemRequest().withTableName("u"), null);
+		assertTrue(System.nanoTime() - start < 300000000L);
+		start = System.nanoTime();
+		attempt(l, false, new PutItemRequest().withTableName("t"), null);
+		assertTrue(System.nanoTime() - start >= 300000000L);
+	}
+
+	public void testChargesConsumedTransactionCapacity() {
+		DynamoDBRateLimiter l = new DynamoDBRateLimiter(0.5);
+		l.configure(provisioned("t", 10, 10));
+		TransactWriteItemsRequest req = transaction(5, 0);
+		Request<?> request = attempt(l, true, req, null);
+		assertEquals(ReturnConsumedCapacity.TOTAL.toString(),
+				req.getReturnConsumedCapacity());
+		// Only two of the ten estimated units were consumed
+		l.afterResponse(request, new Response<TransactWriteItemsResult>(
+				new TransactWriteItemsResult()
+						.withConsumedCapacity(new ConsumedCapacity()
+								.withTableName("t").withCapacityUnits(2.0)),
+				null));
+		long start = System.nanoTime();
+		attempt(l, false, new PutItemRequest().withTableName("t"), null);
+		assertTrue(System.nanoTime() - start < 300000000L);
+	}
+
+	private static void attempt(DynamoDBRateLimiter l, boolean firing,
+			Exception e) {
+		attempt(l, firing, new GetItemRequest().withTableName("t"), e);
+	}
+
+	private static <T extends AmazonWebServiceRequest> Request<T> attempt(
+			DynamoDBRateLimiter l, boolean firing, T req, Exception e) {
+		CallContext c = CallContext.enter(firing);
+		try {
+			l.beforeExecution(req);
+		} finally {
+			c.exit();
+		}
+		Request<T> request = new DefaultRequest<T>(req, "AmazonDynamoDBv2");
+		l.beforeAttempt(HandlerBeforeAttemptContext.builder()
+				.withRequest(request).build());
+		if (e != null) {
+			l.afterAttempt(HandlerAfterAttemptContext.builder()
+					.withRequest(request).withException(e).build());
+		}
+		return request;
+	}
+
+	private static TransactWriteItemsRequest transaction(int t, int u) {
+		List<TransactWriteItem> items = new ArrayList<TransactWriteItem>();
+		for (int i = 0; i < t; i++) {
+			items.add(new TransactWriteItem().withPut(new Put()
+					.withTableName("t")));
+		}
+		for (int i = 0; i < u; i++) {
+			items.add(new TransactWriteItem().withUpdate(new Update()
+					.withTableName("u")));
+		}
+		return new TransactWriteItemsRequest().withTransactItems(items);
+	}
+
+	private static AmazonServiceException throttle() {
+		AmazonServiceException e = new AmazonServiceException("throttled");
+		e.setErrorCode("ProvisionedThroughputExceededException");
+		return e;
+	}
+
+	private static TableDescription provisioned(String name, long read,
+			long write) {
+		return new TableDescription().withTableName(name)
+				.withProvisionedThroughput(throughput(read, write));
+	}
+
+	private static ProvisionedThroughputDescription throughput(long read,
+			long write) {
+		return new ProvisionedThroughputDescription().withReadCapacityUnits(
+				read).withWriteCapacityUnits(write);
+	}
+}
@@ -0,0 +1,95 @@
+package io.azam.aws.dynamodb.quartz;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+	public void testEmpty() {
+		Histogram h = new Histogram();
+		assertEquals(0L, h.count());
+		assertEquals(0L, h.mean());
+		assertEquals(0L, h.max());
+		assertEquals(0L, h.percentile(0.5));
+	}
+
+	public void testSmallValuesAreExact() {
+		Histogram h = new Histogram();
+		for (long v = 0; v < 4; v++) {
+			h.record(v);
+		}
+		assertEquals(0L, h.percentile(0.25));
+		assertEquals(1L, h.percentile(0.5));
+		assertEquals(2L, h.percentile(0.75));
+		assertEquals(3L, h.percentile(1.0));
+	}
+
+	public void testNegativeRecordedAsZero() {
+		Histogram h = new Histogram();
+		h.record(-5L);
+		assertEquals(1L, h.count());
+		assertEquals(0L, h.percentile(1.0));
+	}
+
+	public void testPercentiles() {
+		Histogram h = new Histogram();
+		for (long v = 1; v <= 1000; v++) {
+			h.record(v);
+		}
+		assertEquals(1000L, h.count());
+		assertEquals(500L, h.mean());
+		assertEquals(1000L, h.max());
+		long p50 = h.percentile(0.5);
+		assertTrue("p50 " + p50, p50 >= 500L && p50 <= 625L);
+		long p90 = h.percentile(0.9);
+		assertTrue("p90 " + p90, p90 >= 900L && p90 <= 1000L);
+		assertEquals(1000L, h.percentile(0.99));
+		assertEquals(1000L, h.percentile(1.0));
+		assertEquals(h.percentile(0.0), h.percentile(-1.0));
+		assertEquals(1000L, h.percentile(2.0));
+	}
+
+	public void testBucketUpperBoundWithinQuarter() {
+		for (long v = 4; v < 1L << 40; v = v * 3 + 1) {
+			Histogram h = new Histogram();
+			h.record(v);
+			h.record(Long.MAX_VALUE / 2);
+			long p = h.percentile(0.5);
+			assertTrue(v + " -> " + p, p >= v && p <= v + v / 4);
+		}
+	}
+
+	public void testDecayFavoursRecentValues() {
+		Histogram h = new Histogram();
+		for (int i = 0; i < 1000; i++) {
+			h.record(10L);
+		}
+		h.decay();
+		assertEquals(500L, h.count());
+		assertEquals(10L, h.mean());
+		for (int i = 0; i < 1000; i++) {
+			h.record(1000L);
+		}
+		assertEquals(1000L, h.percentile(0.5));
+
+		Histogram undecayed = new Histogram();
+		for (int i = 0; i < 1000; i++) {
+			undecayed.record(10L);
+		}
+		for (int i = 0; i < 1000; i++) {
+			undecayed.record(1000L);
+		}
+		assertTrue(undecayed.percentile(0.5) < 1000L);
+	}
+
+	public void testDecayToEmpty() {
+		Histogram h = new Histogram();
+		for (int i = 0; i < 100; i++) {
+			h.record(i);
+		}
+		for (int i = 0; i < 8; i++) {
+			h.decay();
+		}
+		assertEquals(0L, h.count());
+		assertEquals(0L, h.mean());
+		assertEquals(0L, h.percentile(0.5));
+	}
+}
@@ -0,0 +1,1357 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.BillingModeSummary;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ConditionCheck;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTimeToLiveRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTimeToLiveResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.IndexStatus;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveDescription;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveStatus;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateTimeToLiveRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateTimeToLiveResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * In-memory DynamoDB for store tests, implementing the requests the store
+ * issues with the semantics it relies on: comparisons with missing attributes
+ * are false, legacy conditions behave as documented, queries and scans are
+ * paginated and transactions are cancelled as a whole with per item reasons.
+ * Asynchronous requests run on the calling thread.
+ */
+class InMemoryDynamoDB extends AbstractAmazonDynamoDBAsync {
+	private final Map<String, Table> tables = new HashMap<String, Table>();
+	private final Map<String, Integer> requests = new HashMap<String, Integer>();
+
+	/**
+	 * @return Number of requests of an operation, e.g. "transactWriteItems"
+	 */
+	synchronized int requests(String operation) {
+		Integer n = this.requests.get(operation);
+		return n != null ? n : 0;
+	}
+
+	/**
+	 * @return Copies of the items of a table, in key order
+	 */
+	synchronized List<Map<String, AttributeValue>> items(String table) {
+		List<Map<String, AttributeValue>> l = new ArrayList<Map<String, AttributeValue>>();
+		for (Map<String, AttributeValue> item : table(table).items.values()) {
+			l.add(copy(item));
+		}
+		return l;
+	}
+
+	/**
+	 * @return Copy of an item, or null if none
+	 */
+	synchronized Map<String, AttributeValue> item(String table,
+			Map<String, AttributeValue> key) {
+		Table t = table(table);
+		Map<String, AttributeValue> item = t.items.get(t.key(key));
+		return item != null ? copy(item) : null;
+	}
+
+	/**
+	 * Writes an item unconditionally.
+	 */
+	synchronized void put(String table, Map<String, AttributeValue> item) {
+		Table t = table(table);
+		t.items.put(t.key(item), copy(item));
+	}
+
+	@Override
+	public synchronized CreateTableResult createTable(CreateTableRequest req) {
+		count("createTable");
+		if (this.tables.containsKey(req.getTableName())) {
+			throw new ResourceInUseException("Table already exists: "
+					+ req.getTableName());
+		}
+		Table t = new Table(req);
+		this.tables.put(req.getTableName(), t);
+		return new CreateTableResult().withTableDescription(t.describe());
+	}
+
+	@Override
+	public synchronized DescribeTableResult describeTable(
+			DescribeTableRequest req) {
+		count("describeTable");
+		return new DescribeTableResult().withTable(table(req.getTableName())
+				.describe());
+	}
+
+	@Override
+	public synchronized UpdateTimeToLiveResult updateTimeToLive(
+			UpdateTimeToLiveRequest req) {
+		count("updateTimeToLive");
+		Table t = table(req.getTableName());
+		boolean enabled = Boolean.TRUE.equals(req
+				.getTimeToLiveSpecification().getEnabled());
+		t.ttl = new TimeToLiveDescription().withAttributeName(
+				req.getTimeToLiveSpecification().getAttributeName())
+				.withTimeToLiveStatus(
+						enabled ? TimeToLiveStatus.ENABLED
+								: TimeToLiveStatus.DISABLED);
+		return new UpdateTimeToLiveResult().withTimeToLiveSpecification(req
+				.getTimeToLiveSpecification());
+	}
+
+	@Override
+	public synchronized DescribeTimeToLiveResult describeTimeToLive(
+			DescribeTimeToLiveRequest req) {
+		count("describeTimeToLive");
+		return new DescribeTimeToLiveResult()
+				.withTimeToLiveDescription(table(req.getTableName()).ttl);
+	}
+
+	@Override
+	public synchronized GetItemResult getItem(GetItemRequest req) {
+		count("getItem");
+		Table t = table(req.getTableName());
+		Map<String, AttributeValue> item = t.items.get(t.key(req.getKey()));
+		return new GetItemResult().withItem(item != null ? copy(item) : null);
+	}
+
+	@Override
+	public synchronized PutItemResult putItem(PutItemRequest req) {
+		count("putItem");
+		Table t = table(req.getTableName());
+		String key = t.key(req.getItem());
+		Map<String, AttributeValue> old = t.items.get(key);
+		if (!check(old, req.getConditionExpression(), req.getExpected(),
+				req.getConditionalOperator(),
+				req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues())) {
+			throw conditionFailed();
+		}
+		t.items.put(key, copy(req.getItem()));
+		PutItemResult res = new PutItemResult();
+		if (ReturnValue.ALL_OLD.toString().equals(req.getReturnValues())
+				&& old != null) {
+			res.withAttributes(copy(old));
+		}
+		return res;
+	}
+
+	@Override
+	public synchronized UpdateItemResult updateItem(UpdateItemRequest req) {
+		count("updateItem");
+		Table t = table(req.getTableName());
+		String key = t.key(req.getKey());
+		Map<String, AttributeValue> old = t.items.get(key);
+		if (!check(old, req.getConditionExpression(), req.getExpected(),
+				req.getConditionalOperator(),
+				req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues())) {
+			throw conditionFailed();
+		}
+		Set<String> updated = new HashSet<String>();
+		Map<String, AttributeValue> item = update(t, req.getKey(), old,
+				req.getUpdateExpression(), req.getAttributeUpdates(),
+				req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues(), updated);
+		t.items.put(key, item);
+		UpdateItemResult res = new UpdateItemResult();
+		String rv = req.getReturnValues();
+		if (ReturnValue.ALL_OLD.toString().equals(rv)) {
+			res.withAttributes(old != null ? copy(old) : null);
+		} else if (ReturnValue.UPDATED_OLD.toString().equals(rv)) {
+			res.withAttributes(old != null ? select(old, updated) : null);
+		} else if (ReturnValue.ALL_NEW.toString().equals(rv)) {
+			res.withAttributes(copy(item));
+		} else if (ReturnValue.UPDATED_NEW.toString().equals(rv)) {
+			res.withAttributes(select(item, updated));
+		}
+		return res;
+	}
+
+	@Override
+	public synchronized DeleteItemResult deleteItem(DeleteItemRequest req) {
+		count("deleteItem");
+		Table t = table(req.getTableName());
+		String key = t.key(req.getKey());
+		Map<String, AttributeValue> old = t.items.get(key);
+		if (!check(old, req.getConditionExpression(), req.getExpected(),
+				req.getConditionalOperator(),
+				req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues())) {
+			throw conditionFailed();
+		}
+		t.items.remove(key);
+		DeleteItemResult res = new DeleteItemResult();
+		if (ReturnValue.ALL_OLD.toString().equals(req.getReturnValues())
+				&& old != null) {
+			res.withAttributes(copy(old));
+		}
+		return res;
+	}
+
+	@Override
+	public synchronized QueryResult query(QueryRequest req) {
+		count("query");
+		Table t = table(req.getTableName());
+		String[] keys = t.keys(req.getIndexName());
+		String keyCondition = req.getKeyConditionExpression();
+		Map<String, String> names = req.getExpressionAttributeNames();
+		Map<String, AttributeValue> values = req.getExpressionAttributeValues();
+		if (keyCondition == null) {
+			FencedWrites.Expression e = new FencedWrites.Expression(names,
+					values);
+			keyCondition = e.condition(expected(req.getKeyConditions()), null);
+			names = e.names();
+			values = e.values();
+		}
+		List<Map<String, AttributeValue>> matching = new ArrayList<Map<String, AttributeValue>>();
+		for (Map<String, AttributeValue> item : t.items.values()) {
+			if (item.containsKey(keys[0])
+					&& (keys[1] == null || item.containsKey(keys[1]))
+					&& new Parser(item, keyCondition, names, values)
+							.condition()) {
+				matching.add(item);
+			}
+		}
+		final String range = keys[1];
+		final Table table = t;
+		Collections.sort(matching, new Comparator<Map<String, AttributeValue>>() {
+			@Override
+			public int compare(Map<String, AttributeValue> a,
+					Map<String, AttributeValue> b) {
+				int c = range != null ? order(a.get(range), b.get(range)) : 0;
+				return c != 0 ? c : table.key(a).compareTo(table.key(b));
+			}
+		});
+		if (Boolean.FALSE.equals(req.getScanIndexForward())) {
+			Collections.reverse(matching);
+		}
+		if (req.getExclusiveStartKey() != null) {
+			String start = t.key(req.getExclusiveStartKey());
+			for (int i = 0; i < matching.size(); i++) {
+				if (t.key(matching.get(i)).equals(start)) {
+					matching = matching.subList(i + 1, matching.size());
+					break;
+				}
+			}
+		}
+		Page page = page(t, keys, matching, req.getLimit(),
+				req.getFilterExpression(), req.getQueryFilter(),
+				req.getConditionalOperator(), req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues());
+		return new QueryResult().withItems(page.items)
+				.withCount(page.items.size()).withScannedCount(page.scanned)
+				.withLastEvaluatedKey(page.last);
+	}
+
+	@Override
+	public synchronized ScanResult scan(ScanRequest req) {
+		count("scan");
+		Table t = table(req.getTableName());
+		String[] keys = t.keys(req.getIndexName());
+		Map<String, Map<String, AttributeValue>> items = t.items;
+		if (req.getExclusiveStartKey() != null) {
+			items = t.items.tailMap(t.key(req.getExclusiveStartKey()), false);
+		}
+		List<Map<String, AttributeValue>> matching = new ArrayList<Map<String, AttributeValue>>();
+		for (Map.Entry<String, Map<String, AttributeValue>> e : items
+				.entrySet()) {
+			Map<String, AttributeValue> item = e.getValue();
+			if (!item.containsKey(keys[0])
+					|| (keys[1] != null && !item.containsKey(keys[1]))) {
+				continue;
+			}
+			if (req.getTotalSegments() != null
+					&& Math.abs(e.getKey().hashCode() % req.getTotalSegments()) != req
+							.getSegment()) {
+				continue;
+			}
+			matching.add(item);
+		}
+		Page page = page(t, keys, matching, req.getLimit(),
+				req.getFilterExpression(), req.getScanFilter(),
+				req.getConditionalOperator(), req.getExpressionAttributeNames(),
+				req.getExpressionAttributeValues());
+		return new ScanResult().withItems(page.items)
+				.withCount(page.items.size()).withScannedCount(page.scanned)
+				.withLastEvaluatedKey(page.last);
+	}
+
+	@Override
+	public synchronized BatchGetItemResult batchGetItem(BatchGetItemRequest req) {
+		count("batchGetItem");
+		Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<String, List<Map<String, AttributeValue>>>();
+		for (Map.Entry<String, KeysAndAttributes> e : req.getRequestItems()
+				.entrySet()) {
+			Table t = table(e.getKey());
+			List<Map<String, AttributeValue>> l = new ArrayList<Map<String, AttributeValue>>();
+			for (Map<String, AttributeValue> key : e.getValue().getKeys()) {
+				Map<String, AttributeValue> item = t.items.get(t.key(key));
+				if (item != null) {
+					l.add(copy(item));
+				}
+			}
+			responses.put(e.getKey(), l);
+		}
+		return new BatchGetItemResult().withResponses(responses)
+				.withUnprocessedKeys(new HashMap<String, KeysAndAttributes>());
+	}
+
+	@Override
+	public synchronized BatchWriteItemResult batchWriteItem(
+			BatchWriteItemRequest req) {
+		count("batchWriteItem");
+		for (Map.Entry<String, List<WriteRequest>> e : req.getRequestItems()
+				.entrySet()) {
+			Table t = table(e.getKey());
+			for (WriteRequest w : e.getValue()) {
+				if (w.getPutRequest() != null) {
+					Map<String, AttributeValue> item = w.getPutRequest()
+							.getItem();
+					t.items.put(t.key(item), copy(item));
+				} else {
+					t.items.remove(t.key(w.getDeleteRequest().getKey()));
+				}
+			}
+		}
+		return new BatchWriteItemResult()
+				.withUnprocessedItems(new HashMap<String, List<WriteRequest>>());
+	}
+
+	@Override
+	public synchronized TransactWriteItemsResult transactWriteItems(
+			TransactWriteItemsRequest req) {
+		count("transactWriteItems");
+		List<TransactWriteItem> items = req.getTransactItems();
+		Set<String> targets = new HashSet<String>();
+		List<CancellationReason> reasons = new ArrayList<CancellationReason>();
+		boolean cancelled = false;
+		for (TransactWriteItem i : items) {
+			String table;
+			Map<String, AttributeValue> key;
+			boolean ok;
+			if (i.getPut() != null) {
+				Put p = i.getPut();
+				table = p.getTableName();
+				key = p.getItem();
+				ok = check(current(table, key), p.getConditionExpression(),
+						null, null, p.getExpressionAttributeNames(),
+						p.getExpressionAttributeValues());
+			} else if (i.getUpdate() != null) {
+				Update u = i.getUpdate();
+				table = u.getTableName();
+				key = u.getKey();
+				ok = check(current(table, key), u.getConditionExpression(),
+						null, null, u.getExpressionAttributeNames(),
+						u.getExpressionAttributeValues());
+			} else if (i.getDelete() != null) {
+				Delete d = i.getDelete();
+				table = d.getTableName();
+				key = d.getKey();
+				ok = check(current(table, key), d.getConditionExpression(),
+						null, null, d.getExpressionAttributeNames(),
+						d.getExpressionAttributeValues());
+			} else {
+				ConditionCheck c = i.getConditionCheck();
+				table = c.getTableName();
+				key = c.getKey();
+				ok = check(current(table, key), c.getConditionExpression(),
+						null, null, c.getExpressionAttributeNames(),
+						c.getExpressionAttributeValues());
+			}
+			if (!targets.add(table + "/" + table(table).key(key))) {
+				throw validation("Transaction request cannot include multiple operations on one item");
+			}
+			reasons.add(new CancellationReason().withCode(
+					ok ? "None" : "ConditionalCheckFailed").withMessage(
+					ok ? null : "The conditional request failed"));
+			cancelled |= !ok;
+		}
+		if (cancelled) {
+			StringBuilder codes = new StringBuilder();
+			for (CancellationReason r : reasons) {
+				codes.append(codes.length() > 0 ? ", " : "").append(
+						r.getCode());
+			}
+			TransactionCanceledException e = new TransactionCanceledException(
+					"Transaction cancelled, please refer cancellation reasons for specific reasons ["
+							+ codes + "]");
+			e.setCancellationReasons(reasons);
+			e.setErrorCode("TransactionCanceledException");
+			e.setStatusCode(400);
+			throw e;
+		}
+		for (TransactWriteItem i : items) {
+			if (i.getPut() != null) {
+				Table t = table(i.getPut().getTableName());
+				t.items.put(t.key(i.getPut().getItem()),
+						copy(i.getPut().getItem()));
+			} else if (i.getUpdate() != null) {
+				Update u = i.getUpdate();
+				Table t = table(u.getTableName());
+				String key = t.key(u.getKey());
+				t.items.put(key, update(t, u.getKey(), t.items.get(key),
+						u.getUpdateExpression(), null,
+						u.getExpressionAttributeNames(),
+						u.getExpressionAttributeValues(),
+						new HashSet<String>()));
+			} else if (i.getDelete() != null) {
+				Table t = table(i.getDelete().getTableName());
+				t.items.remove(t.key(i.getDelete().getKey()));
+			}
+		}
+		return new TransactWriteItemsResult();
+	}
+
+	@Override
+	public Future<GetItemResult> getItemAsync(final GetItemRequest req,
+			AsyncHandler<GetItemRequest, GetItemResult> handler) {
+		return async(req, handler, new Callable<GetItemResult>() {
+			@Override
+			public GetItemResult call() {
+				return getItem(req);
+			}
+		});
+	}
+
+	@Override
+	public Future<UpdateItemResult> updateItemAsync(
+			final UpdateItemRequest req,
+			AsyncHandler<UpdateItemRequest, UpdateItemResult> handler) {
+		return async(req, handler, new Callable<UpdateItemResult>() {
+			@Override
+			public UpdateItemResult call() {
+				return updateItem(req);
+			}
+		});
+	}
+
+	@Override
+	public Future<ScanResult> scanAsync(final ScanRequest req,
+			AsyncHandler<ScanRequest, ScanResult> handler) {
+		return async(req, handler, new Callable<ScanResult>() {
+			@Override
+			public ScanResult call() {
+				return scan(req);
+			}
+		});
+	}
+
+	@Override
+	public Future<QueryResult> queryAsync(final QueryRequest req,
+			AsyncHandler<QueryRequest, QueryResult> handler) {
+		return async(req, handler, new Callable<QueryResult>() {
+			@Override
+			public QueryResult call() {
+				return query(req);
+			}
+		});
+	}
+
+	@Override
+	public void shutdown() {
+		// Nothing to release
+	}
+
+	private static <Q extends AmazonWebServiceRequest, R> Future<R> async(
+			Q req, AsyncHandler<Q, R> handler, Callable<R> call) {
+		FutureTask<R> f = new FutureTask<R>(call);
+		f.run();
+		if (handler != null) {
+			try {
+				handler.onSuccess(req, f.get());
+			} catch (ExecutionException e) {
+				handler.onError(e.getCause() instanceof Exception ? (Exception) e
+						.getCause() : new RuntimeException(e.getCause()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return f;
+	}
+
+	private void count(String operation) {
+		Integer n = this.requests.get(operation);
+		this.requests.put(operation, n != null ? n + 1 : 1);
+	}
+
+	private Table table(String name) {
+		Table t = this.tables.get(name);
+		if (t == null) {
+			throw new ResourceNotFoundException(
+					"Requested resource not found: Table: " + name
+							+ " not found");
+		}
+		return t;
+	}
+
+	private Map<String, AttributeValue> current(String table,
+			Map<String, AttributeValue> key) {
+		Table t = table(table);
+		return t.items.get(t.key(key));
+	}
+
+	private static ConditionalCheckFailedException conditionFailed() {
+		ConditionalCheckFailedException e = new ConditionalCheckFailedException(
+				"The conditional request failed");
+		e.setErrorCode("ConditionalCheckFailedException");
+		e.setStatusCode(400);
+		return e;
+	}
+
+	private static AmazonServiceException validation(String message) {
+		AmazonServiceException e = new AmazonServiceException(message);
+		e.setErrorCode("ValidationException");
+		e.setStatusCode(400);
+		return e;
+	}
+
+	/**
+	 * Evaluates a condition expression, or legacy expected values, on an
+	 * item, which is null if it does not exist.
+	 */
+	private static boolean check(Map<String, AttributeValue> item,
+			String condition, Map<String, ExpectedAttributeValue> expected,
+			String conditionalOperator, Map<String, String> names,
+			Map<String, AttributeValue> values) {
+		if (condition == null) {
+			if (expected == null || expected.isEmpty()) {
+				return true;
+			}
+			FencedWrites.Expression e = new FencedWrites.Expression(names,
+					values);
+			condition = e.condition(expected, conditionalOperator);
+			names = e.names();
+			values = e.values();
+		}
+		Map<String, AttributeValue> m = item != null ? item
+				: Collections.<String, AttributeValue> emptyMap();
+		return new Parser(m, condition, names, values).condition();
+	}
+
+	/**
+	 * Applies an update expression, or legacy attribute updates, to a copy of
+	 * an item.
+	 *
+	 * @param updated
+	 *            Top level attributes updated, added to
+	 */
+	private static Map<String, AttributeValue> update(Table t,
+			Map<String, AttributeValue> key, Map<String, AttributeValue> old,
+			String expression,
+			Map<String, com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate> updates,
+			Map<String, String> names, Map<String, AttributeValue> values,
+			Set<String> updated) {
+		Map<String, AttributeValue> item = old != null ? copy(old)
+				: copy(key);
+		if (expression == null) {
+			if (updates == null || updates.isEmpty()) {
+				return item;
+			}
+			FencedWrites.Expression e = new FencedWrites.Expression(names,
+					values);
+			expression = e.update(updates);
+			names = e.names();
+			values = e.values();
+		}
+		Map<String, AttributeValue> m = old != null ? old : Collections
+				.<String, AttributeValue> emptyMap();
+		new Parser(m, expression, names, values).update(item, updated);
+		if (updated.contains(t.hash)
+				|| (t.range != null && updated.contains(t.range))) {
+			throw validation("Cannot update attribute " + t.hash
+					+ ". This attribute is part of the key");
+		}
+		return item;
+	}
+
+	private Page page(Table t, String[] keys,
+			List<Map<String, AttributeValue>> matching, Integer limit,
+			String filter, Map<String, Condition> legacyFilter,
+			String conditionalOperator, Map<String, String> names,
+			Map<String, AttributeValue> values) {
+		if (filter == null && legacyFilter != null && !legacyFilter.isEmpty()) {
+			FencedWrites.Expression e = new FencedWrites.Expression(names,
+					values);
+			filter = e.condition(expected(legacyFilter), conditionalOperator);
+			names = e.names();
+			values = e.values();
+		}
+		Page page = new Page();
+		for (int i = 0; i < matching.size(); i++) {
+			Map<String, AttributeValue> item = matching.get(i);
+			page.scanned++;
+			if (filter == null
+					|| new Parser(item, filter, names, values).condition()) {
+				page.items.add(copy(item));
+			}
+			if (limit != null && page.scanned >= limit
+					&& i < matching.size() - 1) {
+				page.last = new HashMap<String, AttributeValue>();
+				for (String k : new String[] { t.hash, t.range, keys[0],
+						keys[1] }) {
+					if (k != null) {
+						page.last.put(k, copy(item.get(k)));
+					}
+				}
+				break;
+			}
+		}
+		return page;
+	}
+
+	private static Map<String, ExpectedAttributeValue> expected(
+			Map<String, Condition> conditions) {
+		Map<String, ExpectedAttributeValue> m = new HashMap<String, ExpectedAttributeValue>();
+		if (conditions != null) {
+			for (Map.Entry<String, Condition> e : conditions.entrySet()) {
+				m.put(e.getKey(), new ExpectedAttributeValue()
+						.withComparisonOperator(
+								e.getValue().getComparisonOperator())
+						.withAttributeValueList(
+								e.getValue().getAttributeValueList()));
+			}
+		}
+		return m;
+	}
+
+	private static Map<String, AttributeValue> select(
+			Map<String, AttributeValue> item, Set<String> names) {
+		Map<String, AttributeValue> m = new HashMap<String, AttributeValue>();
+		for (String n : names) {
+			if (item.containsKey(n)) {
+				m.put(n, copy(item.get(n)));
+			}
+		}
+		return m;
+	}
+
+	static Map<String, AttributeValue> copy(Map<String, AttributeValue> item) {
+		Map<String, AttributeValue> m = new HashMap<String, AttributeValue>();
+		for (Map.Entry<String, AttributeValue> e : item.entrySet()) {
+			m.put(e.getKey(), copy(e.getValue()));
+		}
+		return m;
+	}
+
+	static AttributeValue copy(AttributeValue v) {
+		if (v == null) {
+			return null;
+		}
+		AttributeValue c = new AttributeValue();
+		c.setS(v.getS());
+		c.setN(v.getN());
+		if (v.getB() != null) {
+			c.setB(v.getB().duplicate());
+		}
+		if (v.getSS() != null) {
+			c.setSS(new ArrayList<String>(v.getSS()));
+		}
+		if (v.getNS() != null) {
+			c.setNS(new ArrayList<String>(v.getNS()));
+		}
+		if (v.getBS() != null) {
+			List<ByteBuffer> l = new ArrayList<ByteBuffer>();
+			for (ByteBuffer b : v.getBS()) {
+				l.add(b.duplicate());
+			}
+			c.setBS(l);
+		}
+		if (v.getM() != null) {
+			c.setM(copy(v.getM()));
+		}
+		if (v.getL() != null) {
+			List<AttributeValue> l = new ArrayList<AttributeValue>();
+			for (AttributeValue e : v.getL()) {
+				l.add(copy(e));
+			}
+			c.setL(l);
+		}
+		c.setBOOL(v.getBOOL());
+		c.setNULL(v.getNULL());
+		return c;
+	}
+
+	/**
+	 * @return Order of two key values, numbers compared numerically
+	 */
+	static int order(AttributeValue a, AttributeValue b) {
+		if (a.getN() != null && b.getN() != null) {
+			return new BigDecimal(a.getN()).compareTo(new BigDecimal(b.getN()));
+		} else if (a.getS() != null && b.getS() != null) {
+			return a.getS().compareTo(b.getS());
+		} else if (a.getB() != null && b.getB() != null) {
+			return a.getB().compareTo(b.getB());
+		}
+		throw validation("Incomparable values: " + a + ", " + b);
+	}
+
+	static boolean same(AttributeValue a, AttributeValue b) {
+		if (a.getN() != null && b.getN() != null) {
+			return order(a, b) == 0;
+		} else if (a.getSS() != null && b.getSS() != null) {
+			return new HashSet<String>(a.getSS()).equals(new HashSet<String>(
+					b.getSS()));
+		} else if (a.getNS() != null && b.getNS() != null) {
+			Set<BigDecimal> x = new HashSet<BigDecimal>();
+			for (String n : a.getNS()) {
+				x.add(new BigDecimal(n).stripTrailingZeros());
+			}
+			Set<BigDecimal> y = new HashSet<BigDecimal>();
+			for (String n : b.getNS()) {
+				y.add(new BigDecimal(n).stripTrailingZeros());
+			}
+			return x.equals(y);
+		}
+		return a.equals(b);
+	}
+
+	/**
+	 * Page of query or scan results.
+	 */
+	private static final class Page {
+		final List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+		int scanned = 0;
+		Map<String, AttributeValue> last;
+	}
+
+	private static final class Table {
+		final CreateTableRequest definition;
+		final String hash;
+		final String range;
+		final Map<String, String[]> indexes = new HashMap<String, String[]>();
+		final TreeMap<String, Map<String, AttributeValue>> items = new TreeMap<String, Map<String, AttributeValue>>();
+		TimeToLiveDescription ttl = new TimeToLiveDescription()
+				.withTimeToLiveStatus(TimeToLiveStatus.DISABLED);
+
+		Table(CreateTableRequest definition) {
+			this.definition = definition;
+			String[] keys = keys(definition.getKeySchema());
+			this.hash = keys[0];
+			this.range = keys[1];
+			if (definition.getGlobalSecondaryIndexes() != null) {
+				for (GlobalSecondaryIndex i : definition
+						.getGlobalSecondaryIndexes()) {
+					this.indexes.put(i.getIndexName(), keys(i.getKeySchema()));
+				}
+			}
+		}
+
+		private static String[] keys(List<KeySchemaElement> schema) {
+			String[] keys = new String[2];
+			for (KeySchemaElement e : schema) {
+				keys[KeyType.HASH.toString().equals(e.getKeyType()) ? 0 : 1] = e
+						.getAttributeName();
+			}
+			return keys;
+		}
+
+		/**
+		 * @return Hash and range key names of the table or an index
+		 */
+		String[] keys(String index) {
+			if (index == null) {
+				return new String[] { this.hash, this.range };
+			}
+			String[] keys = this.indexes.get(index);
+			if (keys == null) {
+				throw validation("The table does not have the specified index: "
+						+ index);
+			}
+			return keys;
+		}
+
+		/**
+		 * @return Primary key of an item or key, encoded for ordering
+		 */
+		String key(Map<String, AttributeValue> item) {
+			return encode(item.get(this.hash))
+					+ "\u0000"
+					+ (this.range != null ? encode(item.get(this.range)) : "");
+		}
+
+		private static String encode(AttributeValue v) {
+			if (v == null) {
+				throw validation("One of the required keys was not given a value");
+			} else if (v.getS() != null) {
+				return "S" + v.getS();
+			} else if (v.getN() != null) {
+				return "N"
+						+ new BigDecimal(v.getN()).stripTrailingZeros()
+								.toPlainString();
+			} else if (v.getB() != null) {
+				return "B" + v.getB().hashCode();
+			}
+			throw validation("Invalid key value: " + v);
+		}
+
+		TableDescription describe() {
+			TableDescription d = new TableDescription()
+					.withTableName(this.definition.getTableName())
+					.withTableStatus(TableStatus.ACTIVE)
+					.withKeySchema(this.definition.getKeySchema())
+					.withAttributeDefinitions(
+							this.definition.getAttributeDefinitions())
+					.withItemCount((long) this.items.size());
+			String mode = this.definition.getBillingMode() != null ? this.definition
+					.getBillingMode() : BillingMode.PROVISIONED.toString();
+			d.withBillingModeSummary(new BillingModeSummary()
+					.withBillingMode(mode));
+			d.withProvisionedThroughput(throughput(this.definition
+					.getProvisionedThroughput()));
+			if (this.definition.getGlobalSecondaryIndexes() != null) {
+				List<GlobalSecondaryIndexDescription> l = new ArrayList<GlobalSecondaryIndexDescription>();
+				for (GlobalSecondaryIndex i : this.definition
+						.getGlobalSecondaryIndexes()) {
+					l.add(new GlobalSecondaryIndexDescription()
+							.withIndexName(i.getIndexName())
+							.withKeySchema(i.getKeySchema())
+							.withProjection(i.getProjection())
+							.withIndexStatus(IndexStatus.ACTIVE)
+							.withProvisionedThroughput(
+									throughput(i.getProvisionedThroughput())));
+				}
+				d.withGlobalSecondaryIndexes(l);
+			}
+			return d;
+		}
+
+		private static ProvisionedThroughputDescription throughput(
+				ProvisionedThroughput t) {
+			if (t == null) {
+				return new ProvisionedThroughputDescription()
+						.withReadCapacityUnits(0L).withWriteCapacityUnits(0L);
+			}
+			return new ProvisionedThroughputDescription()
+					.withReadCapacityUnits(t.getReadCapacityUnits())
+					.withWriteCapacityUnits(t.getWriteCapacityUnits());
+		}
+	}
+
+	/**
+	 * Evaluates condition and update expressions on an item.
+	 */
+	private static final class Parser {
+		private final Map<String, AttributeValue> item;
+		private final Map<String, String> names;
+		private final Map<String, AttributeValue> values;
+		private final List<String> tokens = new ArrayList<String>();
+		private int pos = 0;
+
+		Parser(Map<String, AttributeValue> item, String expression,
+				Map<String, String> names, Map<String, AttributeValue> values) {
+			this.item = item;
+			this.names = names != null ? names : Collections
+					.<String, String> emptyMap();
+			this.values = values != null ? values : Collections
+					.<String, AttributeValue> emptyMap();
+			tokenize(expression);
+		}
+
+		private void tokenize(String s) {
+			int i = 0;
+			while (i < s.length()) {
+				char c = s.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '#' || c == ':' || c == '_'
+						|| Character.isLetterOrDigit(c)) {
+					int j = i + 1;
+					while (j < s.length()
+							&& (s.charAt(j) == '_' || Character
+									.isLetterOrDigit(s.charAt(j)))) {
+						j++;
+					}
+					this.tokens.add(s.substring(i, j));
+					i = j;
+				} else if ((c == '<' || c == '>') && i + 1 < s.length()
+						&& (s.charAt(i + 1) == '=' || s.charAt(i + 1) == '>')) {
+					this.tokens.add(s.substring(i, i + 2));
+					i += 2;
+				} else {
+					this.tokens.add(String.valueOf(c));
+					i++;
+				}
+			}
+		}
+
+		private String peek() {
+			return this.pos < this.tokens.size() ? this.tokens.get(this.pos)
+					: null;
+		}
+
+		private String next() {
+			String t = peek();
+			if (t == null) {
+				throw validation("Unexpected end of expression");
+			}
+			this.pos++;
+			return t;
+		}
+
+		private boolean accept(String token) {
+			if (token.equalsIgnoreCase(peek())) {
+				this.pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (!accept(token)) {
+				throw validation("Expected " + token + " at " + peek());
+			}
+		}
+
+		boolean condition() {
+			boolean v = or();
+			if (peek() != null) {
+				throw validation("Unexpected token: " + peek());
+			}
+			return v;
+		}
+
+		private boolean or() {
+			boolean v = and();
+			while (accept("OR")) {
+				boolean r = and();
+				v = v || r;
+			}
+			return v;
+		}
+
+		private boolean and() {
+			boolean v = not();
+			while (accept("AND")) {
+				boolean r = not();
+				v = v && r;
+			}
+			return v;
+		}
+
+		private boolean not() {
+			if (accept("NOT")) {
+				return !not();
+			}
+			return primary();
+		}
+
+		private boolean primary() {
+			if (accept("(")) {
+				boolean v = or();
+				expect(")");
+				return v;
+			}
+			String t = peek();
+			if ("attribute_exists".equals(t)
+					|| "attribute_not_exists".equals(t)) {
+				next();
+				expect("(");
+				AttributeValue v = resolve(path(next()));
+				expect(")");
+				return "attribute_exists".equals(t) ? v != null : v == null;
+			} else if ("begins_with".equals(t) || "contains".equals(t)) {
+				next();
+				expect("(");
+				AttributeValue a = operand();
+				expect(",");
+				AttributeValue b = operand();
+				expect(")");
+				if (a == null || b == null) {
+					return false;
+				}
+				if ("begins_with".equals(t)) {
+					return a.getS() != null && b.getS() != null
+							&& a.getS().startsWith(b.getS());
+				}
+				if (a.getS() != null && b.getS() != null) {
+					return a.getS().contains(b.getS());
+				} else if (a.getSS() != null && b.getS() != null) {
+					return a.getSS().contains(b.getS());
+				} else if (a.getNS() != null && b.getN() != null) {
+					for (String n : a.getNS()) {
+						if (same(new AttributeValue().withN(n), b)) {
+							return true;
+						}
+					}
+				} else if (a.getL() != null) {
+					for (AttributeValue e : a.getL()) {
+						if (same(e, b)) {
+							return true;
+						}
+					}
+				}
+				return false;
+			}
+			AttributeValue a = operand();
+			String op = next();
+			if ("BETWEEN".equalsIgnoreCase(op)) {
+				AttributeValue lo = operand();
+				expect("AND");
+				AttributeValue hi = operand();
+				return a != null && comparable(a, lo) && comparable(a, hi)
+						&& order(a, lo) >= 0 && order(a, hi) <= 0;
+			} else if ("IN".equalsIgnoreCase(op)) {
+				expect("(");
+				boolean found = false;
+				do {
+					AttributeValue b = operand();
+					found |= a != null && b != null && same(a, b);
+				} while (accept(","));
+				expect(")");
+				return found;
+			}
+			AttributeValue b = operand();
+			if (a == null || b == null) {
+				return false;
+			}
+			if ("=".equals(op)) {
+				return same(a, b);
+			} else if ("<>".equals(op)) {
+				return !same(a, b);
+			}
+			if (!comparable(a, b)) {
+				return false;
+			}
+			int c = order(a, b);
+			if ("<".equals(op)) {
+				return c < 0;
+			} else if ("<=".equals(op)) {
+				return c <= 0;
+			} else if (">".equals(op)) {
+				return c > 0;
+			} else if (">=".equals(op)) {
+				return c >= 0;
+			}
+			throw validation("Unsupported operator: " + op);
+		}
+
+		private static boolean comparable(AttributeValue a, AttributeValue b) {
+			return a != null
+					&& b != null
+					&& ((a.getN() != null && b.getN() != null)
+							|| (a.getS() != null && b.getS() != null) || (a
+							.getB() != null && b.getB() != null));
+		}
+
+		private AttributeValue operand() {
+			String t = next();
+			if (t.startsWith(":")) {
+				AttributeValue v = this.values.get(t);
+				if (v == null) {
+					throw validation("Value not defined: " + t);
+				}
+				return v;
+			} else if ("size".equals(t) && "(".equals(peek())) {
+				expect("(");
+				AttributeValue v = resolve(path(next()));
+				expect(")");
+				if (v == null) {
+					return null;
+				}
+				int size;
+				if (v.getS() != null) {
+					size = v.getS().length();
+				} else if (v.getM() != null) {
+					size = v.getM().size();
+				} else if (v.getL() != null) {
+					size = v.getL().size();
+				} else if (v.getSS() != null) {
+					size = v.getSS().size();
+				} else if (v.getNS() != null) {
+					size = v.getNS().size();
+				} else {
+					throw validation("Invalid size operand");
+				}
+				return new AttributeValue().withN(Integer.toString(size));
+			}
+			return resolve(path(t));
+		}
+
+		/**
+		 * @return Path segments, attribute and map key names or list indexes
+		 */
+		private List<Object> path(String first) {
+			List<Object> path = new ArrayList<Object>();
+			path.add(name(first));
+			while (true) {
+				if (accept(".")) {
+					path.add(name(next()));
+				} else if (accept("[")) {
+					path.add(Integer.valueOf(next()));
+					expect("]");
+				} else {
+					return path;
+				}
+			}
+		}
+
+		private String name(String token) {
+			if (token.startsWith("#")) {
+				String n = this.names.get(token);
+				if (n == null) {
+					throw validation("Name not defined: " + token);
+				}
+				return n;
+			}
+			return token;
+		}
+
+		private AttributeValue resolve(List<Object> path) {
+			return resolve(this.item, path);
+		}
+
+		private static AttributeValue resolve(Map<String, AttributeValue> m,
+				List<Object> path) {
+			AttributeValue v = m.get(path.get(0));
+			for (int i = 1; i < path.size() && v != null; i++) {
+				Object p = path.get(i);
+				if (p instanceof Integer) {
+					int n = (Integer) p;
+					v = v.getL() != null && n < v.getL().size() ? v.getL()
+							.get(n) : null;
+				} else {
+					v = v.getM() != null ? v.getM().get(p) : null;
+				}
+			}
+			return v;
+		}
+
+		/**
+		 * Applies the update to an item, with operands read from the item
+		 * before the update.
+		 */
+		void update(Map<String, AttributeValue> out, Set<String> updated) {
+			while (peek() != null) {
+				String clause = next().toUpperCase();
+				do {
+					List<Object> path = path(next());
+					updated.add((String) path.get(0));
+					if ("SET".equals(clause)) {
+						expect("=");
+						AttributeValue v = term();
+						if (accept("+")) {
+							v = arithmetic(v, term(), true);
+						} else if (accept("-")) {
+							v = arithmetic(v, term(), false);
+						}
+						set(out, path, copy(v));
+					} else if ("REMOVE".equals(clause)) {
+						remove(out, path);
+					} else if ("ADD".equals(clause)) {
+						AttributeValue v = operand();
+						AttributeValue old = resolve(out, path);
+						if (old == null) {
+							set(out, path, copy(v));
+						} else if (v.getN() != null) {
+							set(out, path, arithmetic(old, v, true));
+						} else {
+							set(out, path, union(old, v));
+						}
+					} else if ("DELETE".equals(clause)) {
+						AttributeValue v = operand();
+						AttributeValue old = resolve(out, path);
+						if (old != null) {
+							AttributeValue r = difference(old, v);
+							if (r == null) {
+								remove(out, path);
+							} else {
+								set(out, path, r);
+							}
+						}
+					} else {
+						throw validation("Unsupported update clause: "
+								+ clause);
+					}
+				} while (accept(","));
+			}
+		}
+
+		private AttributeValue term() {
+			String t = peek();
+			if ("if_not_exists".equals(t)) {
+				next();
+				expect("(");
+				AttributeValue v = resolve(path(next()));
+				expect(",");
+				AttributeValue d = operand();
+				expect(")");
+				return v != null ? v : d;
+			} else if ("list_append".equals(t)) {
+				next();
+				expect("(");
+				AttributeValue a = operand();
+				expect(",");
+				AttributeValue b = operand();
+				expect(")");
+				List<AttributeValue> l = new ArrayList<AttributeValue>();
+				if (a != null) {
+					l.addAll(a.getL());
+				}
+				if (b != null) {
+					l.addAll(b.getL());
+				}
+				return new AttributeValue().withL(l);
+			}
+			AttributeValue v = operand();
+			if (v == null) {
+				throw validation("The provided expression refers to an attribute that does not exist in the item");
+			}
+			return v;
+		}
+
+		private static AttributeValue arithmetic(AttributeValue a,
+				AttributeValue b, boolean add) {
+			if (a.getN() == null || b.getN() == null) {
+				throw validation("Incorrect operand type for operator or function");
+			}
+			BigDecimal x = new BigDecimal(a.getN());
+			BigDecimal y = new BigDecimal(b.getN());
+			return new AttributeValue().withN((add ? x.add(y) : x.subtract(y))
+					.toPlainString());
+		}
+
+		private static AttributeValue union(AttributeValue a, AttributeValue b) {
+			if (a.getSS() != null && b.getSS() != null) {
+				Set<String> s = new LinkedHashSet<String>(a.getSS());
+				s.addAll(b.getSS());
+				return new AttributeValue().withSS(s);
+			} else if (a.getNS() != null && b.getNS() != null) {
+				Set<String> s = new LinkedHashSet<String>(a.getNS());
+				s.addAll(b.getNS());
+				return new AttributeValue().withNS(s);
+			}
+			throw validation("Incorrect operand type for operator or function");
+		}
+
+		private static AttributeValue difference(AttributeValue a,
+				AttributeValue b) {
+			Set<String> s;
+			if (a.getSS() != null && b.getSS() != null) {
+				s = new LinkedHashSet<String>(a.getSS());
+				s.removeAll(b.getSS());
+				return s.isEmpty() ? null : new AttributeValue().withSS(s);
+			} else if (a.getNS() != null && b.getNS() != null) {
+				s = new LinkedHashSet<String>(a.getNS());
+				s.removeAll(b.getNS());
+				return s.isEmpty() ? null : new AttributeValue().withNS(s);
+			}
+			throw validation("Incorrect operand type for operator or function");
+		}
+
+		private static void set(Map<String, AttributeValue> out,
+				List<Object> path, AttributeValue v) {
+			Object last = path.get(path.size() - 1);
+			if (path.size() == 1) {
+				out.put((String) last, v);
+				return;
+			}
+			AttributeValue parent = resolve(out, path.subList(0,
+					path.size() - 1));
+			if (last instanceof Integer) {
+				if (parent == null || parent.getL() == null) {
+					throw invalidPath();
+				}
+				int n = (Integer) last;
+				if (n < parent.getL().size()) {
+					parent.getL().set(n, v);
+				} else {
+					parent.getL().add(v);
+				}
+			} else {
+				if (parent == null || parent.getM() == null) {
+					throw invalidPath();
+				}
+				parent.getM().put((String) last, v);
+			}
+		}
+
+		private static void remove(Map<String, AttributeValue> out,
+				List<Object> path) {
+			Object last = path.get(path.size() - 1);
+			if (path.size() == 1) {
+				out.remove(last);
+				return;
+			}
+			AttributeValue parent = resolve(out, path.subList(0,
+					path.size() - 1));
+			if (parent == null) {
+				return;
+			}
+			if (last instanceof Integer) {
+				if (parent.getL() != null
+						&& (Integer) last < parent.getL().size()) {
+					parent.getL().remove(((Integer) last).intValue());
+				}
+			} else if (parent.getM() != null) {
+				parent.getM().remove(last);
+			}
+		}
+
+		private static AmazonServiceException invalidPath() {
+			return validation("The document path provided in the update expression is invalid for update");
+		}
+	}
+}
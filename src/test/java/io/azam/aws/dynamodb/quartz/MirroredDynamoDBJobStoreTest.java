@@ -0,0 +1,128 @@
+package io.azam.aws.dynamodb.quartz;
+
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStoreTest.TIMEOUT;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStoreTest.init;
+import static io.azam.aws.dynamodb.quartz.DynamoDBJobStoreTest.store;
+import static org.quartz.JobBuilder.newJob;
+import static org.quartz.SimpleScheduleBuilder.repeatSecondlyForever;
+import static org.quartz.TriggerBuilder.newTrigger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.quartz.JobDetail;
+import org.quartz.Trigger;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.spi.OperableTrigger;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
+
+public class MirroredDynamoDBJobStoreTest extends TestCase {
+	private InMemoryDynamoDB db;
+	private MirroredDynamoDBJobStore mirrored;
+	private DynamoDBJobStore direct;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.db = new InMemoryDynamoDB();
+		this.mirrored = new MirroredDynamoDBJobStore() {
+			@Override
+			AmazonDynamoDBAsync buildClient(
+					AmazonDynamoDBAsyncClientBuilder builder) {
+				return db;
+			}
+		};
+		init(this.mirrored);
+		this.mirrored.schedulerStarted();
+		// Reads what the writer applied, bypassing the mirror
+		this.direct = store(this.db);
+		init(this.direct);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.mirrored.shutdown();
+		this.direct.shutdown();
+	}
+
+	public void testWriterAppliesStoreJobsAndTriggers() throws Exception {
+		JobDetail job = newJob(DynamoDBJobStoreTest.NoOpJob.class).withIdentity("j", "g").build();
+		Trigger trigger = newTrigger().withIdentity("t", "g").forJob(job)
+				.withSchedule(repeatSecondlyForever()).startAt(future())
+				.build();
+		Map<JobDetail, Set<? extends Trigger>> m = new HashMap<JobDetail, Set<? extends Trigger>>();
+		m.put(job, Collections.singleton(trigger));
+		this.mirrored.storeJobsAndTriggers(m, false);
+
+		// Applied once to the mirror, and written by the writer rather than
+		// rejected as a duplicate by the mirror
+		assertNotNull(this.mirrored.retrieveJob(job.getKey()));
+		waitForTrigger(trigger.getKey());
+		assertNotNull(this.direct.retrieveJob(job.getKey()));
+		assertEquals(TriggerState.NORMAL,
+				this.direct.getTriggerState(trigger.getKey()));
+		assertFalse(this.mirrored.isFenced());
+	}
+
+	public void testWriterAppliesFanOuts() throws Exception {
+		JobDetail job = newJob(DynamoDBJobStoreTest.NoOpJob.class).withIdentity("j", "g")
+				.storeDurably().build();
+		OperableTrigger a = (OperableTrigger) newTrigger()
+				.withIdentity("a", "g").forJob(job)
+				.withSchedule(repeatSecondlyForever()).startAt(future())
+				.build();
+		OperableTrigger b = (OperableTrigger) newTrigger()
+				.withIdentity("b", "g").forJob(job)
+				.withSchedule(repeatSecondlyForever()).startAt(future())
+				.build();
+		this.mirrored.storeJob(job, false);
+		this.mirrored.storeTrigger(a, false);
+		this.mirrored.storeTrigger(b, false);
+		this.mirrored.pauseTriggers(GroupMatcher.triggerGroupEquals("g"));
+		waitForState(b.getKey(), TriggerState.PAUSED);
+		assertEquals(TriggerState.PAUSED,
+				this.direct.getTriggerState(a.getKey()));
+
+		this.mirrored.resumeAll();
+		waitForState(b.getKey(), TriggerState.NORMAL);
+		assertEquals(TriggerState.NORMAL,
+				this.direct.getTriggerState(a.getKey()));
+
+		this.mirrored.removeTriggers(Arrays.asList(a.getKey(), b.getKey()));
+		waitForState(b.getKey(), TriggerState.NONE);
+		assertFalse(this.direct.checkExists(a.getKey()));
+		assertTrue(this.direct.checkExists(job.getKey()));
+	}
+
+	private void waitForTrigger(TriggerKey key) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!this.direct.checkExists(key)) {
+			assertTrue("Trigger not written: " + key,
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+	}
+
+	private void waitForState(TriggerKey key, TriggerState state)
+			throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (this.direct.getTriggerState(key) != state) {
+			assertTrue("Trigger " + key + " not " + state,
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+	}
+
+	private static Date future() {
+		return new Date(System.currentTimeMillis() + 3600000L);
+	}
+}
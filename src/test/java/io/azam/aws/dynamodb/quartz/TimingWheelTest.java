@@ -0,0 +1,97 @@
+package io.azam.aws.dynamodb.quartz;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+	public void testExpiresInDeadlineOrder() {
+		TimingWheel<String> w = new TimingWheel<String>(10L, 0L);
+		w.schedule("c", 50L);
+		w.schedule("a", 10L);
+		w.schedule("b", 30L);
+		assertEquals(3, w.size());
+		assertEquals(Collections.<String> emptyList(), w.advance(9L));
+		assertEquals(Arrays.asList("a"), w.advance(10L));
+		assertEquals(Arrays.asList("b", "c"), w.advance(100L));
+		assertEquals(0, w.size());
+	}
+
+	public void testOrdersWithinTick() {
+		TimingWheel<String> w = new TimingWheel<String>(10L, 0L);
+		w.schedule("late", 29L);
+		w.schedule("early", 21L);
+		w.schedule("middle", 25L);
+		assertEquals(Arrays.asList("early", "middle", "late"), w.advance(20L));
+	}
+
+	public void testExpiresPastDeadlinesOnNextAdvance() {
+		TimingWheel<String> w = new TimingWheel<String>(10L, 1000L);
+		w.schedule("past", 500L);
+		w.schedule("now", 1000L);
+		assertEquals(Arrays.asList("past", "now"), w.advance(1000L));
+	}
+
+	public void testCascadesFromLevelOne() {
+		TimingWheel<String> w = new TimingWheel<String>(1L, 0L);
+		w.schedule("x", 100L);
+		assertEquals(Collections.<String> emptyList(), w.advance(64L));
+		assertEquals(Collections.<String> emptyList(), w.advance(99L));
+		assertEquals(Arrays.asList("x"), w.advance(100L));
+	}
+
+	public void testCascadesFromLevelTwo() {
+		TimingWheel<String> w = new TimingWheel<String>(1L, 0L);
+		w.schedule("y", 5000L);
+		w.schedule("x", 100L);
+		assertEquals(Arrays.asList("x"), w.advance(4096L));
+		assertEquals(Collections.<String> emptyList(), w.advance(4999L));
+		assertEquals(Arrays.asList("y"), w.advance(5000L));
+	}
+
+	public void testCascadesInStepsInDeadlineOrder() {
+		TimingWheel<Long> w = new TimingWheel<Long>(1L, 0L);
+		long[] deadlines = { 70000L, 3L, 300L, 5000L, 64L, 4096L, 65L };
+		for (long d : deadlines) {
+			w.schedule(d, d);
+		}
+		long[] sorted = deadlines.clone();
+		Arrays.sort(sorted);
+		int i = 0;
+		for (long now = 0; now <= 70000L; now += 7L) {
+			for (Long d : w.advance(now)) {
+				assertEquals(sorted[i++], d.longValue());
+				assertTrue(d <= now && d > now - 7L);
+			}
+		}
+		assertEquals(sorted.length, i);
+		assertEquals(0, w.size());
+	}
+
+	public void testReplacesBeyondTopLevel() {
+		long far = (1L << 24) + 1000L;
+		TimingWheel<String> w = new TimingWheel<String>(1L, 0L);
+		w.schedule("far", far);
+		assertEquals(Collections.<String> emptyList(), w.advance(far - 1L));
+		assertEquals(Arrays.asList("far"), w.advance(far));
+	}
+
+	public void testSkipsCancelled() {
+		TimingWheel<String> w = new TimingWheel<String>(10L, 0L);
+		TimingWheel.Timeout<String> a = w.schedule("a", 10L);
+		w.schedule("b", 10L);
+		w.cancel(a);
+		assertEquals(2, w.size());
+		assertEquals(Arrays.asList("b"), w.advance(10L));
+		assertEquals(0, w.size());
+	}
+
+	public void testSchedulesRelativeToIdleAdvance() {
+		TimingWheel<String> w = new TimingWheel<String>(10L, 0L);
+		assertEquals(Collections.<String> emptyList(), w.advance(100000L));
+		w.schedule("x", 100050L);
+		assertEquals(Collections.<String> emptyList(), w.advance(100040L));
+		assertEquals(Arrays.asList("x"), w.advance(100050L));
+	}
+}